@@ -28,11 +28,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -63,6 +65,11 @@ public final class Dex {
     private ByteBuffer data;
     private int nextSectionStart = 0;
     private byte[] signature = null;
+    /**
+     * Sections opened by each thread but not written out yet, it is null unless
+     * this dex is created by {@link #createSectionBuffered(int)}.
+     */
+    private ThreadLocal<List<BufferedSection>> bufferedSections = null;
 
     /**
      * Creates a new dex that reads from {@code data}. It is an error to modify
@@ -87,6 +94,26 @@ public final class Dex {
         this.tableOfContents.fileSize = byteCount;
     }
 
+    /**
+     * Creates a new empty dex of the specified size which keeps no bytes itself.
+     * Each section opened by {@link #openSection(TableOfContents.Section)} gets a
+     * buffer of its own, which is written out and dropped by {@link #flushSectionsTo},
+     * so that the dex can be written section by section instead of as a whole.
+     * Sections are tracked per thread, so different threads can open and flush
+     * disjoint sections of the dex at the same time.
+     */
+    public static Dex createSectionBuffered(int byteCount) {
+        Dex dex = new Dex(0);
+        dex.tableOfContents.fileSize = byteCount;
+        dex.bufferedSections = new ThreadLocal<List<BufferedSection>>() {
+            @Override
+            protected List<BufferedSection> initialValue() {
+                return new ArrayList<>();
+            }
+        };
+        return dex;
+    }
+
     /**
      * Creates a new dex buffer of the dex in {@code in}, and closes {@code in}.
      */
@@ -222,6 +249,16 @@ public final class Dex {
 
     public Section openSection(TableOfContents.Section tocSec) {
         int position = tocSec.off;
+        if (bufferedSections != null) {
+            if (position < 0 || position >= tableOfContents.fileSize) {
+                throw new IllegalArgumentException(
+                        "position=" + position + " length=" + tableOfContents.fileSize
+                );
+            }
+            BufferedSection bufferedSection = new BufferedSection(position, tocSec.byteCount);
+            bufferedSections.get().add(bufferedSection);
+            return new Section("section", bufferedSection.data, position);
+        }
         if (position < 0 || position >= data.capacity()) {
             throw new IllegalArgumentException(
                     "position=" + position + " length=" + data.capacity()
@@ -234,6 +271,22 @@ public final class Dex {
         return new Section("section", sectionData);
     }
 
+    /**
+     * Writes sections opened by calling thread since its last call to {@code out} at
+     * their offsets and drops their buffers. Only for dex created by
+     * {@link #createSectionBuffered(int)}.
+     */
+    public void flushSectionsTo(RandomAccessFile out) throws IOException {
+        List<BufferedSection> sections = bufferedSections.get();
+        synchronized (out) {
+            for (BufferedSection bufferedSection : sections) {
+                out.seek(bufferedSection.off);
+                out.write(bufferedSection.data.array(), 0, bufferedSection.data.capacity());
+            }
+        }
+        sections.clear();
+    }
+
     public Section appendSection(int maxByteCount, String name) {
         int limit = nextSectionStart + maxByteCount;
         ByteBuffer sectionData = data.duplicate();
@@ -375,6 +428,35 @@ public final class Dex {
         openSection(CHECKSUM_OFFSET).writeInt(computeChecksum());
     }
 
+    /**
+     * Generates the signature and checksum of the dex written in {@code dexFile}
+     * and writes them to the file.
+     */
+    public static void writeHashes(RandomAccessFile dexFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError();
+        }
+        byte[] buffer = new byte[8192];
+        dexFile.seek(SIGNATURE_OFFSET + SizeOf.SIGNATURE);
+        int count;
+        while ((count = dexFile.read(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+        }
+        dexFile.seek(SIGNATURE_OFFSET);
+        dexFile.write(digest.digest());
+
+        Adler32 adler32 = new Adler32();
+        dexFile.seek(CHECKSUM_OFFSET + SizeOf.CHECKSUM);
+        while ((count = dexFile.read(buffer)) > 0) {
+            adler32.update(buffer, 0, count);
+        }
+        dexFile.seek(CHECKSUM_OFFSET);
+        dexFile.writeInt(Integer.reverseBytes((int) adler32.getValue()));
+    }
+
     /**
      * Look up a field id name index from a field index. Cheaper than:
      * {@code fieldIds().get(fieldDexIndex).getNameIndex();}
@@ -615,6 +697,11 @@ public final class Dex {
             this.name = name;
         }
 
+        private Section(String name, ByteBuffer data, int origin) {
+            super(data, origin);
+            this.name = name;
+        }
+
         /**
          * @inheritDoc
          */
@@ -878,6 +965,17 @@ public final class Dex {
         }
     }
 
+    private static final class BufferedSection {
+        final int off;
+        final ByteBuffer data;
+
+        BufferedSection(int off, int byteCount) {
+            this.off = off;
+            this.data = ByteBuffer.allocate(byteCount);
+            this.data.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
     private final class StringTable extends AbstractList<String> implements RandomAccess {
         @Override public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
@@ -57,6 +57,11 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     private ByteBuffer data;
     private int dataBound;
     private boolean isResizeAllowed;
+    /**
+     * Position reported for the first byte of {@code data}, so that a buffer holding
+     * only a part of a dex can still report offsets in the whole dex.
+     */
+    private int origin = 0;
 
     public DexDataBuffer() {
         this.data = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
@@ -80,12 +85,20 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         this.isResizeAllowed = isResizeAllowed;
     }
 
+    /**
+     * Creates a buffer whose first byte is at {@code origin} of a dex.
+     */
+    public DexDataBuffer(ByteBuffer data, int origin) {
+        this(data);
+        this.origin = origin;
+    }
+
     public int position() {
-        return data.position();
+        return origin + data.position();
     }
 
     public void position(int pos) {
-        data.position(pos);
+        data.position(pos - origin);
     }
 
     public int available() {
@@ -165,7 +178,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public StringData readStringData() {
-        int off = data.position();
+        int off = position();
         try {
             int expectedLength = readUleb128();
             String result = Mutf8.decode(this, new char[expectedLength]);
@@ -180,14 +193,14 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public TypeList readTypeList() {
-        int off = data.position();
+        int off = position();
         int size = readInt();
         short[] types = readShortArray(size);
         return new TypeList(off, types);
     }
 
     public FieldId readFieldId() {
-        int off = data.position();
+        int off = position();
         int declaringClassIndex = readUnsignedShort();
         int typeIndex = readUnsignedShort();
         int nameIndex = readInt();
@@ -195,7 +208,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public MethodId readMethodId() {
-        int off = data.position();
+        int off = position();
         int declaringClassIndex = readUnsignedShort();
         int protoIndex = readUnsignedShort();
         int nameIndex = readInt();
@@ -203,7 +216,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public ProtoId readProtoId() {
-        int off = data.position();
+        int off = position();
         int shortyIndex = readInt();
         int returnTypeIndex = readInt();
         int parametersOffset = readInt();
@@ -226,7 +239,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public Code readCode() {
-        int off = data.position();
+        int off = position();
         int registersSize = readUnsignedShort();
         int insSize = readUnsignedShort();
         int outsSize = readUnsignedShort();
@@ -308,7 +321,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public DebugInfoItem readDebugInfoItem() {
-        int off = data.position();
+        int off = position();
 
         int lineStart = readUleb128();
         int parametersSize = readUleb128();
@@ -396,7 +409,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public ClassData readClassData() {
-        int off = data.position();
+        int off = position();
         int staticFieldsSize = readUleb128();
         int instanceFieldsSize = readUleb128();
         int directMethodsSize = readUleb128();
@@ -444,15 +457,15 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public Annotation readAnnotation() {
-        int off = data.position();
+        int off = position();
         byte visibility = readByte();
         int start = data.position();
         new EncodedValueReader(this, EncodedValueReader.ENCODED_ANNOTATION).skipValue();
-        return new Annotation(off, visibility, new EncodedValue(start, getBytesFrom(start)));
+        return new Annotation(off, visibility, new EncodedValue(origin + start, getBytesFrom(start)));
     }
 
     public AnnotationSet readAnnotationSet() {
-        int off = data.position();
+        int off = position();
         int size = readInt();
         int[] annotationOffsets = new int[size];
         for (int i = 0; i < size; ++i) {
@@ -462,7 +475,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public AnnotationSetRefList readAnnotationSetRefList() {
-        int off = data.position();
+        int off = position();
         int size = readInt();
         int[] annotationSetRefItems = new int[size];
         for (int i = 0; i < size; ++i) {
@@ -472,7 +485,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public AnnotationsDirectory readAnnotationsDirectory() {
-        int off = data.position();
+        int off = position();
         int classAnnotationsOffset = readInt();
         int fieldsSize = readInt();
         int methodsSize = readInt();
@@ -508,7 +521,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     public EncodedValue readEncodedArray() {
         int start = data.position();
         new EncodedValueReader(this, EncodedValueReader.ENCODED_ARRAY).skipValue();
-        return new EncodedValue(start, getBytesFrom(start));
+        return new EncodedValue(origin + start, getBytesFrom(start));
     }
 
     public void skip(int count) {
@@ -527,16 +540,16 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * Skips bytes until the position is aligned to a multiple of 4.
      */
     public void alignToFourBytes() {
-        data.position((data.position() + 3) & ~3);
+        position((position() + 3) & ~3);
     }
 
     /**
      * Writes 0x00 until the position is aligned to a multiple of 4.
      */
     public void alignToFourBytesWithZeroFill() {
-        int alignedPos = SizeOf.roundToTimesOfFour(data.position());
-        ensureBufferSize((alignedPos - data.position()) * SizeOf.UBYTE);
-        while ((data.position() & 3) != 0) {
+        int alignedPos = SizeOf.roundToTimesOfFour(position());
+        ensureBufferSize((alignedPos - position()) * SizeOf.UBYTE);
+        while ((position() & 3) != 0) {
             data.put((byte) 0);
         }
         if (this.data.position() > this.dataBound) {
@@ -595,6 +608,21 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         }
     }
 
+    /**
+     * Copy {@code byteCount} bytes from current position of {@code src} to current position
+     * of this buffer as they are. Positions of both buffers are moved forward.
+     */
+    public void write(DexDataBuffer src, int byteCount) {
+        ensureBufferSize(byteCount * SizeOf.UBYTE);
+        ByteBuffer srcData = src.data.duplicate();
+        srcData.limit(srcData.position() + byteCount);
+        this.data.put(srcData);
+        src.data.position(src.data.position() + byteCount);
+        if (this.data.position() > this.dataBound) {
+            this.dataBound = this.data.position();
+        }
+    }
+
     public void writeUleb128(int i) {
         Leb128.writeUnsignedLeb128(this, i);
     }
@@ -613,7 +641,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeStringData(StringData stringData) {
-        int off = data.position();
+        int off = position();
         try {
             int length = stringData.value.length();
             writeUleb128(length);
@@ -631,7 +659,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeTypeList(TypeList typeList) {
-        int off = data.position();
+        int off = position();
         short[] types = typeList.types;
         writeInt(types.length);
         for (short type : types) {
@@ -646,7 +674,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeFieldId(FieldId fieldId) {
-        int off = data.position();
+        int off = position();
         writeUnsignedShort(fieldId.declaringClassIndex);
         writeUnsignedShort(fieldId.typeIndex);
         writeInt(fieldId.nameIndex);
@@ -659,7 +687,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeMethodId(MethodId methodId) {
-        int off = data.position();
+        int off = position();
         writeUnsignedShort(methodId.declaringClassIndex);
         writeUnsignedShort(methodId.protoIndex);
         writeInt(methodId.nameIndex);
@@ -672,7 +700,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeProtoId(ProtoId protoId) {
-        int off = data.position();
+        int off = position();
         writeInt(protoId.shortyIndex);
         writeInt(protoId.returnTypeIndex);
         writeInt(protoId.parametersOffset);
@@ -685,7 +713,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeClassDef(ClassDef classDef) {
-        int off = data.position();
+        int off = position();
         writeInt(classDef.typeIndex);
         writeInt(classDef.accessFlags);
         writeInt(classDef.supertypeIndex);
@@ -703,7 +731,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeCode(Code code) {
-        int off = data.position();
+        int off = position();
         writeUnsignedShort(code.registersSize);
         writeUnsignedShort(code.insSize);
         writeUnsignedShort(code.outsSize);
@@ -779,7 +807,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeDebugInfoItem(DebugInfoItem debugInfoItem) {
-        int off = data.position();
+        int off = position();
 
         writeUleb128(debugInfoItem.lineStart);
 
@@ -802,7 +830,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeClassData(ClassData classData) {
-        int off = data.position();
+        int off = position();
         writeUleb128(classData.staticFields.length);
         writeUleb128(classData.instanceFields.length);
         writeUleb128(classData.directMethods.length);
@@ -839,7 +867,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeAnnotation(Annotation annotation) {
-        int off = data.position();
+        int off = position();
         writeByte(annotation.visibility);
         writeEncodedArray(annotation.encodedAnnotation);
         return off;
@@ -851,7 +879,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeAnnotationSet(AnnotationSet annotationSet) {
-        int off = data.position();
+        int off = position();
         writeInt(annotationSet.annotationOffsets.length);
         for (int annotationOffset : annotationSet.annotationOffsets) {
             writeInt(annotationOffset);
@@ -865,7 +893,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeAnnotationSetRefList(AnnotationSetRefList annotationSetRefList) {
-        int off = data.position();
+        int off = position();
         writeInt(annotationSetRefList.annotationSetRefItems.length);
         for (int annotationSetRefItem : annotationSetRefList.annotationSetRefItems) {
             writeInt(annotationSetRefItem);
@@ -879,7 +907,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeAnnotationsDirectory(AnnotationsDirectory annotationsDirectory) {
-        int off = data.position();
+        int off = position();
         writeInt(annotationsDirectory.classAnnotationsOffset);
         writeInt(annotationsDirectory.fieldAnnotations.length);
         writeInt(annotationsDirectory.methodAnnotations.length);
@@ -908,7 +936,7 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      * @return real offset of item we've just written in this section.
      */
     public int writeEncodedArray(EncodedValue encodedValue) {
-        int off = data.position();
+        int off = position();
         write(encodedValue.data);
         return off;
     }
@@ -0,0 +1,142 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.ziputils.ziputil;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Produces raw deflate streams (the payload of a zip DEFLATED entry) as small as
+ * zlib can make them by searching over several deflater settings and keeping the
+ * smallest output. Every candidate is a standard deflate stream, so the result can
+ * be inflated by any zip reader including the one on device.
+ *
+ * Effort levels:
+ *  1 - best compression with default strategy only.
+ *  2 - also try filtered strategy.
+ *  3 - also try huffman only strategy and a lower level, which is sometimes
+ *      smaller on already well packed data such as dex or arsc.
+ *  4 and above - try every level with every strategy.
+ */
+public final class HighRatioDeflater {
+    public static final int MIN_EFFORT     = 1;
+    public static final int DEFAULT_EFFORT = 2;
+    public static final int MAX_EFFORT     = 4;
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private static final int[][] CANDIDATES_EFFORT_1 = {
+        {Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY}
+    };
+
+    private static final int[][] CANDIDATES_EFFORT_2 = {
+        {Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY},
+        {Deflater.BEST_COMPRESSION, Deflater.FILTERED}
+    };
+
+    private static final int[][] CANDIDATES_EFFORT_3 = {
+        {Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY},
+        {Deflater.BEST_COMPRESSION, Deflater.FILTERED},
+        {Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY},
+        {6, Deflater.DEFAULT_STRATEGY}
+    };
+
+    private static final int[][] CANDIDATES_EFFORT_MAX;
+
+    static {
+        final int[] strategies = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED};
+        CANDIDATES_EFFORT_MAX = new int[Deflater.BEST_COMPRESSION * strategies.length + 1][];
+        int pos = 0;
+        for (int level = Deflater.BEST_COMPRESSION; level >= Deflater.BEST_SPEED; --level) {
+            for (int strategy : strategies) {
+                CANDIDATES_EFFORT_MAX[pos++] = new int[] {level, strategy};
+            }
+        }
+        CANDIDATES_EFFORT_MAX[pos] = new int[] {Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY};
+    }
+
+    private HighRatioDeflater() {
+    }
+
+    public static int clampEffort(int effort) {
+        if (effort < MIN_EFFORT) {
+            return MIN_EFFORT;
+        }
+        if (effort > MAX_EFFORT) {
+            return MAX_EFFORT;
+        }
+        return effort;
+    }
+
+    /**
+     * Deflate {@code data} with the given effort.
+     *
+     * @return raw deflate stream (no zlib header) of the smallest candidate.
+     */
+    public static byte[] deflate(byte[] data, int effort) {
+        final int[][] candidates = getCandidates(clampEffort(effort));
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            byte[] best = null;
+            for (int[] candidate : candidates) {
+                final byte[] result = deflateOnce(deflater, data, candidate[0], candidate[1],
+                        best == null ? Integer.MAX_VALUE : best.length);
+                if (result != null && (best == null || result.length < best.length)) {
+                    best = result;
+                }
+            }
+            return best;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int[][] getCandidates(int effort) {
+        switch (effort) {
+            case 1:
+                return CANDIDATES_EFFORT_1;
+            case 2:
+                return CANDIDATES_EFFORT_2;
+            case 3:
+                return CANDIDATES_EFFORT_3;
+            default:
+                return CANDIDATES_EFFORT_MAX;
+        }
+    }
+
+    /**
+     * @return deflated bytes, or null if the output grew beyond {@code sizeLimit},
+     * in which case this candidate can't be the best one and is abandoned early.
+     */
+    private static byte[] deflateOnce(Deflater deflater, byte[] data, int level, int strategy, int sizeLimit) {
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setStrategy(strategy);
+        deflater.setInput(data);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+            final int len = deflater.deflate(buffer);
+            out.write(buffer, 0, len);
+            if (out.size() >= sizeLimit) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.ziputils.ziputil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file whose DEFLATED entries are compressed on a worker pool.
+ *
+ * Large entries are split into fixed size blocks like pigz does: every block is
+ * deflated independently with the previous 32K of input as preset dictionary and
+ * ends with a sync flush, so the concatenation of all blocks is one valid deflate
+ * stream. Entries are written in the order they were added through
+ * {@link TinkerZipOutputStream}, which uses a constant time stamp, so the same
+ * input always produces a byte-identical archive regardless of thread scheduling.
+ *
+ * Only a bounded number of entries is kept in flight, callers may add as many
+ * entries as they like without holding all of them in memory.
+ */
+public final class ParallelZipWriter implements Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE     = 16384;
+
+    private final TinkerZipOutputStream zos;
+    private final ExecutorService       executor;
+    private final int                   level;
+    private final int                   blockSize;
+    private final int                   maxPendingEntries;
+    private final Deque<PendingEntry>   pendingEntries = new ArrayDeque<>();
+
+    private boolean closed = false;
+
+    public ParallelZipWriter(File output, int level, int threadCount) throws IOException {
+        this(output, level, threadCount, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelZipWriter(File output, int level, int threadCount, int blockSize) throws IOException {
+        if (blockSize <= DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be larger than " + DICTIONARY_SIZE);
+        }
+        final int workers = Math.max(1, threadCount);
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPendingEntries = workers * 4;
+        this.zos = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+        this.executor = Executors.newFixedThreadPool(workers);
+    }
+
+    public static int getDefaultThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Queue a DEFLATED entry, the content is compressed asynchronously.
+     * The caller must not modify {@code data} afterwards.
+     */
+    public void putEntry(String name, final byte[] data) throws IOException {
+        if (closed) {
+            throw new IOException("writer is closed");
+        }
+        final PendingEntry entry = new PendingEntry(name, data.length);
+        entry.crc = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                final CRC32 crc32 = new CRC32();
+                crc32.update(data, 0, data.length);
+                return crc32.getValue();
+            }
+        });
+        int offset = 0;
+        do {
+            final int blockOffset = offset;
+            final int blockLength = Math.min(blockSize, data.length - offset);
+            final boolean isLast = blockOffset + blockLength == data.length;
+            entry.blocks.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return deflateBlock(data, blockOffset, blockLength, isLast);
+                }
+            }));
+            offset += blockLength;
+        } while (offset < data.length);
+
+        pendingEntries.addLast(entry);
+        while (pendingEntries.size() > maxPendingEntries) {
+            writeEntry(pendingEntries.removeFirst());
+        }
+    }
+
+    public void setComment(String comment) {
+        zos.setComment(comment);
+    }
+
+    /**
+     * Wait for all queued entries, write them and the central directory.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            while (!pendingEntries.isEmpty()) {
+                writeEntry(pendingEntries.removeFirst());
+            }
+        } finally {
+            executor.shutdownNow();
+            zos.close();
+        }
+    }
+
+    private void writeEntry(PendingEntry pending) throws IOException {
+        final List<byte[]> compressedBlocks = new ArrayList<>(pending.blocks.size());
+        long compressedSize = 0;
+        for (Future<byte[]> block : pending.blocks) {
+            final byte[] compressed = getResult(block);
+            compressedBlocks.add(compressed);
+            compressedSize += compressed.length;
+        }
+        final TinkerZipEntry zipEntry = new TinkerZipEntry(pending.name);
+        zipEntry.setMethod(TinkerZipEntry.DEFLATED);
+        zipEntry.setSize(pending.size);
+        zipEntry.setCompressedSize(compressedSize);
+        zipEntry.setCrc(getResult(pending.crc));
+        zos.putNextEntry(zipEntry);
+        for (byte[] compressed : compressedBlocks) {
+            zos.write(compressed, 0, compressed.length);
+        }
+        zos.closeEntry();
+    }
+
+    private byte[] deflateBlock(byte[] data, int offset, int length, boolean isLast) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (offset > 0) {
+                deflater.setDictionary(data, offset - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, offset, length);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int len = deflater.deflate(buffer);
+                    out.write(buffer, 0, len);
+                }
+            } else {
+                // Sync flush keeps the block byte aligned and without the final bit,
+                // so the next block can be appended directly.
+                int len;
+                do {
+                    len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, len);
+                } while (len == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while compressing zip entries", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to compress zip entry", e.getCause());
+        }
+    }
+
+    private static final class PendingEntry {
+        final String               name;
+        final long                 size;
+        final List<Future<byte[]>> blocks = new ArrayList<>();
+        Future<Long>               crc;
+
+        PendingEntry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.ziputils.ziputil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Recompress every DEFLATED entry of a zip file with {@link HighRatioDeflater}, one entry
+ * per worker thread, and write them back in their original order.
+ *
+ * STORED entries are kept STORED since device code may rely on reading them directly.
+ * Entries whose recompressed form is not smaller than the original payload keep the
+ * original payload, so the output is never larger than the input.
+ */
+public final class TinkerZipRecompressor {
+    private static final int BUFFER_SIZE = 16384;
+
+    private TinkerZipRecompressor() {
+    }
+
+    public static int getDefaultThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void recompress(File input, File output, int effort) throws IOException {
+        recompress(input, output, effort, getDefaultThreadCount());
+    }
+
+    public static void recompress(File input, File output, final int effort, int threadCount) throws IOException {
+        final ZipFile zipFile = new ZipFile(input);
+        ExecutorService executor = null;
+        TinkerZipOutputStream zos = null;
+        try {
+            executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+            final List<ZipEntry> entries = new ArrayList<>();
+            final List<Future<CompressedEntry>> futures = new ArrayList<>();
+            final Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                final ZipEntry entry = enumeration.nextElement();
+                entries.add(entry);
+                futures.add(executor.submit(new Callable<CompressedEntry>() {
+                    @Override
+                    public CompressedEntry call() throws Exception {
+                        return compressEntry(zipFile, entry, effort);
+                    }
+                }));
+            }
+
+            zos = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+            for (int i = 0; i < entries.size(); ++i) {
+                final CompressedEntry compressed = getResult(futures.get(i));
+                final TinkerZipEntry zipEntry = new TinkerZipEntry(entries.get(i).getName());
+                zipEntry.setMethod(compressed.method);
+                zipEntry.setSize(compressed.size);
+                zipEntry.setCompressedSize(compressed.payload.length);
+                zipEntry.setCrc(compressed.crc);
+                zos.putNextEntry(zipEntry);
+                zos.write(compressed.payload, 0, compressed.payload.length);
+                zos.closeEntry();
+            }
+            if (zipFile.getComment() != null) {
+                zos.setComment(zipFile.getComment());
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (zos != null) {
+                zos.close();
+            }
+            zipFile.close();
+        }
+    }
+
+    private static CompressedEntry getResult(Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while recompressing zip entries", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("failed to recompress zip entry", cause);
+        }
+    }
+
+    private static CompressedEntry compressEntry(ZipFile zipFile, ZipEntry entry, int effort) throws IOException {
+        final byte[] data = readFully(zipFile, entry);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+
+        final CompressedEntry result = new CompressedEntry();
+        result.crc = crc32.getValue();
+        result.size = data.length;
+        if (entry.getMethod() == ZipEntry.STORED || data.length == 0) {
+            result.method = TinkerZipEntry.STORED;
+            result.payload = data;
+            return result;
+        }
+        final byte[] deflated = HighRatioDeflater.deflate(data, effort);
+        if (deflated.length >= data.length) {
+            // Incompressible data, deflate with stored blocks would only make it larger.
+            result.method = TinkerZipEntry.STORED;
+            result.payload = data;
+        } else {
+            result.method = TinkerZipEntry.DEFLATED;
+            result.payload = deflated;
+        }
+        return result;
+    }
+
+    private static byte[] readFully(ZipFile zipFile, ZipEntry entry) throws IOException {
+        final long size = entry.getSize();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : BUFFER_SIZE);
+        InputStream in = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static final class CompressedEntry {
+        int method;
+        long crc;
+        long size;
+        byte[] payload;
+    }
+}
@@ -49,6 +49,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -63,6 +69,12 @@ public class DexDiffPatchInternal extends BasePatchInternal {
     protected static final int WAIT_ASYN_OAT_TIME = 10 * 1000;
     protected static final int MAX_WAIT_COUNT     = 120;
 
+    static final int DEX_RECOVER_OK             = 0;
+    static final int DEX_RECOVER_META_CORRUPTED = 1;
+    static final int DEX_RECOVER_EXTRACT_FAIL   = 2;
+    private static final int DEX_RECOVER_MEMORY_FACTOR  = 3;
+    private static final int WAIT_DEX_RECOVER_TIME      = 10 * 1000;
+
 
     private static ArrayList<File>                      optFiles      = new ArrayList<>();
     private static ArrayList<ShareDexDiffPatchInfo>     patchList     = new ArrayList<>();
@@ -478,143 +490,289 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                 ShareTinkerLog.w(TAG, "class n dex file %s is already exist, and md5 match, just continue", ShareConstants.CLASS_N_APK_NAME);
                 return true;
             }
-            for (ShareDexDiffPatchInfo info : patchList) {
-                long start = System.currentTimeMillis();
+            if (!recoverDexFiles(manager, apk, patch, patchFile, dir, type)) {
+                return false;
+            }
+            if (!mergeClassNDexFiles(context, patchFile, dir)) {
+                return false;
+            }
+        } catch (Throwable e) {
+            throw new TinkerRuntimeException("patch " + ShareTinkerInternals.getTypeString(type) + " extract failed (" + e.getMessage() + ").", e);
+        } finally {
+            SharePatchFileUtil.closeZip(apk);
+            SharePatchFileUtil.closeZip(patch);
+        }
+        return true;
+    }
 
-                final String infoPath = info.path;
-                String patchRealPath;
-                if (infoPath.equals("")) {
-                    patchRealPath = info.rawName;
-                } else {
-                    patchRealPath = info.path + "/" + info.rawName;
-                }
+    /**
+     * Recover dex files in {@link #patchList} one after another, or with a few workers at the same
+     * time if there are enough processors and memory. Either way failures are reported the same as
+     * recovering them one after another, that is only the first one in {@link #patchList} is reported.
+     */
+    private static boolean recoverDexFiles(Tinker manager, final ZipFile apk, final ZipFile patch, File patchFile,
+                                           final String dir, final int type) throws Throwable {
+        final int cpuCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final int workerCount = getDexRecoverWorkerCount(apk, patch, cpuCount);
+        final int sectionPatchThreadCount = Math.max(1, cpuCount / workerCount);
+
+        DexRecoverFailure failure = recoverDexFilesInOrder(patchList, workerCount, new DexRecoverer() {
+            @Override
+            public int recover(ShareDexDiffPatchInfo info) throws IOException {
+                return recoverDexFile(apk, patch, dir, info, type, sectionPatchThreadCount);
+            }
+        });
+        if (failure != null) {
+            reportDexRecoverFail(manager, patchFile, dir, patchList.get(failure.index), type, failure.result);
+            return false;
+        }
+        return true;
+    }
 
-                String dexDiffMd5 = info.dexDiffMd5;
-                String oldDexCrc = info.oldDexCrC;
+    /**
+     * Recovers one dex file, see {@link #recoverDexFile}.
+     */
+    interface DexRecoverer {
+        int recover(ShareDexDiffPatchInfo info) throws IOException;
+    }
 
-                if (!isVmArt && info.destMd5InDvm.equals("0")) {
-                    ShareTinkerLog.w(TAG, "patch dex %s is only for art, just continue", patchRealPath);
-                    continue;
-                }
-                String extractedFileMd5 = isVmArt ? info.destMd5InArt : info.destMd5InDvm;
+    /**
+     * The first dex file in list order which failed to recover.
+     */
+    static final class DexRecoverFailure {
+        final int index;
+        final int result;
 
-                if (!SharePatchFileUtil.checkIfMd5Valid(extractedFileMd5)) {
-                    ShareTinkerLog.w(TAG, "meta file md5 invalid, type:%s, name: %s, md5: %s", ShareTinkerInternals.getTypeString(type), info.rawName, extractedFileMd5);
-                    manager.getPatchReporter().onPatchPackageCheckFail(patchFile, BasePatchInternal.getMetaCorruptedCode(type));
-                    return false;
-                }
+        DexRecoverFailure(int index, int result) {
+            this.index = index;
+            this.result = result;
+        }
+    }
 
-                File extractedFile = new File(dir + info.realName);
+    /**
+     * Recover {@code infos} with {@code workerCount} workers. With one worker they are recovered in
+     * list order and the rest are skipped after a failure. With more workers results are still
+     * checked in list order, so the failure returned is the first one in {@code infos} even if a
+     * later dex file failed earlier.
+     *
+     * After a failure, workers still running are interrupted by {@code shutdownNow}, which does not
+     * stop them in the middle of writing a dex file. Those files are waited for but not deleted
+     * here, a partly written one is left in the patch directory until the md5 check at the start
+     * of {@link #recoverDexFile} deletes it on the next attempt.
+     *
+     * @return null if all of them are recovered.
+     */
+    static DexRecoverFailure recoverDexFilesInOrder(List<ShareDexDiffPatchInfo> infos, int workerCount,
+                                                    final DexRecoverer recoverer) throws Throwable {
+        if (workerCount <= 1) {
+            for (int i = 0; i < infos.size(); ++i) {
+                int result = recoverer.recover(infos.get(i));
+                if (result != DEX_RECOVER_OK) {
+                    return new DexRecoverFailure(i, result);
+                }
+            }
+            return null;
+        }
 
-                //check file whether already exist
-                if (extractedFile.exists()) {
-                    if (SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
-                        //it is ok, just continue
-                        ShareTinkerLog.w(TAG, "dex file %s is already exist, and md5 match, just continue", extractedFile.getPath());
-                        continue;
-                    } else {
-                        ShareTinkerLog.w(TAG, "have a mismatch corrupted dex " + extractedFile.getPath());
-                        extractedFile.delete();
+        ShareTinkerLog.i(TAG, "recover %d dex files with %d workers", infos.size(), workerCount);
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<Integer>> results = new ArrayList<>(infos.size());
+            for (final ShareDexDiffPatchInfo info : infos) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return recoverer.recover(info);
                     }
-                } else {
-                    extractedFile.getParentFile().mkdirs();
+                }));
+            }
+            for (int i = 0; i < results.size(); ++i) {
+                int result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause();
                 }
+                if (result != DEX_RECOVER_OK) {
+                    return new DexRecoverFailure(i, result);
+                }
+            }
+            return null;
+        } finally {
+            // Apk and patch are closed once we return, so wait for dex files still being recovered.
+            executor.shutdownNow();
+            while (!executor.awaitTermination(WAIT_DEX_RECOVER_TIME, TimeUnit.MILLISECONDS)) {
+                ShareTinkerLog.w(TAG, "still waiting for dex recover workers to finish");
+            }
+        }
+    }
 
-                ZipEntry patchFileEntry = patch.getEntry(patchRealPath);
-                ZipEntry rawApkFileEntry = apk.getEntry(patchRealPath);
+    /**
+     * Workers are no more than processors, and each of them should be able to hold
+     * {@link #DEX_RECOVER_MEMORY_FACTOR} times of the largest old dex and dex patch in memory
+     * with half of the memory left.
+     */
+    private static int getDexRecoverWorkerCount(ZipFile apk, ZipFile patch, int cpuCount) {
+        int workerCount = Math.min(cpuCount, patchList.size());
+        if (workerCount <= 1) {
+            return 1;
+        }
+        long maxDexRecoverSize = 0;
+        for (ShareDexDiffPatchInfo info : patchList) {
+            final String patchRealPath = getPatchRealPath(info);
+            long dexRecoverSize = getEntrySize(apk.getEntry(patchRealPath)) + getEntrySize(patch.getEntry(patchRealPath));
+            maxDexRecoverSize = Math.max(maxDexRecoverSize, dexRecoverSize);
+        }
+        if (maxDexRecoverSize <= 0) {
+            return workerCount;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long availableMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        final long memoryWorkerCount = availableMemory / 2 / (maxDexRecoverSize * DEX_RECOVER_MEMORY_FACTOR);
+        ShareTinkerLog.i(TAG, "available memory: %d, max dex recover size: %d, cpu count: %d",
+            availableMemory, maxDexRecoverSize, cpuCount);
+        return (int) Math.max(1, Math.min(workerCount, memoryWorkerCount));
+    }
 
-                if (oldDexCrc.equals("0")) {
-                    if (patchFileEntry == null) {
-                        ShareTinkerLog.w(TAG, "patch entry is null. path:" + patchRealPath);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+    private static long getEntrySize(ZipEntry entry) {
+        return (entry != null ? Math.max(0, entry.getSize()) : 0);
+    }
 
-                    //it is a new file, but maybe we need to repack the dex file
-                    if (!extractDexFile(patch, patchFileEntry, extractedFile, info)) {
-                        ShareTinkerLog.w(TAG, "Failed to extract raw patch file " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
-                } else if (dexDiffMd5.equals("0")) {
-                    // skip process old dex for real dalvik vm
-                    if (!isVmArt) {
-                        continue;
-                    }
+    private static String getPatchRealPath(ShareDexDiffPatchInfo info) {
+        final String infoPath = info.path;
+        if (infoPath.equals("")) {
+            return info.rawName;
+        } else {
+            return info.path + "/" + info.rawName;
+        }
+    }
 
-                    if (rawApkFileEntry == null) {
-                        ShareTinkerLog.w(TAG, "apk entry is null. path:" + patchRealPath);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+    private static void reportDexRecoverFail(Tinker manager, File patchFile, String dir,
+                                             ShareDexDiffPatchInfo info, int type, int result) {
+        if (result == DEX_RECOVER_META_CORRUPTED) {
+            manager.getPatchReporter().onPatchPackageCheckFail(patchFile, BasePatchInternal.getMetaCorruptedCode(type));
+        } else {
+            manager.getPatchReporter().onPatchTypeExtractFail(patchFile, new File(dir + info.realName), info.rawName, type);
+        }
+    }
 
-                    //check source crc instead of md5 for faster
-                    String rawEntryCrc = String.valueOf(rawApkFileEntry.getCrc());
-                    if (!rawEntryCrc.equals(oldDexCrc)) {
-                        ShareTinkerLog.e(TAG, "apk entry %s crc is not equal, expect crc: %s, got crc: %s", patchRealPath, oldDexCrc, rawEntryCrc);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+    /**
+     * Recover one dex file, failures are not reported here but returned, so that it can be
+     * called on worker threads.
+     *
+     * @return {@link #DEX_RECOVER_OK}, {@link #DEX_RECOVER_META_CORRUPTED} or {@link #DEX_RECOVER_EXTRACT_FAIL}
+     */
+    static int recoverDexFile(ZipFile apk, ZipFile patch, String dir, ShareDexDiffPatchInfo info,
+                              int type, int sectionPatchThreadCount) throws IOException {
+        long start = System.currentTimeMillis();
 
-                    // Small patched dex generating strategy was disabled, we copy full original dex directly now.
-                    //patchDexFile(apk, patch, rawApkFileEntry, null, info, smallPatchInfoFile, extractedFile);
-                    extractDexFile(apk, rawApkFileEntry, extractedFile, info);
+        final String patchRealPath = getPatchRealPath(info);
 
-                    if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
-                        ShareTinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        SharePatchFileUtil.safeDeleteFile(extractedFile);
-                        return false;
-                    }
-                } else {
-                    if (patchFileEntry == null) {
-                        ShareTinkerLog.w(TAG, "patch entry is null. path:" + patchRealPath);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+        String dexDiffMd5 = info.dexDiffMd5;
+        String oldDexCrc = info.oldDexCrC;
 
-                    if (!SharePatchFileUtil.checkIfMd5Valid(dexDiffMd5)) {
-                        ShareTinkerLog.w(TAG, "meta file md5 invalid, type:%s, name: %s, md5: %s", ShareTinkerInternals.getTypeString(type), info.rawName, dexDiffMd5);
-                        manager.getPatchReporter().onPatchPackageCheckFail(patchFile, BasePatchInternal.getMetaCorruptedCode(type));
-                        return false;
-                    }
+        if (!isVmArt && info.destMd5InDvm.equals("0")) {
+            ShareTinkerLog.w(TAG, "patch dex %s is only for art, just continue", patchRealPath);
+            return DEX_RECOVER_OK;
+        }
+        String extractedFileMd5 = isVmArt ? info.destMd5InArt : info.destMd5InDvm;
 
-                    if (rawApkFileEntry == null) {
-                        ShareTinkerLog.w(TAG, "apk entry is null. path:" + patchRealPath);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
-                    //check source crc instead of md5 for faster
-                    String rawEntryCrc = String.valueOf(rawApkFileEntry.getCrc());
-                    if (!rawEntryCrc.equals(oldDexCrc)) {
-                        ShareTinkerLog.e(TAG, "apk entry %s crc is not equal, expect crc: %s, got crc: %s", patchRealPath, oldDexCrc, rawEntryCrc);
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+        if (!SharePatchFileUtil.checkIfMd5Valid(extractedFileMd5)) {
+            ShareTinkerLog.w(TAG, "meta file md5 invalid, type:%s, name: %s, md5: %s", ShareTinkerInternals.getTypeString(type), info.rawName, extractedFileMd5);
+            return DEX_RECOVER_META_CORRUPTED;
+        }
 
-                    patchDexFile(apk, patch, rawApkFileEntry, patchFileEntry, info, extractedFile);
+        File extractedFile = new File(dir + info.realName);
 
-                    if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
-                        ShareTinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        SharePatchFileUtil.safeDeleteFile(extractedFile);
-                        return false;
-                    }
+        //check file whether already exist
+        if (extractedFile.exists()) {
+            if (SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
+                //it is ok, just continue
+                ShareTinkerLog.w(TAG, "dex file %s is already exist, and md5 match, just continue", extractedFile.getPath());
+                return DEX_RECOVER_OK;
+            } else {
+                ShareTinkerLog.w(TAG, "have a mismatch corrupted dex " + extractedFile.getPath());
+                extractedFile.delete();
+            }
+        } else {
+            extractedFile.getParentFile().mkdirs();
+        }
 
-                    ShareTinkerLog.w(TAG, "success recover dex file: %s, size: %d, use time: %d",
-                        extractedFile.getPath(), extractedFile.length(), (System.currentTimeMillis() - start));
-                }
+        ZipEntry patchFileEntry = patch.getEntry(patchRealPath);
+        ZipEntry rawApkFileEntry = apk.getEntry(patchRealPath);
+
+        if (oldDexCrc.equals("0")) {
+            if (patchFileEntry == null) {
+                ShareTinkerLog.w(TAG, "patch entry is null. path:" + patchRealPath);
+                return DEX_RECOVER_EXTRACT_FAIL;
             }
-            if (!mergeClassNDexFiles(context, patchFile, dir)) {
-                return false;
+
+            //it is a new file, but maybe we need to repack the dex file
+            if (!extractDexFile(patch, patchFileEntry, extractedFile, info)) {
+                ShareTinkerLog.w(TAG, "Failed to extract raw patch file " + extractedFile.getPath());
+                return DEX_RECOVER_EXTRACT_FAIL;
             }
-        } catch (Throwable e) {
-            throw new TinkerRuntimeException("patch " + ShareTinkerInternals.getTypeString(type) + " extract failed (" + e.getMessage() + ").", e);
-        } finally {
-            SharePatchFileUtil.closeZip(apk);
-            SharePatchFileUtil.closeZip(patch);
+        } else if (dexDiffMd5.equals("0")) {
+            // skip process old dex for real dalvik vm
+            if (!isVmArt) {
+                return DEX_RECOVER_OK;
+            }
+
+            if (rawApkFileEntry == null) {
+                ShareTinkerLog.w(TAG, "apk entry is null. path:" + patchRealPath);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+
+            //check source crc instead of md5 for faster
+            String rawEntryCrc = String.valueOf(rawApkFileEntry.getCrc());
+            if (!rawEntryCrc.equals(oldDexCrc)) {
+                ShareTinkerLog.e(TAG, "apk entry %s crc is not equal, expect crc: %s, got crc: %s", patchRealPath, oldDexCrc, rawEntryCrc);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+
+            // Small patched dex generating strategy was disabled, we copy full original dex directly now.
+            //patchDexFile(apk, patch, rawApkFileEntry, null, info, smallPatchInfoFile, extractedFile);
+            extractDexFile(apk, rawApkFileEntry, extractedFile, info);
+
+            if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
+                ShareTinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
+                SharePatchFileUtil.safeDeleteFile(extractedFile);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+        } else {
+            if (patchFileEntry == null) {
+                ShareTinkerLog.w(TAG, "patch entry is null. path:" + patchRealPath);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+
+            if (!SharePatchFileUtil.checkIfMd5Valid(dexDiffMd5)) {
+                ShareTinkerLog.w(TAG, "meta file md5 invalid, type:%s, name: %s, md5: %s", ShareTinkerInternals.getTypeString(type), info.rawName, dexDiffMd5);
+                return DEX_RECOVER_META_CORRUPTED;
+            }
+
+            if (rawApkFileEntry == null) {
+                ShareTinkerLog.w(TAG, "apk entry is null. path:" + patchRealPath);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+            //check source crc instead of md5 for faster
+            String rawEntryCrc = String.valueOf(rawApkFileEntry.getCrc());
+            if (!rawEntryCrc.equals(oldDexCrc)) {
+                ShareTinkerLog.e(TAG, "apk entry %s crc is not equal, expect crc: %s, got crc: %s", patchRealPath, oldDexCrc, rawEntryCrc);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+
+            patchDexFile(apk, patch, rawApkFileEntry, patchFileEntry, info, extractedFile, sectionPatchThreadCount);
+
+            if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
+                ShareTinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
+                SharePatchFileUtil.safeDeleteFile(extractedFile);
+                return DEX_RECOVER_EXTRACT_FAIL;
+            }
+
+            ShareTinkerLog.w(TAG, "success recover dex file: %s, size: %d, use time: %d",
+                extractedFile.getPath(), extractedFile.length(), (System.currentTimeMillis() - start));
         }
-        return true;
+        return DEX_RECOVER_OK;
     }
 
     /**
@@ -699,13 +857,14 @@ public class DexDiffPatchInternal extends BasePatchInternal {
      * @param patchFileEntry ZipEntry of patch file. (also ends with .dex) This could be null.
      * @param patchInfo      Parsed patch info from package-meta.txt
      * @param patchedDexFile Patched dex file, may be a jar.
+     * @param sectionPatchThreadCount Number of dex sections can be patched at the same time.
      *                       <p>
      *                       <b>Notice: patchFileEntry and smallPatchInfoFile cannot both be null.</b>
      * @throws IOException
      */
     private static void patchDexFile(
         ZipFile baseApk, ZipFile patchPkg, ZipEntry oldDexEntry, ZipEntry patchFileEntry,
-        ShareDexDiffPatchInfo patchInfo, File patchedDexFile) throws IOException {
+        ShareDexDiffPatchInfo patchInfo, File patchedDexFile, int sectionPatchThreadCount) throws IOException {
         InputStream oldDexStream = null;
         InputStream patchFileStream = null;
         try {
@@ -730,19 +889,22 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                             if (entry == null) {
                                 throw new TinkerRuntimeException("can't recognize zip dex format file:" + patchedDexFile.getAbsolutePath());
                             }
-                            new DexPatchApplier(zis, patchFileStream).executeAndSaveTo(zos);
+                            new DexPatchApplier(zis, patchFileStream)
+                                .setSectionPatchThreadCount(sectionPatchThreadCount).executeAndSaveTo(zos);
                         } finally {
                             IOHelper.closeQuietly(zis);
                         }
                     } else {
-                        new DexPatchApplier(oldDexStream, patchFileStream).executeAndSaveTo(zos);
+                        new DexPatchApplier(oldDexStream, patchFileStream)
+                            .setSectionPatchThreadCount(sectionPatchThreadCount).executeAndSaveTo(zos);
                     }
                     zos.closeEntry();
                 } finally {
                     IOHelper.closeQuietly(zos);
                 }
             } else {
-                new DexPatchApplier(oldDexStream, patchFileStream).executeAndSaveTo(patchedDexFile);
+                new DexPatchApplier(oldDexStream, patchFileStream)
+                    .setSectionPatchThreadCount(sectionPatchThreadCount).executeAndSaveTo(patchedDexFile);
             }
         } finally {
             IOHelper.closeQuietly(oldDexStream);
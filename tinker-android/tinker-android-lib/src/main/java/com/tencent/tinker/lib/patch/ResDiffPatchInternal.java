@@ -21,6 +21,8 @@ import android.content.pm.ApplicationInfo;
 import android.os.SystemClock;
 
 import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.commons.arscpatcher.ArscPatchFile;
+import com.tencent.tinker.commons.arscpatcher.ArscPatcher;
 import com.tencent.tinker.commons.util.IOHelper;
 import com.tencent.tinker.lib.tinker.Tinker;
 import com.tencent.tinker.loader.shareutil.ShareTinkerLog;
@@ -35,6 +37,7 @@ import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -323,9 +326,20 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                 InputStream oldStream = null;
                 InputStream newStream = null;
                 try {
-                    oldStream = apkFile.getInputStream(baseEntry);
-                    newStream = patchZipFile.getInputStream(patchEntry);
-                    BSPatch.patchFast(oldStream, newStream, largeModeInfo.file);
+                    newStream = new BufferedInputStream(patchZipFile.getInputStream(patchEntry));
+                    if (ArscPatchFile.isArscPatch(newStream)) {
+                        // chunk level patch, the old table must be seekable
+                        File oldArsc = new File(tempFileDirtory, name + ".base");
+                        try {
+                            extract(apkFile, baseEntry, oldArsc, null, false);
+                            ArscPatcher.patch(oldArsc, newStream, largeModeInfo.file);
+                        } finally {
+                            SharePatchFileUtil.safeDeleteFile(oldArsc);
+                        }
+                    } else {
+                        oldStream = apkFile.getInputStream(baseEntry);
+                        BSPatch.patchFast(oldStream, newStream, largeModeInfo.file);
+                    }
                 } finally {
                     IOHelper.closeQuietly(oldStream);
                     IOHelper.closeQuietly(newStream);
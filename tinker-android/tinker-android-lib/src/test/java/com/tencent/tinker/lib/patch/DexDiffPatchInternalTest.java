@@ -0,0 +1,157 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.lib.patch;
+
+import com.tencent.tinker.loader.shareutil.ShareConstants;
+import com.tencent.tinker.loader.shareutil.ShareDexDiffPatchInfo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DexDiffPatchInternalTest {
+    private static final String VALID_MD5 = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * The failure returned is the first one in list order, even though a later dex file
+     * failed before it.
+     */
+    @Test
+    public void firstFailureInListOrderIsReturned() throws Throwable {
+        final List<ShareDexDiffPatchInfo> infos = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            infos.add(createInfo("classes" + (i + 1) + ".dex", VALID_MD5));
+        }
+        final CountDownLatch laterFailed = new CountDownLatch(1);
+        final List<Integer> finishOrder = Collections.synchronizedList(new ArrayList<Integer>());
+
+        DexDiffPatchInternal.DexRecoverFailure failure = DexDiffPatchInternal.recoverDexFilesInOrder(
+            infos, infos.size(), new DexDiffPatchInternal.DexRecoverer() {
+                @Override
+                public int recover(ShareDexDiffPatchInfo info) throws IOException {
+                    final int index = infos.indexOf(info);
+                    if (index == 1) {
+                        // Only fails once dex 3 has failed, which needs another worker.
+                        try {
+                            if (!laterFailed.await(10, TimeUnit.SECONDS)) {
+                                throw new IOException("dex 3 is not recovered at the same time");
+                            }
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        finishOrder.add(index);
+                        return DexDiffPatchInternal.DEX_RECOVER_EXTRACT_FAIL;
+                    }
+                    finishOrder.add(index);
+                    if (index == 3) {
+                        laterFailed.countDown();
+                        return DexDiffPatchInternal.DEX_RECOVER_META_CORRUPTED;
+                    }
+                    return DexDiffPatchInternal.DEX_RECOVER_OK;
+                }
+            });
+
+        assertNotNull(failure);
+        assertEquals(1, failure.index);
+        assertEquals(DexDiffPatchInternal.DEX_RECOVER_EXTRACT_FAIL, failure.result);
+        assertTrue(finishOrder.indexOf(3) < finishOrder.indexOf(1));
+    }
+
+    /**
+     * Runs the real {@link DexDiffPatchInternal#recoverDexFile} on workers, an entry missing from
+     * the patch and a corrupted meta md5 are reported in list order either way round.
+     */
+    @Test
+    public void recoverDexFileFailuresAreReturnedInListOrder() throws Throwable {
+        final File dir = createTempDir();
+        final File apkFile = createEmptyZip(new File(dir, "base.apk"));
+        final File patchFile = createEmptyZip(new File(dir, "patch.apk"));
+        final ShareDexDiffPatchInfo missingEntry = createInfo("classes.dex", VALID_MD5);
+        final ShareDexDiffPatchInfo corruptedMeta = createInfo("classes2.dex", "corrupted");
+
+        final ZipFile apk = new ZipFile(apkFile);
+        final ZipFile patch = new ZipFile(patchFile);
+        try {
+            final String dexDir = dir.getPath() + "/dex/";
+            final DexDiffPatchInternal.DexRecoverer recoverer = new DexDiffPatchInternal.DexRecoverer() {
+                @Override
+                public int recover(ShareDexDiffPatchInfo info) throws IOException {
+                    return DexDiffPatchInternal.recoverDexFile(apk, patch, dexDir, info, ShareConstants.TYPE_DEX, 1);
+                }
+            };
+
+            DexDiffPatchInternal.DexRecoverFailure failure = DexDiffPatchInternal.recoverDexFilesInOrder(
+                Arrays.asList(missingEntry, corruptedMeta), 2, recoverer);
+            assertNotNull(failure);
+            assertEquals(0, failure.index);
+            assertEquals(DexDiffPatchInternal.DEX_RECOVER_EXTRACT_FAIL, failure.result);
+
+            failure = DexDiffPatchInternal.recoverDexFilesInOrder(
+                Arrays.asList(corruptedMeta, missingEntry), 2, recoverer);
+            assertNotNull(failure);
+            assertEquals(0, failure.index);
+            assertEquals(DexDiffPatchInternal.DEX_RECOVER_META_CORRUPTED, failure.result);
+        } finally {
+            apk.close();
+            patch.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static ShareDexDiffPatchInfo createInfo(String name, String md5) {
+        return new ShareDexDiffPatchInfo(name, "", md5, md5, VALID_MD5, "1", "1", ShareConstants.DEXMODE_RAW);
+    }
+
+    private static File createTempDir() throws IOException {
+        final File dir = File.createTempFile("dex_recover", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        return dir;
+    }
+
+    private static File createEmptyZip(File file) throws IOException {
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        zos.close();
+        return file;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
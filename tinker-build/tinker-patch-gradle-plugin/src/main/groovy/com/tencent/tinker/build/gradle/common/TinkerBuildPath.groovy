@@ -34,6 +34,7 @@ class TinkerBuildPath {
     private static final String RESOURCE_IDX_XML = "idx.xml"
     private static final String RESOURCE_VALUES_BACKUP = "values_backup"
     private static final String RESOURCE_PUBLIC_TXT = "public.txt"
+    private static final String RESOURCE_ID_INDEX = "resource_id_index.bin"
 
     //it's parent dir must start with values
     private static final String RESOURCE_TO_COMPILE_PUBLIC_XML = "aapt2/res/values/tinker_public.xml"
@@ -67,6 +68,10 @@ class TinkerBuildPath {
         return "${getTinkerIntermediates(project)}$RESOURCE_PUBLIC_TXT"
     }
 
+    static String getResourceIdIndex(Project project) {
+        return "${getTinkerIntermediates(project)}$RESOURCE_ID_INDEX"
+    }
+
     static String getResourceToCompilePublicXml(Project project) {
         return "${getTinkerIntermediates(project)}$RESOURCE_TO_COMPILE_PUBLIC_XML"
     }
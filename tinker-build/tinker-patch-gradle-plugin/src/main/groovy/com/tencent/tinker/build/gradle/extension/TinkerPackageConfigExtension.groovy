@@ -78,29 +78,29 @@ public class TinkerPackageConfigExtension {
 
     String getVersionCodeFromOldAPk() {
         createApkMetaFile()
-        return androidManifest.apkMeta.versionCode;
+        return androidManifest.versionCode;
     }
 
     String getVersionCodeFromApk(File apkPath) {
-        return AndroidParser.getAndroidManifest(apkPath).apkMeta.versionCode
+        return AndroidParser.getAndroidManifest(apkPath).versionCode
     }
 
     String getVersionNameFromOldAPk() {
         createApkMetaFile()
-        return androidManifest.apkMeta.versionName;
+        return androidManifest.versionName;
     }
 
     String getVersionNameFromApk(File apkPath) {
-        return AndroidParser.getAndroidManifest(apkPath).apkMeta.versionName
+        return AndroidParser.getAndroidManifest(apkPath).versionName
     }
 
     String getMinSdkVersionFromOldAPk() {
         createApkMetaFile()
-        return androidManifest.apkMeta.minSdkVersion;
+        return androidManifest.minSdkVersion;
     }
 
     String getMinSdkVersionFromApk(File apkPath) {
-        return AndroidParser.getAndroidManifest(apkPath).apkMeta.minSdkVersion
+        return AndroidParser.getAndroidManifest(apkPath).minSdkVersion
     }
 
     String getMetaDataFromOldApk(String name) {
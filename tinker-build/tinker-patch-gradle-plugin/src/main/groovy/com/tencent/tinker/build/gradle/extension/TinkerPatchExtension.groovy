@@ -96,6 +96,29 @@ public class TinkerPatchExtension {
      */
     boolean tinkerEnable
 
+    /**
+     * Directory where the diff results of so, resource and dex files are kept and
+     * reused by later builds with the same old and new files, null or empty disables it.
+     * default: null
+     */
+    String diffCacheDir
+
+    /**
+     * Max size of diffCacheDir in MB, the least recently used results are removed first.
+     * 0 or less means no limit.
+     * default: 512
+     */
+    int diffCacheMaxSize
+
+    /**
+     * Whether to keep classes that were only moved between classN dexes in the dex they were in
+     * in the old apk, so that a multidex rebalance does not show up as deleting and adding those
+     * classes in the patch. The patched dexes then differ in layout from the new apk's dexes,
+     * while holding the same classes as a whole. It is used only when it makes the dex diffs smaller.
+     * default: false
+     */
+    boolean moveAwareDexDiff
+
     public TinkerPatchExtension() {
         oldApk = ""
         outputFolder = ""
@@ -105,6 +128,9 @@ public class TinkerPatchExtension {
         removeLoaderForAllDex = false
         useSign = true
         tinkerEnable = true
+        diffCacheDir = null
+        diffCacheMaxSize = 512
+        moveAwareDexDiff = false
     }
 
     void checkParameter() {
@@ -126,6 +152,9 @@ public class TinkerPatchExtension {
            | removeLoaderForAllDex = ${removeLoaderForAllDex}
            | tinkerEnable = ${tinkerEnable}
            | useSign = ${useSign}
+           | diffCacheDir = ${diffCacheDir}
+           | diffCacheMaxSize = ${diffCacheMaxSize}
+           | moveAwareDexDiff = ${moveAwareDexDiff}
         """.stripMargin()
     }
 }
\ No newline at end of file
@@ -39,12 +39,19 @@ public class TinkerSevenZipExtension {
      * if you do not set the zipArtifact and path, We will try to use 7za directly
      */
     String path
+    /**
+     * Effort of the in-process high ratio deflater, from 1 to 4, default 2.
+     * Higher effort tries more deflate settings per entry and costs more time.
+     * if it is 0, we will use the 7za specified by zipArtifact or path instead
+     */
+    int compressEffort
 
     private Project project;
 
     public TinkerSevenZipExtension(Project project) {
         zipArtifact = null
         path = null
+        compressEffort = 2
         this.project = project
     }
 
@@ -85,6 +92,7 @@ public class TinkerSevenZipExtension {
     public String toString() {
         """| zipArtifact = ${zipArtifact}
            | path = ${path}
+           | compressEffort = ${compressEffort}
         """.stripMargin()
     }
 }
\ No newline at end of file
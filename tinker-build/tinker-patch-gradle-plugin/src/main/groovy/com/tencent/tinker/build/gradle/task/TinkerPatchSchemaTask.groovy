@@ -127,6 +127,10 @@ public class TinkerPatchSchemaTask extends DefaultTask {
                     .setUseApplyResource(configuration.buildConfig.usingResourceMapping)
                     .setConfigFields(packageConfigFields)
                     .setSevenZipPath(configuration.sevenZip.path)
+                    .setCompressEffort(configuration.sevenZip.compressEffort)
+                    .setDiffCacheDir(configuration.diffCacheDir)
+                    .setDiffCacheMaxSize(configuration.diffCacheMaxSize)
+                    .setMoveAwareDexDiff(configuration.moveAwareDexDiff)
                     .setUseSign(configuration.useSign)
                     .setArkHotPath(configuration.arkHot.path)
                     .setArkHotName(configuration.arkHot.name)
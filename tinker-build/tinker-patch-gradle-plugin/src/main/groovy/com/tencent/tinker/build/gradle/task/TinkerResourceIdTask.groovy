@@ -357,7 +357,9 @@ public class TinkerResourceIdTask extends DefaultTask {
             List<String> resourceDirectoryList = new ArrayList<String>()
             resourceDirectoryList.add(resDir)
 
-            AaptResourceCollector aaptResourceCollector = AaptUtil.collectResource(resourceDirectoryList, rTypeResourceMap)
+            //only the resource directories changed since the last build are parsed again
+            File resourceIdIndex = project.file(TinkerBuildPath.getResourceIdIndex(project))
+            AaptResourceCollector aaptResourceCollector = AaptUtil.collectResource(resourceDirectoryList, rTypeResourceMap, resourceIdIndex)
             PatchUtil.generatePublicResourceXml(aaptResourceCollector, idsXml, publicXml)
             File publicFile = new File(publicXml)
             if (publicFile.exists()) {
@@ -27,6 +27,7 @@ import com.tencent.tinker.android.dex.Dex
 import com.tencent.tinker.build.gradle.TinkerBuildPath
 import com.tencent.tinker.build.immutable.ClassSimDef
 import com.tencent.tinker.build.immutable.DexRefData
+import com.tencent.tinker.build.immutable.RefSymbolTable
 import com.tencent.tinker.build.util.FileOperation
 import com.tencent.tinker.build.util.Utils
 import org.gradle.api.Action
@@ -38,6 +39,13 @@ import org.gradle.api.execution.TaskExecutionGraphListener
 import org.gradle.api.tasks.JavaExec
 
 import java.lang.reflect.Field
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 import java.util.zip.ZipOutputStream
@@ -51,6 +59,18 @@ public class ImmutableDexTransform extends Transform {
 
     private static final Joiner PATH_JOINER = Joiner.on(File.separatorChar)
 
+    private static final String DX_MAIN_CLASS = "com.android.dx.command.dexer.Main"
+
+    /**
+     * Rough peak heap of dx while it dexes one jar which is close to the 64k limit.
+     */
+    private static final long DX_MEMORY_ESTIMATE = 512L * 1024 * 1024
+
+    /**
+     * Classes read ahead of the one being packed per scanning thread.
+     */
+    private static final int SCAN_WINDOW_PER_THREAD = 16
+
     Project project
 
     String oldApkPath
@@ -69,6 +89,11 @@ public class ImmutableDexTransform extends Transform {
 
     def dexTransform
 
+    /**
+     * Ids of the field and method references met while packing classes into dexes.
+     */
+    RefSymbolTable refSymbols
+
 
     ImmutableDexTransform(Project project, def variant, def dexTransform) {
         this.dexTransform = dexTransform
@@ -206,10 +231,21 @@ public class ImmutableDexTransform extends Transform {
         //orphan class's entry <==> orphan class's bytes
         HashMap<ZipEntry, ByteArrayOutputStream> orphanMap = new HashMap()
 
+        refSymbols = new RefSymbolTable()
+        //orphan class's entry <==> orphan class's scanned refs
+        HashMap<ZipEntry, ClassSimDef> orphanDefs = new HashMap<>()
+
         //all class  in allClass.jar
         HashSet<String> allClassSet = new HashSet<>()
-        //process all-classes.jar
-        processJar(jarInputs.get(0).file, allClassSet, pathDexMap, mainDexSets, methodAndFieldsNum, osMap, orphanMap)
+        //process all-classes.jar, classes are scanned by asm on all cores and packed in jar order.
+        int scanThreads = Runtime.getRuntime().availableProcessors()
+        ExecutorService scanExecutor = Executors.newFixedThreadPool(scanThreads)
+        try {
+            processJar(jarInputs.get(0).file, scanExecutor, scanThreads * SCAN_WINDOW_PER_THREAD,
+                    allClassSet, pathDexMap, mainDexSets, methodAndFieldsNum, osMap, orphanMap, orphanDefs)
+        } finally {
+            scanExecutor.shutdownNow()
+        }
 
         Iterator<Map.Entry<ZipEntry, ByteArrayOutputStream>> iterator = orphanMap.entrySet().iterator()
         Map.Entry<ZipEntry, ByteArrayOutputStream> leaveEntry = null
@@ -219,7 +255,7 @@ public class ImmutableDexTransform extends Transform {
                 if (leaveEntry != null) {
                     String newDexName = dexIndexToName(newDexIndex, "")
                     project.logger.info("write level orphan class: ${leaveEntry.key.name} to zip: ${newDexName}")
-                    writeResult = writeClassToZip(methodAndFieldsNum, osMap, newDexName, leaveEntry.value.toByteArray(), leaveEntry.key)
+                    writeResult = writeClassToZip(methodAndFieldsNum, osMap, newDexName, leaveEntry.value.toByteArray(), leaveEntry.key, orphanDefs.get(leaveEntry.key))
                     if (!writeResult) {
                         throw new GradleException("add one class to a new zip failed!\n" +
                                 "\t class:" + leaveEntry.key.name + "  zip: " + newDexName)
@@ -229,7 +265,7 @@ public class ImmutableDexTransform extends Transform {
                 leaveEntry = entry
                 String newDexName = dexIndexToName(newDexIndex, "")
                 project.logger.info("write orphan class: ${entry.key.name} to zip: ${newDexName}")
-                writeResult = writeClassToZip(methodAndFieldsNum, osMap, newDexName, entry.value.toByteArray(), entry.key)
+                writeResult = writeClassToZip(methodAndFieldsNum, osMap, newDexName, entry.value.toByteArray(), entry.key, orphanDefs.get(entry.key))
                 if (writeResult) {
                     leaveEntry = null
                 }
@@ -252,61 +288,100 @@ public class ImmutableDexTransform extends Transform {
             dxOutDir.mkdirs()
         }
 
+        LinkedHashMap<String, File> dexJobs = new LinkedHashMap<>()
         classPreDir.eachFile { classZip ->
             String classIndexName = classZip.name - ".jar"
             String dexPath = "${dxOutDir.absolutePath}/${classIndexName}.dex"
             dexPathList.add(dexPath)
-            doDex(dexPath, classZip, project.android.getDexOptions())
+            dexJobs.put(dexPath, classZip)
         }
+        doDexAll(dexJobs, project.android.getDexOptions())
 
         checkClassConsistence(dexPathList, allClassSet)
 
     }
 
-    private void processJar(File jarFile,
-                            HashSet<String> allClassSet, HashMap<String, String> pathDexMap, HashSet<String> mainDexSets, HashMap<String, DexRefData> methodAndFieldsNum, HashMap<String, ZipOutputStream> osMap, HashMap<ZipEntry, ByteArrayOutputStream> orphanMap) {
+    private void processJar(File jarFile, ExecutorService scanExecutor, int scanWindow,
+                            HashSet<String> allClassSet, HashMap<String, String> pathDexMap, HashSet<String> mainDexSets, HashMap<String, DexRefData> methodAndFieldsNum, HashMap<String, ZipOutputStream> osMap, HashMap<ZipEntry, ByteArrayOutputStream> orphanMap, HashMap<ZipEntry, ClassSimDef> orphanDefs) {
 
 
         ZipFile zipFile = new ZipFile(jarFile)
         //process class in maindexlist in first
-        traversal(zipFile, { ZipEntry zipEntry, byte[] bytes ->
-            if (zipEntry.name.endsWith(".class")) {
-                if (mainDexSets.contains(zipEntry.name)) {
-                    String classPath = rePathToClassPath(zipEntry.name)
-                    allClassSet.add(classPath)
-                    project.logger.info("process main dex list's class " + classPath)
-                    if (!writeClassToZip(methodAndFieldsNum, osMap, "classes", bytes, zipEntry)) {
-                        throw new GradleException("main dex is exceed the limit! reduce the class number on your main dex keep please.")
-                    }
-                }
+        scanClasses(zipFile, scanExecutor, scanWindow, refSymbols, { ZipEntry zipEntry ->
+            return zipEntry.name.endsWith(".class") && mainDexSets.contains(zipEntry.name)
+        }, { ZipEntry zipEntry, byte[] bytes, ClassSimDef cf ->
+            String classPath = rePathToClassPath(zipEntry.name)
+            allClassSet.add(classPath)
+            project.logger.info("process main dex list's class " + classPath)
+            if (!writeClassToZip(methodAndFieldsNum, osMap, "classes", bytes, zipEntry, cf)) {
+                throw new GradleException("main dex is exceed the limit! reduce the class number on your main dex keep please.")
             }
         })
 
-        traversal(zipFile, {
+        scanClasses(zipFile, scanExecutor, scanWindow, refSymbols, { ZipEntry zipEntry ->
+            return zipEntry.name.endsWith(".class") && !allClassSet.contains(rePathToClassPath(zipEntry.name))
+        }, {
             ZipEntry zipEntry,
-            byte[] bytes ->
-                if (zipEntry.name.endsWith(".class")) {
-                    String classPath = rePathToClassPath(zipEntry.name)
-                    if (!Utils.isBlank(classPath) && !allClassSet.contains(classPath)) {
-                        allClassSet.add(classPath)
-                        //get the old dex name which class be located
-                        String belongDex = belongTo(pathDexMap, classPath)
-                        //the class is new or method|fields exceeds limit
-                        if (Utils.isBlank(belongDex) ||
-                                !writeClassToZip(methodAndFieldsNum, osMap, belongDex, bytes, zipEntry)) {
-                            if (Utils.isBlank(belongDex)) {
-                                project.logger.warn("find new class: " + classPath)
-                            }
-                            saveOrphan(orphanMap, zipEntry, bytes)
-                        }
-                    } else {
-                        if (Utils.isBlank(classPath)) {
-                            project.logger.error("illegal zip entry: " + zipEntry.name)
+            byte[] bytes,
+            ClassSimDef cf ->
+                String classPath = rePathToClassPath(zipEntry.name)
+                if (!Utils.isBlank(classPath) && !allClassSet.contains(classPath)) {
+                    allClassSet.add(classPath)
+                    //get the old dex name which class be located
+                    String belongDex = belongTo(pathDexMap, classPath)
+                    //the class is new or method|fields exceeds limit
+                    if (Utils.isBlank(belongDex) ||
+                            !writeClassToZip(methodAndFieldsNum, osMap, belongDex, bytes, zipEntry, cf)) {
+                        if (Utils.isBlank(belongDex)) {
+                            project.logger.warn("find new class: " + classPath)
                         }
+                        saveOrphan(orphanMap, zipEntry, bytes)
+                        orphanDefs.put(zipEntry, cf)
+                    }
+                } else {
+                    if (Utils.isBlank(classPath)) {
+                        project.logger.error("illegal zip entry: " + zipEntry.name)
                     }
+                }
+        })
+    }
 
+    /**
+     * Scan the classes accepted by filter with asm on scanExecutor while the zip is read, and
+     * hand them to callback on this thread in zip order, so classes are packed exactly like a
+     * sequential traversal would. At most scanWindow classes are held in memory ahead of callback.
+     */
+    private static void scanClasses(ZipFile zipFile, ExecutorService scanExecutor, int scanWindow,
+                                    RefSymbolTable symbols, Closure<Boolean> filter, Closure callback) {
+        LinkedList<Object[]> pending = new LinkedList<>()
+        traversal(zipFile, { ZipEntry zipEntry, byte[] bytes ->
+            if (!filter.call(zipEntry)) {
+                return
+            }
+            Future<ClassSimDef> future = scanExecutor.submit(new Callable<ClassSimDef>() {
+                @Override
+                ClassSimDef call() throws Exception {
+                    return new ClassSimDef(bytes, symbols)
                 }
+            })
+            pending.add([zipEntry, bytes, future] as Object[])
+            if (pending.size() >= scanWindow) {
+                deliverScanned(pending.removeFirst(), callback)
+            }
         })
+        while (!pending.isEmpty()) {
+            deliverScanned(pending.removeFirst(), callback)
+        }
+    }
+
+    private static void deliverScanned(Object[] scanned, Closure callback) {
+        ClassSimDef cf
+        try {
+            cf = ((Future<ClassSimDef>) scanned[2]).get()
+        } catch (ExecutionException e) {
+            throw new GradleException("failed to scan class: ${((ZipEntry) scanned[0]).name}", e.getCause())
+        }
+        callback.call((ZipEntry) scanned[0], (byte[]) scanned[1], cf)
     }
 
     public HashSet<String> initMainDexSet(File mainDexList) {
@@ -329,24 +404,127 @@ public class ImmutableDexTransform extends Transform {
     }
 
 
-    private void doDex(String dexPath, File classZip, def dexOptions) {
+    /**
+     * Dex every class jar. dx runs inside this jvm on a worker pool, each worker loads dx.jar in
+     * its own class loader because dx keeps its options and output in static fields. The pool
+     * is bounded by cores and by heap, and we fall back to one JavaExec per jar if this dx does
+     * not expose the api we call.
+     */
+    private void doDexAll(LinkedHashMap<String, File> dexJobs, def dexOptions) {
+        File dexJar = new File("${project.android.getSdkDirectory()}/build-tools/${project.android.buildToolsVersion}/lib/dx.jar")
+        if (dexJobs.isEmpty()) {
+            return
+        }
+        if (!isInProcessDxSupported(dexJar)) {
+            project.logger.warn("in-process dx is not supported by ${dexJar}, dex with one jvm per jar.")
+            dexJobs.each { dexPath, classZip ->
+                doDex(dexPath, classZip, dexJar, dexOptions)
+            }
+            return
+        }
+
+        int threadCount = Math.min(dexJobs.size(), Runtime.getRuntime().availableProcessors())
+        threadCount = (int) Math.max(1L, Math.min((long) threadCount, (long) (Runtime.getRuntime().maxMemory() / DX_MEMORY_ESTIMATE)))
+        project.logger.info("dex ${dexJobs.size()} jars in process with ${threadCount} threads.")
 
-        def dexJar = "${project.android.getSdkDirectory()}/build-tools/${project.android.buildToolsVersion}/lib/dx.jar"
+        final ThreadLocal<URLClassLoader> dxLoaders = new ThreadLocal<>()
+        final List<URLClassLoader> allLoaders = Collections.synchronizedList(new ArrayList<URLClassLoader>())
+        ExecutorService dexExecutor = Executors.newFixedThreadPool(threadCount)
+        try {
+            LinkedHashMap<String, Future<Integer>> results = new LinkedHashMap<>()
+            dexJobs.each { dexPath, classZip ->
+                List<String> dxArgs = getDxArgs(dexPath, classZip, dexOptions)
+                results.put(dexPath, dexExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    Integer call() throws Exception {
+                        URLClassLoader loader = dxLoaders.get()
+                        if (loader == null) {
+                            loader = new URLClassLoader([dexJar.toURI().toURL()] as URL[], (ClassLoader) null)
+                            dxLoaders.set(loader)
+                            allLoaders.add(loader)
+                        }
+                        return runDx(loader, dxArgs)
+                    }
+                }))
+            }
+            results.each { dexPath, result ->
+                int exitCode
+                try {
+                    exitCode = result.get()
+                } catch (ExecutionException e) {
+                    throw new GradleException("dx failed to generate ${dexPath}", e.getCause())
+                }
+                if (exitCode != 0) {
+                    throw new GradleException("dx failed to generate ${dexPath}, exit code: ${exitCode}")
+                }
+            }
+        } finally {
+            dexExecutor.shutdownNow()
+            for (URLClassLoader loader : allLoaders) {
+                Utils.closeQuietly(loader)
+            }
+        }
+    }
+
+    private static boolean isInProcessDxSupported(File dexJar) {
+        if (!dexJar.isFile()) {
+            return false
+        }
+        URLClassLoader loader = new URLClassLoader([dexJar.toURI().toURL()] as URL[], (ClassLoader) null)
+        try {
+            Class<?> mainClass = loader.loadClass(DX_MAIN_CLASS)
+            Class<?> argsClass = loader.loadClass(DX_MAIN_CLASS + '$Arguments')
+            argsClass.getConstructor()
+            argsClass.getMethod("parse", String[].class)
+            mainClass.getMethod("run", argsClass)
+            return true
+        } catch (ClassNotFoundException | NoSuchMethodException ignored) {
+            return false
+        } finally {
+            Utils.closeQuietly(loader)
+        }
+    }
+
+    /**
+     * Same as dx --dex, but through Main.run, which returns the exit code instead of calling
+     * System.exit on failure.
+     */
+    private static int runDx(ClassLoader loader, List<String> dxArgs) {
+        Class<?> mainClass = loader.loadClass(DX_MAIN_CLASS)
+        Class<?> argsClass = loader.loadClass(DX_MAIN_CLASS + '$Arguments')
+        Object arguments = argsClass.newInstance()
+        Method parse = argsClass.getMethod("parse", String[].class)
+        Method run = mainClass.getMethod("run", argsClass)
+        try {
+            parse.invoke(arguments, [dxArgs.toArray(new String[dxArgs.size()])] as Object[])
+            return (Integer) run.invoke(null, arguments)
+        } catch (InvocationTargetException e) {
+            throw e.getCause()
+        }
+    }
+
+    private List<String> getDxArgs(String dexPath, File classZip, def dexOptions) {
+        ArrayList<String> dxArgs = new ArrayList()
+        if (dexOptions.getJumboMode()) {
+            dxArgs.add("--force-jumbo")
+        }
+        if (dexOptions.getIncremental()) {
+            dxArgs.add("--incremental")
+            dxArgs.add("--no-strict")
+        }
+        dxArgs.add("--output=${dexPath}".toString())
+        dxArgs.add(classZip.absolutePath)
+        project.logger.info(dxArgs.toString())
+        return dxArgs
+    }
+
+    private void doDex(String dexPath, File classZip, File dexJar, def dexOptions) {
         def task = project.tasks.create("dx" + (classZip.name - ".jar") + varName, JavaExec.class, new Action<JavaExec>() {
             @Override
             void execute(JavaExec javaExec) {
                 ArrayList<String> execArgs = new ArrayList()
                 execArgs.add("--dex")
-                if (dexOptions.getJumboMode()) {
-                    execArgs.add("--force-jumbo")
-                }
-                if (dexOptions.getIncremental()) {
-                    execArgs.add("--incremental")
-                    execArgs.add("--no-strict")
-                }
-                execArgs.add("--output=${dexPath}")
-                execArgs.add(classZip.absolutePath)
-                project.logger.info(execArgs.toString())
+                execArgs.addAll(getDxArgs(dexPath, classZip, dexOptions))
                 javaExec.setClasspath(project.files(dexJar))
                 javaExec.setMain("com.android.dx.command.Main")
                 javaExec.setArgs(execArgs)
@@ -446,14 +624,18 @@ public class ImmutableDexTransform extends Transform {
                             HashMap<String, ZipOutputStream> osMap,
                             String belongDex,
                             byte[] bytes,
-                            ZipEntry zipEntry) {
+                            ZipEntry zipEntry,
+                            ClassSimDef cf) {
         File jarFile = new File(classPreDir, belongDex + ".jar")
         DexRefData mfData = methodAndFieldsNum.get(jarFile.name)
         if (mfData == null) {
             mfData = new DexRefData()
             methodAndFieldsNum.put(jarFile.name, mfData)
         }
-        ClassSimDef cf = new ClassSimDef(bytes, mfData.refFields, mfData.refMtds)
+        if (cf == null) {
+            cf = new ClassSimDef(bytes, refSymbols)
+        }
+        cf.countNewRefs(mfData)
         ZipOutputStream zos = osMap.get(belongDex)
         if (zos == null) {
             project.logger.info("jarFile is  ${jarFile}.")
@@ -479,6 +661,7 @@ public class ImmutableDexTransform extends Transform {
         } else {
             mfData.methodNum += cf.methodCount
             mfData.fieldNum += cf.fieldCount
+            cf.addRefsTo(mfData)
             zos.putNextEntry(zipEntry)
             zos.write(bytes)
             zos.closeEntry()
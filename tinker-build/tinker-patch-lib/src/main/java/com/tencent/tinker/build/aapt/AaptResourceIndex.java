@@ -0,0 +1,423 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.aapt;
+
+import com.tencent.tinker.build.util.FileDigests;
+import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parse results of resource xml files from the last build, grouped by directory.
+ *
+ * Each directory is fingerprinted by the names and {@link FileDigests.FileStamp}s of its files,
+ * and by their content when that does not match. A directory with a file modified within
+ * the racy window of FileDigests gets no stamp and is always checked by content, since the
+ * file could still be rewritten without changing its stamp. Files of an unchanged directory are
+ * not parsed again, their recorded results are applied to the collector instead, so the
+ * assigned ids are the same as a full collect.
+ */
+final class AaptResourceIndex {
+    private static final int     MAGIC       = 0x54524958;
+    private static final int     VERSION     = 2;
+    private static final int     BUFFER_SIZE = 16384;
+    private static final Charset UTF_8       = Charset.forName("UTF-8");
+    private static final String  NO_STAMP    = "";
+
+    private final Map<String, DirectoryRecord>               lastDirectories;
+    private final ConcurrentHashMap<String, DirectoryRecord> directories = new ConcurrentHashMap<>();
+
+    private int reusedDirectoryCount = 0;
+
+    private AaptResourceIndex(Map<String, DirectoryRecord> lastDirectories) {
+        this.lastDirectories = lastDirectories;
+    }
+
+    /**
+     * @return the index saved by the last build, or an empty one if it is missing or unreadable.
+     */
+    static AaptResourceIndex load(File indexFile) {
+        Map<String, DirectoryRecord> lastDirectories = new HashMap<>();
+        if (indexFile != null && indexFile.isFile()) {
+            DataInputStream in = null;
+            try {
+                // read it whole, so every count can be checked against the bytes really left
+                in = new DataInputStream(new ByteArrayInputStream(readIndexBytes(indexFile)));
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    int directoryCount = readCount(in);
+                    for (int i = 0; i < directoryCount; i++) {
+                        String path = readString(in);
+                        lastDirectories.put(path, DirectoryRecord.read(in));
+                    }
+                }
+            } catch (IOException | RuntimeException | StackOverflowError e) {
+                // a truncated or corrupt index only costs a full collect
+                Logger.e("Warning: ignore broken resource index %s: %s", indexFile, e);
+                lastDirectories.clear();
+            } finally {
+                IOHelper.closeQuietly(in);
+            }
+        }
+        return new AaptResourceIndex(lastDirectories);
+    }
+
+    /**
+     * save the directories seen in this build, the others are dropped.
+     */
+    void save(File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<String> paths = new ArrayList<>(directories.keySet());
+            Collections.sort(paths);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                writeString(out, path);
+                directories.get(path).write(out);
+            }
+            out.flush();
+        } finally {
+            IOHelper.closeQuietly(out);
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("can not delete old resource index " + indexFile);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("can not rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    /**
+     * fingerprint the directory and decide whether the results of the last build can be used,
+     * must be called before any file of the directory is looked up.
+     */
+    synchronized void prepareDirectory(File directory) throws IOException {
+        String path = directory.getAbsolutePath();
+        if (directories.containsKey(path)) {
+            return;
+        }
+        String stamp = computeStamp(directory);
+        DirectoryRecord last = lastDirectories.get(path);
+        DirectoryRecord record;
+        if (last != null && !NO_STAMP.equals(stamp) && last.stamp.equals(stamp)) {
+            record = last;
+            reusedDirectoryCount++;
+        } else {
+            String contentDigest = computeContentDigest(directory);
+            if (last != null && last.contentDigest.equals(contentDigest)) {
+                // touched but not changed, e.g. merged again from the same sources
+                record = new DirectoryRecord(stamp, contentDigest, last.valuesFiles, last.idFiles);
+                reusedDirectoryCount++;
+            } else {
+                record = new DirectoryRecord(stamp, contentDigest,
+                    new ConcurrentHashMap<String, List<AaptUtil.XmlElement>>(), new ConcurrentHashMap<String, AaptUtil.XmlIdAttributes>());
+            }
+        }
+        directories.put(path, record);
+    }
+
+    List<AaptUtil.XmlElement> getValuesFile(File file) {
+        DirectoryRecord record = getRecord(file);
+        return record.valuesFiles.get(file.getName());
+    }
+
+    void putValuesFile(File file, List<AaptUtil.XmlElement> elements) {
+        getRecord(file).valuesFiles.put(file.getName(), elements);
+    }
+
+    AaptUtil.XmlIdAttributes getIdFile(File file) {
+        DirectoryRecord record = getRecord(file);
+        return record.idFiles.get(file.getName());
+    }
+
+    void putIdFile(File file, AaptUtil.XmlIdAttributes idAttributes) {
+        getRecord(file).idFiles.put(file.getName(), idAttributes);
+    }
+
+    int getDirectoryCount() {
+        return directories.size();
+    }
+
+    int getReusedDirectoryCount() {
+        return reusedDirectoryCount;
+    }
+
+    private DirectoryRecord getRecord(File file) {
+        DirectoryRecord record = directories.get(file.getAbsoluteFile().getParent());
+        if (record == null) {
+            throw new IllegalStateException("directory of " + file + " is not prepared");
+        }
+        return record;
+    }
+
+    private static File[] listSortedFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return {@link #NO_STAMP} if any file of the directory is too recently modified to be trusted.
+     */
+    private static String computeStamp(File directory) throws IOException {
+        long now = System.currentTimeMillis();
+        MessageDigest digest = newDigest();
+        for (File file : listSortedFiles(directory)) {
+            FileDigests.FileStamp fileStamp = FileDigests.FileStamp.of(file);
+            if (fileStamp.isRacy(now)) {
+                return NO_STAMP;
+            }
+            digest.update(file.getName().getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(fileStamp.toString().getBytes(UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String computeContentDigest(File directory) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (File file : listSortedFiles(directory)) {
+            digest.update(file.getName().getBytes(UTF_8));
+            digest.update((byte) 0);
+            if (!file.isFile()) {
+                updateLong(digest, -1);
+                continue;
+            }
+            updateLong(digest, file.length());
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                    digest.update(buffer, 0, length);
+                }
+            } finally {
+                IOHelper.closeQuietly(is);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void updateLong(MessageDigest digest, long value) {
+        for (int i = 56; i >= 0; i -= 8) {
+            digest.update((byte) (value >>> i));
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * length prefixed utf-8, writeUTF is limited to 64K which a long string resource may exceed.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static byte[] readIndexBytes(File indexFile) throws IOException {
+        long length = indexFile.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("resource index too large: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(indexFile));
+            in.readFully(bytes);
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+        return bytes;
+    }
+
+    /**
+     * every counted item takes at least one int, so a count larger than a quarter of
+     * the remaining bytes can only come from a corrupt index.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / 4) {
+            throw new IOException("bad item count " + count);
+        }
+        return count;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void readStrings(DataInputStream in, List<String> values) throws IOException {
+        int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, AaptUtil.XmlElement element) throws IOException {
+        writeString(out, element.name);
+        out.writeInt(element.attributes.size());
+        for (String[] attribute : element.attributes) {
+            writeString(out, attribute[0]);
+            writeString(out, attribute[1]);
+        }
+        writeString(out, element.textContent.toString());
+        out.writeInt(element.children.size());
+        for (AaptUtil.XmlElement child : element.children) {
+            writeElement(out, child);
+        }
+    }
+
+    private static AaptUtil.XmlElement readElement(DataInputStream in) throws IOException {
+        String name = readString(in);
+        int attributeCount = readCount(in);
+        List<String[]> attributes = new ArrayList<>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.add(new String[]{readString(in), readString(in)});
+        }
+        AaptUtil.XmlElement element = new AaptUtil.XmlElement(name, attributes);
+        element.textContent.append(readString(in));
+        int childCount = readCount(in);
+        for (int i = 0; i < childCount; i++) {
+            element.children.add(readElement(in));
+        }
+        return element;
+    }
+
+    private static final class DirectoryRecord {
+        final String                                    stamp;
+        final String                                    contentDigest;
+        final Map<String, List<AaptUtil.XmlElement>>    valuesFiles;
+        final Map<String, AaptUtil.XmlIdAttributes>     idFiles;
+
+        DirectoryRecord(String stamp, String contentDigest, Map<String, List<AaptUtil.XmlElement>> valuesFiles,
+                        Map<String, AaptUtil.XmlIdAttributes> idFiles) {
+            this.stamp = stamp;
+            this.contentDigest = contentDigest;
+            this.valuesFiles = valuesFiles;
+            this.idFiles = idFiles;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            writeString(out, stamp);
+            writeString(out, contentDigest);
+            List<String> names = new ArrayList<>(valuesFiles.keySet());
+            Collections.sort(names);
+            out.writeInt(names.size());
+            for (String name : names) {
+                writeString(out, name);
+                List<AaptUtil.XmlElement> elements = valuesFiles.get(name);
+                out.writeInt(elements.size());
+                for (AaptUtil.XmlElement element : elements) {
+                    writeElement(out, element);
+                }
+            }
+            names = new ArrayList<>(idFiles.keySet());
+            Collections.sort(names);
+            out.writeInt(names.size());
+            for (String name : names) {
+                writeString(out, name);
+                AaptUtil.XmlIdAttributes idAttributes = idFiles.get(name);
+                writeStrings(out, idAttributes.definitions);
+                writeStrings(out, idAttributes.usages);
+            }
+        }
+
+        static DirectoryRecord read(DataInputStream in) throws IOException {
+            String stamp = readString(in);
+            String contentDigest = readString(in);
+            ConcurrentHashMap<String, List<AaptUtil.XmlElement>> valuesFiles = new ConcurrentHashMap<>();
+            int valuesFileCount = readCount(in);
+            for (int i = 0; i < valuesFileCount; i++) {
+                String name = readString(in);
+                int elementCount = readCount(in);
+                List<AaptUtil.XmlElement> elements = new ArrayList<>(elementCount);
+                for (int j = 0; j < elementCount; j++) {
+                    elements.add(readElement(in));
+                }
+                valuesFiles.put(name, elements);
+            }
+            ConcurrentHashMap<String, AaptUtil.XmlIdAttributes> idFiles = new ConcurrentHashMap<>();
+            int idFileCount = readCount(in);
+            for (int i = 0; i < idFileCount; i++) {
+                String name = readString(in);
+                AaptUtil.XmlIdAttributes idAttributes = new AaptUtil.XmlIdAttributes();
+                readStrings(in, idAttributes.definitions);
+                readStrings(in, idAttributes.usages);
+                idFiles.put(name, idAttributes);
+            }
+            return new DirectoryRecord(stamp, contentDigest, valuesFiles, idFiles);
+        }
+    }
+}
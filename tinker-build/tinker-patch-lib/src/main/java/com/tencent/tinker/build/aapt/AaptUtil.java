@@ -18,51 +18,64 @@ package com.tencent.tinker.build.aapt;
 
 import com.tencent.tinker.build.aapt.RDotTxtEntry.IdType;
 import com.tencent.tinker.build.aapt.RDotTxtEntry.RType;
+import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.commons.util.IOHelper;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public final class AaptUtil {
 
     private static final String ID_DEFINITION_PREFIX = "@+id/";
     private static final String ITEM_TAG             = "item";
 
-    private static final XPathExpression ANDROID_ID_USAGE = createExpression("//@*[starts-with(., '@') and " + "not(starts-with(., '@+')) and " + "not(starts-with(., '@android:')) and " + "not(starts-with(., '@null'))]");
-
-    private static final XPathExpression ANDROID_ID_DEFINITION = createExpression("//@*[starts-with(., '@+') and " + "not(starts-with(., '@+android:id')) and " + "not(starts-with(., '@+id/android:'))]");
-
     private static final Map<String, RType> RESOURCE_TYPES = getResourceTypes();
     private static final List<String>       IGNORED_TAGS   = Arrays.asList("eat-comment", "skip");
 
-    private static XPathExpression createExpression(String expressionStr) {
-        try {
-            return XPathFactory.newInstance().newXPath().compile(expressionStr);
-        } catch (XPathExpressionException e) {
-            throw new AaptUtilException(e);
+    private static final Comparator<File> FILE_NAME_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            return lhs.getName().compareTo(rhs.getName());
         }
-    }
+    };
+
+    /**
+     * factories are not guaranteed to be thread safe, one for each parsing thread.
+     */
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+            return factory;
+        }
+    };
 
     private static Map<String, RType> getResourceTypes() {
         Map<String, RType> types = new HashMap<String, RType>();
@@ -79,27 +92,60 @@ public final class AaptUtil {
         return collectResource(resourceDirectoryList, null);
     }
 
+    /**
+     * collect resources of all directories. xml files are parsed in parallel, the results are
+     * applied to the collector one by one in the order of sorted file names, so the generated
+     * ids do not depend on the thread scheduling or the order the file system lists files.
+     */
     public static AaptResourceCollector collectResource(List<String> resourceDirectoryList, Map<RType, Set<RDotTxtEntry>> rTypeResourceMap) {
+        return collectResource(resourceDirectoryList, rTypeResourceMap, null);
+    }
+
+    /**
+     * same as {@link #collectResource(List, Map)}, but xml files in directories unchanged since the
+     * last call with the same indexFile are not parsed again.
+     *
+     * @param indexFile where the parse results are kept between builds, null to parse everything
+     */
+    public static AaptResourceCollector collectResource(List<String> resourceDirectoryList, Map<RType, Set<RDotTxtEntry>> rTypeResourceMap, File indexFile) {
         AaptResourceCollector resourceCollector = new AaptResourceCollector(rTypeResourceMap);
         List<RDotTxtEntry> references = new ArrayList<>();
-        for (String resourceDirectory : resourceDirectoryList) {
-            try {
-                collectResources(resourceDirectory, resourceCollector);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        AaptResourceIndex index = indexFile != null ? AaptResourceIndex.load(indexFile) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Runnable>> valuesResults = new ArrayList<>();
+            for (String resourceDirectory : resourceDirectoryList) {
+                collectResources(resourceDirectory, resourceCollector, index, executor, valuesResults);
             }
-        }
-        for (String resourceDirectory : resourceDirectoryList) {
-            try {
-                processXmlFilesForIds(resourceDirectory, references, resourceCollector);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            List<Future<Runnable>> xmlResults = new ArrayList<>();
+            for (String resourceDirectory : resourceDirectoryList) {
+                submitXmlFilesForIds(resourceDirectory, references, resourceCollector, index, executor, xmlResults);
             }
+            applyInOrder(valuesResults);
+            applyInOrder(xmlResults);
+            if (index != null) {
+                index.save(indexFile);
+                Logger.d("aapt resource index: %d of %d directories unchanged",
+                    index.getReusedDirectoryCount(), index.getDirectoryCount());
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
         }
         return resourceCollector;
     }
 
     public static void processXmlFilesForIds(String resourceDirectory, List<RDotTxtEntry> references, AaptResourceCollector resourceCollector) throws Exception {
+        for (String xmlFullFilename : findXmlFilesForIds(resourceDirectory)) {
+            processXmlFile(xmlFullFilename, references, resourceCollector);
+        }
+    }
+
+    private static List<String> findXmlFilesForIds(String resourceDirectory) {
+        List<String> result = new ArrayList<>();
         List<String> xmlFullFilenameList = FileUtil.findMatchFile(resourceDirectory, Constant.Symbol.DOT + Constant.File.XML);
         if (xmlFullFilenameList != null) {
             for (String xmlFullFilename : xmlFullFilenameList) {
@@ -110,15 +156,45 @@ public final class AaptUtil {
                     // Ignore files under values* directories and raw*.
                     continue;
                 }
-                processXmlFile(xmlFullFilename, references, resourceCollector);
+                result.add(xmlFullFilename);
             }
         }
+        Collections.sort(result);
+        return result;
     }
 
-    private static void collectResources(String resourceDirectory, AaptResourceCollector resourceCollector) throws Exception {
+    private static void submitXmlFilesForIds(String resourceDirectory, final List<RDotTxtEntry> references, final AaptResourceCollector resourceCollector,
+                                             final AaptResourceIndex index, ExecutorService executor, List<Future<Runnable>> results) throws IOException {
+        for (final String xmlFullFilename : findXmlFilesForIds(resourceDirectory)) {
+            final File xmlFile = new File(xmlFullFilename);
+            if (index != null) {
+                index.prepareDirectory(xmlFile.getParentFile());
+            }
+            results.add(executor.submit(new Callable<Runnable>() {
+                @Override
+                public Runnable call() throws Exception {
+                    XmlIdAttributes cached = index != null ? index.getIdFile(xmlFile) : null;
+                    final XmlIdAttributes idAttributes = cached != null ? cached : parseXmlIdAttributes(xmlFullFilename);
+                    if (cached == null && index != null) {
+                        index.putIdFile(xmlFile, idAttributes);
+                    }
+                    return new Runnable() {
+                        @Override
+                        public void run() {
+                            applyXmlIdAttributes(xmlFullFilename, idAttributes, references, resourceCollector);
+                        }
+                    };
+                }
+            }));
+        }
+    }
+
+    private static void collectResources(String resourceDirectory, final AaptResourceCollector resourceCollector,
+                                         final AaptResourceIndex index, ExecutorService executor, List<Future<Runnable>> valuesResults) throws Exception {
         File resourceDirectoryFile = new File(resourceDirectory);
         File[] fileArray = resourceDirectoryFile.listFiles();
         if (fileArray != null) {
+            Arrays.sort(fileArray, FILE_NAME_COMPARATOR);
             for (File file : fileArray) {
                 if (file.isDirectory()) {
                     String directoryName = file.getName();
@@ -126,15 +202,84 @@ public final class AaptUtil {
                         if (!isAValuesDirectory(directoryName)) {
                             throw new AaptUtilException("'" + directoryName + "' is not a valid values directory.");
                         }
-                        processValues(file.getAbsolutePath(), resourceCollector);
+                        if (index != null) {
+                            index.prepareDirectory(file);
+                        }
+                        for (final File valuesFile : listValuesFiles(file)) {
+                            valuesResults.add(executor.submit(new Callable<Runnable>() {
+                                @Override
+                                public Runnable call() throws Exception {
+                                    List<XmlElement> cached = index != null ? index.getValuesFile(valuesFile) : null;
+                                    final List<XmlElement> elements = cached != null ? cached : parseValuesFile(valuesFile.getAbsolutePath());
+                                    if (cached == null && index != null) {
+                                        index.putValuesFile(valuesFile, elements);
+                                    }
+                                    return new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            applyValuesFile(valuesFile.getAbsolutePath(), elements, resourceCollector);
+                                        }
+                                    };
+                                }
+                            }));
+                        }
                     } else {
-                        processFileNamesInDirectory(file.getAbsolutePath(), resourceCollector);
+                        // only file names are needed, apply in order with the values files parsed so far
+                        final String directory = file.getAbsolutePath();
+                        valuesResults.add(executor.submit(new Callable<Runnable>() {
+                            @Override
+                            public Runnable call() {
+                                return new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            processFileNamesInDirectory(directory, resourceCollector);
+                                        } catch (IOException e) {
+                                            throw new AaptUtilException(e);
+                                        }
+                                    }
+                                };
+                            }
+                        }));
                     }
                 }
             }
         }
     }
 
+    private static void applyInOrder(List<Future<Runnable>> results) throws Exception {
+        for (Future<Runnable> result : results) {
+            try {
+                result.get().run();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new AaptUtilException(cause);
+            }
+        }
+    }
+
+    private static List<File> listValuesFiles(File valuesDirectory) {
+        List<File> result = new ArrayList<>();
+        File[] fileArray = valuesDirectory.listFiles();
+        if (fileArray != null) {
+            Arrays.sort(fileArray, FILE_NAME_COMPARATOR);
+            for (File file : fileArray) {
+                if (file.isHidden()) {
+                    continue;
+                }
+                if (!file.isFile()) {
+                    // warning
+                    continue;
+                }
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
     /**
      * is a value directory
      *
@@ -161,6 +306,7 @@ public final class AaptUtil {
         }
         File[] fileArray = resourceDirectoryFile.listFiles();
         if (fileArray != null) {
+            Arrays.sort(fileArray, FILE_NAME_COMPARATOR);
             for (File file : fileArray) {
                 if (file.isHidden()) {
                     continue;
@@ -178,37 +324,24 @@ public final class AaptUtil {
     }
 
     public static void processValues(String resourceDirectory, AaptResourceCollector resourceCollector) throws Exception {
-        File resourceDirectoryFile = new File(resourceDirectory);
-        File[] fileArray = resourceDirectoryFile.listFiles();
-        if (fileArray != null) {
-            for (File file : fileArray) {
-                if (file.isHidden()) {
-                    continue;
-                }
-                if (!file.isFile()) {
-                    // warning
-                    continue;
-                }
-                processValuesFile(file.getAbsolutePath(), resourceCollector);
-            }
+        for (File file : listValuesFiles(new File(resourceDirectory))) {
+            processValuesFile(file.getAbsolutePath(), resourceCollector);
         }
     }
 
     public static void processValuesFile(String valuesFullFilename, AaptResourceCollector resourceCollector) throws Exception {
-        Document document = JavaXmlUtil.parse(valuesFullFilename);
-        String directoryName = new File(valuesFullFilename).getParentFile().getName();
-        Element root = document.getDocumentElement();
+        applyValuesFile(valuesFullFilename, parseValuesFile(valuesFullFilename), resourceCollector);
+    }
 
-        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
-            if (node.getNodeType() != Node.ELEMENT_NODE) {
-                continue;
-            }
+    private static void applyValuesFile(String valuesFullFilename, List<XmlElement> elements, AaptResourceCollector resourceCollector) {
+        String directoryName = new File(valuesFullFilename).getParentFile().getName();
 
-            String resourceType = node.getNodeName();
+        for (XmlElement node : elements) {
+            String resourceType = node.name;
             if (resourceType.equals(ITEM_TAG)) {
-                resourceType = node.getAttributes().getNamedItem("type").getNodeValue();
+                resourceType = node.getAttribute("type");
                 if (resourceType.equals("id")) {
-                    resourceCollector.addIgnoreId(node.getAttributes().getNamedItem("name").getNodeValue());
+                    resourceCollector.addIgnoreId(node.getAttribute("name"));
                 }
             }
 
@@ -229,7 +362,7 @@ public final class AaptUtil {
                 case DRAWABLE:
                 case BOOL:
                 case INTEGER:
-                    resourceValue = node.getTextContent().trim();
+                    resourceValue = node.textContent.toString().trim();
                     break;
                 case ARRAY://has sub item
                 case PLURALS://has sub item
@@ -254,11 +387,12 @@ public final class AaptUtil {
         }
     }
 
-    public static void processXmlFile(String xmlFullFilename, List<RDotTxtEntry> references, AaptResourceCollector resourceCollector) throws IOException, XPathExpressionException {
-        Document document = JavaXmlUtil.parse(xmlFullFilename);
-        NodeList nodesWithIds = (NodeList) ANDROID_ID_DEFINITION.evaluate(document, XPathConstants.NODESET);
-        for (int i = 0; i < nodesWithIds.getLength(); i++) {
-            String resourceName = nodesWithIds.item(i).getNodeValue();
+    public static void processXmlFile(String xmlFullFilename, List<RDotTxtEntry> references, AaptResourceCollector resourceCollector) throws IOException {
+        applyXmlIdAttributes(xmlFullFilename, parseXmlIdAttributes(xmlFullFilename), references, resourceCollector);
+    }
+
+    private static void applyXmlIdAttributes(String xmlFullFilename, XmlIdAttributes idAttributes, List<RDotTxtEntry> references, AaptResourceCollector resourceCollector) {
+        for (String resourceName : idAttributes.definitions) {
             if (!resourceName.startsWith(ID_DEFINITION_PREFIX)) {
                 throw new AaptUtilException("Invalid definition of a resource: '" + resourceName + "'");
             }
@@ -266,9 +400,7 @@ public final class AaptUtil {
             resourceCollector.addIntResourceIfNotPresent(RType.ID, resourceName.substring(ID_DEFINITION_PREFIX.length()));
         }
 
-        NodeList nodesUsingIds = (NodeList) ANDROID_ID_USAGE.evaluate(document, XPathConstants.NODESET);
-        for (int i = 0; i < nodesUsingIds.getLength(); i++) {
-            String resourceName = nodesUsingIds.item(i).getNodeValue();
+        for (String resourceName : idAttributes.usages) {
             int slashPosition = resourceName.indexOf('/');
             if (slashPosition < 0) {
                 continue;
@@ -296,14 +428,14 @@ public final class AaptUtil {
         }
     }
 
-    private static void addToResourceCollector(AaptResourceCollector resourceCollector, ResourceDirectory resourceDirectory, Node node, RType rType, String resourceValue) {
+    private static void addToResourceCollector(AaptResourceCollector resourceCollector, ResourceDirectory resourceDirectory, XmlElement node, RType rType, String resourceValue) {
         String resourceName = sanitizeName(rType, resourceCollector, extractNameAttribute(node));
         resourceCollector.addRTypeResourceName(rType, resourceName, resourceValue, resourceDirectory);
         if (rType.equals(RType.STYLEABLE)) {
 
             int count = 0;
-            for (Node attrNode = node.getFirstChild(); attrNode != null; attrNode = attrNode.getNextSibling()) {
-                if (attrNode.getNodeType() != Node.ELEMENT_NODE || !attrNode.getNodeName().equals("attr")) {
+            for (XmlElement attrNode : node.children) {
+                if (!attrNode.name.equals("attr")) {
                     continue;
                 }
 
@@ -329,8 +461,8 @@ public final class AaptUtil {
         return sanitizeName;
     }
 
-    private static String extractNameAttribute(Node node) {
-        return node.getAttributes().getNamedItem("name").getNodeValue();
+    private static String extractNameAttribute(XmlElement node) {
+        return node.getAttribute("name");
     }
 
     /**
@@ -424,18 +556,12 @@ public final class AaptUtil {
         }
     }
 
-    private static String subNodeToString(Node node) {
+    private static String subNodeToString(XmlElement node) {
         StringBuilder stringBuilder = new StringBuilder();
         if (node != null) {
-            NodeList nodeList = node.getChildNodes();
             stringBuilder.append(nodeToString(node, false));
             stringBuilder.append(StringUtil.CRLF_STRING);
-            int nodeListLength = nodeList.getLength();
-            for (int i = 0; i < nodeListLength; i++) {
-                Node childNode = nodeList.item(i);
-                if (childNode.getNodeType() != Node.ELEMENT_NODE) {
-                    continue;
-                }
+            for (XmlElement childNode : node.children) {
                 stringBuilder.append(nodeToString(childNode, true));
                 stringBuilder.append(StringUtil.CRLF_STRING);
             }
@@ -446,22 +572,22 @@ public final class AaptUtil {
         return stringBuilder.toString();
     }
 
-    private static String nodeToString(Node node, boolean isNoChild) {
+    private static String nodeToString(XmlElement node, boolean isNoChild) {
         StringBuilder stringBuilder = new StringBuilder();
         if (node != null) {
-            stringBuilder.append(node.getNodeName());
-            NamedNodeMap namedNodeMap = node.getAttributes();
+            stringBuilder.append(node.name);
             stringBuilder.append(Constant.Symbol.MIDDLE_BRACKET_LEFT);
-            int namedNodeMapLength = namedNodeMap.getLength();
-            for (int j = 0; j < namedNodeMapLength; j++) {
-                Node attributeNode = namedNodeMap.item(j);
-                stringBuilder.append(Constant.Symbol.AT + attributeNode.getNodeName() + Constant.Symbol.EQUAL + attributeNode.getNodeValue());
-                if (j < namedNodeMapLength - 1) {
+            int attributeLength = node.attributes.size();
+            for (int j = 0; j < attributeLength; j++) {
+                String[] attribute = node.attributes.get(j);
+                stringBuilder.append(Constant.Symbol.AT + attribute[0] + Constant.Symbol.EQUAL + attribute[1]);
+                if (j < attributeLength - 1) {
                     stringBuilder.append(Constant.Symbol.COMMA);
                 }
             }
             stringBuilder.append(Constant.Symbol.MIDDLE_BRACKET_RIGHT);
-            String value = StringUtil.nullToBlank(isNoChild ? node.getTextContent() : node.getNodeValue()).trim();
+            // an element has no node value, only its text content counts
+            String value = isNoChild ? node.textContent.toString().trim() : "";
             if (StringUtil.isNotBlank(value)) {
                 stringBuilder.append(Constant.Symbol.EQUAL + value);
             }
@@ -469,6 +595,166 @@ public final class AaptUtil {
         return stringBuilder.toString();
     }
 
+    /**
+     * parse the direct children of the root element of a values file.
+     */
+    private static List<XmlElement> parseValuesFile(String valuesFullFilename) throws IOException {
+        List<XmlElement> result = new ArrayList<>();
+        InputStream is = null;
+        XMLStreamReader reader = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(valuesFullFilename));
+            reader = XML_INPUT_FACTORY.get().createXMLStreamReader(is);
+            // open elements below the root, their text content includes all descendant text
+            List<XmlElement> stack = new ArrayList<>();
+            int depth = 0;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth >= 2) {
+                            XmlElement element = new XmlElement(reader);
+                            if (depth == 2) {
+                                result.add(element);
+                            } else if (depth == 3) {
+                                stack.get(0).children.add(element);
+                            }
+                            stack.add(element);
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth >= 2) {
+                            stack.remove(stack.size() - 1);
+                        }
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!stack.isEmpty()) {
+                            String text = reader.getText();
+                            for (XmlElement element : stack) {
+                                element.textContent.append(text);
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new AaptUtilException("Parse file error:" + valuesFullFilename, e);
+        } finally {
+            closeQuietly(reader);
+            IOHelper.closeQuietly(is);
+        }
+        return result;
+    }
+
+    /**
+     * collect attribute values defining or referring resources, in document order.
+     */
+    private static XmlIdAttributes parseXmlIdAttributes(String xmlFullFilename) throws IOException {
+        XmlIdAttributes result = new XmlIdAttributes();
+        InputStream is = null;
+        XMLStreamReader reader = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(xmlFullFilename));
+            reader = XML_INPUT_FACTORY.get().createXMLStreamReader(is);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                for (String[] attribute : readAttributes(reader)) {
+                    String value = attribute[1];
+                    if (!value.startsWith("@")) {
+                        continue;
+                    }
+                    if (value.startsWith("@+")) {
+                        if (!value.startsWith("@+android:id") && !value.startsWith("@+id/android:")) {
+                            result.definitions.add(value);
+                        }
+                    } else if (!value.startsWith("@android:") && !value.startsWith("@null")) {
+                        result.usages.add(value);
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new AaptUtilException("Parse file error:" + xmlFullFilename, e);
+        } finally {
+            closeQuietly(reader);
+            IOHelper.closeQuietly(is);
+        }
+        return result;
+    }
+
+    /**
+     * attributes as {qualified name, value}, sorted by name like a dom attribute map,
+     * namespace declarations included.
+     */
+    private static List<String[]> readAttributes(XMLStreamReader reader) {
+        List<String[]> attributes = new ArrayList<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            String name = prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+            attributes.add(new String[]{name, reader.getNamespaceURI(i)});
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.add(new String[]{qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i)});
+        }
+        Collections.sort(attributes, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] lhs, String[] rhs) {
+                return lhs[0].compareTo(rhs[0]);
+            }
+        });
+        return attributes;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static void closeQuietly(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+                // Ignored.
+            }
+        }
+    }
+
+    static final class XmlElement {
+        final String           name;
+        final List<String[]>   attributes;
+        final List<XmlElement> children    = new ArrayList<>();
+        final StringBuilder    textContent = new StringBuilder();
+
+        XmlElement(XMLStreamReader reader) {
+            this(qualifiedName(reader.getPrefix(), reader.getLocalName()), readAttributes(reader));
+        }
+
+        XmlElement(String name, List<String[]> attributes) {
+            this.name = name;
+            this.attributes = attributes;
+        }
+
+        String getAttribute(String attributeName) {
+            for (String[] attribute : attributes) {
+                if (attribute[0].equals(attributeName)) {
+                    return attribute[1];
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class XmlIdAttributes {
+        final List<String> definitions = new ArrayList<>();
+        final List<String> usages      = new ArrayList<>();
+    }
+
     public static class PackageRTypeResourceMap {
         private String                                                      packageName      = null;
         private Map<RType, Set<com.tencent.tinker.build.aapt.RDotTxtEntry>> rTypeResourceMap = null;
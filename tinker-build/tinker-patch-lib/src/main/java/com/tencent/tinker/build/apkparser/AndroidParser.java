@@ -36,8 +36,10 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -73,11 +75,19 @@ public class AndroidParser {
     public final List<String> receivers  = new ArrayList<>();
     public final List<String> services   = new ArrayList<>();
     public final List<String> providers  = new ArrayList<>();
-    public final ApkMeta apkMeta;
-    public final String  xml;
 
     public final HashMap<String, String> metaDatas = new HashMap<>();
 
+    private static final ConcurrentHashMap<String, CacheEntry> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * The apk whose resources.arsc is needed to build {@link #apkMeta} and {@link #xml} lazily,
+     * null once they are built.
+     */
+    private File                          apkFile;
+    private ApkMeta                       apkMeta;
+    private String                        xml;
+    private BinaryManifestParser.Manifest lightManifest;
 
     public AndroidParser(ApkMeta apkMeta, String xml) throws ParserException {
         this.apkMeta = apkMeta;
@@ -85,6 +95,20 @@ public class AndroidParser {
         parse();
     }
 
+    private AndroidParser(File apkFile, BinaryManifestParser.Manifest lightManifest) {
+        this.apkFile = apkFile;
+        this.lightManifest = lightManifest;
+        activities.addAll(lightManifest.activities);
+        receivers.addAll(lightManifest.receivers);
+        services.addAll(lightManifest.services);
+        providers.addAll(lightManifest.providers);
+        metaDatas.putAll(lightManifest.metaDatas);
+    }
+
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
     public static boolean resourceTableLogicalChange(Configuration config) throws IOException {
         ApkParser parser = new ApkParser(config.mOldApkFile);
         ApkParser newParser = new ApkParser(config.mNewApkFile);
@@ -150,36 +174,125 @@ public class AndroidParser {
         }
     }
 
+    /**
+     * Parse the manifest of an apk, each apk is parsed once while it is unchanged and the result
+     * is shared by all callers. Only AndroidManifest.xml is read here, resources.arsc is parsed
+     * when {@link #getApkMeta()} or {@link #getXml()} is first called.
+     */
     public static AndroidParser getAndroidManifest(File file) throws IOException, ParseException {
+        final String key = file.getAbsolutePath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final CacheEntry cached = CACHE.get(key);
+        if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+            return cached.parser;
+        }
+        final BinaryManifestParser.Manifest lightManifest = BinaryManifestParser.parse(file);
+        final AndroidParser androidManifest;
+        if (lightManifest != null) {
+            androidManifest = new AndroidParser(file, lightManifest);
+        } else {
+            androidManifest = parseFully(file);
+        }
+        CACHE.put(key, new CacheEntry(length, lastModified, androidManifest));
+        return androidManifest;
+    }
+
+    private static AndroidParser parseFully(File file) throws IOException {
         ZipFile zf = null;
         try {
             zf = new ZipFile(file);
-            final ByteBuffer arscData = getZipEntryData(zf, AndroidConstants.RESOURCE_FILE);
-            final ResourceTableParser resTableParser = new ResourceTableParser(arscData);
-            resTableParser.parse();
-            final ResourceTable resTable = resTableParser.getResourceTable();
-
-            final ByteBuffer manifestData = getZipEntryData(zf, AndroidConstants.MANIFEST_FILE);
-            final BinaryXmlParser xmlParser = new BinaryXmlParser(manifestData, resTable);
-            final ApkMetaTranslator metaTranslator = new ApkMetaTranslator();
-            final XmlTranslatorForPatch xmlTranslator = new XmlTranslatorForPatch();
-            final CompositeXmlStreamer compositeStreamer = new CompositeXmlStreamer(metaTranslator, xmlTranslator);
-            xmlParser.setXmlStreamer(compositeStreamer);
-            xmlParser.parse();
-
-            AndroidParser androidManifest = new AndroidParser(metaTranslator.getApkMeta(), xmlTranslator.getXml());
-            return androidManifest;
+            final byte[] manifestData = BinaryManifestParser.readManifestEntry(zf);
+            final TranslatedManifest translated = translateManifest(zf, manifestData);
+            return new AndroidParser(translated.apkMeta, translated.xml);
         } finally {
-            if (zf != null) {
-                try {
-                    zf.close();
-                } catch (Throwable ignored) {
-                    // Ignored.
-                }
-            }
+            IOHelper.closeQuietly(zf);
         }
     }
 
+    /**
+     * Translate the binary manifest with apk-parser, labels and icons are resolved against the
+     * resources.arsc in zf.
+     */
+    private static TranslatedManifest translateManifest(ZipFile zf, byte[] manifestData) throws IOException {
+        final ByteBuffer arscData = getZipEntryData(zf, AndroidConstants.RESOURCE_FILE);
+        final ResourceTableParser resTableParser = new ResourceTableParser(arscData);
+        resTableParser.parse();
+        final ResourceTable resTable = resTableParser.getResourceTable();
+
+        final BinaryXmlParser xmlParser = new BinaryXmlParser(ByteBuffer.wrap(manifestData), resTable);
+        final ApkMetaTranslator metaTranslator = new ApkMetaTranslator();
+        final XmlTranslatorForPatch xmlTranslator = new XmlTranslatorForPatch();
+        final CompositeXmlStreamer compositeStreamer = new CompositeXmlStreamer(metaTranslator, xmlTranslator);
+        xmlParser.setXmlStreamer(compositeStreamer);
+        xmlParser.parse();
+        return new TranslatedManifest(metaTranslator.getApkMeta(), xmlTranslator.getXml());
+    }
+
+    private synchronized void ensureFullyParsed() throws IOException {
+        if (apkFile == null) {
+            return;
+        }
+        ZipFile zf = null;
+        try {
+            zf = new ZipFile(apkFile);
+            final TranslatedManifest translated = translateManifest(zf, lightManifest.rawData);
+            apkMeta = translated.apkMeta;
+            xml = translated.xml;
+            apkFile = null;
+        } finally {
+            IOHelper.closeQuietly(zf);
+        }
+    }
+
+    public ApkMeta getApkMeta() throws IOException {
+        ensureFullyParsed();
+        return apkMeta;
+    }
+
+    public String getXml() throws IOException {
+        ensureFullyParsed();
+        return xml;
+    }
+
+    /**
+     * @return true if both apks hold byte identical AndroidManifest.xml entries, their xml are
+     * equal as well then and neither needs to be fully parsed to find that out.
+     */
+    public boolean hasSameBinaryManifest(AndroidParser other) {
+        return lightManifest != null && other.lightManifest != null
+            && Arrays.equals(lightManifest.rawData, other.lightManifest.rawData);
+    }
+
+    public String getPackageName() throws IOException {
+        if (lightManifest != null && lightManifest.packageName != null) {
+            return lightManifest.packageName;
+        }
+        return getApkMeta().getPackageName();
+    }
+
+    public String getVersionCode() throws IOException {
+        if (lightManifest != null && lightManifest.versionCode != null) {
+            return lightManifest.versionCode;
+        }
+        final Long versionCode = getApkMeta().getVersionCode();
+        return versionCode != null ? versionCode.toString() : null;
+    }
+
+    public String getVersionName() throws IOException {
+        if (lightManifest != null && lightManifest.versionName != null) {
+            return lightManifest.versionName;
+        }
+        return getApkMeta().getVersionName();
+    }
+
+    public String getMinSdkVersion() throws IOException {
+        if (lightManifest != null && lightManifest.minSdkVersion != null) {
+            return lightManifest.minSdkVersion;
+        }
+        return getApkMeta().getMinSdkVersion();
+    }
+
     private static ByteBuffer getZipEntryData(ZipFile zf, String entryPath) throws IOException {
         final ZipEntry entry = zf.getEntry(entryPath);
         InputStream is = null;
@@ -292,4 +405,26 @@ public class AndroidParser {
         NamedNodeMap attributes = node.getAttributes();
         return getAttribute(attributes, "android:name");
     }
+
+    private static final class TranslatedManifest {
+        final ApkMeta apkMeta;
+        final String  xml;
+
+        TranslatedManifest(ApkMeta apkMeta, String xml) {
+            this.apkMeta = apkMeta;
+            this.xml = xml;
+        }
+    }
+
+    private static final class CacheEntry {
+        final long          length;
+        final long          lastModified;
+        final AndroidParser parser;
+
+        CacheEntry(long length, long lastModified, AndroidParser parser) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.parser = parser;
+        }
+    }
 }
@@ -0,0 +1,363 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.apkparser;
+
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A small binary xml reader which only looks at the AndroidManifest.xml entry of an apk.
+ *
+ * The entry is found through the zip central directory, resources.arsc is never touched. Only
+ * the values ManifestDecoder and PatchInfoGen need are collected: the manifest attributes, the
+ * minSdkVersion, the application components and meta-data. Attribute values are converted
+ * the same way apk-parser would convert them, a value this reader can not convert without the
+ * resource table makes {@link #parse(File)} return null so that the caller falls back to a full
+ * apk-parser pass.
+ */
+final class BinaryManifestParser {
+    static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private static final int RES_STRING_POOL_TYPE       = 0x0001;
+    private static final int RES_XML_TYPE               = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE   = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE  = 0x0180;
+
+    private static final int UTF8_FLAG = 1 << 8;
+
+    private static final int TYPE_STRING      = 0x03;
+    private static final int TYPE_INT_DEC     = 0x10;
+    private static final int TYPE_INT_BOOLEAN = 0x12;
+
+    private static final int NO_INDEX = -1;
+
+    private static final Map<Integer, String> ANDROID_ATTR_NAMES = new HashMap<>();
+
+    static {
+        ANDROID_ATTR_NAMES.put(0x01010003, "name");
+        ANDROID_ATTR_NAMES.put(0x01010024, "value");
+        ANDROID_ATTR_NAMES.put(0x0101020c, "minSdkVersion");
+        ANDROID_ATTR_NAMES.put(0x0101021b, "versionCode");
+        ANDROID_ATTR_NAMES.put(0x0101021c, "versionName");
+    }
+
+    private static final Charset UTF8  = Charset.forName("UTF-8");
+    private static final Charset UTF16 = Charset.forName("UTF-16LE");
+
+    /**
+     * Values read from the binary manifest. Every string is what the apk-parser xml would hold
+     * for the same attribute, null if the attribute is absent.
+     */
+    static final class Manifest {
+        final byte[] rawData;
+
+        String packageName;
+        String versionCode;
+        String versionName;
+        String minSdkVersion;
+
+        final List<String>        activities = new ArrayList<>();
+        final List<String>        receivers  = new ArrayList<>();
+        final List<String>        services   = new ArrayList<>();
+        final List<String>        providers  = new ArrayList<>();
+        final Map<String, String> metaDatas  = new HashMap<>();
+
+        Manifest(byte[] rawData) {
+            this.rawData = rawData;
+        }
+    }
+
+    /**
+     * Thrown when an attribute we need can not be converted without the resource table.
+     */
+    private static final class UnsupportedValueException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedValueException(String message) {
+            super(message);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private       String[]   strings     = new String[0];
+    private       int[]      resourceIds = new int[0];
+
+    private BinaryManifestParser(byte[] data) {
+        buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static byte[] readManifestEntry(ZipFile zf) throws IOException {
+        final ZipEntry entry = zf.getEntry(MANIFEST_ENTRY);
+        if (entry == null) {
+            throw new IOException("can't find " + MANIFEST_ENTRY + " in " + zf.getName());
+        }
+        InputStream is = null;
+        try {
+            is = zf.getInputStream(entry);
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 16384);
+            final byte[] chunk = new byte[16384];
+            for (int len = is.read(chunk); len != -1; len = is.read(chunk)) {
+                bos.write(chunk, 0, len);
+            }
+            return bos.toByteArray();
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    /**
+     * @return the parsed manifest, or null if it holds values which need the resource table.
+     */
+    static Manifest parse(File apk) throws IOException {
+        ZipFile zf = null;
+        try {
+            zf = new ZipFile(apk);
+            return parse(readManifestEntry(zf));
+        } finally {
+            IOHelper.closeQuietly(zf);
+        }
+    }
+
+    static Manifest parse(byte[] data) throws IOException {
+        final Manifest manifest = new Manifest(data);
+        try {
+            new BinaryManifestParser(data).parseInto(manifest);
+        } catch (UnsupportedValueException e) {
+            return null;
+        } catch (RuntimeException e) {
+            throw new IOException("bad binary manifest: " + e, e);
+        }
+        return manifest;
+    }
+
+    private void parseInto(Manifest manifest) throws UnsupportedValueException, IOException {
+        final int fileType = buffer.getShort(0) & 0xffff;
+        if (fileType != RES_XML_TYPE) {
+            throw new IOException("not a binary xml, chunk type: " + fileType);
+        }
+        final int fileHeaderSize = buffer.getShort(2) & 0xffff;
+        final int fileEnd = buffer.getInt(4);
+        if (fileEnd > buffer.limit()) {
+            throw new IOException("truncated binary xml, size: " + fileEnd + ", available: " + buffer.limit());
+        }
+
+        // Element names from the root down to the current element.
+        final List<String> path = new ArrayList<>();
+        int offset = fileHeaderSize;
+        while (offset + 8 <= fileEnd) {
+            final int type = buffer.getShort(offset) & 0xffff;
+            final int headerSize = buffer.getShort(offset + 2) & 0xffff;
+            final int size = buffer.getInt(offset + 4);
+            if (size < 8 || offset + size > fileEnd) {
+                throw new IOException("bad chunk size " + size + " at " + offset);
+            }
+            switch (type) {
+                case RES_STRING_POOL_TYPE:
+                    readStringPool(offset, headerSize);
+                    break;
+                case RES_XML_RESOURCE_MAP_TYPE:
+                    readResourceMap(offset, headerSize, size);
+                    break;
+                case RES_XML_START_ELEMENT_TYPE:
+                    onStartElement(manifest, path, offset + headerSize);
+                    break;
+                case RES_XML_END_ELEMENT_TYPE:
+                    if (!path.isEmpty()) {
+                        path.remove(path.size() - 1);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset += size;
+        }
+    }
+
+    private void readStringPool(int chunkOffset, int headerSize) {
+        final int stringCount = buffer.getInt(chunkOffset + 8);
+        final int flags = buffer.getInt(chunkOffset + 16);
+        final int stringsStart = buffer.getInt(chunkOffset + 20);
+        final boolean utf8 = (flags & UTF8_FLAG) != 0;
+        strings = new String[stringCount];
+        for (int i = 0; i < stringCount; ++i) {
+            final int stringOffset = chunkOffset + stringsStart + buffer.getInt(chunkOffset + headerSize + i * 4);
+            strings[i] = utf8 ? readUtf8String(stringOffset) : readUtf16String(stringOffset);
+        }
+    }
+
+    private String readUtf8String(int offset) {
+        // The utf-16 length comes first, we only need the byte length after it.
+        int pos = offset;
+        if ((buffer.get(pos++) & 0x80) != 0) {
+            ++pos;
+        }
+        int byteLength = buffer.get(pos++) & 0xff;
+        if ((byteLength & 0x80) != 0) {
+            byteLength = ((byteLength & 0x7f) << 8) | (buffer.get(pos++) & 0xff);
+        }
+        return new String(buffer.array(), pos, byteLength, UTF8);
+    }
+
+    private String readUtf16String(int offset) {
+        int pos = offset;
+        int charLength = buffer.getShort(pos) & 0xffff;
+        pos += 2;
+        if ((charLength & 0x8000) != 0) {
+            charLength = ((charLength & 0x7fff) << 16) | (buffer.getShort(pos) & 0xffff);
+            pos += 2;
+        }
+        return new String(buffer.array(), pos, charLength * 2, UTF16);
+    }
+
+    private void readResourceMap(int chunkOffset, int headerSize, int size) {
+        final int count = (size - headerSize) / 4;
+        resourceIds = new int[count];
+        for (int i = 0; i < count; ++i) {
+            resourceIds[i] = buffer.getInt(chunkOffset + headerSize + i * 4);
+        }
+    }
+
+    private void onStartElement(Manifest manifest, List<String> path, int extOffset) throws UnsupportedValueException {
+        final int nsIndex = buffer.getInt(extOffset);
+        final int nameIndex = buffer.getInt(extOffset + 4);
+        // An element with a namespace would show up as "prefix:name" in the apk-parser xml and
+        // match none of the names below, give it a name which can not match either.
+        final String name = nsIndex == NO_INDEX ? getString(nameIndex) : ":" + getString(nameIndex);
+        final int depth = path.size();
+        path.add(name);
+
+        if (depth == 0) {
+            if ("manifest".equals(name)) {
+                manifest.packageName = getAttributeValue(extOffset, null, "package");
+                manifest.versionCode = getAttributeValue(extOffset, ANDROID_NAMESPACE, "versionCode");
+                manifest.versionName = getAttributeValue(extOffset, ANDROID_NAMESPACE, "versionName");
+            }
+            return;
+        }
+        if (!"manifest".equals(path.get(0))) {
+            return;
+        }
+        if (depth == 1) {
+            if ("uses-sdk".equals(name)) {
+                manifest.minSdkVersion = getAttributeValue(extOffset, ANDROID_NAMESPACE, "minSdkVersion");
+            }
+            return;
+        }
+        if (depth != 2 || !"application".equals(path.get(1))) {
+            return;
+        }
+        switch (name) {
+            case "activity":
+                manifest.activities.add(getAndroidAttribute(extOffset, "name"));
+                break;
+            case "service":
+                manifest.services.add(getAndroidAttribute(extOffset, "name"));
+                break;
+            case "receiver":
+                manifest.receivers.add(getAndroidAttribute(extOffset, "name"));
+                break;
+            case "provider":
+                manifest.providers.add(getAndroidAttribute(extOffset, "name"));
+                break;
+            case "meta-data":
+                manifest.metaDatas.put(getAndroidAttribute(extOffset, "name"), getAndroidAttribute(extOffset, "value"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Same lookup as AndroidParser#getAttribute, "android:name" first and then "name".
+     */
+    private String getAndroidAttribute(int extOffset, String name) throws UnsupportedValueException {
+        final String value = getAttributeValue(extOffset, ANDROID_NAMESPACE, name);
+        return value != null ? value : getAttributeValue(extOffset, null, name);
+    }
+
+    private String getAttributeValue(int extOffset, String namespace, String name) throws UnsupportedValueException {
+        final int attributeStart = buffer.getShort(extOffset + 8) & 0xffff;
+        final int attributeSize = buffer.getShort(extOffset + 10) & 0xffff;
+        final int attributeCount = buffer.getShort(extOffset + 12) & 0xffff;
+        for (int i = 0; i < attributeCount; ++i) {
+            final int attrOffset = extOffset + attributeStart + i * attributeSize;
+            final int nsIndex = buffer.getInt(attrOffset);
+            final String attrNamespace = nsIndex == NO_INDEX ? null : getString(nsIndex);
+            if (namespace == null ? attrNamespace != null : !namespace.equals(attrNamespace)) {
+                continue;
+            }
+            if (!name.equals(getAttributeName(buffer.getInt(attrOffset + 4)))) {
+                continue;
+            }
+            final int rawValueIndex = buffer.getInt(attrOffset + 8);
+            final int dataType = buffer.get(attrOffset + 15) & 0xff;
+            final int data = buffer.getInt(attrOffset + 16);
+            switch (dataType) {
+                case TYPE_STRING:
+                    return getString(data);
+                case TYPE_INT_DEC:
+                    if (rawValueIndex == NO_INDEX) {
+                        return Integer.toString(data);
+                    }
+                    break;
+                case TYPE_INT_BOOLEAN:
+                    if (rawValueIndex == NO_INDEX) {
+                        return data != 0 ? "true" : "false";
+                    }
+                    break;
+                default:
+                    break;
+            }
+            throw new UnsupportedValueException("attribute " + name + " has value type " + dataType);
+        }
+        return null;
+    }
+
+    private String getAttributeName(int nameIndex) {
+        final String name = getString(nameIndex);
+        if (name != null && !name.isEmpty()) {
+            return name;
+        }
+        if (nameIndex >= 0 && nameIndex < resourceIds.length) {
+            return ANDROID_ATTR_NAMES.get(resourceIds[nameIndex]);
+        }
+        return name;
+    }
+
+    private String getString(int index) {
+        if (index < 0 || index >= strings.length) {
+            return null;
+        }
+        return strings[index];
+    }
+}
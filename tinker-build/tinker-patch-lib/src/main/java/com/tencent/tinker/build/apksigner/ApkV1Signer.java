@@ -0,0 +1,323 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.apksigner;
+
+import com.google.common.io.BaseEncoding;
+import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * In-process signer of the jar (v1) scheme, the output is equivalent to
+ * {@code jarsigner -digestalg SHA1 -sigalg SHA1with<KeyAlgorithm>}.
+ *
+ * Entry digests can be fed through {@link #addEntryDigest} while the unsigned apk
+ * is being written, then {@link #sign} only has to write the META-INF files and
+ * copy the already compressed entries as they are.
+ */
+public class ApkV1Signer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String META_INF         = "META-INF/";
+    private static final String MANIFEST_NAME    = META_INF + "MANIFEST.MF";
+    private static final String DIGEST_ALGORITHM = "SHA1";
+    private static final String CREATED_BY       = "1.0 (Tinker)";
+    private static final int    MAX_LINE_LENGTH  = 72;
+    private static final int    BUFFER_SIZE      = 16384;
+
+    private final File   keyStoreFile;
+    private final String storePass;
+    private final String alias;
+    private final String keyPass;
+
+    private final Map<String, byte[]> entryDigests = new ConcurrentHashMap<>();
+
+    public ApkV1Signer(File keyStoreFile, String storePass, String alias, String keyPass) {
+        this.keyStoreFile = keyStoreFile;
+        this.storePass = storePass;
+        this.alias = alias;
+        this.keyPass = keyPass;
+    }
+
+    public static String getSignatureAlgorithm(String keyAlgorithm) {
+        if (keyAlgorithm.equalsIgnoreCase("DSA")) {
+            return "SHA1withDSA";
+        } else if (keyAlgorithm.equalsIgnoreCase("RSA")) {
+            return "SHA1withRSA";
+        } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
+            return "SHA1withECDSA";
+        } else {
+            throw new RuntimeException("private key is not a DSA or "
+                + "RSA key");
+        }
+    }
+
+    /**
+     * Record the digest of an entry which will be in the unsigned apk.
+     */
+    public void addEntryDigest(String entryName, byte[] contents) {
+        entryDigests.put(entryName, newDigest().digest(contents));
+    }
+
+    /**
+     * @param input  unsigned apk
+     * @param output signed apk, entries of input are copied without recompression
+     */
+    public void sign(File input, File output) throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = loadKeyStore();
+        final Key key = keyStore.getKey(alias, keyPass.toCharArray());
+        if (!(key instanceof PrivateKey)) {
+            throw new GeneralSecurityException("can not find private key of alias " + alias);
+        }
+        final Certificate[] chain = keyStore.getCertificateChain(alias);
+        if (chain == null || chain.length == 0) {
+            throw new GeneralSecurityException("can not find certificate of alias " + alias);
+        }
+        final List<X509Certificate> certChain = new ArrayList<>(chain.length);
+        for (Certificate cert : chain) {
+            certChain.add((X509Certificate) cert);
+        }
+
+        TinkerZipFile inputZip = null;
+        TinkerZipOutputStream out = null;
+        try {
+            inputZip = new TinkerZipFile(input);
+            final List<TinkerZipEntry> entries = new ArrayList<>();
+            final Enumeration<? extends TinkerZipEntry> enumeration = inputZip.entries();
+            while (enumeration.hasMoreElements()) {
+                final TinkerZipEntry entry = enumeration.nextElement();
+                if (entry.isDirectory() || isSignatureRelated(entry.getName())) {
+                    continue;
+                }
+                entries.add(entry);
+            }
+            fillMissingDigests(input, entries);
+
+            // MANIFEST.MF and the per entry sections which the .SF file digests again.
+            final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            writeAttribute(manifest, "Manifest-Version", "1.0");
+            writeAttribute(manifest, "Created-By", CREATED_BY);
+            writeNewLine(manifest);
+            final byte[] manifestMain = manifest.toByteArray();
+            final List<byte[]> manifestSections = new ArrayList<>(entries.size());
+            for (TinkerZipEntry entry : entries) {
+                final ByteArrayOutputStream section = new ByteArrayOutputStream();
+                writeAttribute(section, "Name", entry.getName());
+                writeAttribute(section, DIGEST_ALGORITHM + "-Digest", base64(entryDigests.get(entry.getName())));
+                writeNewLine(section);
+                final byte[] sectionBytes = section.toByteArray();
+                manifestSections.add(sectionBytes);
+                manifest.write(sectionBytes, 0, sectionBytes.length);
+            }
+            final byte[] manifestBytes = manifest.toByteArray();
+
+            final ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            writeAttribute(signatureFile, "Signature-Version", "1.0");
+            writeAttribute(signatureFile, "Created-By", CREATED_BY);
+            writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest", base64(newDigest().digest(manifestBytes)));
+            writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest-Main-Attributes", base64(newDigest().digest(manifestMain)));
+            writeNewLine(signatureFile);
+            for (int i = 0; i < entries.size(); ++i) {
+                writeAttribute(signatureFile, "Name", entries.get(i).getName());
+                writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest", base64(newDigest().digest(manifestSections.get(i))));
+                writeNewLine(signatureFile);
+            }
+            final byte[] signatureFileBytes = signatureFile.toByteArray();
+
+            final String keyAlgorithm = key.getAlgorithm();
+            final Signature signature = Signature.getInstance(getSignatureAlgorithm(keyAlgorithm));
+            signature.initSign((PrivateKey) key);
+            signature.update(signatureFileBytes);
+            final byte[] signatureBlock = Pkcs7Encoder.encodeSignedData(certChain, keyAlgorithm, signature.sign());
+
+            final String baseName = META_INF + getSignatureBaseName(alias);
+            out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+            writeStoredEntry(out, MANIFEST_NAME, manifestBytes);
+            writeStoredEntry(out, baseName + ".SF", signatureFileBytes);
+            writeStoredEntry(out, baseName + "." + keyAlgorithm.toUpperCase(Locale.ENGLISH), signatureBlock);
+            for (TinkerZipEntry entry : entries) {
+                TinkerZipUtil.extractTinkerEntry(inputZip, entry, out);
+            }
+        } finally {
+            IOHelper.closeQuietly(out);
+            IOHelper.closeQuietly(inputZip);
+        }
+    }
+
+    private KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(keyStoreFile));
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(is, storePass.toCharArray());
+            return keyStore;
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Digest entries which were not reported by {@link #addEntryDigest}, e.g. when
+     * the unsigned apk was not generated by us.
+     */
+    private void fillMissingDigests(File input, List<TinkerZipEntry> entries) throws IOException {
+        ZipFile zipFile = null;
+        try {
+            for (TinkerZipEntry entry : entries) {
+                if (entryDigests.containsKey(entry.getName())) {
+                    continue;
+                }
+                if (zipFile == null) {
+                    zipFile = new ZipFile(input);
+                }
+                final ZipEntry zipEntry = zipFile.getEntry(entry.getName());
+                final MessageDigest digest = newDigest();
+                InputStream is = null;
+                try {
+                    is = zipFile.getInputStream(zipEntry);
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                        digest.update(buffer, 0, length);
+                    }
+                } finally {
+                    IOHelper.closeQuietly(is);
+                }
+                entryDigests.put(entry.getName(), digest.digest());
+            }
+        } finally {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+    }
+
+    private static boolean isSignatureRelated(String entryName) {
+        if (!entryName.startsWith(META_INF) || entryName.indexOf('/', META_INF.length()) != -1) {
+            return false;
+        }
+        final String upperName = entryName.toUpperCase(Locale.ENGLISH);
+        return upperName.equals(MANIFEST_NAME)
+            || upperName.endsWith(".SF")
+            || upperName.endsWith(".RSA")
+            || upperName.endsWith(".DSA")
+            || upperName.endsWith(".EC");
+    }
+
+    /**
+     * Same rule as jarsigner: upper case alias, at most 8 chars, others replaced by '_'.
+     */
+    private static String getSignatureBaseName(String alias) {
+        String name = alias.toUpperCase(Locale.ENGLISH);
+        if (name.length() > 8) {
+            name = name.substring(0, 8);
+        }
+        final StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeStoredEntry(TinkerZipOutputStream out, String name, byte[] data) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        final TinkerZipEntry entry = new TinkerZipEntry(name);
+        entry.setMethod(TinkerZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data, 0, data.length);
+        out.closeEntry();
+    }
+
+    /**
+     * Write "name: value", wrapped to 72 bytes per line with continuation lines
+     * starting with a space as the jar manifest spec requires.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        final byte[] line = (name + ": " + value).getBytes(UTF_8);
+        int offset = 0;
+        int limit = MAX_LINE_LENGTH;
+        while (line.length - offset > limit) {
+            int end = offset + limit;
+            // Never split a multi-byte utf-8 char.
+            while (end > offset + 1 && (line[end] & 0xC0) == 0x80) {
+                --end;
+            }
+            out.write(line, offset, end - offset);
+            writeNewLine(out);
+            out.write(' ');
+            offset = end;
+            limit = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, offset, line.length - offset);
+        writeNewLine(out);
+    }
+
+    private static void writeNewLine(ByteArrayOutputStream out) {
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static String base64(byte[] data) {
+        return BaseEncoding.base64().encode(data);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.apksigner;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Minimal DER encoder of the detached PKCS#7 SignedData block which jarsigner
+ * stores in META-INF/*.RSA, *.DSA and *.EC. Only the subset needed by the v1
+ * scheme is supported: one signer, SHA-1 digest and no authenticated attributes,
+ * so the signature is computed over the .SF file directly.
+ */
+final class Pkcs7Encoder {
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_DATA        = "1.2.840.113549.1.7.1";
+    private static final String OID_SHA1        = "1.3.14.3.2.26";
+    private static final String OID_RSA         = "1.2.840.113549.1.1.1";
+    private static final String OID_DSA         = "1.2.840.10040.4.1";
+    private static final String OID_EC          = "1.2.840.10045.2.1";
+
+    private static final int TAG_INTEGER      = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_NULL         = 0x05;
+    private static final int TAG_OID          = 0x06;
+    private static final int TAG_SEQUENCE     = 0x30;
+    private static final int TAG_SET          = 0x31;
+    private static final int TAG_CONTEXT_0    = 0xA0;
+
+    private Pkcs7Encoder() {
+    }
+
+    static byte[] encodeSignedData(List<X509Certificate> certChain, String keyAlgorithm, byte[] signature)
+        throws CertificateEncodingException {
+        final X509Certificate signerCert = certChain.get(0);
+        final byte[] sha1AlgorithmId = sequence(oid(OID_SHA1), nullValue());
+
+        final ByteArrayOutputStream certs = new ByteArrayOutputStream();
+        for (X509Certificate cert : certChain) {
+            final byte[] encoded = cert.getEncoded();
+            certs.write(encoded, 0, encoded.length);
+        }
+
+        final byte[] signerInfo = sequence(
+            integer(BigInteger.ONE),
+            sequence(
+                signerCert.getIssuerX500Principal().getEncoded(),
+                integer(signerCert.getSerialNumber())
+            ),
+            sha1AlgorithmId,
+            sequence(oid(getEncryptionAlgorithmOid(keyAlgorithm)), nullValue()),
+            tlv(TAG_OCTET_STRING, signature)
+        );
+
+        final byte[] signedData = sequence(
+            integer(BigInteger.ONE),
+            tlv(TAG_SET, sha1AlgorithmId),
+            sequence(oid(OID_DATA)),
+            tlv(TAG_CONTEXT_0, certs.toByteArray()),
+            tlv(TAG_SET, signerInfo)
+        );
+
+        return sequence(oid(OID_SIGNED_DATA), tlv(TAG_CONTEXT_0, signedData));
+    }
+
+    private static String getEncryptionAlgorithmOid(String keyAlgorithm) {
+        if (keyAlgorithm.equalsIgnoreCase("RSA")) {
+            return OID_RSA;
+        } else if (keyAlgorithm.equalsIgnoreCase("DSA")) {
+            return OID_DSA;
+        } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
+            return OID_EC;
+        }
+        throw new IllegalArgumentException("unsupported key algorithm " + keyAlgorithm);
+    }
+
+    private static byte[] sequence(byte[]... items) {
+        return tlv(TAG_SEQUENCE, concat(items));
+    }
+
+    private static byte[] integer(BigInteger value) {
+        return tlv(TAG_INTEGER, value.toByteArray());
+    }
+
+    private static byte[] nullValue() {
+        return new byte[] {TAG_NULL, 0};
+    }
+
+    private static byte[] oid(String oid) {
+        final String[] parts = oid.split("\\.");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; ++i) {
+            final long arc = Long.parseLong(parts[i]);
+            // base 128, most significant group first, high bit set on all but the last byte.
+            int shift = 63 - Long.numberOfLeadingZeros(arc | 1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7) {
+                out.write((int) ((arc >>> shift) & 0x7F) | 0x80);
+            }
+            out.write((int) (arc & 0x7F));
+        }
+        return tlv(TAG_OID, out.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        final int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int byteCount = 0;
+            for (int remain = length; remain != 0; remain >>>= 8) {
+                ++byteCount;
+            }
+            out.write(0x80 | byteCount);
+            for (int i = byteCount - 1; i >= 0; --i) {
+                out.write((length >>> (i * 8)) & 0xFF);
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... items) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] item : items) {
+            out.write(item, 0, item.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.arscpatcher;
+
+import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.commons.arscpatcher.ArscPatchFile;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generate a chunk level patch of resources.arsc, see {@link ArscPatchFile}.
+ *
+ * The table is split into leaf chunks: the table header, the global string pool, and
+ * for every package its header, type and key string pools, type spec, type and library
+ * chunks. A new chunk equal to any old chunk is copied, a changed chunk with a counterpart
+ * in the old table (same package and type id, same config for type chunks) is bsdiffed
+ * against it, anything else is stored as is.
+ */
+public class ArscPatchGenerator {
+    private static final int RES_STRING_POOL_TYPE     = 0x0001;
+    private static final int RES_TABLE_TYPE           = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE   = 0x0200;
+    private static final int RES_TABLE_TYPE_TYPE      = 0x0201;
+    private static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+
+    private static final int CHUNK_HEADER_SIZE     = 8;
+    private static final int TYPE_CONFIG_OFFSET    = 20;
+    private static final int PACKAGE_ID_OFFSET     = 8;
+    private static final int TYPE_ID_OFFSET        = 8;
+
+    private final byte[] oldArsc;
+    private final byte[] newArsc;
+
+    private int copyCount  = 0;
+    private int addCount   = 0;
+    private int patchCount = 0;
+
+    public ArscPatchGenerator(File oldArscFile, File newArscFile) throws IOException {
+        this.oldArsc = Files.readAllBytes(oldArscFile.toPath());
+        this.newArsc = Files.readAllBytes(newArscFile.toPath());
+    }
+
+    /**
+     * @throws IOException if either table can not be parsed, callers should fallback to a
+     *                     whole file diff in that case.
+     */
+    public void executeAndSaveTo(File patchFile) throws IOException {
+        final List<Chunk> oldChunks = parse(oldArsc);
+        final List<Chunk> newChunks = parse(newArsc);
+
+        final Map<ByteBuffer, Chunk> oldChunksByContent = new HashMap<>();
+        final Map<String, Chunk> oldChunksByIdentity = new HashMap<>();
+        for (Chunk chunk : oldChunks) {
+            final ByteBuffer content = chunk.content(oldArsc);
+            if (!oldChunksByContent.containsKey(content)) {
+                oldChunksByContent.put(content, chunk);
+            }
+            oldChunksByIdentity.put(chunk.identity, chunk);
+        }
+
+        final List<Op> ops = new ArrayList<>();
+        for (Chunk newChunk : newChunks) {
+            final Chunk sameIdentity = oldChunksByIdentity.get(newChunk.identity);
+            final ByteBuffer content = newChunk.content(newArsc);
+            if (sameIdentity != null && sameIdentity.content(oldArsc).equals(content)) {
+                addCopy(ops, sameIdentity);
+                continue;
+            }
+            final Chunk sameContent = oldChunksByContent.get(content);
+            if (sameContent != null) {
+                addCopy(ops, sameContent);
+                continue;
+            }
+            if (sameIdentity != null) {
+                final byte[] oldBytes = sameIdentity.bytes(oldArsc);
+                final byte[] newBytes = newChunk.bytes(newArsc);
+                final byte[] diff = BSDiff.bsdiff(oldBytes, oldBytes.length, newBytes, newBytes.length);
+                if (diff.length < newBytes.length) {
+                    final Op op = new Op(ArscPatchFile.OP_PATCH);
+                    op.oldOffset = sameIdentity.offset;
+                    op.length = sameIdentity.length;
+                    op.data = diff;
+                    ops.add(op);
+                    ++patchCount;
+                    continue;
+                }
+            }
+            addData(ops, newChunk);
+        }
+        writePatch(ops, patchFile);
+        Logger.d("Generate resources.arsc chunk patch, chunks: %d, copy: %d, patch: %d, add: %d, ops: %d, size: %d",
+            newChunks.size(), copyCount, patchCount, addCount, ops.size(), patchFile.length());
+    }
+
+    private void addCopy(List<Op> ops, Chunk oldChunk) {
+        ++copyCount;
+        if (!ops.isEmpty()) {
+            final Op last = ops.get(ops.size() - 1);
+            if (last.type == ArscPatchFile.OP_COPY && last.oldOffset + last.length == oldChunk.offset) {
+                last.length += oldChunk.length;
+                return;
+            }
+        }
+        final Op op = new Op(ArscPatchFile.OP_COPY);
+        op.oldOffset = oldChunk.offset;
+        op.length = oldChunk.length;
+        ops.add(op);
+    }
+
+    private void addData(List<Op> ops, Chunk newChunk) {
+        ++addCount;
+        if (!ops.isEmpty()) {
+            final Op last = ops.get(ops.size() - 1);
+            if (last.type == ArscPatchFile.OP_ADD && last.newEnd == newChunk.offset) {
+                last.length += newChunk.length;
+                last.newEnd += newChunk.length;
+                return;
+            }
+        }
+        final Op op = new Op(ArscPatchFile.OP_ADD);
+        op.newOffset = newChunk.offset;
+        op.newEnd = newChunk.offset + newChunk.length;
+        op.length = newChunk.length;
+        ops.add(op);
+    }
+
+    private void writePatch(List<Op> ops, File patchFile) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patchFile)));
+            out.write(ArscPatchFile.MAGIC);
+            out.writeShort(ArscPatchFile.CURRENT_VERSION);
+            out.writeInt(newArsc.length);
+            out.writeInt(ops.size());
+            for (Op op : ops) {
+                out.writeByte(op.type);
+                switch (op.type) {
+                    case ArscPatchFile.OP_COPY:
+                        out.writeInt(op.oldOffset);
+                        out.writeInt(op.length);
+                        break;
+                    case ArscPatchFile.OP_ADD:
+                        out.writeInt(op.length);
+                        out.write(newArsc, op.newOffset, op.length);
+                        break;
+                    case ArscPatchFile.OP_PATCH:
+                        out.writeInt(op.oldOffset);
+                        out.writeInt(op.length);
+                        out.writeInt(op.data.length);
+                        out.write(op.data);
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown op: " + op.type);
+                }
+            }
+            out.flush();
+        } finally {
+            IOHelper.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Split a resource table into leaf chunks which cover the whole file in order.
+     */
+    static List<Chunk> parse(byte[] arsc) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(arsc).order(ByteOrder.LITTLE_ENDIAN);
+        final List<Chunk> chunks = new ArrayList<>();
+        if (arsc.length < CHUNK_HEADER_SIZE || (buffer.getShort(0) & 0xFFFF) != RES_TABLE_TYPE) {
+            throw new IOException("not a resource table");
+        }
+        final int tableHeaderSize = buffer.getShort(2) & 0xFFFF;
+        final int tableSize = buffer.getInt(4);
+        if (tableSize != arsc.length || tableHeaderSize < CHUNK_HEADER_SIZE || tableHeaderSize > tableSize) {
+            throw new IOException("bad resource table header, size: " + tableSize + ", file length: " + arsc.length);
+        }
+        chunks.add(new Chunk("table", 0, tableHeaderSize));
+
+        final Map<String, Integer> ordinals = new HashMap<>();
+        int offset = tableHeaderSize;
+        while (offset < tableSize) {
+            final int type = readChunkType(buffer, offset);
+            final int size = readChunkSize(buffer, offset, tableSize);
+            if (type == RES_TABLE_PACKAGE_TYPE) {
+                parsePackage(buffer, offset, size, chunks);
+            } else {
+                chunks.add(new Chunk(nextIdentity("table/" + type, ordinals), offset, size));
+            }
+            offset += size;
+        }
+        return chunks;
+    }
+
+    private static void parsePackage(ByteBuffer buffer, int start, int size, List<Chunk> chunks) throws IOException {
+        final int headerSize = buffer.getShort(start + 2) & 0xFFFF;
+        if (headerSize < CHUNK_HEADER_SIZE + 4 || headerSize > size) {
+            throw new IOException("bad package header size: " + headerSize);
+        }
+        final int packageId = buffer.getInt(start + PACKAGE_ID_OFFSET);
+        final String prefix = "package/" + packageId + "/";
+        chunks.add(new Chunk(prefix + "header", start, headerSize));
+
+        final Map<String, Integer> ordinals = new HashMap<>();
+        final int end = start + size;
+        int offset = start + headerSize;
+        while (offset < end) {
+            final int type = readChunkType(buffer, offset);
+            final int chunkSize = readChunkSize(buffer, offset, end);
+            final String identity;
+            if (type == RES_TABLE_TYPE_SPEC_TYPE) {
+                identity = prefix + "spec/" + (buffer.get(offset + TYPE_ID_OFFSET) & 0xFF);
+            } else if (type == RES_TABLE_TYPE_TYPE) {
+                final int chunkHeaderSize = buffer.getShort(offset + 2) & 0xFFFF;
+                if (chunkHeaderSize < TYPE_CONFIG_OFFSET || chunkHeaderSize > chunkSize) {
+                    throw new IOException("bad type chunk header size: " + chunkHeaderSize);
+                }
+                final StringBuilder sb = new StringBuilder(prefix).append("type/")
+                    .append(buffer.get(offset + TYPE_ID_OFFSET) & 0xFF).append('/');
+                for (int i = offset + TYPE_CONFIG_OFFSET; i < offset + chunkHeaderSize; ++i) {
+                    sb.append(Integer.toHexString(buffer.get(i) & 0xFF)).append('.');
+                }
+                // the same type and config may appear more than once, e.g. sparse and dense variants.
+                identity = nextIdentity(sb.toString(), ordinals);
+            } else if (type == RES_STRING_POOL_TYPE) {
+                // first one is type strings, second one is key strings.
+                identity = nextIdentity(prefix + "pool", ordinals);
+            } else {
+                identity = nextIdentity(prefix + type, ordinals);
+            }
+            chunks.add(new Chunk(identity, offset, chunkSize));
+            offset += chunkSize;
+        }
+    }
+
+    private static String nextIdentity(String base, Map<String, Integer> ordinals) {
+        final Integer ordinal = ordinals.get(base);
+        final int next = ordinal == null ? 0 : ordinal + 1;
+        ordinals.put(base, next);
+        return base + "#" + next;
+    }
+
+    private static int readChunkType(ByteBuffer buffer, int offset) throws IOException {
+        if (offset + CHUNK_HEADER_SIZE > buffer.limit()) {
+            throw new IOException("truncated chunk at " + offset);
+        }
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private static int readChunkSize(ByteBuffer buffer, int offset, int end) throws IOException {
+        final int size = buffer.getInt(offset + 4);
+        if (size < CHUNK_HEADER_SIZE || offset + (long) size > end) {
+            throw new IOException("bad chunk size " + size + " at " + offset);
+        }
+        return size;
+    }
+
+    static final class Chunk {
+        final String identity;
+        final int    offset;
+        final int    length;
+
+        Chunk(String identity, int offset, int length) {
+            this.identity = identity;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ByteBuffer content(byte[] arsc) {
+            return ByteBuffer.wrap(arsc, offset, length).slice();
+        }
+
+        byte[] bytes(byte[] arsc) {
+            final byte[] result = new byte[length];
+            System.arraycopy(arsc, offset, result, 0, length);
+            return result;
+        }
+    }
+
+    private static final class Op {
+        final byte   type;
+        int          oldOffset;
+        int          newOffset;
+        int          newEnd;
+        int          length;
+        byte[]       data;
+
+        Op(byte type) {
+            this.type = type;
+        }
+    }
+}
@@ -17,20 +17,16 @@
 package com.tencent.tinker.build.builder;
 
 
+import com.tencent.tinker.build.apksigner.ApkV1Signer;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.BuildTracer;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TypedValue;
-import com.tencent.tinker.commons.util.IOHelper;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.Key;
-import java.security.KeyStore;
-import java.util.ArrayList;
+import java.security.GeneralSecurityException;
 
 /**
  * @author zhangshaowen
@@ -42,6 +38,7 @@ public class PatchBuilder {
     private       File          signedApk;
     private       File          signedWith7ZipApk;
     private       File          sevenZipOutPutDir;
+    private       ApkV1Signer   apkSigner;
 
     public PatchBuilder(Configuration config) {
         this.config = config;
@@ -49,6 +46,9 @@ public class PatchBuilder {
         this.signedApk = new File(config.mOutFolder, PATCH_NAME + "_signed.apk");
         this.signedWith7ZipApk = new File(config.mOutFolder, PATCH_NAME + "_signed_7zip.apk");
         this.sevenZipOutPutDir = new File(config.mOutFolder, TypedValue.OUT_7ZIP_FILE_PATH);
+        if (config.mUseSignAPk) {
+            this.apkSigner = new ApkV1Signer(config.mSignatureFile, config.mStorePass, config.mStoreAlias, config.mKeyPass);
+        }
     }
 
     public void buildPatch() throws Exception {
@@ -61,10 +61,25 @@ public class PatchBuilder {
         if (resultDir.listFiles().length == 0) {
             return;
         }
-        generateUnsignedApk(unSignedApk);
-        signApk(unSignedApk, signedApk);
+        BuildTracer.Span span = BuildTracer.begin("generate unsigned apk");
+        try {
+            generateUnsignedApk(unSignedApk);
+        } finally {
+            span.end();
+        }
+        span = BuildTracer.begin("sign apk");
+        try {
+            signApk(unSignedApk, signedApk);
+        } finally {
+            span.end();
+        }
 
-        use7zApk(signedApk, signedWith7ZipApk, sevenZipOutPutDir);
+        span = BuildTracer.begin("7zip apk");
+        try {
+            use7zApk(signedApk, signedWith7ZipApk, sevenZipOutPutDir);
+        } finally {
+            span.end();
+        }
 
         if (!signedApk.exists()) {
             Logger.e("Result: final unsigned patch result: %s, size=%d", unSignedApk.getAbsolutePath(), unSignedApk.length());
@@ -86,68 +101,25 @@ public class PatchBuilder {
 
     }
 
-    private String getSignatureAlgorithm() throws Exception {
-        InputStream is = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(config.mSignatureFile));
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(is, config.mStorePass.toCharArray());
-            Key key = keyStore.getKey(config.mStoreAlias, config.mKeyPass.toCharArray());
-            String keyAlgorithm = key.getAlgorithm();
-            String signatureAlgorithm;
-            if (keyAlgorithm.equalsIgnoreCase("DSA")) {
-                signatureAlgorithm = "SHA1withDSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("RSA")) {
-                signatureAlgorithm = "SHA1withRSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
-                signatureAlgorithm = "SHA1withECDSA";
-            } else {
-                throw new RuntimeException("private key is not a DSA or "
-                        + "RSA key");
-            }
-            return signatureAlgorithm;
-        } finally {
-            IOHelper.closeQuietly(is);
-        }
-    }
-
     /**
      * @param input  unsigned file input
      * @param output signed file output
      * @throws IOException
-     * @throws InterruptedException
      */
     private void signApk(File input, File output) throws Exception {
         //sign apk
         if (config.mUseSignAPk) {
             Logger.d("Signing apk: %s", output.getName());
-            String signatureAlgorithm = getSignatureAlgorithm();
-            Logger.d("Signing key algorithm is %s", signatureAlgorithm);
 
             if (output.exists()) {
                 output.delete();
             }
-            ArrayList<String> command = new ArrayList<>();
-            command.add("jarsigner");
-            // issue https://github.com/Tencent/tinker/issues/118
-            command.add("-sigalg");
-            command.add(signatureAlgorithm);
-            command.add("-digestalg");
-            command.add("SHA1");
-            command.add("-keystore");
-            command.add(config.mSignatureFile.getAbsolutePath());
-            command.add("-storepass");
-            command.add(config.mStorePass);
-            command.add("-keypass");
-            command.add(config.mKeyPass);
-            command.add("-signedjar");
-            command.add(output.getAbsolutePath());
-            command.add(input.getAbsolutePath());
-            command.add(config.mStoreAlias);
-
-            Process process = new ProcessBuilder(command).start();
-            process.waitFor();
-            process.destroy();
+            try {
+                apkSigner.sign(input, output);
+            } catch (GeneralSecurityException e) {
+                FileOperation.deleteFile(output);
+                throw new IOException("Can't Generate signed APK. Please check if your sign info is correct.", e);
+            }
             if (!output.exists()) {
                 throw new IOException("Can't Generate signed APK. Please check if your sign info is correct.");
             }
@@ -165,7 +137,8 @@ public class PatchBuilder {
             throw new IOException(String.format(
                 "Missing patch unzip files, path=%s\n", tempOutDir.getAbsolutePath()));
         }
-        FileOperation.zipInputDir(tempOutDir, output, null);
+        // collect the entry digests for signing while the entries are written
+        FileOperation.zipInputDir(tempOutDir, output, null, apkSigner);
 
         if (!output.exists()) {
             throw new IOException(String.format(
@@ -184,6 +157,11 @@ public class PatchBuilder {
                     + "you must fill the sign data in the config file path=%s", inputSignedFile.getAbsolutePath())
             );
         }
+        if (config.mCompressEffort > 0) {
+            Logger.d("Try use in-process high ratio deflater to compress the patch file: %s", out7zipFile.getName());
+            FileOperation.highRatioZipFile(inputSignedFile, out7zipFile, config.mCompressEffort);
+            return;
+        }
         Logger.d("Try use 7za to compress the patch file: %s, will cost much more time", out7zipFile.getName());
         Logger.d("Current 7za path:%s", config.mSevenZipPath);
 
@@ -18,6 +18,7 @@ package com.tencent.tinker.build.decoder;
 
 
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.BuildTracer;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
@@ -107,13 +108,33 @@ public class ApkDecoder extends BaseDecoder {
     }
 
     public boolean patch(File oldFile, File newFile) throws Exception {
-        writeToLogFile(oldFile, newFile);
+        BuildTracer.Span span = BuildTracer.begin("analyze apks");
+        try {
+            writeToLogFile(oldFile, newFile);
+        } finally {
+            span.end();
+        }
         //check manifest change first
-        manifestDecoder.patch(oldFile, newFile);
+        span = BuildTracer.begin("manifest check");
+        try {
+            manifestDecoder.patch(oldFile, newFile);
+        } finally {
+            span.end();
+        }
 
-        unzipApkFiles(oldFile, newFile);
+        span = BuildTracer.begin("unzip apks");
+        try {
+            unzipApkFiles(oldFile, newFile);
+        } finally {
+            span.end();
+        }
 
-        Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(config, mNewApkDir.toPath(), mOldApkDir.toPath(), dexPatchDecoder, soPatchDecoder, resPatchDecoder));
+        span = BuildTracer.begin("diff apk files");
+        try {
+            Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(config, mNewApkDir.toPath(), mOldApkDir.toPath(), dexPatchDecoder, soPatchDecoder, resPatchDecoder));
+        } finally {
+            span.end();
+        }
 
         // get all duplicate resource file
         for (File duplicateRes : resDuplicateFiles) {
@@ -122,10 +143,25 @@ public class ApkDecoder extends BaseDecoder {
                 + "we treat it as unchanged in the new resource_out.zip", getRelativePathStringToOldFile(duplicateRes));
         }
 
-        soPatchDecoder.onAllPatchesEnd();
-        dexPatchDecoder.onAllPatchesEnd();
+        span = BuildTracer.begin("so patch end");
+        try {
+            soPatchDecoder.onAllPatchesEnd();
+        } finally {
+            span.end();
+        }
+        span = BuildTracer.begin("dex patch end");
+        try {
+            dexPatchDecoder.onAllPatchesEnd();
+        } finally {
+            span.end();
+        }
         manifestDecoder.onAllPatchesEnd();
-        resPatchDecoder.onAllPatchesEnd();
+        span = BuildTracer.begin("res patch end");
+        try {
+            resPatchDecoder.onAllPatchesEnd();
+        } finally {
+            span.end();
+        }
         arkHotDecoder.onAllPatchesEnd();
 
         //clean resources
@@ -19,6 +19,8 @@ package com.tencent.tinker.build.decoder;
 import com.tencent.tinker.bsdiff.BSDiff;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.BuildTracer;
+import com.tencent.tinker.build.util.DiffResultCache;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
@@ -27,6 +29,7 @@ import com.tencent.tinker.build.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 
 /**
  * Created by zhangshaowen on 16/2/27.
@@ -34,9 +37,11 @@ import java.io.IOException;
 public class BsDiffDecoder extends BaseDecoder {
     private final InfoWriter logWriter;
     private final InfoWriter metaWriter;
+    private final DiffResultCache diffCache;
 
     public BsDiffDecoder(Configuration config, String metaPath, String logPath) throws IOException {
         super(config);
+        diffCache = DiffResultCache.open(config);
 
         if (metaPath != null) {
             metaWriter = new InfoWriter(config, config.mTempResultDir + File.separator + metaPath);
@@ -93,7 +98,23 @@ public class BsDiffDecoder extends BaseDecoder {
         if (!bsDiffFile.getParentFile().exists()) {
             bsDiffFile.getParentFile().mkdirs();
         }
-        BSDiff.bsdiff(oldFile, newFile, bsDiffFile);
+        String cacheKey = null;
+        if (diffCache != null) {
+            cacheKey = DiffResultCache.keyOf(DiffResultCache.ALGORITHM_BSDIFF, DiffResultCache.BSDIFF_FORMAT_VERSION, oldFile, newFile, null);
+        }
+        if (cacheKey != null && diffCache.fetch(cacheKey, bsDiffFile) != null) {
+            Logger.d("Reuse cached bsdiff result of %s", getRelativePathStringToNewFile(newFile));
+        } else {
+            BuildTracer.Span span = BuildTracer.begin("bsdiff", getRelativePathStringToNewFile(newFile));
+            try {
+                BSDiff.bsdiff(oldFile, newFile, bsDiffFile);
+            } finally {
+                span.end();
+            }
+            if (cacheKey != null) {
+                diffCache.store(cacheKey, bsDiffFile, Collections.<String, String>emptyMap());
+            }
+        }
 
         if (Utils.checkBsDiffFileSize(bsDiffFile, newFile)) {
             writeLogFiles(newFile, oldFile, bsDiffFile, newMd5);
@@ -25,18 +25,23 @@ import com.tencent.tinker.build.dexpatcher.util.ChangedClassesDexClassInfoCollec
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.BuildTracer;
+import com.tencent.tinker.build.util.DexClassHashIndex;
 import com.tencent.tinker.build.util.DexClassesComparator;
 import com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
 import com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+import com.tencent.tinker.build.util.DiffResultCache;
 import com.tencent.tinker.build.util.ExcludedClassModifiedChecker;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.build.util.FileDigests;
 import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
 import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
 import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger.IDexPatcherLogger;
+import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
 
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcodes;
@@ -65,14 +70,18 @@ import java.io.InputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
 
 /**
  * Created by zhangshaowen on 2016/3/23.
@@ -80,6 +89,11 @@ import java.util.zip.ZipEntry;
 public class DexDiffDecoder extends BaseDecoder {
     private static final String TEST_DEX_NAME = "test.dex";
     private static final String CHANGED_CLASSES_DEX_NAME_PREFIX = "changed_classes";
+    private static final String CACHE_META_PATCHED_MD5 = "patchedMd5";
+    /**
+     * Rough ratio of heap used by diffing dexes in memory to the size of the dexes.
+     */
+    private static final long DEX_DIFF_MEMORY_FACTOR = 16;
 
     private final InfoWriter logWriter;
     private final InfoWriter metaWriter;
@@ -101,6 +115,8 @@ public class DexDiffDecoder extends BaseDecoder {
 
     private final List<File> oldDexFiles;
 
+    private final DiffResultCache diffCache;
+
     public DexDiffDecoder(Configuration config, String metaPath, String logPath) throws IOException {
         super(config);
 
@@ -141,6 +157,8 @@ public class DexDiffDecoder extends BaseDecoder {
         descOfClassesInApk = new HashSet<>();
 
         oldDexFiles = new ArrayList<>();
+
+        diffCache = DiffResultCache.open(config);
     }
 
     @Override
@@ -239,7 +257,12 @@ public class DexDiffDecoder extends BaseDecoder {
         checkIfLoaderClassesReferToNonLoaderClasses();
 
         if (config.mIsProtectedApp) {
-            generateChangedClassesDexFile();
+            BuildTracer.Span span = BuildTracer.begin("generate changed classes dex");
+            try {
+                generateChangedClassesDexFile();
+            } finally {
+                span.end();
+            }
         } else {
             generatePatchInfoFile();
         }
@@ -405,10 +428,8 @@ public class DexDiffDecoder extends BaseDecoder {
 
         Set<DexClassInfo> classInfosInChangedClassesDex = collector.doCollect(oldDexGroup, newDexGroup);
 
-        Set<Dex> owners = new HashSet<>();
         Map<Dex, Set<String>> ownerToDescOfChangedClassesMap = new HashMap<>();
         for (DexClassInfo classInfo : classInfosInChangedClassesDex) {
-            owners.add(classInfo.owner);
             Set<String> descOfChangedClasses = ownerToDescOfChangedClassesMap.get(classInfo.owner);
             if (descOfChangedClasses == null) {
                 descOfChangedClasses = new HashSet<>();
@@ -417,7 +438,22 @@ public class DexDiffDecoder extends BaseDecoder {
             descOfChangedClasses.add(classInfo.classDesc);
         }
 
-        StringBuilder metaBuilder = new StringBuilder();
+        // Visit owners in the order of dexes in new and old group, so the changed classes dexes
+        // get the same names and meta lines on every run.
+        List<Dex> owners = new ArrayList<>();
+        for (Dex dex : newDexGroup.dexes) {
+            if (ownerToDescOfChangedClassesMap.containsKey(dex)) {
+                owners.add(dex);
+            }
+        }
+        for (Dex dex : oldDexGroup.dexes) {
+            if (ownerToDescOfChangedClassesMap.containsKey(dex)) {
+                owners.add(dex);
+            }
+        }
+
+        // Names are given in order first, then the dexes are rebuilt and written in parallel.
+        List<ChangedClassesDexTask> tasks = new ArrayList<>();
         int changedDexId = 1;
         for (Dex dex : owners) {
             Set<String> descOfChangedClassesInCurrDex = ownerToDescOfChangedClassesMap.get(dex);
@@ -426,80 +462,145 @@ public class DexDiffDecoder extends BaseDecoder {
             for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
                 if (descOfChangedClassesInCurrDex.contains(classDef.getType())) {
                     isCurrentDexHasChangedClass = true;
-                    break;
+                    Logger.d("Class %s will be added into changed classes dex ...", classDef.getType());
                 }
             }
             if (!isCurrentDexHasChangedClass) {
                 continue;
             }
-            DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(23));
-            for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
-                if (!descOfChangedClassesInCurrDex.contains(classDef.getType())) {
-                    continue;
-                }
+            String changedDexName = null;
+            if (changedDexId == 1) {
+                changedDexName = "classes.dex";
+            } else {
+                changedDexName = "classes" + changedDexId + ".dex";
+            }
+            final File dest = new File(config.mTempResultDir + "/" + changedDexName);
+            tasks.add(new ChangedClassesDexTask(changedDexName, dexFile, descOfChangedClassesInCurrDex, dest));
+            ++changedDexId;
+        }
 
-                Logger.d("Class %s will be added into changed classes dex ...", classDef.getType());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()))
+        );
+        List<Future<String>> md5Futures = new ArrayList<>();
+        try {
+            for (ChangedClassesDexTask task : tasks) {
+                md5Futures.add(executor.submit(task));
+            }
 
-                List<BuilderField> builderFields = new ArrayList<>();
-                for (Field field : classDef.getFields()) {
-                    final BuilderField builderField = dexBuilder.internField(
-                            field.getDefiningClass(),
-                            field.getName(),
-                            field.getType(),
-                            field.getAccessFlags(),
-                            field.getInitialValue(),
-                            field.getAnnotations()
-                    );
-                    builderFields.add(builderField);
+            // Record written dexes in meta file in the order their names were given.
+            StringBuilder metaBuilder = new StringBuilder();
+            for (int i = 0; i < tasks.size(); ++i) {
+                final String changedDexName = tasks.get(i).changedDexName;
+                final String md5;
+                try {
+                    md5 = md5Futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while writing changed classes dex " + changedDexName, e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("write changed classes dex " + changedDexName + " failed", cause);
                 }
-                List<BuilderMethod> builderMethods = new ArrayList<>();
+                appendMetaLine(metaBuilder, changedDexName, "", md5, md5, 0, 0, 0, dexMode);
+            }
 
-                for (Method method : classDef.getMethods()) {
-                    MethodImplementation methodImpl = method.getImplementation();
-                    if (methodImpl != null) {
-                        methodImpl = new BuilderMutableMethodImplementation(dexBuilder, methodImpl);
+            final String meta = metaBuilder.toString();
+            Logger.d("\nDexDecoder:write changed classes dex meta file data:\n%s", meta);
+            metaWriter.writeLineToInfoFile(meta);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rebuilds changed classes of one owner dex into a new dex with dexlib2, writes it to
+     * {@code dest} and returns md5 of the written file.
+     */
+    private static final class ChangedClassesDexTask implements Callable<String> {
+        private final String changedDexName;
+        private final DexFile dexFile;
+        private final Set<String> descOfChangedClasses;
+        private final File dest;
+
+        ChangedClassesDexTask(String changedDexName, DexFile dexFile, Set<String> descOfChangedClasses, File dest) {
+            this.changedDexName = changedDexName;
+            this.dexFile = dexFile;
+            this.descOfChangedClasses = descOfChangedClasses;
+            this.dest = dest;
+        }
+
+        @Override
+        public String call() throws Exception {
+            BuildTracer.Span span = BuildTracer.begin("changed classes dex", changedDexName);
+            try {
+                List<org.jf.dexlib2.iface.ClassDef> changedClassDefs = new ArrayList<>();
+                for (org.jf.dexlib2.iface.ClassDef classDef : dexFile.getClasses()) {
+                    if (descOfChangedClasses.contains(classDef.getType())) {
+                        changedClassDefs.add(classDef);
                     }
-                    BuilderMethod builderMethod = dexBuilder.internMethod(
-                            method.getDefiningClass(),
-                            method.getName(),
-                            method.getParameters(),
-                            method.getReturnType(),
-                            method.getAccessFlags(),
-                            method.getAnnotations(),
-                            methodImpl
-                    );
-                    builderMethods.add(builderMethod);
                 }
-                dexBuilder.internClassDef(
-                        classDef.getType(),
-                        classDef.getAccessFlags(),
-                        classDef.getSuperclass(),
-                        classDef.getInterfaces(),
-                        classDef.getSourceFile(),
-                        classDef.getAnnotations(),
-                        builderFields,
-                        builderMethods
+                writeClassesToDex(changedClassDefs, dest);
+                return MD5.getMD5(dest);
+            } finally {
+                span.end();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds {@code classDefs} into a new dex with dexlib2 and writes it to {@code dest}.
+     */
+    private static void writeClassesToDex(Collection<? extends org.jf.dexlib2.iface.ClassDef> classDefs, File dest) throws IOException {
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(23));
+        for (org.jf.dexlib2.iface.ClassDef classDef : classDefs) {
+            List<BuilderField> builderFields = new ArrayList<>();
+            for (Field field : classDef.getFields()) {
+                final BuilderField builderField = dexBuilder.internField(
+                        field.getDefiningClass(),
+                        field.getName(),
+                        field.getType(),
+                        field.getAccessFlags(),
+                        field.getInitialValue(),
+                        field.getAnnotations()
                 );
+                builderFields.add(builderField);
             }
+            List<BuilderMethod> builderMethods = new ArrayList<>();
 
-            // Write constructed changed classes dex to file and record it in meta file.
-            String changedDexName = null;
-            if (changedDexId == 1) {
-                changedDexName = "classes.dex";
-            } else {
-                changedDexName = "classes" + changedDexId + ".dex";
+            for (Method method : classDef.getMethods()) {
+                MethodImplementation methodImpl = method.getImplementation();
+                if (methodImpl != null) {
+                    methodImpl = new BuilderMutableMethodImplementation(dexBuilder, methodImpl);
+                }
+                BuilderMethod builderMethod = dexBuilder.internMethod(
+                        method.getDefiningClass(),
+                        method.getName(),
+                        method.getParameters(),
+                        method.getReturnType(),
+                        method.getAccessFlags(),
+                        method.getAnnotations(),
+                        methodImpl
+                );
+                builderMethods.add(builderMethod);
             }
-            final File dest = new File(config.mTempResultDir + "/" + changedDexName);
-            final FileDataStore fileDataStore = new FileDataStore(dest);
-            dexBuilder.writeTo(fileDataStore);
-            final String md5 = MD5.getMD5(dest);
-            appendMetaLine(metaBuilder, changedDexName, "", md5, md5, 0, 0, 0, dexMode);
-            ++changedDexId;
+            dexBuilder.internClassDef(
+                    classDef.getType(),
+                    classDef.getAccessFlags(),
+                    classDef.getSuperclass(),
+                    classDef.getInterfaces(),
+                    classDef.getSourceFile(),
+                    classDef.getAnnotations(),
+                    builderFields,
+                    builderMethods
+            );
         }
 
-        final String meta = metaBuilder.toString();
-        Logger.d("\nDexDecoder:write changed classes dex meta file data:\n%s", meta);
-        metaWriter.writeLineToInfoFile(meta);
+        final FileDataStore fileDataStore = new FileDataStore(dest);
+        dexBuilder.writeTo(fileDataStore);
     }
 
     private void appendMetaLine(StringBuilder sb, Object... vals) {
@@ -611,6 +712,168 @@ public class DexDiffDecoder extends BaseDecoder {
                 relatedInfo.newOrFullPatchedCRC = FileOperation.getFileCrc32(newFile);
             }
         }
+
+        if (config.mMoveAwareDexDiff) {
+            diffDexesWithMovedClassesKept();
+        }
+    }
+
+    /**
+     * Diff classN dexes touched by classes moved between them again, against dexes in which those
+     * classes stay where they were in old apk, and take these diffs if they are smaller in total.
+     *
+     * Since classN dexes are loaded together, only the classes of the patched dexes as a whole must
+     * be the same as the new ones. A moved class kept in its old dex then costs only its own change
+     * in the diff of that dex, instead of a full delete there and a full add in the other one.
+     */
+    private void diffDexesWithMovedClassesKept() throws IOException {
+        final File moveAwareDir = new File(config.mOutFolder + File.separator + TypedValue.DEX_MOVE_AWARE_DIR);
+
+        Map<String, File> dexNameToPlannedDexFileMap;
+        BuildTracer.Span span = BuildTracer.begin("plan moved classes");
+        try {
+            dexNameToPlannedDexFileMap = writeDexesWithMovedClassesKept(new File(moveAwareDir, "planned"));
+        } finally {
+            span.end();
+        }
+        if (dexNameToPlannedDexFileMap.isEmpty()) {
+            return;
+        }
+
+        long diffSize = 0;
+        long moveAwareDiffSize = 0;
+        Map<String, RelatedInfo> dexNameToMoveAwareInfoMap = new HashMap<>();
+        for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
+            final File oldFile = oldAndNewDexFilePair.getKey();
+            final File newFile = oldAndNewDexFilePair.getValue();
+            final String dexName = getRelativeDexName(oldFile, newFile);
+            final File plannedDexFile = dexNameToPlannedDexFileMap.get(dexName);
+            if (plannedDexFile == null) {
+                continue;
+            }
+            final RelatedInfo relatedInfo = dexNameToRelatedInfoMap.get(dexName);
+            final RelatedInfo moveAwareInfo = new RelatedInfo();
+            moveAwareInfo.oldMd5 = relatedInfo.oldMd5;
+            moveAwareInfo.newMd5 = relatedInfo.newMd5;
+            diffDexPairAndFillRelatedInfo(oldFile, plannedDexFile, new File(moveAwareDir, "diff" + File.separator + dexName),
+                    new File(moveAwareDir, "patched" + File.separator + dexName), moveAwareInfo);
+            dexNameToMoveAwareInfoMap.put(dexName, moveAwareInfo);
+
+            // A dex touched by moved classes never equals its old dex, so it has been diffed already.
+            diffSize += relatedInfo.dexDiffFile.length();
+            moveAwareDiffSize += moveAwareInfo.dexDiffFile.length();
+        }
+
+        if (moveAwareDiffSize >= diffSize) {
+            Logger.d("\nMove aware diff of %s takes %d bytes, no less than %d bytes of plain diff, keep the plain one.",
+                    dexNameToMoveAwareInfoMap.keySet(), moveAwareDiffSize, diffSize);
+            return;
+        }
+        Logger.d("\nMove aware diff of %s takes %d bytes instead of %d bytes, use it.",
+                dexNameToMoveAwareInfoMap.keySet(), moveAwareDiffSize, diffSize);
+
+        // The diffs must be taken all together, or moved classes may be lost or duplicated.
+        for (Map.Entry<String, RelatedInfo> entry : dexNameToMoveAwareInfoMap.entrySet()) {
+            final RelatedInfo relatedInfo = dexNameToRelatedInfoMap.get(entry.getKey());
+            final RelatedInfo moveAwareInfo = entry.getValue();
+            FileOperation.copyFileUsingStream(moveAwareInfo.dexDiffFile, relatedInfo.dexDiffFile);
+            FileOperation.copyFileUsingStream(moveAwareInfo.newOrFullPatchedFile, relatedInfo.newOrFullPatchedFile);
+            relatedInfo.dexDiffMd5 = moveAwareInfo.dexDiffMd5;
+            relatedInfo.newOrFullPatchedMd5 = moveAwareInfo.newOrFullPatchedMd5;
+            relatedInfo.newOrFullPatchedCRC = moveAwareInfo.newOrFullPatchedCRC;
+        }
+    }
+
+    /**
+     * Places every class of new classN dexes into the classN dex it was in in old apk, or into its
+     * new dex if it is newly added or a loader class. Writes the dexes whose classes differ from
+     * the new ones by this placement to {@code plannedDexDir} and returns them by dex name.
+     *
+     * Returns an empty map if no class was moved or a planned dex can not be written, e.g. it
+     * runs out of the 64K limit of method or field ids.
+     */
+    private Map<String, File> writeDexesWithMovedClassesKept(File plannedDexDir) throws IOException {
+        Map<String, File> dexNameToOldDexFileMap = new HashMap<>();
+        Map<String, File> dexNameToNewDexFileMap = new HashMap<>();
+        for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
+            final File oldFile = oldAndNewDexFilePair.getKey();
+            final File newFile = oldAndNewDexFilePair.getValue();
+            if (oldFile == null || newFile == null) {
+                continue;
+            }
+            final String dexName = getRelativeDexName(oldFile, newFile);
+            if (isDexNameMatchesClassNPattern(dexName)) {
+                dexNameToOldDexFileMap.put(dexName, oldFile);
+                dexNameToNewDexFileMap.put(dexName, newFile);
+            }
+        }
+
+        Map<String, String> oldClassDescToDexNameMap = new HashMap<>();
+        for (Map.Entry<String, File> entry : dexNameToOldDexFileMap.entrySet()) {
+            Dex oldDex = new Dex(entry.getValue());
+            for (ClassDef oldClassDef : oldDex.classDefs()) {
+                oldClassDescToDexNameMap.put(oldDex.typeNames().get(oldClassDef.typeIndex), entry.getKey());
+            }
+        }
+
+        Map<String, DexFile> dexNameToNewDexMap = new HashMap<>();
+        Map<String, String> movedClassDescToOldDexNameMap = new HashMap<>();
+        Set<String> touchedDexNames = new HashSet<>();
+        for (Map.Entry<String, File> entry : dexNameToNewDexFileMap.entrySet()) {
+            final String dexName = entry.getKey();
+            final DexFile newDex = DexFileFactory.loadDexFile(entry.getValue(), Opcodes.forApi(29));
+            dexNameToNewDexMap.put(dexName, newDex);
+            for (org.jf.dexlib2.iface.ClassDef classDef : newDex.getClasses()) {
+                final String classDesc = classDef.getType();
+                final String oldDexName = oldClassDescToDexNameMap.get(classDesc);
+                if (oldDexName == null || oldDexName.equals(dexName)) {
+                    continue;
+                }
+                if (Utils.isStringMatchesPatterns(classDesc, loaderClassPatterns)) {
+                    continue;
+                }
+                movedClassDescToOldDexNameMap.put(classDesc, oldDexName);
+                touchedDexNames.add(oldDexName);
+                touchedDexNames.add(dexName);
+            }
+        }
+        if (movedClassDescToOldDexNameMap.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, List<org.jf.dexlib2.iface.ClassDef>> dexNameToPlannedClassDefsMap = new HashMap<>();
+        for (String dexName : touchedDexNames) {
+            dexNameToPlannedClassDefsMap.put(dexName, new ArrayList<org.jf.dexlib2.iface.ClassDef>());
+        }
+        for (Map.Entry<String, DexFile> entry : dexNameToNewDexMap.entrySet()) {
+            for (org.jf.dexlib2.iface.ClassDef classDef : entry.getValue().getClasses()) {
+                String plannedDexName = movedClassDescToOldDexNameMap.get(classDef.getType());
+                if (plannedDexName == null) {
+                    plannedDexName = entry.getKey();
+                }
+                final List<org.jf.dexlib2.iface.ClassDef> plannedClassDefs = dexNameToPlannedClassDefsMap.get(plannedDexName);
+                if (plannedClassDefs != null) {
+                    plannedClassDefs.add(classDef);
+                }
+            }
+        }
+
+        Map<String, File> dexNameToPlannedDexFileMap = new HashMap<>();
+        for (Map.Entry<String, List<org.jf.dexlib2.iface.ClassDef>> entry : dexNameToPlannedClassDefsMap.entrySet()) {
+            final String dexName = entry.getKey();
+            final File plannedDexFile = new File(plannedDexDir, dexName);
+            ensureDirectoryExist(plannedDexFile.getParentFile());
+            try {
+                writeClassesToDex(entry.getValue(), plannedDexFile);
+            } catch (RuntimeException e) {
+                Logger.e("Warning: can not keep moved classes in %s, use plain dex diff, reason: %s", dexName, e.getMessage());
+                return Collections.emptyMap();
+            }
+            dexNameToPlannedDexFileMap.put(dexName, plannedDexFile);
+        }
+        Logger.d("\nKeep %d moved classes in their old dexes, planned dexes: %s",
+                movedClassDescToOldDexNameMap.size(), dexNameToPlannedDexFileMap.keySet());
+        return dexNameToPlannedDexFileMap;
     }
 
     private void diffDexPairAndFillRelatedInfo(File oldDexFile, File newDexFile, RelatedInfo relatedInfo) {
@@ -618,11 +881,44 @@ public class DexDiffDecoder extends BaseDecoder {
         final String dexName = getRelativeDexName(oldDexFile, newDexFile);
 
         File dexDiffOut = getOutputPath(newDexFile).toFile();
+        File tempFullPatchedDexFile = new File(tempFullPatchDexPath, dexName);
+        diffDexPairAndFillRelatedInfo(oldDexFile, newDexFile, dexDiffOut, tempFullPatchedDexFile, relatedInfo);
+    }
+
+    /**
+     * Diff old dex against {@code newDexFile}, which is either the new dex of the pair or the
+     * dex planned for it by the move aware diff.
+     */
+    private void diffDexPairAndFillRelatedInfo(File oldDexFile, File newDexFile, File dexDiffOut,
+                                               File tempFullPatchedDexFile, RelatedInfo relatedInfo) {
+        final String dexName = getRelativeDexName(oldDexFile, newDexFile);
+
         ensureDirectoryExist(dexDiffOut.getParentFile());
+        if (!tempFullPatchedDexFile.exists()) {
+            ensureDirectoryExist(tempFullPatchedDexFile.getParentFile());
+        }
+
+        String cacheKey = null;
+        if (diffCache != null) {
+            try {
+                cacheKey = DiffResultCache.keyOf(DiffResultCache.ALGORITHM_DEXDIFF, DexPatchFile.CURRENT_VERSION,
+                        oldDexFile, newDexFile, getDexDiffCacheOptions());
+            } catch (IOException e) {
+                throw new TinkerPatchException(e);
+            }
+            if (reuseCachedDexDiff(cacheKey, oldDexFile, newDexFile, dexDiffOut, tempFullPatchedDexFile, relatedInfo)) {
+                return;
+            }
+        }
 
         try {
             DexPatchGenerator dexPatchGen = new DexPatchGenerator(oldDexFile, newDexFile);
             dexPatchGen.setAdditionalRemovingClassPatterns(config.mDexLoaderPattern);
+            if (isDexDiffTooLargeForHeap(oldDexFile, newDexFile)) {
+                File spillDir = new File(config.mOutFolder + File.separator + TypedValue.DEX_DIFF_SPILL_DIR);
+                Logger.d("Diff %s with items spilled to %s since it may not fit in heap.", dexName, spillDir.getAbsolutePath());
+                dexPatchGen.setSpillDirectory(spillDir);
+            }
 
             logWriter.writeLineToInfoFile(
                     String.format(
@@ -632,7 +928,12 @@ public class DexDiffDecoder extends BaseDecoder {
                     )
             );
 
-            dexPatchGen.executeAndSaveTo(dexDiffOut);
+            BuildTracer.Span span = BuildTracer.begin("dex diff", dexName);
+            try {
+                dexPatchGen.executeAndSaveTo(dexDiffOut);
+            } finally {
+                span.end();
+            }
         } catch (Exception e) {
             throw new TinkerPatchException(e);
         }
@@ -645,11 +946,7 @@ public class DexDiffDecoder extends BaseDecoder {
         relatedInfo.dexDiffMd5 = MD5.getMD5(dexDiffOut);
         Logger.d("\nGen %s patch file:%s, size:%d, md5:%s", dexName, relatedInfo.dexDiffFile.getAbsolutePath(), relatedInfo.dexDiffFile.length(), relatedInfo.dexDiffMd5);
 
-        File tempFullPatchedDexFile = new File(tempFullPatchDexPath, dexName);
-        if (!tempFullPatchedDexFile.exists()) {
-            ensureDirectoryExist(tempFullPatchedDexFile.getParentFile());
-        }
-
+        BuildTracer.Span span = BuildTracer.begin("dex verify", dexName);
         try {
             new DexPatchApplier(oldDexFile, dexDiffOut).executeAndSaveTo(tempFullPatchedDexFile);
 
@@ -669,12 +966,87 @@ public class DexDiffDecoder extends BaseDecoder {
             throw new TinkerPatchException(
                     "Failed to generate temporary patched dex, which makes MD5 generating procedure of new dex failed, either.", e
             );
+        } finally {
+            span.end();
         }
 
         if (!tempFullPatchedDexFile.exists()) {
             throw new TinkerPatchException("can not find the temporary full patched dex file:" + tempFullPatchedDexFile.getAbsolutePath());
         }
         Logger.d("\nGen %s for dalvik full dex file:%s, size:%d, md5:%s", dexName, tempFullPatchedDexFile.getAbsolutePath(), tempFullPatchedDexFile.length(), relatedInfo.newOrFullPatchedMd5);
+
+        if (cacheKey != null) {
+            // only a diff passed checkDexChange gets here, the md5 lets a hit skip that check.
+            Map<String, String> cacheMeta = new HashMap<>();
+            cacheMeta.put(CACHE_META_PATCHED_MD5, relatedInfo.newOrFullPatchedMd5);
+            diffCache.store(cacheKey, dexDiffOut, cacheMeta);
+        }
+    }
+
+    /**
+     * Diffing in memory holds every item of both dexes plus the index maps, roughly
+     * {@link #DEX_DIFF_MEMORY_FACTOR} times their size. Spill when that is more than half of
+     * the heap still free, the other half is left to the rest of the build running meanwhile.
+     */
+    private static boolean isDexDiffTooLargeForHeap(File oldDexFile, File newDexFile) {
+        Runtime runtime = Runtime.getRuntime();
+        long availableHeapSize = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long estimatedDiffHeapSize = (oldDexFile.length() + newDexFile.length()) * DEX_DIFF_MEMORY_FACTOR;
+        return estimatedDiffHeapSize > availableHeapSize / 2;
+    }
+
+    /**
+     * loader classes are removed from the diff, so their patterns are part of the cache key.
+     */
+    private String getDexDiffCacheOptions() {
+        List<String> loaderPatterns = new ArrayList<>(config.mDexLoaderPattern);
+        Collections.sort(loaderPatterns);
+        StringBuilder sb = new StringBuilder();
+        for (String pattern : loaderPatterns) {
+            sb.append(pattern).append(',');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fill relatedInfo with the cached diff of the dex pair if it still patches old dex into
+     * the same full patched dex verified when the diff was stored.
+     */
+    private boolean reuseCachedDexDiff(String cacheKey, File oldDexFile, File newDexFile, File dexDiffOut,
+                                       File tempFullPatchedDexFile, RelatedInfo relatedInfo) {
+        final String dexName = getRelativeDexName(oldDexFile, newDexFile);
+        try {
+            Map<String, String> cacheMeta = diffCache.fetch(cacheKey, dexDiffOut);
+            if (cacheMeta == null) {
+                return false;
+            }
+            new DexPatchApplier(oldDexFile, dexDiffOut).executeAndSaveTo(tempFullPatchedDexFile);
+            String patchedMd5 = MD5.getMD5(tempFullPatchedDexFile);
+            if (patchedMd5 == null || !patchedMd5.equals(cacheMeta.get(CACHE_META_PATCHED_MD5))) {
+                Logger.e("Warning: cached diff of %s does not give the verified patched dex, generate it again.", dexName);
+                return false;
+            }
+
+            logWriter.writeLineToInfoFile(
+                    String.format(
+                            "Reuse cached diff between [%s] as old and [%s] as new.",
+                            getRelativeStringBy(oldDexFile, config.mTempUnzipOldDir),
+                            getRelativeStringBy(newDexFile, config.mTempUnzipNewDir)
+                    )
+            );
+
+            relatedInfo.dexDiffFile = dexDiffOut;
+            relatedInfo.dexDiffMd5 = MD5.getMD5(dexDiffOut);
+            relatedInfo.newOrFullPatchedFile = tempFullPatchedDexFile;
+            relatedInfo.newOrFullPatchedMd5 = patchedMd5;
+            relatedInfo.newOrFullPatchedCRC = FileOperation.getFileCrc32(tempFullPatchedDexFile);
+            Logger.d("\nReuse cached %s patch file:%s, size:%d, md5:%s", dexName, relatedInfo.dexDiffFile.getAbsolutePath(), relatedInfo.dexDiffFile.length(), relatedInfo.dexDiffMd5);
+            Logger.d("\nGen %s for dalvik full dex file:%s, size:%d, md5:%s", dexName, tempFullPatchedDexFile.getAbsolutePath(), tempFullPatchedDexFile.length(), relatedInfo.newOrFullPatchedMd5);
+            return true;
+        } catch (Exception e) {
+            Logger.e("Warning: reuse cached diff of %s failed, generate it again, reason: %s", dexName, e.getMessage());
+            return false;
+        }
     }
 
     private void addTestDex() throws IOException {
@@ -698,7 +1070,7 @@ public class DexDiffDecoder extends BaseDecoder {
         metaWriter.writeLineToInfoFile(meta);
     }
 
-    private void checkCrossDexMovingClasses() {
+    private void checkCrossDexMovingClasses() throws IOException {
         // Here we will check if any classes that were deleted in one dex
         // would be added to another dex. e.g. classA is deleted in dex0 and
         // added in dex1.
@@ -714,14 +1086,30 @@ public class DexDiffDecoder extends BaseDecoder {
         Set<String> movedCrossFilesClassDescs = deletedClassDescs;
         if (!movedCrossFilesClassDescs.isEmpty()) {
             Logger.e("Warning:Class Moved. Some classes are just moved from one dex to another. "
-                    + "This behavior may leads to unnecessary enlargement of patch file. you should try to check them:");
+                    + "This behavior may leads to unnecessary enlargement of patch file. you should try to check them"
+                    + (config.mMoveAwareDexDiff ? ":" : ", or turn on moveAwareDexDiff:"));
+
+            // Tell classes moved as they were from those also modified, by their content hashes.
+            List<File> oldDexList = new ArrayList<>();
+            List<File> newDexList = new ArrayList<>();
+            for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
+                if (oldAndNewDexFilePair.getKey() != null) {
+                    oldDexList.add(oldAndNewDexFilePair.getKey());
+                }
+                if (oldAndNewDexFilePair.getValue() != null) {
+                    newDexList.add(oldAndNewDexFilePair.getValue());
+                }
+            }
+            DexClassHashIndex oldClassHashIndex = DexClassHashIndex.build(DexGroup.wrap(oldDexList), movedCrossFilesClassDescs);
+            DexClassHashIndex newClassHashIndex = DexClassHashIndex.build(DexGroup.wrap(newDexList), movedCrossFilesClassDescs);
 
             for (String classDesc : movedCrossFilesClassDescs) {
                 StringBuilder sb = new StringBuilder();
                 sb.append('{');
                 sb.append("classDesc:").append(classDesc).append(',');
                 sb.append("from:").append(deletedClassDescToDexNameMap.get(classDesc)).append(',');
-                sb.append("to:").append(addedClassDescToDexNameMap.get(classDesc));
+                sb.append("to:").append(addedClassDescToDexNameMap.get(classDesc)).append(',');
+                sb.append("sameContent:").append(oldClassHashIndex.isSameClass(classDesc, newClassHashIndex));
                 sb.append('}');
                 Logger.e(sb.toString());
             }
@@ -907,29 +1295,19 @@ public class DexDiffDecoder extends BaseDecoder {
         if (name.endsWith(".dex")) {
             return MD5.getMD5(dexOrJarFile);
         } else {
-            JarFile dexJar = null;
             try {
-                dexJar = new JarFile(dexOrJarFile);
-                ZipEntry classesDex = dexJar.getEntry(DexFormat.DEX_IN_JAR_NAME);
+                FileDigests.Digests classesDex = FileDigests.getZipEntry(dexOrJarFile, DexFormat.DEX_IN_JAR_NAME);
                 // no code
                 if (classesDex == null) {
                     throw new TinkerPatchException(
                             String.format("Jar file %s do not contain 'classes.dex', it is not a correct dex jar file!", dexOrJarFile.getAbsolutePath())
                     );
                 }
-                return MD5.getMD5(dexJar.getInputStream(classesDex), 1024 * 100);
+                return classesDex.md5;
             } catch (IOException e) {
                 throw new TinkerPatchException(
                         String.format("File %s is not end with '.dex', but it is not a correct dex jar file !", dexOrJarFile.getAbsolutePath()), e
                 );
-            } finally {
-                if (dexJar != null) {
-                    try {
-                        dexJar.close();
-                    } catch (Exception e) {
-                        // Ignored.
-                    }
-                }
             }
         }
     }
@@ -79,7 +79,7 @@ public class ManifestDecoder extends BaseDecoder {
             AndroidParser newAndroidManifest = AndroidParser.getAndroidManifest(newFile);
 
             //check minSdkVersion
-            int minSdkVersion = Integer.parseInt(oldAndroidManifest.apkMeta.getMinSdkVersion());
+            int minSdkVersion = Integer.parseInt(oldAndroidManifest.getMinSdkVersion());
 
             if (minSdkVersion < TypedValue.ANDROID_40_API_LEVEL) {
                 if (config.mDexRaw) {
@@ -92,16 +92,17 @@ public class ManifestDecoder extends BaseDecoder {
                 }
             }
 
-            final String oldXml = oldAndroidManifest.xml.trim();
-            final String newXml = newAndroidManifest.xml.trim();
-            final boolean isManifestChanged = !oldXml.equals(newXml);
+            // Identical binary manifests always translate to identical xml, only compare the xml,
+            // which needs both resources.arsc to be parsed, when the entries differ.
+            final boolean isManifestChanged = !oldAndroidManifest.hasSameBinaryManifest(newAndroidManifest)
+                    && !oldAndroidManifest.getXml().trim().equals(newAndroidManifest.getXml().trim());
 
             if (!isManifestChanged) {
                 Logger.d("\nManifest has no changes, skip rest decode works.");
                 return false;
             }
 
-            ensureApkMetaUnchanged(oldAndroidManifest.apkMeta, newAndroidManifest.apkMeta);
+            ensureApkMetaUnchanged(oldAndroidManifest.getApkMeta(), newAndroidManifest.getApkMeta());
 
             // check whether there is any new Android Component and get their names.
             // so far only Activity increment can pass checking.
@@ -125,7 +126,7 @@ public class ManifestDecoder extends BaseDecoder {
 
             // generate increment manifest.
             if (hasIncComponent) {
-                final Document newXmlDoc = DocumentHelper.parseText(newAndroidManifest.xml);
+                final Document newXmlDoc = DocumentHelper.parseText(newAndroidManifest.getXml());
                 final Document incXmlDoc = DocumentHelper.createDocument();
 
                 final Element newRootNode = newXmlDoc.getRootElement();
@@ -18,29 +18,45 @@ package com.tencent.tinker.build.decoder;
 
 import com.tencent.tinker.bsdiff.BSDiff;
 import com.tencent.tinker.build.apkparser.AndroidParser;
+import com.tencent.tinker.build.arscpatcher.ArscPatchGenerator;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.BuildTracer;
+import com.tencent.tinker.build.util.DiffResultCache;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
+import com.tencent.tinker.commons.arscpatcher.ArscPatchFile;
+import com.tencent.tinker.commons.arscpatcher.ArscPatcher;
+import com.tencent.tinker.commons.util.IOHelper;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -58,6 +74,13 @@ public class ResDiffDecoder extends BaseDecoder {
     private static final String TEST_RESOURCE_ASSETS_PATH = "assets/" + TEST_RESOURCE_NAME;
 
     private static final String TEMP_RES_ZIP = "temp_res.zip";
+
+    /**
+     * bsdiff keeps the old file, two int suffix arrays of the old file size and
+     * three buffers of the new file size in memory, budget in KB.
+     */
+    private static final int OLD_FILE_MEMORY_FACTOR = 9;
+    private static final int NEW_FILE_MEMORY_FACTOR = 4;
     private final InfoWriter        logWriter;
     private final InfoWriter        metaWriter;
     private       ArrayList<String> addedSet;
@@ -71,6 +94,12 @@ public class ResDiffDecoder extends BaseDecoder {
     private ApkParser                      newApkParser;
     private Set<String>                    newApkAnimResNames;
 
+    private ExecutorService                largeModDiffExecutor;
+    private Semaphore                      largeModDiffMemoryBudget;
+    private int                            largeModDiffMemoryBudgetKb;
+    private ArrayList<LargeModDiffTask>    pendingLargeModDiffs;
+    private final DiffResultCache          diffCache;
+
     public ResDiffDecoder(Configuration config, String metaPath, String logPath) throws IOException {
         super(config);
 
@@ -94,10 +123,16 @@ public class ResDiffDecoder extends BaseDecoder {
 
         newApkParser = new ApkParser(config.mNewApkFile);
         newApkAnimResNames = new HashSet<>();
+        pendingLargeModDiffs = new ArrayList<>();
+        diffCache = DiffResultCache.open(config);
     }
 
     @Override
     public void clean() {
+        if (largeModDiffExecutor != null) {
+            largeModDiffExecutor.shutdownNow();
+            largeModDiffExecutor = null;
+        }
         metaWriter.close();
         logWriter.close();
         try {
@@ -218,28 +253,174 @@ public class ResDiffDecoder extends BaseDecoder {
         return true;
     }
 
-    private boolean dealWithModifyFile(String name, String newMd5, File oldFile, File newFile, File outputFile) throws IOException {
+    private void dealWithModifyFile(String name, String newMd5, File oldFile, File newFile, File outputFile) throws IOException {
         if (checkLargeModFile(newFile)) {
             if (!outputFile.getParentFile().exists()) {
                 outputFile.getParentFile().mkdirs();
             }
-            BSDiff.bsdiff(oldFile, newFile, outputFile);
-            //treat it as normal modify
-            if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
-                LargeModeInfo largeModeInfo = new LargeModeInfo();
-                largeModeInfo.path = newFile;
-                largeModeInfo.crc = FileOperation.getFileCrc32(newFile);
-                largeModeInfo.md5 = newMd5;
-                largeModifiedSet.add(name);
-                largeModifiedMap.put(name, largeModeInfo);
-                writeResLog(newFile, oldFile, TypedValue.LARGE_MOD);
-                return true;
-            }
+            // the diff runs in background, the result is collected in submit order by waitForLargeModDiffs.
+            // keep the slot in modifiedSet so the order of the meta file is the same as a serial diff.
+            LargeModDiffTask task = new LargeModDiffTask(name, newMd5, oldFile, newFile, outputFile, modifiedSet.size());
+            submitLargeModDiff(task);
+            return;
         }
         modifiedSet.add(name);
         FileOperation.copyFileUsingStream(newFile, outputFile);
         writeResLog(newFile, oldFile, TypedValue.MOD);
-        return false;
+    }
+
+    private void submitLargeModDiff(final LargeModDiffTask task) throws IOException {
+        final String cacheKey = getLargeModDiffCacheKey(task);
+        if (cacheKey != null && diffCache.fetch(cacheKey, task.outputFile) != null) {
+            Logger.d("Reuse cached diff result of resource: %s", task.name);
+            // no future, the output is already there when waitForLargeModDiffs collects it
+            pendingLargeModDiffs.add(task);
+            return;
+        }
+        if (largeModDiffExecutor == null) {
+            largeModDiffExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+            // leave half of the heap to the decoders still running
+            largeModDiffMemoryBudgetKb = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / TypedValue.K_BYTES);
+            largeModDiffMemoryBudget = new Semaphore(largeModDiffMemoryBudgetKb);
+        }
+        // a file larger than the whole budget still gets diffed, it just runs alone
+        final int costKb = (int) Math.min(largeModDiffMemoryBudgetKb,
+            (task.oldFile.length() * OLD_FILE_MEMORY_FACTOR + task.newFile.length() * NEW_FILE_MEMORY_FACTOR) / TypedValue.K_BYTES + 1);
+        try {
+            largeModDiffMemoryBudget.acquire(costKb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for diff memory budget", e);
+        }
+        try {
+            task.future = largeModDiffExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    BuildTracer.Span span = BuildTracer.begin("res bsdiff", task.name);
+                    try {
+                        if (task.name.equals(TypedValue.RES_ARSC)) {
+                            generateArscPatch(task.oldFile, task.newFile, task.outputFile);
+                        } else {
+                            BSDiff.bsdiff(task.oldFile, task.newFile, task.outputFile);
+                        }
+                        if (cacheKey != null) {
+                            diffCache.store(cacheKey, task.outputFile, Collections.<String, String>emptyMap());
+                        }
+                    } finally {
+                        span.end();
+                        largeModDiffMemoryBudget.release(costKb);
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            largeModDiffMemoryBudget.release(costKb);
+            throw e;
+        }
+        pendingLargeModDiffs.add(task);
+    }
+
+    /**
+     * wait for all large modify diffs, then put them to largeModifiedSet or back to modifiedSet
+     * in the order they were found.
+     */
+    private void waitForLargeModDiffs() throws IOException {
+        if (pendingLargeModDiffs.isEmpty()) {
+            return;
+        }
+        ArrayList<String> largeModFallbacks = new ArrayList<>();
+        ArrayList<Integer> largeModFallbackSlots = new ArrayList<>();
+        try {
+            for (LargeModDiffTask task : pendingLargeModDiffs) {
+                if (task.future != null) {
+                    try {
+                        task.future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while waiting for diff of " + task.name, e);
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        }
+                        throw new IOException("diff " + task.name + " failed", cause);
+                    }
+                }
+                //treat it as normal modify
+                if (Utils.checkBsDiffFileSize(task.outputFile, task.newFile)) {
+                    LargeModeInfo largeModeInfo = new LargeModeInfo();
+                    largeModeInfo.path = task.newFile;
+                    largeModeInfo.crc = FileOperation.getFileCrc32(task.newFile);
+                    largeModeInfo.md5 = task.newMd5;
+                    largeModifiedSet.add(task.name);
+                    largeModifiedMap.put(task.name, largeModeInfo);
+                    writeResLog(task.newFile, task.oldFile, TypedValue.LARGE_MOD);
+                } else {
+                    largeModFallbacks.add(task.name);
+                    largeModFallbackSlots.add(task.modifiedSetSlot);
+                    FileOperation.copyFileUsingStream(task.newFile, task.outputFile);
+                    writeResLog(task.newFile, task.oldFile, TypedValue.MOD);
+                }
+            }
+        } finally {
+            pendingLargeModDiffs.clear();
+            if (largeModDiffExecutor != null) {
+                largeModDiffExecutor.shutdownNow();
+                largeModDiffExecutor = null;
+            }
+        }
+        // slots are ascending, each insert shifts the following ones by one
+        for (int i = 0; i < largeModFallbacks.size(); i++) {
+            modifiedSet.add(largeModFallbackSlots.get(i) + i, largeModFallbacks.get(i));
+        }
+    }
+
+    /**
+     * resources.arsc falls back to bsdiff when it can not be parsed, so its key covers both formats.
+     */
+    private String getLargeModDiffCacheKey(LargeModDiffTask task) throws IOException {
+        if (diffCache == null) {
+            return null;
+        }
+        if (task.name.equals(TypedValue.RES_ARSC)) {
+            return DiffResultCache.keyOf(DiffResultCache.ALGORITHM_ARSC, ArscPatchFile.CURRENT_VERSION, task.oldFile, task.newFile,
+                DiffResultCache.ALGORITHM_BSDIFF + DiffResultCache.BSDIFF_FORMAT_VERSION);
+        }
+        return DiffResultCache.keyOf(DiffResultCache.ALGORITHM_BSDIFF, DiffResultCache.BSDIFF_FORMAT_VERSION, task.oldFile, task.newFile, null);
+    }
+
+    /**
+     * diff resources.arsc chunk by chunk, so the device only rebuilds the changed chunks.
+     * the chunk patch is applied back to the old table before it is trusted, like the dex diff,
+     * fallback to a whole file bsdiff if the table can not be parsed or the patched md5 differs.
+     */
+    private void generateArscPatch(File oldFile, File newFile, File outputFile) throws IOException {
+        try {
+            new ArscPatchGenerator(oldFile, newFile).executeAndSaveTo(outputFile);
+            checkArscPatch(oldFile, newFile, outputFile);
+        } catch (IOException e) {
+            Logger.e("generate chunk patch for %s failed, fallback to bsdiff, reason: %s", TypedValue.RES_ARSC, e.getMessage());
+            BSDiff.bsdiff(oldFile, newFile, outputFile);
+        }
+    }
+
+    private static void checkArscPatch(File oldFile, File newFile, File patchFile) throws IOException {
+        final File patchedFile = new File(patchFile.getParentFile(), patchFile.getName() + ".verify");
+        InputStream patchIn = null;
+        try {
+            patchIn = new BufferedInputStream(new FileInputStream(patchFile));
+            ArscPatcher.patch(oldFile, patchIn, patchedFile);
+            final String patchedMd5 = MD5.getMD5(patchedFile);
+            final String newMd5 = MD5.getMD5(newFile);
+            if (patchedMd5 == null || !patchedMd5.equals(newMd5)) {
+                throw new IOException(String.format("verify chunk patch failed, patched md5: %s, new md5: %s", patchedMd5, newMd5));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("verify chunk patch failed", e);
+        } finally {
+            IOHelper.closeQuietly(patchIn);
+            FileOperation.deleteFile(patchedFile);
+        }
     }
 
     private void writeResLog(File newFile, File oldFile, int mode) throws IOException {
@@ -290,6 +471,7 @@ public class ResDiffDecoder extends BaseDecoder {
 
     @Override
     public void onAllPatchesEnd() throws IOException, TinkerPatchException {
+        waitForLargeModDiffs();
         //only there is only deleted set, we just ignore
         if (addedSet.isEmpty() && modifiedSet.isEmpty() && largeModifiedSet.isEmpty()) {
             return;
@@ -352,11 +534,16 @@ public class ResDiffDecoder extends BaseDecoder {
         final File tempResFiles = config.mTempResultDir;
 
         //gen zip resources_out.zip
-        FileOperation.zipInputDir(tempResFiles, tempResZip, null);
         File extractToZip = new File(config.mOutFolder + File.separator + TypedValue.RES_OUT);
-
-        String resZipMd5 = Utils.genResOutputFile(extractToZip, tempResZip, config,
-            addedSet, modifiedSet, deletedSet, largeModifiedSet, largeModifiedMap);
+        String resZipMd5;
+        BuildTracer.Span span = BuildTracer.begin("res merge");
+        try {
+            FileOperation.zipInputDir(tempResFiles, tempResZip, null);
+            resZipMd5 = Utils.genResOutputFile(extractToZip, tempResZip, config,
+                addedSet, modifiedSet, deletedSet, largeModifiedSet, largeModifiedMap);
+        } finally {
+            span.end();
+        }
 
         Logger.e("Final normal zip resource: %s, size=%d, md5=%s", extractToZip.getName(), extractToZip.length(), resZipMd5);
         logWriter.writeLineToInfoFile(
@@ -530,6 +717,25 @@ public class ResDiffDecoder extends BaseDecoder {
         return deletedResVisitor.deletedFiles;
     }
 
+    private static final class LargeModDiffTask {
+        final String name;
+        final String newMd5;
+        final File   oldFile;
+        final File   newFile;
+        final File   outputFile;
+        final int    modifiedSetSlot;
+        Future<Void> future;
+
+        LargeModDiffTask(String name, String newMd5, File oldFile, File newFile, File outputFile, int modifiedSetSlot) {
+            this.name = name;
+            this.newMd5 = newMd5;
+            this.oldFile = oldFile;
+            this.newFile = newFile;
+            this.outputFile = outputFile;
+            this.modifiedSetSlot = modifiedSetSlot;
+        }
+    }
+
     public class LargeModeInfo {
         public File path = null;
         public long crc;
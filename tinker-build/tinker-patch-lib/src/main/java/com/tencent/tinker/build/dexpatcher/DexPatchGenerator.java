@@ -50,6 +50,7 @@ import com.tencent.tinker.build.dexpatcher.algorithms.diff.StringDataSectionDiff
 import com.tencent.tinker.build.dexpatcher.algorithms.diff.TypeIdSectionDiffAlgorithm;
 import com.tencent.tinker.build.dexpatcher.algorithms.diff.TypeListSectionDiffAlgorithm;
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
+import com.tencent.tinker.build.util.BuildTracer;
 import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
 import com.tencent.tinker.commons.dexpatcher.struct.PatchOperation;
@@ -273,6 +274,42 @@ public class DexPatchGenerator {
         this.logger.setLoggerImpl(logger);
     }
 
+    /**
+     * Diff sections with items spilled to {@code spillDir} instead of keeping them on heap,
+     * for dexes too large to diff in memory. The patch generated is the same either way.
+     *
+     * @param spillDir directory of the spill files, null to diff in memory.
+     */
+    public void setSpillDirectory(File spillDir) {
+        setSpillDirectory(spillDir, DexSectionDiffAlgorithm.DEFAULT_SPILL_RUN_ITEM_COUNT);
+    }
+
+    public void setSpillDirectory(File spillDir, int spillRunItemCount) {
+        for (DexSectionDiffAlgorithm<?> sectionDiffAlg : getSectionDiffAlgorithmsInPatchOrder()) {
+            sectionDiffAlg.setSpillDirectory(spillDir, spillRunItemCount);
+        }
+    }
+
+    private DexSectionDiffAlgorithm<?>[] getSectionDiffAlgorithmsInPatchOrder() {
+        return new DexSectionDiffAlgorithm<?>[] {
+                this.stringDataSectionDiffAlg,
+                this.typeIdSectionDiffAlg,
+                this.typeListSectionDiffAlg,
+                this.protoIdSectionDiffAlg,
+                this.fieldIdSectionDiffAlg,
+                this.methodIdSectionDiffAlg,
+                this.annotationSectionDiffAlg,
+                this.annotationSetSectionDiffAlg,
+                this.annotationSetRefListSectionDiffAlg,
+                this.annotationsDirectorySectionDiffAlg,
+                this.debugInfoSectionDiffAlg,
+                this.codeSectionDiffAlg,
+                this.classDataSectionDiffAlg,
+                this.encodedArraySectionDiffAlg,
+                this.classDefSectionDiffAlg
+        };
+    }
+
     public void executeAndSaveTo(File file) throws IOException {
         OutputStream os = null;
         try {
@@ -284,6 +321,29 @@ public class DexPatchGenerator {
     }
 
     public void executeAndSaveTo(OutputStream out) throws IOException {
+        try {
+            BuildTracer.Span span = BuildTracer.begin("diff dex sections");
+            try {
+                executeDiffAlgorithms();
+            } finally {
+                span.end();
+            }
+
+            // Finally, write results to patch file.
+            span = BuildTracer.begin("write dex patch");
+            try {
+                writeResultToStream(out);
+            } finally {
+                span.end();
+            }
+        } finally {
+            for (DexSectionDiffAlgorithm<?> sectionDiffAlg : getSectionDiffAlgorithmsInPatchOrder()) {
+                sectionDiffAlg.releaseSpillFiles();
+            }
+        }
+    }
+
+    private void executeDiffAlgorithms() {
         // Firstly, collect information of items we want to remove additionally
         // in new dex and set them to corresponding diff algorithm implementations.
         Pattern[] classNamePatterns = new Pattern[this.additionalRemovingClassPatternSet.size()];
@@ -506,12 +566,28 @@ public class DexPatchGenerator {
         this.patchedDexSize
                 = this.patchedMapListOffset
                 + patchedMapListSize;
-
-        // Finally, write results to patch file.
-        writeResultToStream(out);
     }
 
     private void writeResultToStream(OutputStream os) throws IOException {
+        List<DexSectionDiffAlgorithm<?>> sectionDiffAlgs = new ArrayList<>();
+        for (DexSectionDiffAlgorithm<?> sectionDiffAlg : getSectionDiffAlgorithmsInPatchOrder()) {
+            // Sections without patch operations are left out.
+            if (sectionDiffAlg.getPatchOperationCount() > 0) {
+                sectionDiffAlgs.add(sectionDiffAlg);
+            }
+        }
+
+        // Columns of patch operations, indices of all sections come first, then new items
+        // grouped by section and operation, so that data alike are close to each other.
+        DexDataBuffer indexColumn = new DexDataBuffer();
+        int[] indicesSizes = new int[sectionDiffAlgs.size()];
+        for (int i = 0; i < sectionDiffAlgs.size(); ++i) {
+            int indicesOffset = indexColumn.position();
+            sectionDiffAlgs.get(i).writePatchOperationIndices(indexColumn);
+            indicesSizes[i] = indexColumn.position() - indicesOffset;
+        }
+        byte[] indexColumnData = indexColumn.array();
+
         DexDataBuffer buffer = new DexDataBuffer();
         buffer.write(DexPatchFile.MAGIC);
         buffer.writeShort(DexPatchFile.CURRENT_VERSION);
@@ -542,132 +618,29 @@ public class DexPatchGenerator {
         buffer.writeInt(firstChunkOffset);
         buffer.position(firstChunkOffset);
 
-        writePatchOperations(buffer, this.stringDataSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.typeIdSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.typeListSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.protoIdSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.fieldIdSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.methodIdSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.annotationSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.annotationSetSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.annotationSetRefListSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.annotationsDirectorySectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.debugInfoSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.codeSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.classDataSectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.encodedArraySectionDiffAlg.getPatchOperationList());
-        writePatchOperations(buffer, this.classDefSectionDiffAlg.getPatchOperationList());
-
-        byte[] bufferData = buffer.array();
-        os.write(bufferData);
-        os.flush();
-    }
-
-    private <T extends Comparable<T>> void writePatchOperations(
-            DexDataBuffer buffer, List<PatchOperation<T>> patchOperationList
-    ) {
-        List<Integer> delOpIndexList = new ArrayList<>(patchOperationList.size());
-        List<Integer> addOpIndexList = new ArrayList<>(patchOperationList.size());
-        List<Integer> replaceOpIndexList = new ArrayList<>(patchOperationList.size());
-        List<T> newItemList = new ArrayList<>(patchOperationList.size());
-
-        for (PatchOperation<T> patchOperation : patchOperationList) {
-            switch (patchOperation.op) {
-                case PatchOperation.OP_DEL: {
-                    delOpIndexList.add(patchOperation.index);
-                    break;
-                }
-                case PatchOperation.OP_ADD: {
-                    addOpIndexList.add(patchOperation.index);
-                    newItemList.add(patchOperation.newItem);
-                    break;
-                }
-                case PatchOperation.OP_REPLACE: {
-                    replaceOpIndexList.add(patchOperation.index);
-                    newItemList.add(patchOperation.newItem);
-                    break;
-                }
-                default:
-                    break;
+        // Section table of column sizes, so that patch algorithms can seek to their columns directly.
+        buffer.writeUleb128(sectionDiffAlgs.size());
+        long patchSize = buffer.position() + indexColumnData.length;
+        for (int i = 0; i < sectionDiffAlgs.size(); ++i) {
+            DexSectionDiffAlgorithm<?> sectionDiffAlg = sectionDiffAlgs.get(i);
+            long addedItemsSize = sectionDiffAlg.getNewItemsSize(PatchOperation.OP_ADD);
+            long replacedItemsSize = sectionDiffAlg.getNewItemsSize(PatchOperation.OP_REPLACE);
+            patchSize += addedItemsSize + replacedItemsSize;
+            if (patchSize > Integer.MAX_VALUE) {
+                throw new IOException("dex patch is too large: " + patchSize);
             }
+            buffer.writeShort(sectionDiffAlg.getSectionType());
+            buffer.writeUleb128(indicesSizes[i]);
+            buffer.writeUleb128((int) addedItemsSize);
+            buffer.writeUleb128((int) replacedItemsSize);
         }
 
-        buffer.writeUleb128(delOpIndexList.size());
-        int lastIndex = 0;
-        for (Integer index : delOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
-
-        buffer.writeUleb128(addOpIndexList.size());
-        lastIndex = 0;
-        for (Integer index : addOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
-
-        buffer.writeUleb128(replaceOpIndexList.size());
-        lastIndex = 0;
-        for (Integer index : replaceOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
-
-        for (T newItem : newItemList) {
-            if (newItem instanceof StringData) {
-                buffer.writeStringData((StringData) newItem);
-            } else
-            if (newItem instanceof Integer) {
-                // TypeId item.
-                buffer.writeInt((Integer) newItem);
-            } else
-            if (newItem instanceof TypeList) {
-                buffer.writeTypeList((TypeList) newItem);
-            } else
-            if (newItem instanceof ProtoId) {
-                buffer.writeProtoId((ProtoId) newItem);
-            } else
-            if (newItem instanceof FieldId) {
-                buffer.writeFieldId((FieldId) newItem);
-            } else
-            if (newItem instanceof MethodId) {
-                buffer.writeMethodId((MethodId) newItem);
-            } else
-            if (newItem instanceof Annotation) {
-                buffer.writeAnnotation((Annotation) newItem);
-            } else
-            if (newItem instanceof AnnotationSet) {
-                buffer.writeAnnotationSet((AnnotationSet) newItem);
-            } else
-            if (newItem instanceof AnnotationSetRefList) {
-                buffer.writeAnnotationSetRefList(
-                        (AnnotationSetRefList) newItem
-                );
-            } else
-            if (newItem instanceof AnnotationsDirectory) {
-                buffer.writeAnnotationsDirectory(
-                        (AnnotationsDirectory) newItem
-                );
-            } else
-            if (newItem instanceof DebugInfoItem) {
-                buffer.writeDebugInfoItem((DebugInfoItem) newItem);
-            } else
-            if (newItem instanceof Code) {
-                buffer.writeCode((Code) newItem);
-            } else
-            if (newItem instanceof ClassData) {
-                buffer.writeClassData((ClassData) newItem);
-            } else
-            if (newItem instanceof EncodedValue) {
-                buffer.writeEncodedArray((EncodedValue) newItem);
-            } else
-            if (newItem instanceof ClassDef) {
-                buffer.writeClassDef((ClassDef) newItem);
-            } else {
-                throw new IllegalStateException(
-                        "Unknown item type: " + newItem.getClass()
-                );
-            }
+        os.write(buffer.array());
+        os.write(indexColumnData);
+        for (DexSectionDiffAlgorithm<?> sectionDiffAlg : sectionDiffAlgs) {
+            sectionDiffAlg.writeNewItems(os, PatchOperation.OP_ADD);
+            sectionDiffAlg.writeNewItems(os, PatchOperation.OP_REPLACE);
         }
+        os.flush();
     }
 }
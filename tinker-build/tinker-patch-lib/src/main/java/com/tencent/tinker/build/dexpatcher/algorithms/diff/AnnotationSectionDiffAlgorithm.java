@@ -41,6 +41,11 @@ public class AnnotationSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Anno
         return section.readAnnotation();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, Annotation item) {
+        buffer.writeAnnotation(item);
+    }
+
     @Override
     protected int getItemSize(Annotation item) {
         return item.byteCountInDex();
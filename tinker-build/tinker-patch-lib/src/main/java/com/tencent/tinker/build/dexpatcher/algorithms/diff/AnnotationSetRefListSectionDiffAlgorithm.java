@@ -41,6 +41,11 @@ public class AnnotationSetRefListSectionDiffAlgorithm extends DexSectionDiffAlgo
         return section.readAnnotationSetRefList();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, AnnotationSetRefList item) {
+        buffer.writeAnnotationSetRefList(item);
+    }
+
     @Override
     protected int getItemSize(AnnotationSetRefList item) {
         return item.byteCountInDex();
@@ -41,6 +41,11 @@ public class AnnotationSetSectionDiffAlgorithm extends DexSectionDiffAlgorithm<A
         return section.readAnnotationSet();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, AnnotationSet item) {
+        buffer.writeAnnotationSet(item);
+    }
+
     @Override
     protected int getItemSize(AnnotationSet item) {
         return item.byteCountInDex();
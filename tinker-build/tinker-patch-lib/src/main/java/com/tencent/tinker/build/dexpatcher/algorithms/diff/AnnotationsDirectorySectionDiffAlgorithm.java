@@ -41,6 +41,11 @@ public class AnnotationsDirectorySectionDiffAlgorithm extends DexSectionDiffAlgo
         return section.readAnnotationsDirectory();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, AnnotationsDirectory item) {
+        buffer.writeAnnotationsDirectory(item);
+    }
+
     @Override
     protected int getItemSize(AnnotationsDirectory item) {
         return item.byteCountInDex();
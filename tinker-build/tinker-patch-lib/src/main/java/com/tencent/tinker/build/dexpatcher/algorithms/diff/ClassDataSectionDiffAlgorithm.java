@@ -57,6 +57,11 @@ public class ClassDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Class
         return section.readClassData();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, ClassData item) {
+        buffer.writeClassData(item);
+    }
+
     @Override
     protected int getItemSize(ClassData item) {
         return item.byteCountInDex();
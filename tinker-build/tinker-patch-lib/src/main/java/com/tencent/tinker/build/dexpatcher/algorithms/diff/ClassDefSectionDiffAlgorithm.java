@@ -57,6 +57,11 @@ public class ClassDefSectionDiffAlgorithm extends DexSectionDiffAlgorithm<ClassD
         return section.readClassDef();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, ClassDef item) {
+        buffer.writeClassDef(item);
+    }
+
     @Override
     protected boolean shouldSkipInNewDex(ClassDef newItem) {
         return this.typeIdOfClassDefToRemoveSet.contains(newItem.typeIndex);
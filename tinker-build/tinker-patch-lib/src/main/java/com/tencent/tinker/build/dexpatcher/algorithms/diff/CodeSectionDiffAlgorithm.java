@@ -41,6 +41,11 @@ public class CodeSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Code> {
         return section.readCode();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, Code item) {
+        buffer.writeCode(item);
+    }
+
     @Override
     protected int getItemSize(Code item) {
         return item.byteCountInDex();
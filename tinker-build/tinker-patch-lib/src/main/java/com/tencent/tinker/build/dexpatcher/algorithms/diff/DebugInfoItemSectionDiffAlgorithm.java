@@ -41,6 +41,11 @@ public class DebugInfoItemSectionDiffAlgorithm extends DexSectionDiffAlgorithm<D
         return section.readDebugInfoItem();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, DebugInfoItem item) {
+        buffer.writeDebugInfoItem(item);
+    }
+
     @Override
     protected int getItemSize(DebugInfoItem item) {
         return item.byteCountInDex();
@@ -17,6 +17,7 @@
 package com.tencent.tinker.build.dexpatcher.algorithms.diff;
 
 import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.DexException;
 import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.TableOfContents.Section.Item;
@@ -25,22 +26,49 @@ import com.tencent.tinker.android.dex.util.CompareUtils;
 import com.tencent.tinker.commons.dexpatcher.struct.PatchOperation;
 import com.tencent.tinker.commons.dexpatcher.util.AbstractIndexMap;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
+import com.tencent.tinker.commons.util.IOHelper;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
  */
 public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
     private static final AbstractMap.SimpleEntry[] EMPTY_ENTRY_ARRAY = new AbstractMap.SimpleEntry[0];
+
+    public static final int DEFAULT_SPILL_RUN_ITEM_COUNT = 64 * 1024;
+
+    /**
+     * A spilled run is also cut when its items take this many bytes in dex, so that a run
+     * of large items such as code does not hold too much on heap.
+     */
+    private static final int SPILL_RUN_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int SPILL_BLOCK_SIZE = 64 * 1024;
+    private static final int SPILL_RECORD_HEADER_SIZE = 3 * SizeOf.UINT;
+
+    private static final int OP_COLUMN_ITEM_SIZE = 0;
+    private static final int OP_COLUMN_ITEM_OFFSET = 1;
+    private static final int OP_COLUMN_SPILL_POSITION = 2;
+    private static final int OP_COLUMN_SPILL_LENGTH = 3;
+    private static final int OP_COLUMN_COUNT = 4;
+
     protected final Dex oldDex;
     protected final Dex newDex;
     /**
@@ -63,11 +91,15 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
      */
     private final SparseIndexMap selfIndexMapForSkip;
     private final List<PatchOperation<T>> patchOperationList;
-    private final Map<Integer, PatchOperation<T>> indexToDelOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToAddOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToReplaceOperationMap = new HashMap<>();
-    private final Map<Integer, Integer> oldIndexToNewIndexMap = new HashMap<>();
-    private final Map<Integer, Integer> oldOffsetToNewOffsetMap = new HashMap<>();
+    /**
+     * Patch operations by index, new items of OP_ADD and OP_REPLACE are reduced to
+     * their size and offset since that is all simulatePatchOperation needs.
+     */
+    private IntRecordTable delOperationTable = new IntRecordTable(0);
+    private IntRecordTable addOperationTable = new IntRecordTable(OP_COLUMN_COUNT);
+    private IntRecordTable replaceOperationTable = new IntRecordTable(OP_COLUMN_COUNT);
+    private IntRecordTable oldIndexToNewIndexTable = new IntRecordTable(1);
+    private IntRecordTable oldOffsetToNewOffsetTable = new IntRecordTable(1);
     private int patchedSectionSize;
     private Comparator<AbstractMap.SimpleEntry<Integer, T>> comparatorForItemDiff = new Comparator<AbstractMap.SimpleEntry<Integer, T>>() {
         @Override
@@ -112,10 +144,20 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
             return CompareUtils.sCompare(o1OrderId, o2OrderId);
         }
     };
-    private AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItemsWithOrigOrder = null;
+    private int[] oldItemSizes = null;
+    private int[] oldItemOffsets = null;
     private int oldItemCount = 0;
     private int newItemCount = 0;
 
+    /**
+     * Directory to spill items to while diffing, null means diffing in memory.
+     */
+    private File spillDir = null;
+    private int spillRunItemCount = DEFAULT_SPILL_RUN_ITEM_COUNT;
+    private SpillWriter addedItemWriter = null;
+    private byte[] addedItemsInMemory = null;
+    private byte[] replacedItemsInMemory = null;
+
     public DexSectionDiffAlgorithm(
             Dex oldDex,
             Dex newDex,
@@ -134,7 +176,30 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         this.patchedSectionSize = 0;
     }
 
+    /**
+     * Diff with items spilled to sorted runs in {@code spillDir} and merged back from there,
+     * so only index maps of this section stay on heap. New items of the patch operations
+     * stay in {@code spillDir} too until {@link #releaseSpillFiles()}.
+     *
+     * @param spillDir directory of the spill files, null to diff in memory.
+     * @param spillRunItemCount max items in a run sorted in memory before it is spilled.
+     */
+    public void setSpillDirectory(File spillDir, int spillRunItemCount) {
+        if (spillRunItemCount <= 0) {
+            throw new IllegalArgumentException("spillRunItemCount must be positive: " + spillRunItemCount);
+        }
+        this.spillDir = spillDir;
+        this.spillRunItemCount = spillRunItemCount;
+    }
+
+    public boolean isSpilling() {
+        return this.spillDir != null;
+    }
+
     public List<PatchOperation<T>> getPatchOperationList() {
+        if (isSpilling()) {
+            throw new IllegalStateException("patch operations are spilled, write them by writeNewItems instead.");
+        }
         return this.patchOperationList;
     }
 
@@ -152,6 +217,11 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
      */
     protected abstract T nextItem(DexDataBuffer section);
 
+    /**
+     * Write {@code item} into {@code buffer} so that {@link #nextItem(DexDataBuffer)} can read it back.
+     */
+    protected abstract void writeItem(DexDataBuffer buffer, T item);
+
     /**
      * Get item size.
      */
@@ -209,22 +279,48 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
     }
 
-    @SuppressWarnings("unchecked,NewApi")
-    private AbstractMap.SimpleEntry<Integer, T>[] collectSectionItems(Dex dex, boolean isOldDex) {
+    /**
+     * Adjust an item collected from old dex or new dex into the one to diff.
+     */
+    private T adjustCollectedItem(boolean isOldDex, T item) {
+        if (isOldDex) {
+            return adjustItem(oldToPatchedIndexMap, item);
+        } else {
+            return adjustItem(newToPatchedIndexMap, adjustItem(selfIndexMapForSkip, item));
+        }
+    }
+
+    /**
+     * Feed items of the section in {@code dex} to {@code sink} in their order in dex,
+     * sizes and offsets of old items are kept for simulatePatchOperation.
+     *
+     * @return count of items fed to {@code sink}.
+     */
+    @SuppressWarnings("NewApi")
+    private int collectSectionItems(Dex dex, boolean isOldDex, ItemSink<T> sink) throws IOException {
         TableOfContents.Section tocSec = getTocSection(dex);
         if (!tocSec.exists()) {
-            return EMPTY_ENTRY_ARRAY;
+            if (isOldDex) {
+                this.oldItemSizes = new int[0];
+                this.oldItemOffsets = new int[0];
+            }
+            return 0;
         }
         Dex.Section dexSec = dex.openSection(tocSec);
         int itemCount = tocSec.size;
-        List<AbstractMap.SimpleEntry<Integer, T>> result = new ArrayList<>(itemCount);
         if (isOldDex) {
+            this.oldItemSizes = new int[itemCount];
+            this.oldItemOffsets = new int[itemCount];
             for (int i = 0; i < itemCount; ++i) {
                 T nextItem = nextItem(dexSec);
-                T adjustedItem = adjustItem(oldToPatchedIndexMap, nextItem);
-                result.add(new AbstractMap.SimpleEntry<>(i, adjustedItem));
+                T adjustedItem = adjustCollectedItem(true, nextItem);
+                this.oldItemSizes[i] = getItemSize(adjustedItem);
+                this.oldItemOffsets[i] = getItemOffsetOrIndex(i, adjustedItem);
+                sink.onItem(i, nextItem, adjustedItem);
             }
+            return itemCount;
         } else {
+            int outCount = 0;
             int i = 0;
             while (i < itemCount) {
                 T nextItem = nextItem(dexSec);
@@ -242,84 +338,67 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                 }
                 if (nextItem != null) {
                     int offsetAfterSkip = getItemOffsetOrIndex(indexAfterSkip, nextItem);
-                    T adjustedItem = adjustItem(newToPatchedIndexMap, adjustItem(selfIndexMapForSkip, nextItem));
-                    int currentOutIndex = result.size();
-                    result.add(new AbstractMap.SimpleEntry<>(currentOutIndex, adjustedItem));
+                    T adjustedItem = adjustCollectedItem(false, nextItem);
+                    int currentOutIndex = outCount++;
+                    sink.onItem(currentOutIndex, nextItem, adjustedItem);
                     updateIndexOrOffset(selfIndexMapForSkip, indexBeforeSkip, offsetBeforeSkip, indexAfterSkip, offsetAfterSkip);
                 }
                 i = indexAfterSkip;
                 ++i;
             }
+            return outCount;
         }
-        return result.toArray(new AbstractMap.SimpleEntry[0]);
     }
 
     public void execute() {
         this.patchOperationList.clear();
+        this.addedItemsInMemory = null;
+        this.replacedItemsInMemory = null;
+        this.delOperationTable = new IntRecordTable(0);
+        this.addOperationTable = new IntRecordTable(OP_COLUMN_COUNT);
+        this.replaceOperationTable = new IntRecordTable(OP_COLUMN_COUNT);
+        this.oldIndexToNewIndexTable = new IntRecordTable(1);
+        this.oldOffsetToNewOffsetTable = new IntRecordTable(1);
 
-        this.adjustedOldIndexedItemsWithOrigOrder = collectSectionItems(this.oldDex, true);
-        this.oldItemCount = this.adjustedOldIndexedItemsWithOrigOrder.length;
-
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItems = new AbstractMap.SimpleEntry[this.oldItemCount];
-        System.arraycopy(this.adjustedOldIndexedItemsWithOrigOrder, 0, adjustedOldIndexedItems, 0, this.oldItemCount);
-        Arrays.sort(adjustedOldIndexedItems, this.comparatorForItemDiff);
-
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedNewIndexedItems = collectSectionItems(this.newDex, false);
-        this.newItemCount = adjustedNewIndexedItems.length;
-        Arrays.sort(adjustedNewIndexedItems, this.comparatorForItemDiff);
-
-        int oldCursor = 0;
-        int newCursor = 0;
-        while (oldCursor < this.oldItemCount || newCursor < this.newItemCount) {
-            if (oldCursor >= this.oldItemCount) {
-                // rest item are all newItem.
-                while (newCursor < this.newItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor++];
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
-                }
-            } else
-            if (newCursor >= newItemCount) {
-                // rest item are all oldItem.
-                while (oldCursor < oldItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor++];
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
-                    this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
-                    markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
-                }
+        try {
+            if (isSpilling()) {
+                executeWithSpilling();
             } else {
-                AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor];
-                AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor];
-                int cmpRes = oldIndexedItem.getValue().compareTo(newIndexedItem.getValue());
-                if (cmpRes < 0) {
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
-                    this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
-                    markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
-                    ++oldCursor;
-                } else
-                if (cmpRes > 0) {
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
-                    ++newCursor;
-                } else {
-                    int oldIndex = oldIndexedItem.getKey();
-                    int newIndex = newIndexedItem.getKey();
-                    int oldOffset = getItemOffsetOrIndex(oldIndexedItem.getKey(), oldIndexedItem.getValue());
-                    int newOffset = getItemOffsetOrIndex(newIndexedItem.getKey(), newIndexedItem.getValue());
+                executeInMemory();
+            }
+        } catch (IOException e) {
+            throw new DexException(e);
+        }
 
-                    if (oldIndex != newIndex) {
-                        this.oldIndexToNewIndexMap.put(oldIndex, newIndex);
-                    }
+        this.oldIndexToNewIndexTable.sortByKey();
+        this.oldOffsetToNewOffsetTable.sortByKey();
+    }
 
-                    if (oldOffset != newOffset) {
-                        this.oldOffsetToNewOffsetMap.put(oldOffset, newOffset);
-                    }
+    @SuppressWarnings("unchecked")
+    private void executeInMemory() throws IOException {
+        final List<AbstractMap.SimpleEntry<Integer, T>> collectedOldItems = new ArrayList<>();
+        this.oldItemCount = collectSectionItems(this.oldDex, true, new ItemSink<T>() {
+            @Override
+            public void onItem(int index, T item, T adjustedItem) {
+                collectedOldItems.add(new AbstractMap.SimpleEntry<>(index, adjustedItem));
+            }
+        });
+        AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItems = collectedOldItems.toArray(EMPTY_ENTRY_ARRAY);
+        collectedOldItems.clear();
+        Arrays.sort(adjustedOldIndexedItems, this.comparatorForItemDiff);
 
-                    ++oldCursor;
-                    ++newCursor;
-                }
+        final List<AbstractMap.SimpleEntry<Integer, T>> collectedNewItems = new ArrayList<>();
+        this.newItemCount = collectSectionItems(this.newDex, false, new ItemSink<T>() {
+            @Override
+            public void onItem(int index, T item, T adjustedItem) {
+                collectedNewItems.add(new AbstractMap.SimpleEntry<>(index, adjustedItem));
             }
-        }
+        });
+        AbstractMap.SimpleEntry<Integer, T>[] adjustedNewIndexedItems = collectedNewItems.toArray(EMPTY_ENTRY_ARRAY);
+        collectedNewItems.clear();
+        Arrays.sort(adjustedNewIndexedItems, this.comparatorForItemDiff);
+
+        diffSortedItems(new ArrayItemSource(adjustedOldIndexedItems), new ArrayItemSource(adjustedNewIndexedItems));
 
         // So far all diff works are done. Then we perform some optimize works.
         // detail: {OP_DEL idx} followed by {OP_ADD the_same_idx newItem}
@@ -348,20 +427,18 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
 
         // Finally we record some information for the final calculations.
-        patchOperationIt = this.patchOperationList.iterator();
-        while (patchOperationIt.hasNext()) {
-            PatchOperation<T> patchOperation = patchOperationIt.next();
+        for (PatchOperation<T> patchOperation : this.patchOperationList) {
             switch (patchOperation.op) {
                 case PatchOperation.OP_DEL: {
-                    indexToDelOperationMap.put(patchOperation.index, patchOperation);
+                    this.delOperationTable.append(patchOperation.index);
                     break;
                 }
                 case PatchOperation.OP_ADD: {
-                    indexToAddOperationMap.put(patchOperation.index, patchOperation);
+                    appendNewItemOperation(this.addOperationTable, patchOperation.index, patchOperation.newItem);
                     break;
                 }
                 case PatchOperation.OP_REPLACE: {
-                    indexToReplaceOperationMap.put(patchOperation.index, patchOperation);
+                    appendNewItemOperation(this.replaceOperationTable, patchOperation.index, patchOperation.newItem);
                     break;
                 }
                 default: {
@@ -371,50 +448,316 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
     }
 
+    private void appendNewItemOperation(IntRecordTable table, int index, T newItem) {
+        int record = table.append(index);
+        table.set(record, OP_COLUMN_ITEM_SIZE, getItemSize(newItem));
+        table.set(record, OP_COLUMN_ITEM_OFFSET, getItemOffsetOrIndex(index, newItem));
+    }
+
+    private void executeWithSpilling() throws IOException {
+        releaseSpillFiles();
+        ItemRunSpiller oldItemSpiller = null;
+        ItemRunSpiller newItemSpiller = null;
+        RandomAccessFile oldRunsFile = null;
+        RandomAccessFile newRunsFile = null;
+        boolean succeeded = false;
+        try {
+            oldItemSpiller = new ItemRunSpiller(true);
+            this.oldItemCount = collectSectionItems(this.oldDex, true, oldItemSpiller);
+            oldItemSpiller.finish();
+
+            newItemSpiller = new ItemRunSpiller(false);
+            this.newItemCount = collectSectionItems(this.newDex, false, newItemSpiller);
+            newItemSpiller.finish();
+
+            oldRunsFile = new RandomAccessFile(oldItemSpiller.file, "r");
+            newRunsFile = new RandomAccessFile(newItemSpiller.file, "r");
+            this.addedItemWriter = new SpillWriter(createSpillFile("added"));
+            diffSortedItems(
+                    new MergedRunSource(oldItemSpiller.openRuns(oldRunsFile.getChannel())),
+                    new MergedRunSource(newItemSpiller.openRuns(newRunsFile.getChannel()))
+            );
+            this.addedItemWriter.close();
+            succeeded = true;
+        } finally {
+            IOHelper.closeQuietly(oldRunsFile);
+            IOHelper.closeQuietly(newRunsFile);
+            if (oldItemSpiller != null) {
+                oldItemSpiller.delete();
+            }
+            if (newItemSpiller != null) {
+                newItemSpiller.delete();
+            }
+            if (!succeeded) {
+                releaseSpillFiles();
+            }
+        }
+
+        // Same as {OP_DEL idx} followed by {OP_ADD the_same_idx newItem} becoming
+        // {OP_REPLACE idx newItem} in memory, each index is deleted and added once at most.
+        this.delOperationTable.sortByKey();
+        this.addOperationTable.sortByKey();
+        IntRecordTable dels = this.delOperationTable;
+        IntRecordTable adds = this.addOperationTable;
+        this.delOperationTable = new IntRecordTable(0);
+        this.addOperationTable = new IntRecordTable(OP_COLUMN_COUNT);
+        int delCursor = 0;
+        int addCursor = 0;
+        while (delCursor < dels.size() || addCursor < adds.size()) {
+            if (addCursor >= adds.size() || (delCursor < dels.size() && dels.key(delCursor) < adds.key(addCursor))) {
+                this.delOperationTable.appendCopy(dels, delCursor++);
+            } else
+            if (delCursor >= dels.size() || adds.key(addCursor) < dels.key(delCursor)) {
+                this.addOperationTable.appendCopy(adds, addCursor++);
+            } else {
+                this.replaceOperationTable.appendCopy(adds, addCursor++);
+                ++delCursor;
+            }
+        }
+    }
+
+    private void diffSortedItems(SortedItemSource<T> oldItems, SortedItemSource<T> newItems) throws IOException {
+        while (oldItems.hasItem() || newItems.hasItem()) {
+            if (!oldItems.hasItem()) {
+                // rest item are all newItem.
+                while (newItems.hasItem()) {
+                    onItemAdded(newItems.index(), newItems.offset(), newItems.item());
+                    newItems.moveToNext();
+                }
+            } else
+            if (!newItems.hasItem()) {
+                // rest item are all oldItem.
+                while (oldItems.hasItem()) {
+                    onItemDeleted(oldItems.index(), oldItems.offset());
+                    oldItems.moveToNext();
+                }
+            } else {
+                int cmpRes = oldItems.item().compareTo(newItems.item());
+                if (cmpRes < 0) {
+                    onItemDeleted(oldItems.index(), oldItems.offset());
+                    oldItems.moveToNext();
+                } else
+                if (cmpRes > 0) {
+                    onItemAdded(newItems.index(), newItems.offset(), newItems.item());
+                    newItems.moveToNext();
+                } else {
+                    int oldIndex = oldItems.index();
+                    int newIndex = newItems.index();
+                    int oldOffset = oldItems.offset();
+                    int newOffset = newItems.offset();
+
+                    if (oldIndex != newIndex) {
+                        int record = this.oldIndexToNewIndexTable.append(oldIndex);
+                        this.oldIndexToNewIndexTable.set(record, 0, newIndex);
+                    }
+
+                    if (oldOffset != newOffset) {
+                        int record = this.oldOffsetToNewOffsetTable.append(oldOffset);
+                        this.oldOffsetToNewOffsetTable.set(record, 0, newOffset);
+                    }
+
+                    oldItems.moveToNext();
+                    newItems.moveToNext();
+                }
+            }
+        }
+    }
+
+    private void onItemDeleted(int deletedIndex, int deletedOffset) {
+        if (isSpilling()) {
+            this.delOperationTable.append(deletedIndex);
+        } else {
+            this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
+        }
+        markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
+    }
+
+    private void onItemAdded(int newIndex, int newOffset, T newItem) throws IOException {
+        if (isSpilling()) {
+            int record = this.addOperationTable.append(newIndex);
+            this.addOperationTable.set(record, OP_COLUMN_ITEM_SIZE, getItemSize(newItem));
+            this.addOperationTable.set(record, OP_COLUMN_ITEM_OFFSET, newOffset);
+            long spillPosition = this.addedItemWriter.position();
+            this.addedItemWriter.writeItem(newItem);
+            this.addOperationTable.set(record, OP_COLUMN_SPILL_POSITION, checkedSpillPosition(spillPosition));
+            this.addOperationTable.set(record, OP_COLUMN_SPILL_LENGTH, (int) (this.addedItemWriter.position() - spillPosition));
+        } else {
+            this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndex, newItem));
+        }
+    }
+
+    public short getSectionType() {
+        return getTocSection(this.oldDex).type;
+    }
+
+    public int getPatchOperationCount() {
+        return this.delOperationTable.size() + this.addOperationTable.size() + this.replaceOperationTable.size();
+    }
+
+    /**
+     * Write indices of deleted, added and replaced items in this order, each as a count
+     * followed by deltas of the indices.
+     */
+    public void writePatchOperationIndices(DexDataBuffer buffer) {
+        writeOperationIndices(buffer, this.delOperationTable);
+        writeOperationIndices(buffer, this.addOperationTable);
+        writeOperationIndices(buffer, this.replaceOperationTable);
+    }
+
+    private static void writeOperationIndices(DexDataBuffer buffer, IntRecordTable table) {
+        buffer.writeUleb128(table.size());
+        int lastIndex = 0;
+        for (int i = 0; i < table.size(); ++i) {
+            int index = table.key(i);
+            buffer.writeSleb128(index - lastIndex);
+            lastIndex = index;
+        }
+    }
+
+    /**
+     * Get byte count of new items of {@code op} that {@link #writeNewItems(OutputStream, int)} writes.
+     *
+     * @param op {@link PatchOperation#OP_ADD} or {@link PatchOperation#OP_REPLACE}.
+     */
+    public long getNewItemsSize(int op) {
+        if (!isSpilling()) {
+            return getNewItemsInMemory(op).length;
+        }
+        IntRecordTable table = getNewItemOperationTable(op);
+        long size = 0;
+        for (int i = 0; i < table.size(); ++i) {
+            size += table.get(i, OP_COLUMN_SPILL_LENGTH);
+        }
+        return size;
+    }
+
+    /**
+     * Write new items of {@code op} in the order of their indices, when spilling they are
+     * copied from the spill file as is.
+     *
+     * @param op {@link PatchOperation#OP_ADD} or {@link PatchOperation#OP_REPLACE}.
+     */
+    public void writeNewItems(OutputStream os, int op) throws IOException {
+        if (!isSpilling()) {
+            os.write(getNewItemsInMemory(op));
+            return;
+        }
+        if (this.addedItemWriter == null) {
+            throw new IllegalStateException("spill files are released, execute again before writing new items.");
+        }
+        IntRecordTable table = getNewItemOperationTable(op);
+        if (table.size() == 0) {
+            return;
+        }
+        RandomAccessFile addedItemFile = null;
+        try {
+            addedItemFile = new RandomAccessFile(this.addedItemWriter.file, "r");
+            FileChannel channel = addedItemFile.getChannel();
+            ByteBuffer block = ByteBuffer.allocate(SPILL_BLOCK_SIZE);
+            for (int record = 0; record < table.size(); ++record) {
+                long position = table.get(record, OP_COLUMN_SPILL_POSITION);
+                int remaining = table.get(record, OP_COLUMN_SPILL_LENGTH);
+                while (remaining > 0) {
+                    block.clear();
+                    block.limit(Math.min(remaining, block.capacity()));
+                    int readCount = channel.read(block, position);
+                    if (readCount < 0) {
+                        throw new EOFException("unexpected end of spill file " + this.addedItemWriter.file);
+                    }
+                    os.write(block.array(), 0, readCount);
+                    position += readCount;
+                    remaining -= readCount;
+                }
+            }
+        } finally {
+            IOHelper.closeQuietly(addedItemFile);
+        }
+    }
+
+    private IntRecordTable getNewItemOperationTable(int op) {
+        switch (op) {
+            case PatchOperation.OP_ADD:
+                return this.addOperationTable;
+            case PatchOperation.OP_REPLACE:
+                return this.replaceOperationTable;
+            default:
+                throw new IllegalArgumentException("unexpected patch operation code: " + op);
+        }
+    }
+
+    private byte[] getNewItemsInMemory(int op) {
+        byte[] newItems = (op == PatchOperation.OP_ADD ? this.addedItemsInMemory : this.replacedItemsInMemory);
+        if (newItems != null) {
+            return newItems;
+        }
+        getNewItemOperationTable(op);
+        DexDataBuffer buffer = new DexDataBuffer();
+        for (PatchOperation<T> patchOperation : this.patchOperationList) {
+            if (patchOperation.op == op) {
+                writeItem(buffer, patchOperation.newItem);
+            }
+        }
+        newItems = buffer.array();
+        if (op == PatchOperation.OP_ADD) {
+            this.addedItemsInMemory = newItems;
+        } else {
+            this.replacedItemsInMemory = newItems;
+        }
+        return newItems;
+    }
+
+    /**
+     * Delete spill files left by {@link #execute()} once the patch operations are written.
+     */
+    public void releaseSpillFiles() {
+        if (this.addedItemWriter != null) {
+            this.addedItemWriter.delete();
+            this.addedItemWriter = null;
+        }
+    }
+
     public void simulatePatchOperation(int baseOffset) {
         boolean isNeedToMakeAlign = getTocSection(this.oldDex).isElementFourByteAligned;
         int oldIndex = 0;
         int patchedIndex = 0;
         int patchedOffset = baseOffset;
         while (oldIndex < this.oldItemCount || patchedIndex < this.newItemCount) {
-            if (this.indexToAddOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToAddOperationMap.get(patchedIndex);
+            int addRecord = this.addOperationTable.find(patchedIndex);
+            int replaceRecord = (addRecord < 0 ? this.replaceOperationTable.find(patchedIndex) : -1);
+            if (addRecord >= 0) {
                 if (isNeedToMakeAlign) {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
-                T newItem = patchOperation.newItem;
-                int itemSize = getItemSize(newItem);
+                int itemSize = this.addOperationTable.get(addRecord, OP_COLUMN_ITEM_SIZE);
                 updateIndexOrOffset(
                         this.newToPatchedIndexMap,
                         0,
-                        getItemOffsetOrIndex(patchOperation.index, newItem),
+                        this.addOperationTable.get(addRecord, OP_COLUMN_ITEM_OFFSET),
                         0,
                         patchedOffset
                 );
                 ++patchedIndex;
                 patchedOffset += itemSize;
             } else
-            if (this.indexToReplaceOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToReplaceOperationMap.get(patchedIndex);
+            if (replaceRecord >= 0) {
                 if (isNeedToMakeAlign) {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
-                T newItem = patchOperation.newItem;
-                int itemSize = getItemSize(newItem);
+                int itemSize = this.replaceOperationTable.get(replaceRecord, OP_COLUMN_ITEM_SIZE);
                 updateIndexOrOffset(
                         this.newToPatchedIndexMap,
                         0,
-                        getItemOffsetOrIndex(patchOperation.index, newItem),
+                        this.replaceOperationTable.get(replaceRecord, OP_COLUMN_ITEM_OFFSET),
                         0,
                         patchedOffset
                 );
                 ++patchedIndex;
                 patchedOffset += itemSize;
             } else
-            if (this.indexToDelOperationMap.containsKey(oldIndex)) {
+            if (this.delOperationTable.find(oldIndex) >= 0) {
                 ++oldIndex;
             } else
-            if (this.indexToReplaceOperationMap.containsKey(oldIndex)) {
+            if (this.replaceOperationTable.find(oldIndex) >= 0) {
                 ++oldIndex;
             } else
             if (oldIndex < this.oldItemCount) {
@@ -422,10 +765,9 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
 
-                T oldItem = this.adjustedOldIndexedItemsWithOrigOrder[oldIndex].getValue();
-                int itemSize = getItemSize(oldItem);
+                int itemSize = this.oldItemSizes[oldIndex];
 
-                int oldOffset = getItemOffsetOrIndex(oldIndex, oldItem);
+                int oldOffset = this.oldItemOffsets[oldIndex];
 
                 updateIndexOrOffset(
                         this.oldToPatchedIndexMap,
@@ -436,13 +778,15 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                 );
 
                 int newIndex = oldIndex;
-                if (this.oldIndexToNewIndexMap.containsKey(oldIndex)) {
-                    newIndex = this.oldIndexToNewIndexMap.get(oldIndex);
+                int newIndexRecord = this.oldIndexToNewIndexTable.find(oldIndex);
+                if (newIndexRecord >= 0) {
+                    newIndex = this.oldIndexToNewIndexTable.get(newIndexRecord, 0);
                 }
 
                 int newOffset = oldOffset;
-                if (this.oldOffsetToNewOffsetMap.containsKey(oldOffset)) {
-                    newOffset = this.oldOffsetToNewOffsetMap.get(oldOffset);
+                int newOffsetRecord = this.oldOffsetToNewOffsetTable.find(oldOffset);
+                if (newOffsetRecord >= 0) {
+                    newOffset = this.oldOffsetToNewOffsetTable.get(newOffsetRecord, 0);
                 }
 
                 updateIndexOrOffset(
@@ -461,4 +805,436 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
 
         this.patchedSectionSize = SizeOf.roundToTimesOfFour(patchedOffset - baseOffset);
     }
+
+    private File createSpillFile(String kind) throws IOException {
+        if (!this.spillDir.mkdirs() && !this.spillDir.isDirectory()) {
+            throw new IOException("failed to create spill directory " + this.spillDir);
+        }
+        return File.createTempFile(getClass().getSimpleName() + "_" + kind + "_", ".spill", this.spillDir);
+    }
+
+    private static int checkedSpillPosition(long position) {
+        if (position > Integer.MAX_VALUE) {
+            throw new DexException("spill file is too large: " + position);
+        }
+        return (int) position;
+    }
+
+    private interface ItemSink<T> {
+        void onItem(int index, T item, T adjustedItem) throws IOException;
+    }
+
+    /**
+     * Items sorted for diff, each with its index and offset in the section it comes from.
+     */
+    private interface SortedItemSource<T> {
+        boolean hasItem();
+
+        int index();
+
+        int offset();
+
+        T item();
+
+        void moveToNext() throws IOException;
+    }
+
+    private final class ArrayItemSource implements SortedItemSource<T> {
+        private final AbstractMap.SimpleEntry<Integer, T>[] indexedItems;
+        private int cursor = 0;
+
+        ArrayItemSource(AbstractMap.SimpleEntry<Integer, T>[] indexedItems) {
+            this.indexedItems = indexedItems;
+        }
+
+        @Override
+        public boolean hasItem() {
+            return cursor < indexedItems.length;
+        }
+
+        @Override
+        public int index() {
+            return indexedItems[cursor].getKey();
+        }
+
+        @Override
+        public int offset() {
+            return getItemOffsetOrIndex(indexedItems[cursor].getKey(), indexedItems[cursor].getValue());
+        }
+
+        @Override
+        public T item() {
+            return indexedItems[cursor].getValue();
+        }
+
+        @Override
+        public void moveToNext() {
+            ++cursor;
+        }
+    }
+
+    /**
+     * Writes records into a spill file through a bounded DexDataBuffer.
+     */
+    private final class SpillWriter {
+        final File file;
+        private final OutputStream os;
+        private DexDataBuffer buffer = new DexDataBuffer();
+        private long flushedSize = 0;
+
+        SpillWriter(File file) throws IOException {
+            this.file = file;
+            this.os = new BufferedOutputStream(new FileOutputStream(file));
+        }
+
+        long position() {
+            return flushedSize + buffer.position();
+        }
+
+        void writeItem(T item) throws IOException {
+            DexSectionDiffAlgorithm.this.writeItem(buffer, item);
+            flushIfNeeded();
+        }
+
+        /**
+         * Record of a spilled run: index, offset, length of the item, then the item itself.
+         */
+        void writeRecord(int index, int offset, T item) throws IOException {
+            buffer.writeInt(index);
+            buffer.writeInt(offset);
+            int lengthPosition = buffer.position();
+            buffer.writeInt(0);
+            int itemStart = buffer.position();
+            DexSectionDiffAlgorithm.this.writeItem(buffer, item);
+            int itemEnd = buffer.position();
+            buffer.position(lengthPosition);
+            buffer.writeInt(itemEnd - itemStart);
+            buffer.position(itemEnd);
+            flushIfNeeded();
+        }
+
+        private void flushIfNeeded() throws IOException {
+            if (buffer.position() >= SPILL_BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            byte[] data = buffer.array();
+            os.write(data);
+            flushedSize += data.length;
+            buffer = new DexDataBuffer();
+        }
+
+        void close() throws IOException {
+            flush();
+            os.close();
+        }
+
+        void delete() {
+            IOHelper.closeQuietly(os);
+            file.delete();
+        }
+    }
+
+    /**
+     * Cuts collected items into runs, sorts each run in memory and appends it to a spill file.
+     *
+     * Items are sorted as adjusted but spilled as they are in dex, since an adjusted item may refer
+     * to deleted items by NO_INDEX which can not be written. They are adjusted again when read back,
+     * which gives the same item as none of the sections refers to items in itself.
+     */
+    private final class ItemRunSpiller implements ItemSink<T> {
+        final File file;
+        private final boolean isOldDex;
+        private final SpillWriter writer;
+        private final List<SpilledItem> run = new ArrayList<>();
+        private final List<Long> runStartPositions = new ArrayList<>();
+        private int runBytes = 0;
+
+        ItemRunSpiller(boolean isOldDex) throws IOException {
+            this.file = createSpillFile(isOldDex ? "old" : "new");
+            this.isOldDex = isOldDex;
+            this.writer = new SpillWriter(file);
+        }
+
+        @Override
+        public void onItem(int index, T item, T adjustedItem) throws IOException {
+            run.add(new SpilledItem(index, item, adjustedItem));
+            runBytes += getItemSize(adjustedItem);
+            if (run.size() >= spillRunItemCount || runBytes >= SPILL_RUN_MAX_BYTES) {
+                flushRun();
+            }
+        }
+
+        private void flushRun() throws IOException {
+            if (run.isEmpty()) {
+                return;
+            }
+            // stable, so equal items keep their order in dex as they do when diffing in memory.
+            Collections.sort(run);
+            runStartPositions.add(writer.position());
+            for (SpilledItem spilledItem : run) {
+                writer.writeRecord(spilledItem.index, getItemOffsetOrIndex(spilledItem.index, spilledItem.adjustedItem), spilledItem.item);
+            }
+            run.clear();
+            runBytes = 0;
+        }
+
+        void finish() throws IOException {
+            flushRun();
+            runStartPositions.add(writer.position());
+            writer.close();
+        }
+
+        List<SpilledRunCursor> openRuns(FileChannel channel) {
+            List<SpilledRunCursor> cursors = new ArrayList<>(runStartPositions.size());
+            for (int i = 0; i + 1 < runStartPositions.size(); ++i) {
+                cursors.add(new SpilledRunCursor(channel, isOldDex, runStartPositions.get(i), runStartPositions.get(i + 1)));
+            }
+            return cursors;
+        }
+
+        void delete() {
+            writer.delete();
+        }
+    }
+
+    private final class SpilledItem implements Comparable<SpilledItem> {
+        final int index;
+        final T item;
+        final T adjustedItem;
+
+        SpilledItem(int index, T item, T adjustedItem) {
+            this.index = index;
+            this.item = item;
+            this.adjustedItem = adjustedItem;
+        }
+
+        @Override
+        public int compareTo(SpilledItem other) {
+            return adjustedItem.compareTo(other.adjustedItem);
+        }
+    }
+
+    /**
+     * Reads the records of one spilled run back in order.
+     */
+    private final class SpilledRunCursor {
+        private final FileChannel channel;
+        private final boolean isOldDex;
+        private final long endPosition;
+        private long readPosition;
+        private ByteBuffer block;
+        int index;
+        int offset;
+        T item;
+
+        SpilledRunCursor(FileChannel channel, boolean isOldDex, long startPosition, long endPosition) {
+            this.channel = channel;
+            this.isOldDex = isOldDex;
+            this.readPosition = startPosition;
+            this.endPosition = endPosition;
+            this.block = ByteBuffer.allocate(SPILL_BLOCK_SIZE);
+            this.block.order(ByteOrder.LITTLE_ENDIAN);
+            this.block.limit(0);
+        }
+
+        boolean moveToNext() throws IOException {
+            if (!ensureAvailable(SPILL_RECORD_HEADER_SIZE)) {
+                item = null;
+                return false;
+            }
+            index = block.getInt();
+            offset = block.getInt();
+            int length = block.getInt();
+            if (!ensureAvailable(length)) {
+                throw new EOFException("unexpected end of spilled run in " + getClass().getSimpleName());
+            }
+            byte[] itemData = new byte[length];
+            block.get(itemData);
+            T spilledItem = nextItem(new DexDataBuffer(ByteBuffer.wrap(itemData)));
+            if (spilledItem instanceof Item) {
+                // nextItem takes the position in spill file as offset, restore the one in dex.
+                ((Item<?>) spilledItem).off = offset;
+            }
+            item = adjustCollectedItem(isOldDex, spilledItem);
+            return true;
+        }
+
+        private boolean ensureAvailable(int size) throws IOException {
+            if (block.remaining() >= size) {
+                return true;
+            }
+            if (block.remaining() + (endPosition - readPosition) < size) {
+                return false;
+            }
+            block.compact();
+            if (block.capacity() < size) {
+                ByteBuffer largerBlock = ByteBuffer.allocate(size);
+                largerBlock.order(ByteOrder.LITTLE_ENDIAN);
+                block.flip();
+                largerBlock.put(block);
+                block = largerBlock;
+            }
+            while (block.position() < size) {
+                block.limit((int) Math.min(block.capacity(), block.position() + (endPosition - readPosition)));
+                int readCount = channel.read(block, readPosition);
+                if (readCount < 0) {
+                    throw new EOFException("unexpected end of spill file");
+                }
+                readPosition += readCount;
+            }
+            block.flip();
+            return true;
+        }
+    }
+
+    /**
+     * K-way merge of spilled runs. Equal items are taken in index order, which gives the same
+     * order as a stable sort of the whole section does.
+     */
+    private final class MergedRunSource implements SortedItemSource<T> {
+        private final PriorityQueue<SpilledRunCursor> queue;
+        private SpilledRunCursor head;
+
+        MergedRunSource(List<SpilledRunCursor> cursors) throws IOException {
+            this.queue = new PriorityQueue<>(Math.max(1, cursors.size()), new Comparator<SpilledRunCursor>() {
+                @Override
+                public int compare(SpilledRunCursor lhs, SpilledRunCursor rhs) {
+                    int res = lhs.item.compareTo(rhs.item);
+                    if (res != 0) {
+                        return res;
+                    }
+                    return CompareUtils.sCompare(lhs.index, rhs.index);
+                }
+            });
+            for (SpilledRunCursor cursor : cursors) {
+                if (cursor.moveToNext()) {
+                    queue.add(cursor);
+                }
+            }
+            this.head = queue.poll();
+        }
+
+        @Override
+        public boolean hasItem() {
+            return head != null;
+        }
+
+        @Override
+        public int index() {
+            return head.index;
+        }
+
+        @Override
+        public int offset() {
+            return head.offset;
+        }
+
+        @Override
+        public T item() {
+            return head.item;
+        }
+
+        @Override
+        public void moveToNext() throws IOException {
+            if (head.moveToNext()) {
+                queue.add(head);
+            }
+            head = queue.poll();
+        }
+    }
+
+    /**
+     * Int records sorted by their key, a compact replacement of Map&lt;Integer, ...&gt;
+     * when the values are ints too.
+     */
+    private static final class IntRecordTable {
+        private final int stride;
+        private int[] data;
+        private int size = 0;
+
+        IntRecordTable(int columnCount) {
+            this.stride = columnCount + 1;
+            this.data = new int[16 * stride];
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the new record.
+         */
+        int append(int key) {
+            if ((size + 1) * stride > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size * stride] = key;
+            return size++;
+        }
+
+        void appendCopy(IntRecordTable other, int otherRecord) {
+            int record = append(other.key(otherRecord));
+            System.arraycopy(other.data, otherRecord * other.stride + 1, data, record * stride + 1, stride - 1);
+        }
+
+        int key(int record) {
+            return data[record * stride];
+        }
+
+        int get(int record, int column) {
+            return data[record * stride + 1 + column];
+        }
+
+        void set(int record, int column, int value) {
+            data[record * stride + 1 + column] = value;
+        }
+
+        void sortByKey() {
+            boolean isSorted = true;
+            for (int i = 1; i < size && isSorted; ++i) {
+                isSorted = key(i - 1) <= key(i);
+            }
+            if (isSorted) {
+                return;
+            }
+            long[] keyAndRecords = new long[size];
+            for (int i = 0; i < size; ++i) {
+                keyAndRecords[i] = ((long) key(i) << 32) | i;
+            }
+            Arrays.sort(keyAndRecords);
+            int[] sortedData = new int[data.length];
+            for (int i = 0; i < size; ++i) {
+                int record = (int) keyAndRecords[i];
+                System.arraycopy(data, record * stride, sortedData, i * stride, stride);
+            }
+            data = sortedData;
+        }
+
+        /**
+         * @return record of key, or -1 if there is none. Only valid after {@link #sortByKey()}.
+         */
+        int find(int key) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midKey = key(mid);
+                if (midKey < key) {
+                    low = mid + 1;
+                } else
+                if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
 }
@@ -42,6 +42,11 @@ public class FieldIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<FieldId
         return section.readFieldId();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, FieldId item) {
+        buffer.writeFieldId(item);
+    }
+
     @Override
     protected int getItemSize(FieldId item) {
         return SizeOf.MEMBER_ID_ITEM;
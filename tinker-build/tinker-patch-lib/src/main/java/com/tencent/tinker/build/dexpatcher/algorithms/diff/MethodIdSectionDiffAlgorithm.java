@@ -42,6 +42,11 @@ public class MethodIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Method
         return section.readMethodId();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, MethodId item) {
+        buffer.writeMethodId(item);
+    }
+
     @Override
     protected int getItemSize(MethodId item) {
         return SizeOf.MEMBER_ID_ITEM;
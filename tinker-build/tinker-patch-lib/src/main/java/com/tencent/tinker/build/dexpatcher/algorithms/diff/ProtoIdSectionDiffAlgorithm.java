@@ -42,6 +42,11 @@ public class ProtoIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<ProtoId
         return section.readProtoId();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, ProtoId item) {
+        buffer.writeProtoId(item);
+    }
+
     @Override
     protected int getItemSize(ProtoId item) {
         return SizeOf.PROTO_ID_ITEM;
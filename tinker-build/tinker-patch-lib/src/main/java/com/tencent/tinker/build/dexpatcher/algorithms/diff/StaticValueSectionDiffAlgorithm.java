@@ -41,6 +41,11 @@ public class StaticValueSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Enc
         return section.readEncodedArray();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, EncodedValue item) {
+        buffer.writeEncodedArray(item);
+    }
+
     @Override
     protected int getItemSize(EncodedValue item) {
         return item.byteCountInDex();
@@ -40,6 +40,11 @@ public class StringDataSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Stri
         return section.readStringData();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, StringData item) {
+        buffer.writeStringData(item);
+    }
+
     @Override
     protected int getItemSize(StringData item) {
         return item.byteCountInDex();
@@ -41,6 +41,11 @@ public class TypeIdSectionDiffAlgorithm extends DexSectionDiffAlgorithm<Integer>
         return section.readInt();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, Integer item) {
+        buffer.writeInt(item);
+    }
+
     @Override
     protected int getItemSize(Integer item) {
         return SizeOf.UINT;
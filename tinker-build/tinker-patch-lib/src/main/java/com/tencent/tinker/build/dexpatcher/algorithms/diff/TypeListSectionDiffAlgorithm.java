@@ -41,6 +41,11 @@ public class TypeListSectionDiffAlgorithm extends DexSectionDiffAlgorithm<TypeLi
         return section.readTypeList();
     }
 
+    @Override
+    protected void writeItem(DexDataBuffer buffer, TypeList item) {
+        buffer.writeTypeList(item);
+    }
+
     @Override
     protected int getItemSize(TypeList item) {
         return item.byteCountInDex();
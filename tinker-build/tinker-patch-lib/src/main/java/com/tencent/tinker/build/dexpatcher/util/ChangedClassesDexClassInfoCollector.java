@@ -48,6 +48,7 @@ public class ChangedClassesDexClassInfoCollector {
     private static final DexPatcherLogger LOGGER = new DexPatcherLogger();
     private final Set<String> excludedClassPatterns = new HashSet<>();
     private boolean includeRefererToRefererAffectedClasses = false;
+    private boolean isReferrerIndexEnabled = true;
 
     public ChangedClassesDexClassInfoCollector setExcludedClassPatterns(Collection<String> loaderClassPatterns) {
         this.excludedClassPatterns.clear();
@@ -70,6 +71,15 @@ public class ChangedClassesDexClassInfoCollector {
         return this;
     }
 
+    /**
+     * Without the index every class in old dexes is scanned for references to the referrer
+     * affected classes. The collected classes are the same, only for checking the index.
+     */
+    ChangedClassesDexClassInfoCollector setReferrerIndexEnabled(boolean enabled) {
+        this.isReferrerIndexEnabled = enabled;
+        return this;
+    }
+
     public Set<DexClassInfo> doCollect(DexGroup oldDexGroup, DexGroup newDexGroup) {
         final Set<String> classDescsInResult = new HashSet<>();
         final Set<DexClassInfo> result = new HashSet<>();
@@ -104,13 +114,28 @@ public class ChangedClassesDexClassInfoCollector {
             dexClassCmptor.startCheck(oldDexGroup, newDexGroup);
 
             Set<String> referrerAffectedChangedClassDescs = dexClassCmptor.getChangedClassDescToInfosMap().keySet();
-            Set<DexClassInfo> oldClassInfos = oldDexGroup.getClassInfosInDexesWithDuplicateCheck();
 
-            for (DexClassInfo oldClassInfo : oldClassInfos) {
-                if (!classDescsInResult.contains(oldClassInfo.classDesc)
-                        && isClassReferToAnyClasses(oldClassInfo, referrerAffectedChangedClassDescs)) {
-                    LOGGER.i(TAG, "Add class %s in old dex to changed classes dex since it is affected by modified referee.", oldClassInfo.classDesc);
-                    result.add(oldClassInfo);
+            if (isReferrerIndexEnabled) {
+                // Referrers are taken from the reverse reference index of old dexes, which is
+                // built once per dex group, so no class is scanned here.
+                Set<DexClassInfo> referrerClassInfos = DexClassReferrerIndex.of(oldDexGroup)
+                        .getReferrerClassInfos(referrerAffectedChangedClassDescs);
+
+                for (DexClassInfo oldClassInfo : referrerClassInfos) {
+                    if (!classDescsInResult.contains(oldClassInfo.classDesc)) {
+                        LOGGER.i(TAG, "Add class %s in old dex to changed classes dex since it is affected by modified referee.", oldClassInfo.classDesc);
+                        result.add(oldClassInfo);
+                    }
+                }
+            } else {
+                Set<DexClassInfo> oldClassInfos = oldDexGroup.getClassInfosInDexesWithDuplicateCheck();
+
+                for (DexClassInfo oldClassInfo : oldClassInfos) {
+                    if (!classDescsInResult.contains(oldClassInfo.classDesc)
+                            && isClassReferToAnyClasses(oldClassInfo, referrerAffectedChangedClassDescs)) {
+                        LOGGER.i(TAG, "Add class %s in old dex to changed classes dex since it is affected by modified referee.", oldClassInfo.classDesc);
+                        result.add(oldClassInfo);
+                    }
                 }
             }
         }
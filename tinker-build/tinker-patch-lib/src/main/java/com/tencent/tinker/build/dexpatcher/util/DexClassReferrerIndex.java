@@ -0,0 +1,352 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher.util;
+
+import com.tencent.tinker.android.dex.ClassData;
+import com.tencent.tinker.android.dex.ClassDef;
+import com.tencent.tinker.android.dex.Code;
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.FieldId;
+import com.tencent.tinker.android.dex.MethodId;
+import com.tencent.tinker.android.dx.instruction.InstructionCodec;
+import com.tencent.tinker.android.dx.instruction.InstructionReader;
+import com.tencent.tinker.android.dx.instruction.InstructionVisitor;
+import com.tencent.tinker.android.dx.instruction.ShortArrayCodeInput;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
+import static com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+
+/**
+ * Maps each class to the classes whose code refers to it in a {@link DexGroup}.
+ *
+ * A class refers to another one the same way ChangedClassesDexClassInfoCollector checks it:
+ * by a type index, or by a field or method declared in it, in any instruction of its methods.
+ * All code is scanned once when the index is built, after that looking up referrers of some
+ * classes costs as much as the referrers found. {@link #of(DexGroup)} keeps one index per group.
+ */
+public final class DexClassReferrerIndex {
+    private static final int CLASS_SCAN_BATCH_SIZE = 32;
+
+    private static final Map<DexGroup, DexClassReferrerIndex> INDEX_CACHE = new WeakHashMap<>();
+
+    private final Map<String, Set<String>> refereeToReferrerClassDescsMap;
+
+    private final Map<String, DexClassInfo> classDescToInfoMap;
+
+    private DexClassReferrerIndex(
+            Map<String, Set<String>> refereeToReferrerClassDescsMap,
+            Map<String, DexClassInfo> classDescToInfoMap
+    ) {
+        this.refereeToReferrerClassDescsMap = refereeToReferrerClassDescsMap;
+        this.classDescToInfoMap = classDescToInfoMap;
+    }
+
+    /**
+     * Returns the index of {@code dexGroup}, which is built on the first call and kept as long
+     * as the group is.
+     */
+    public static DexClassReferrerIndex of(DexGroup dexGroup) {
+        synchronized (INDEX_CACHE) {
+            DexClassReferrerIndex index = INDEX_CACHE.get(dexGroup);
+            if (index == null) {
+                index = build(dexGroup);
+                INDEX_CACHE.put(dexGroup, index);
+            }
+            return index;
+        }
+    }
+
+    public static DexClassReferrerIndex build(DexGroup dexGroup) {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return build(pool, dexGroup);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static DexClassReferrerIndex build(ForkJoinPool pool, DexGroup dexGroup) {
+        final List<ForkJoinTask<DexRefs>> dexRefsTasks = new ArrayList<>();
+        final Map<Dex, Boolean> visitedDexes = new IdentityHashMap<>();
+        for (final Dex dex : dexGroup.dexes) {
+            if (visitedDexes.put(dex, Boolean.TRUE) != null) {
+                continue;
+            }
+            dexRefsTasks.add(pool.submit(new Callable<DexRefs>() {
+                @Override
+                public DexRefs call() {
+                    return new DexRefs(dex);
+                }
+            }));
+        }
+
+        final List<DexRefs> allDexRefs = new ArrayList<>();
+        int classCount = 0;
+        for (ForkJoinTask<DexRefs> task : dexRefsTasks) {
+            final DexRefs dexRefs = task.join();
+            allDexRefs.add(dexRefs);
+            classCount += dexRefs.classDefs.length;
+        }
+
+        final DexRefs[] owners = new DexRefs[classCount];
+        final ClassDef[] classDefs = new ClassDef[classCount];
+        int classIndex = 0;
+        for (DexRefs dexRefs : allDexRefs) {
+            for (ClassDef classDef : dexRefs.classDefs) {
+                owners[classIndex] = dexRefs;
+                classDefs[classIndex] = classDef;
+                ++classIndex;
+            }
+        }
+
+        final BitSet[] refTypeIndicesOfClasses = new BitSet[classCount];
+        pool.invoke(new ClassScanTask(owners, classDefs, refTypeIndicesOfClasses, 0, classCount));
+
+        final Map<String, Set<String>> refereeToReferrerClassDescsMap = new HashMap<>();
+        for (int i = 0; i < classCount; ++i) {
+            final String[] typeNames = owners[i].typeNames;
+            final String referrerClassDesc = typeNames[classDefs[i].typeIndex];
+            final BitSet refTypeIndices = refTypeIndicesOfClasses[i];
+            for (int typeIndex = refTypeIndices.nextSetBit(0); typeIndex >= 0;
+                 typeIndex = refTypeIndices.nextSetBit(typeIndex + 1)) {
+                final String refereeClassDesc = typeNames[typeIndex];
+                Set<String> referrerClassDescs = refereeToReferrerClassDescsMap.get(refereeClassDesc);
+                if (referrerClassDescs == null) {
+                    referrerClassDescs = new HashSet<>();
+                    refereeToReferrerClassDescsMap.put(refereeClassDesc, referrerClassDescs);
+                }
+                referrerClassDescs.add(referrerClassDesc);
+            }
+        }
+
+        final Map<String, DexClassInfo> classDescToInfoMap = new HashMap<>();
+        for (DexClassInfo classInfo : dexGroup.getClassInfosInDexesWithDuplicateCheck()) {
+            classDescToInfoMap.put(classInfo.classDesc, classInfo);
+        }
+        return new DexClassReferrerIndex(refereeToReferrerClassDescsMap, classDescToInfoMap);
+    }
+
+    public Set<String> getReferrerClassDescs(String refereeClassDesc) {
+        final Set<String> referrerClassDescs = refereeToReferrerClassDescsMap.get(refereeClassDesc);
+        if (referrerClassDescs == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(referrerClassDescs);
+    }
+
+    public Set<String> getReferrerClassDescs(Collection<String> refereeClassDescs) {
+        final Set<String> result = new HashSet<>();
+        for (String refereeClassDesc : refereeClassDescs) {
+            final Set<String> referrerClassDescs = refereeToReferrerClassDescsMap.get(refereeClassDesc);
+            if (referrerClassDescs != null) {
+                result.addAll(referrerClassDescs);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns infos of the classes referring to any of {@code refereeClassDescs}.
+     */
+    public Set<DexClassInfo> getReferrerClassInfos(Collection<String> refereeClassDescs) {
+        final Set<DexClassInfo> result = new HashSet<>();
+        for (String referrerClassDesc : getReferrerClassDescs(refereeClassDescs)) {
+            result.add(classDescToInfoMap.get(referrerClassDesc));
+        }
+        return result;
+    }
+
+    /**
+     * Type names and declaring classes of fields and methods of a dex, decoded once so that
+     * scanning code only deals with ints.
+     */
+    private static final class DexRefs {
+        final Dex dex;
+        final ClassDef[] classDefs;
+        final String[] typeNames;
+        final int[] fieldDeclaringClassIndices;
+        final int[] methodDeclaringClassIndices;
+
+        DexRefs(Dex dex) {
+            this.dex = dex;
+
+            final List<ClassDef> dexClassDefs = new ArrayList<>();
+            for (ClassDef classDef : dex.classDefs()) {
+                dexClassDefs.add(classDef);
+            }
+            classDefs = dexClassDefs.toArray(new ClassDef[dexClassDefs.size()]);
+
+            final List<String> dexTypeNames = dex.typeNames();
+            typeNames = dexTypeNames.toArray(new String[dexTypeNames.size()]);
+
+            final List<FieldId> fieldIds = dex.fieldIds();
+            fieldDeclaringClassIndices = new int[fieldIds.size()];
+            for (int i = 0; i < fieldDeclaringClassIndices.length; ++i) {
+                fieldDeclaringClassIndices[i] = fieldIds.get(i).declaringClassIndex;
+            }
+
+            final List<MethodId> methodIds = dex.methodIds();
+            methodDeclaringClassIndices = new int[methodIds.size()];
+            for (int i = 0; i < methodDeclaringClassIndices.length; ++i) {
+                methodDeclaringClassIndices[i] = methodIds.get(i).declaringClassIndex;
+            }
+        }
+    }
+
+    private static final class ClassScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DexRefs[] owners;
+        private final ClassDef[] classDefs;
+        private final BitSet[] results;
+        private final int from;
+        private final int to;
+
+        ClassScanTask(DexRefs[] owners, ClassDef[] classDefs, BitSet[] results, int from, int to) {
+            this.owners = owners;
+            this.classDefs = classDefs;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CLASS_SCAN_BATCH_SIZE) {
+                for (int i = from; i < to; ++i) {
+                    results[i] = scanClass(owners[i], classDefs[i]);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(
+                    new ClassScanTask(owners, classDefs, results, from, mid),
+                    new ClassScanTask(owners, classDefs, results, mid, to)
+            );
+        }
+
+        private static BitSet scanClass(DexRefs dexRefs, ClassDef classDef) {
+            final BitSet refTypeIndices = new BitSet();
+            if (classDef.classDataOffset == ClassDef.NO_OFFSET) {
+                return refTypeIndices;
+            }
+            final ClassData classData = dexRefs.dex.readClassData(classDef);
+            final RefTypeCollector collector = new RefTypeCollector(dexRefs, refTypeIndices);
+            scanMethods(dexRefs.dex, classData.directMethods, collector);
+            scanMethods(dexRefs.dex, classData.virtualMethods, collector);
+            return refTypeIndices;
+        }
+
+        private static void scanMethods(Dex dex, ClassData.Method[] methods, RefTypeCollector collector) {
+            for (ClassData.Method method : methods) {
+                if (method.codeOffset == ClassDef.NO_OFFSET) {
+                    continue;
+                }
+                final Code methodCode = dex.readCode(method);
+                final InstructionReader ir = new InstructionReader(new ShortArrayCodeInput(methodCode.instructions));
+                try {
+                    ir.accept(collector);
+                } catch (EOFException e) {
+                    // Should not be here.
+                }
+            }
+        }
+    }
+
+    private static final class RefTypeCollector extends InstructionVisitor {
+        private final DexRefs dexRefs;
+        private final BitSet refTypeIndices;
+
+        RefTypeCollector(DexRefs dexRefs, BitSet refTypeIndices) {
+            super(null);
+            this.dexRefs = dexRefs;
+            this.refTypeIndices = refTypeIndices;
+        }
+
+        @Override
+        public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+            processIndexByType(index, indexType);
+        }
+
+        @Override
+        public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+            processIndexByType(index, indexType);
+        }
+
+        private void processIndexByType(int index, int indexType) {
+            switch (indexType) {
+                case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                    refTypeIndices.set(index);
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                    refTypeIndices.set(dexRefs.fieldDeclaringClassIndices[index]);
+                    break;
+                }
+                case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                    refTypeIndices.set(dexRefs.methodDeclaringClassIndices[index]);
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -22,7 +22,8 @@ import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 
 
 public class ClassSimDef {
@@ -30,20 +31,27 @@ public class ClassSimDef {
     int methodCount;
     int fieldCount;
     byte[] bytes;
-    HashSet<String> refFieldSet;
-    HashSet<String> refMtdSet;
+    /**
+     * Sorted, distinct reference ids of the fields and methods this class defines or refers to.
+     */
+    int[] refFieldIds;
+    int[] refMtdIds;
 
-    public ClassSimDef(byte[] bytes, HashSet<String> refFieldSet, HashSet<String> refMtdSet) {
+    /**
+     * Scan the class on its own, so that it can be done on any thread before we know which
+     * dex the class goes to. Call {@link #countNewRefs(DexRefData)} to check it against a dex.
+     */
+    public ClassSimDef(byte[] bytes, RefSymbolTable symbols) {
         this.bytes = bytes;
-        this.refFieldSet = refFieldSet;
-        this.refMtdSet = refMtdSet;
-        init();
+        init(symbols);
     }
 
-    public void init() {
+    private void init(final RefSymbolTable symbols) {
         methodCount = 0;
         fieldCount = 0;
 
+        final IntList fieldRefs = new IntList();
+        final IntList mtdRefs = new IntList();
         ClassReader cr = new ClassReader(bytes);
         ClassVisitor cv = new ClassVisitor(Opcodes.ASM4) {
             String className;
@@ -56,32 +64,19 @@ public class ClassSimDef {
 
             @Override
             public MethodVisitor visitMethod(int access, String mtdName, String mtdDesc, String mtdSig, String[] exceptions) {
-
-                String defMtd = className + ":" + mtdName + ":" + mtdDesc;
-                if (!refMtdSet.contains(defMtd)) {
-                    refMtdSet.add(defMtd);
-                    methodCount++;
-                }
+                mtdRefs.add(symbols.refId(className, mtdName, mtdDesc));
 
                 MethodVisitor mv = super.visitMethod(access, mtdName, mtdDesc, mtdSig, exceptions);
                 mv = new MethodVisitor(Opcodes.ASM4, mv) {
                     @Override
                     public void visitFieldInsn(int opcode, String owner, String fName, String fDesc) {
-                        String invokeField = owner + ":" + fName + ":" + fDesc;
-                        if (!refFieldSet.contains(invokeField)) {
-                            refFieldSet.add(invokeField);
-                            fieldCount++;
-                        }
+                        fieldRefs.add(symbols.refId(owner, fName, fDesc));
                         super.visitFieldInsn(opcode, owner, fName, fDesc);
                     }
 
                     @Override
                     public void visitMethodInsn(int opcode, String owner, String mName, String mDesc) {
-                        String invokeMtd = owner + ":" + mName + ":" + mDesc;
-                        if (!refMtdSet.contains(invokeMtd)) {
-                            refMtdSet.add(invokeMtd);
-                            methodCount++;
-                        }
+                        mtdRefs.add(symbols.refId(owner, mName, mDesc));
                         super.visitMethodInsn(opcode, owner, mName, mDesc);
                     }
                 };
@@ -90,14 +85,66 @@ public class ClassSimDef {
 
             @Override
             public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-                String fieldDesc = className + ":" + name + ":" + desc;
-                if (!refFieldSet.contains(fieldDesc)) {
-                    refFieldSet.add(fieldDesc);
-                    fieldCount++;
-                }
+                fieldRefs.add(symbols.refId(className, name, desc));
                 return super.visitField(access, name, desc, signature, value);
             }
         };
         cr.accept(cv, 0);
+        refFieldIds = fieldRefs.toSortedDistinctArray();
+        refMtdIds = mtdRefs.toSortedDistinctArray();
+    }
+
+    /**
+     * Set methodCount and fieldCount to the number of references of this class which are not
+     * in dexRefData yet, dexRefData is left unchanged.
+     */
+    public void countNewRefs(DexRefData dexRefData) {
+        methodCount = countMissing(dexRefData.refMtdIds, refMtdIds);
+        fieldCount = countMissing(dexRefData.refFieldIds, refFieldIds);
+    }
+
+    /**
+     * Add the references of this class to dexRefData once the class is written to its dex.
+     */
+    public void addRefsTo(DexRefData dexRefData) {
+        for (int id : refMtdIds) {
+            dexRefData.refMtdIds.set(id);
+        }
+        for (int id : refFieldIds) {
+            dexRefData.refFieldIds.set(id);
+        }
+    }
+
+    private static int countMissing(BitSet dexRefs, int[] classRefs) {
+        int missing = 0;
+        for (int id : classRefs) {
+            if (!dexRefs.get(id)) {
+                ++missing;
+            }
+        }
+        return missing;
+    }
+
+    private static final class IntList {
+        private int[] values = new int[64];
+        private int   size   = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+
+        int[] toSortedDistinctArray() {
+            Arrays.sort(values, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; ++i) {
+                if (distinct == 0 || values[i] != values[distinct - 1]) {
+                    values[distinct++] = values[i];
+                }
+            }
+            return Arrays.copyOf(values, distinct);
+        }
     }
-}
\ No newline at end of file
+}
@@ -16,14 +16,17 @@
 
 package com.tencent.tinker.build.immutable;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
 
 public class DexRefData {
     int methodNum;
     int fieldNum;
-    public Set<String> refFields;
-    public Set<String> refMtds;
+    /**
+     * Ids from {@link RefSymbolTable#refId(String, String, String)} of the fields and methods
+     * referenced by the classes in this dex.
+     */
+    public final BitSet refFieldIds;
+    public final BitSet refMtdIds;
 
     DexRefData() {
         this(0, 0);
@@ -32,7 +35,7 @@ public class DexRefData {
     DexRefData(int methodNum, int fieldNum) {
         this.methodNum = methodNum;
         this.fieldNum = fieldNum;
-        refFields = new HashSet<>();
-        refMtds = new HashSet<>();
+        refFieldIds = new BitSet();
+        refMtdIds = new BitSet();
     }
-}
\ No newline at end of file
+}
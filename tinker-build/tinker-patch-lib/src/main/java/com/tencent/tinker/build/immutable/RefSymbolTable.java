@@ -0,0 +1,72 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.immutable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns owners, names and descriptors of field and method references into int ids, and each
+ * owner/name/descriptor triple into a dense reference id, so that per dex reference sets can be
+ * bitsets instead of sets of "owner:name:desc" strings. Safe to use from several threads.
+ */
+public final class RefSymbolTable {
+    private static final int SYMBOL_BITS = 21;
+    private static final int MAX_SYMBOLS = 1 << SYMBOL_BITS;
+
+    private final ConcurrentHashMap<String, Integer> symbolIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Integer>   refIds    = new ConcurrentHashMap<>();
+    private final AtomicInteger                      symbolSeq = new AtomicInteger();
+    private final AtomicInteger                      refSeq    = new AtomicInteger();
+
+    public int symbolId(String symbol) {
+        Integer id = symbolIds.get(symbol);
+        if (id == null) {
+            final int newId = symbolSeq.getAndIncrement();
+            if (newId >= MAX_SYMBOLS) {
+                throw new IllegalStateException("too many distinct reference symbols: " + newId);
+            }
+            id = symbolIds.putIfAbsent(symbol, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return a dense id of owner.name:desc, the same id for the same reference on any thread.
+     */
+    public int refId(String owner, String name, String desc) {
+        final long key = ((long) symbolId(owner) << (SYMBOL_BITS * 2))
+            | ((long) symbolId(name) << SYMBOL_BITS)
+            | symbolId(desc);
+        Integer id = refIds.get(key);
+        if (id == null) {
+            final int newId = refSeq.getAndIncrement();
+            id = refIds.putIfAbsent(key, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    public int refCount() {
+        return refSeq.get();
+    }
+}
@@ -21,6 +21,7 @@ import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
 import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.HighRatioDeflater;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -69,6 +70,10 @@ public class Configuration {
     protected static final String ATTR_SUPPORT_HOTPLUG_COMPONENT = "supportHotplugComponent";
     protected static final String ATTR_USE_SIGN                  = "useSign";
     protected static final String ATTR_SEVEN_ZIP_PATH            = "sevenZipPath";
+    protected static final String ATTR_COMPRESS_EFFORT           = "compressEffort";
+    protected static final String ATTR_DIFF_CACHE_DIR            = "diffCacheDir";
+    protected static final String ATTR_DIFF_CACHE_MAX_SIZE       = "diffCacheMaxSize";
+    protected static final String ATTR_MOVE_AWARE_DEX_DIFF       = "moveAwareDexDiff";
     protected static final String ATTR_DEX_MODE                  = "dexMode";
     protected static final String ATTR_PATTERN                   = "pattern";
     protected static final String ATTR_IGNORE_CHANGE             = "ignoreChange";
@@ -110,6 +115,10 @@ public class Configuration {
     public HashSet<String>  mDexIgnoreWarningLoaderPattern;
 
     public boolean          mDexRaw;
+    /**
+     * keep classes moved between classN dexes in their old dex when it makes dex diffs smaller
+     */
+    public boolean          mMoveAwareDexDiff;
     /**
      * resource config
      */
@@ -131,6 +140,19 @@ public class Configuration {
      * sevenZip path config
      */
     public String                  mSevenZipPath;
+    /**
+     * effort of the in-process high ratio recompression of the signed patch,
+     * 0 or less means fallback to the external 7za at mSevenZipPath
+     */
+    public int                     mCompressEffort;
+    /**
+     * directory of the diff results reused across builds, null means no cache
+     */
+    public File                    mDiffCacheDir;
+    /**
+     * max size of mDiffCacheDir in MB, 0 or less means no limit
+     */
+    public int                     mDiffCacheMaxSize;
     /**
      * sign data
      */
@@ -181,6 +203,8 @@ public class Configuration {
         mNewApkFile = newApkFile;
         mNewApkPath = newApkFile.getAbsolutePath();
         mLargeModSize = 100;
+        mCompressEffort = HighRatioDeflater.DEFAULT_EFFORT;
+        mDiffCacheMaxSize = 512;
         readXmlConfig(config);
         createTempDirectory();
         checkInputPatternParameter();
@@ -254,6 +278,12 @@ public class Configuration {
         mSupportHotplugComponent = param.supportHotplugComponent;
 
         mSevenZipPath = param.sevenZipPath;
+        mCompressEffort = param.compressEffort;
+        if (param.diffCacheDir != null && param.diffCacheDir.length() > 0) {
+            mDiffCacheDir = new File(param.diffCacheDir);
+        }
+        mDiffCacheMaxSize = param.diffCacheMaxSize;
+        mMoveAwareDexDiff = param.moveAwareDexDiff;
         mPackageFields = param.configFields;
 
         mUseSignAPk = param.useSign;
@@ -280,6 +310,10 @@ public class Configuration {
         sb.append("isRemoveLoaderForAllDex:" + mRemoveLoaderForAllDex + "\n");
         sb.append("isProtectedApp:" + mIsProtectedApp + "\n");
         sb.append("7-ZipPath:" + mSevenZipPath + "\n");
+        sb.append("compressEffort:" + mCompressEffort + "\n");
+        sb.append("diffCacheDir:" + mDiffCacheDir + "\n");
+        sb.append("diffCacheMaxSize:" + mDiffCacheMaxSize + "\n");
+        sb.append("isMoveAwareDexDiff:" + mMoveAwareDexDiff + "\n");
         sb.append("useSignAPk:" + mUseSignAPk + "\n");
 
         sb.append("package meta fields: \n");
@@ -480,6 +514,14 @@ public class Configuration {
                         } else {
                             mSevenZipPath = "7za";
                         }
+                    } else if (tagName.equals(ATTR_COMPRESS_EFFORT)) {
+                        mCompressEffort = Integer.valueOf(value);
+                    } else if (tagName.equals(ATTR_DIFF_CACHE_DIR)) {
+                        mDiffCacheDir = new File(value);
+                    } else if (tagName.equals(ATTR_DIFF_CACHE_MAX_SIZE)) {
+                        mDiffCacheMaxSize = Integer.valueOf(value);
+                    } else if (tagName.equals(ATTR_MOVE_AWARE_DEX_DIFF)) {
+                        mMoveAwareDexDiff = value.equals("true");
                     } else {
                         System.err.println("unknown property tag " + tagName);
                     }
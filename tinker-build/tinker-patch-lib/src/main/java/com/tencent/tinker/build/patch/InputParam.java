@@ -81,6 +81,22 @@ public class InputParam {
      * tinkerPatch.sevenZip
      */
     public final String                  sevenZipPath;
+    /**
+     * tinkerPatch.sevenZip compressEffort
+     */
+    public final int                     compressEffort;
+    /**
+     * tinkerPatch diffCacheDir
+     */
+    public final String                  diffCacheDir;
+    /**
+     * tinkerPatch diffCacheMaxSize
+     */
+    public final int                     diffCacheMaxSize;
+    /**
+     * tinkerPatch moveAwareDexDiff
+     */
+    public final boolean                 moveAwareDexDiff;
 
     /**
      * TinkerPatch ark
@@ -117,6 +133,10 @@ public class InputParam {
             HashMap<String, String> configFields,
 
         String sevenZipPath,
+        int compressEffort,
+        String diffCacheDir,
+        int diffCacheMaxSize,
+        boolean moveAwareDexDiff,
         String arkHotPatchPath,
         String arkHotPatchName
     ) {
@@ -149,6 +169,10 @@ public class InputParam {
         this.configFields = configFields;
 
         this.sevenZipPath = sevenZipPath;
+        this.compressEffort = compressEffort;
+        this.diffCacheDir = diffCacheDir;
+        this.diffCacheMaxSize = diffCacheMaxSize;
+        this.moveAwareDexDiff = moveAwareDexDiff;
         this.arkHotPatchPath = arkHotPatchPath;
         this.arkHotPatchName = arkHotPatchName;
     }
@@ -211,6 +235,22 @@ public class InputParam {
          * tinkerPatch.sevenZip
          */
         private String                  sevenZipPath;
+        /**
+         * tinkerPatch.sevenZip compressEffort
+         */
+        private int                     compressEffort;
+        /**
+         * tinkerPatch diffCacheDir
+         */
+        private String                  diffCacheDir;
+        /**
+         * tinkerPatch diffCacheMaxSize
+         */
+        private int                     diffCacheMaxSize;
+        /**
+         * tinkerPatch moveAwareDexDiff
+         */
+        private boolean                 moveAwareDexDiff;
 
         /**
          * tinkerPatch ark
@@ -342,6 +382,26 @@ public class InputParam {
             return this;
         }
 
+        public Builder setCompressEffort(int compressEffort) {
+            this.compressEffort = compressEffort;
+            return this;
+        }
+
+        public Builder setDiffCacheDir(String diffCacheDir) {
+            this.diffCacheDir = diffCacheDir;
+            return this;
+        }
+
+        public Builder setDiffCacheMaxSize(int diffCacheMaxSize) {
+            this.diffCacheMaxSize = diffCacheMaxSize;
+            return this;
+        }
+
+        public Builder setMoveAwareDexDiff(boolean moveAwareDexDiff) {
+            this.moveAwareDexDiff = moveAwareDexDiff;
+            return this;
+        }
+
         public Builder setUseSign(boolean useSign) {
             this.useSign = useSign;
             return this;
@@ -384,6 +444,10 @@ public class InputParam {
                     useApplyResource,
                     configFields,
                     sevenZipPath,
+                    compressEffort,
+                    diffCacheDir,
+                    diffCacheMaxSize,
+                    moveAwareDexDiff,
                     arkHotPatchPath,
                     arkHotPatchName
             );
@@ -16,12 +16,17 @@
 
 package com.tencent.tinker.build.patch;
 
+import com.tencent.tinker.build.apkparser.AndroidParser;
 import com.tencent.tinker.build.builder.PatchBuilder;
 import com.tencent.tinker.build.decoder.ApkDecoder;
 import com.tencent.tinker.build.info.PatchInfo;
+import com.tencent.tinker.build.util.BuildTracer;
+import com.tencent.tinker.build.util.FileDigests;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TinkerPatchException;
+import com.tencent.tinker.build.util.TypedValue;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -62,30 +67,65 @@ public class Runner {
         Logger.d("-----------------------Tinker patch begin-----------------------");
 
         Logger.d(mConfig.toString());
+        BuildTracer.start();
+        FileDigests.clear();
+        BuildTracer.Span totalSpan = BuildTracer.begin("tinker patch");
         try {
             //gen patch
-            ApkDecoder decoder = new ApkDecoder(mConfig);
-            decoder.onAllPatchesStart();
-            decoder.patch(mConfig.mOldApkFile, mConfig.mNewApkFile);
-            decoder.onAllPatchesEnd();
+            BuildTracer.Span span = BuildTracer.begin("decode apks");
+            try {
+                ApkDecoder decoder = new ApkDecoder(mConfig);
+                decoder.onAllPatchesStart();
+                decoder.patch(mConfig.mOldApkFile, mConfig.mNewApkFile);
+                decoder.onAllPatchesEnd();
+            } finally {
+                span.end();
+            }
 
             //gen meta file and version file
-            PatchInfo info = new PatchInfo(mConfig);
-            info.gen();
+            span = BuildTracer.begin("gen patch info");
+            try {
+                PatchInfo info = new PatchInfo(mConfig);
+                info.gen();
+            } finally {
+                span.end();
+            }
 
             //build patch
-            PatchBuilder builder = new PatchBuilder(mConfig);
-            builder.buildPatch();
-
+            span = BuildTracer.begin("build patch");
+            try {
+                PatchBuilder builder = new PatchBuilder(mConfig);
+                builder.buildPatch();
+            } finally {
+                span.end();
+            }
         } catch (Throwable e) {
+            totalSpan.end();
+            stopTracer();
+            FileDigests.clear();
+            AndroidParser.clearCache();
             goToError(e, ERRNO_USAGE);
         }
+        totalSpan.end();
+        stopTracer();
+        FileDigests.clear();
+        AndroidParser.clearCache();
 
         Logger.d("Tinker patch done, total time cost: %fs", diffTimeFromBegin());
+        Logger.d("Tinker patch done, build phase trace: %s, summary: %s",
+            TypedValue.FILE_TRACE_JSON, TypedValue.FILE_TRACE_SUMMARY);
         Logger.d("Tinker patch done, you can go to file to find the output %s", mConfig.mOutFolder);
         Logger.d("-----------------------Tinker patch end-------------------------");
     }
 
+    private void stopTracer() {
+        try {
+            BuildTracer.stopAndReport(new File(mConfig.mOutFolder));
+        } catch (IOException e) {
+            Logger.e("Warning: failed to write build phase trace, reason: %s", e.getMessage());
+        }
+    }
+
     private void loadConfigFromGradle(InputParam inputParam) {
         try {
             mConfig = new Configuration(inputParam);
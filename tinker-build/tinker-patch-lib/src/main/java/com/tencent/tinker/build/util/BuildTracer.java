@@ -0,0 +1,377 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records nested build phase spans of the patch generator with wall time, cpu time,
+ * allocated bytes and peak heap, then exports them as a chrome trace-event json
+ * (open it with chrome://tracing) and a plain text summary table.
+ *
+ * Usage:
+ * <pre>
+ *     BuildTracer.Span span = BuildTracer.begin("dex diff", dexName);
+ *     try {
+ *         ...
+ *     } finally {
+ *         span.end();
+ *     }
+ * </pre>
+ * If the tracer was not started, {@link #begin} returns a span that records nothing.
+ */
+public final class BuildTracer {
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 10;
+
+    private static final Span NOOP_SPAN = new Span(null, null, 0, 0);
+
+    private static volatile BuildTracer sInstance = null;
+
+    private final long beginNanos;
+    private final ThreadMXBean threadMXBean;
+    private final boolean isCpuTimeSupported;
+    private final boolean isAllocatedBytesSupported;
+    private final List<Span> finishedSpans = new ArrayList<>();
+    private final Set<Span> openedSpans = Collections.newSetFromMap(new ConcurrentHashMap<Span, Boolean>());
+    private final ThreadLocal<Deque<Span>> spanStack = new ThreadLocal<Deque<Span>>() {
+        @Override
+        protected Deque<Span> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private final Thread heapSampler;
+
+    private BuildTracer() {
+        beginNanos = System.nanoTime();
+        threadMXBean = ManagementFactory.getThreadMXBean();
+        isCpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+        if (isCpuTimeSupported && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+        boolean allocSupported = false;
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            allocSupported = sunBean.isThreadAllocatedMemorySupported();
+            if (allocSupported && !sunBean.isThreadAllocatedMemoryEnabled()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+        isAllocatedBytesSupported = allocSupported;
+        heapSampler = new Thread("tinker-heap-sampler") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    final long usedHeap = getUsedHeap();
+                    for (Span span : openedSpans) {
+                        span.updatePeakHeap(usedHeap);
+                    }
+                    try {
+                        Thread.sleep(HEAP_SAMPLE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        heapSampler.setDaemon(true);
+    }
+
+    /**
+     * Start recording spans of current patch generating procedure.
+     */
+    public static synchronized void start() {
+        if (sInstance != null) {
+            sInstance.heapSampler.interrupt();
+        }
+        sInstance = new BuildTracer();
+        sInstance.heapSampler.start();
+    }
+
+    /**
+     * Stop recording and write trace json and summary table into {@code outDir}.
+     */
+    public static synchronized void stopAndReport(File outDir) throws IOException {
+        final BuildTracer tracer = sInstance;
+        if (tracer == null) {
+            return;
+        }
+        sInstance = null;
+        tracer.heapSampler.interrupt();
+        if (outDir == null) {
+            return;
+        }
+        tracer.writeTraceJson(new File(outDir, TypedValue.FILE_TRACE_JSON));
+        tracer.writeSummary(new File(outDir, TypedValue.FILE_TRACE_SUMMARY));
+    }
+
+    public static Span begin(String name) {
+        return begin(name, null);
+    }
+
+    public static Span begin(String name, String detail) {
+        final BuildTracer tracer = sInstance;
+        if (tracer == null) {
+            return NOOP_SPAN;
+        }
+        final Deque<Span> stack = tracer.spanStack.get();
+        final Span span = new Span(tracer, detail == null ? name : name + ": " + detail,
+                stack.size(), Thread.currentThread().getId());
+        span.beginNanos = System.nanoTime();
+        span.beginCpuNanos = tracer.getCurrentThreadCpuTime();
+        span.beginAllocatedBytes = tracer.getCurrentThreadAllocatedBytes();
+        span.peakHeap = getUsedHeap();
+        stack.push(span);
+        tracer.openedSpans.add(span);
+        return span;
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long getCurrentThreadCpuTime() {
+        return isCpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    private long getCurrentThreadAllocatedBytes() {
+        if (!isAllocatedBytesSupported) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void onSpanEnd(Span span) {
+        span.endNanos = System.nanoTime();
+        span.cpuNanos = getCurrentThreadCpuTime() - span.beginCpuNanos;
+        span.allocatedBytes = getCurrentThreadAllocatedBytes() - span.beginAllocatedBytes;
+        span.updatePeakHeap(getUsedHeap());
+        openedSpans.remove(span);
+
+        final Deque<Span> stack = spanStack.get();
+        // Pop spans that were left open by mistake as well, so that the depth of
+        // following spans is still correct.
+        while (stack.contains(span)) {
+            final Span top = stack.pop();
+            if (top == span) {
+                break;
+            }
+        }
+        final Span parent = stack.peek();
+        if (parent != null) {
+            parent.updatePeakHeap(span.peakHeap);
+        }
+        synchronized (finishedSpans) {
+            finishedSpans.add(span);
+        }
+    }
+
+    private List<Span> getSortedFinishedSpans() {
+        final List<Span> result;
+        synchronized (finishedSpans) {
+            result = new ArrayList<>(finishedSpans);
+        }
+        Collections.sort(result, new Comparator<Span>() {
+            @Override
+            public int compare(Span lhs, Span rhs) {
+                if (lhs.beginNanos != rhs.beginNanos) {
+                    return lhs.beginNanos < rhs.beginNanos ? -1 : 1;
+                }
+                return lhs.depth - rhs.depth;
+            }
+        });
+        return result;
+    }
+
+    private void writeTraceJson(File traceFile) throws IOException {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(traceFile, false));
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean isFirst = true;
+            for (Span span : getSortedFinishedSpans()) {
+                if (isFirst) {
+                    isFirst = false;
+                } else {
+                    writer.write(',');
+                }
+                writer.write("\n{\"name\":\"");
+                writer.write(escapeJson(span.name));
+                writer.write("\",\"cat\":\"tinker\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+                writer.write(Long.toString(span.threadId));
+                writer.write(",\"ts\":");
+                writer.write(Long.toString((span.beginNanos - beginNanos) / 1000));
+                writer.write(",\"dur\":");
+                writer.write(Long.toString((span.endNanos - span.beginNanos) / 1000));
+                writer.write(",\"args\":{\"cpuMs\":");
+                writer.write(Long.toString(span.cpuNanos / 1000000));
+                writer.write(",\"allocatedBytes\":");
+                writer.write(Long.toString(span.allocatedBytes));
+                writer.write(",\"peakHeapBytes\":");
+                writer.write(Long.toString(span.peakHeap));
+                writer.write("}}");
+            }
+            writer.write("\n]}\n");
+        } finally {
+            IOHelper.closeQuietly(writer);
+        }
+    }
+
+    private void writeSummary(File summaryFile) throws IOException {
+        // Spans with the same name and depth (e.g. bsdiff of many files) are merged into one row.
+        final Map<String, SummaryRow> rows = new LinkedHashMap<>();
+        for (Span span : getSortedFinishedSpans()) {
+            final String rowName = span.depth + "|" + stripDetail(span.name);
+            SummaryRow row = rows.get(rowName);
+            if (row == null) {
+                row = new SummaryRow(stripDetail(span.name), span.depth);
+                rows.put(rowName, row);
+            }
+            row.count++;
+            row.wallNanos += span.endNanos - span.beginNanos;
+            row.cpuNanos += span.cpuNanos;
+            row.allocatedBytes += span.allocatedBytes;
+            row.peakHeap = Math.max(row.peakHeap, span.peakHeap);
+        }
+
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(summaryFile, false));
+            writer.write(String.format("%-56s %7s %12s %12s %14s %14s\n",
+                    "phase", "count", "wall(ms)", "cpu(ms)", "alloc(KB)", "peakHeap(KB)"));
+            for (SummaryRow row : rows.values()) {
+                final StringBuilder indentedName = new StringBuilder();
+                for (int i = 0; i < row.depth; ++i) {
+                    indentedName.append("  ");
+                }
+                indentedName.append(row.name);
+                writer.write(String.format("%-56s %7d %12d %12d %14d %14d\n",
+                        indentedName.toString(), row.count,
+                        row.wallNanos / 1000000, row.cpuNanos / 1000000,
+                        row.allocatedBytes / TypedValue.K_BYTES, row.peakHeap / TypedValue.K_BYTES));
+            }
+        } finally {
+            IOHelper.closeQuietly(writer);
+        }
+    }
+
+    private static String stripDetail(String name) {
+        final int detailPos = name.indexOf(": ");
+        return detailPos < 0 ? name : name.substring(0, detailPos);
+    }
+
+    private static String escapeJson(String str) {
+        final StringBuilder sb = new StringBuilder(str.length() + 8);
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    public static final class Span {
+        private final BuildTracer tracer;
+        private final String name;
+        private final int depth;
+        private final long threadId;
+        private long beginNanos;
+        private long endNanos;
+        private long beginCpuNanos;
+        private long cpuNanos;
+        private long beginAllocatedBytes;
+        private long allocatedBytes;
+        private volatile long peakHeap;
+        private boolean isEnded = false;
+
+        private Span(BuildTracer tracer, String name, int depth, long threadId) {
+            this.tracer = tracer;
+            this.name = name;
+            this.depth = depth;
+            this.threadId = threadId;
+        }
+
+        private synchronized void updatePeakHeap(long usedHeap) {
+            if (usedHeap > peakHeap) {
+                peakHeap = usedHeap;
+            }
+        }
+
+        public void end() {
+            if (tracer == null || isEnded) {
+                return;
+            }
+            isEnded = true;
+            tracer.onSpanEnd(this);
+        }
+    }
+
+    private static final class SummaryRow {
+        final String name;
+        final int depth;
+        int count = 0;
+        long wallNanos = 0;
+        long cpuNanos = 0;
+        long allocatedBytes = 0;
+        long peakHeap = 0;
+
+        SummaryRow(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+}
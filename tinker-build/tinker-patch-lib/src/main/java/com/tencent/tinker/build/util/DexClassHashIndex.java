@@ -0,0 +1,937 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.Annotation;
+import com.tencent.tinker.android.dex.AnnotationSet;
+import com.tencent.tinker.android.dex.AnnotationSetRefList;
+import com.tencent.tinker.android.dex.AnnotationsDirectory;
+import com.tencent.tinker.android.dex.ClassData;
+import com.tencent.tinker.android.dex.ClassDef;
+import com.tencent.tinker.android.dex.Code;
+import com.tencent.tinker.android.dex.DebugInfoItem;
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.EncodedValueReader;
+import com.tencent.tinker.android.dex.FieldId;
+import com.tencent.tinker.android.dex.MethodId;
+import com.tencent.tinker.android.dex.ProtoId;
+import com.tencent.tinker.android.dex.io.DexDataBuffer;
+import com.tencent.tinker.android.dx.instruction.InstructionCodec;
+import com.tencent.tinker.android.dx.instruction.InstructionReader;
+import com.tencent.tinker.android.dx.instruction.InstructionVisitor;
+import com.tencent.tinker.android.dx.instruction.Opcodes;
+import com.tencent.tinker.android.dx.instruction.ShortArrayCodeInput;
+import com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Content hash of each class in a {@link DexGroup}.
+ *
+ * Strings, types, protos, fields and methods referred by a class are hashed by what they
+ * name instead of by their index, and code addresses are hashed as instruction ordinals, so
+ * the same class gets the same hash no matter how the dex holding it is laid out.
+ *
+ * The hash covers everything {@link DexClassesComparator} compares in normal mode (and a
+ * little more, e.g. registers of instructions with index operands), so two classes with
+ * equal hashes are the same class to it. Different hashes say nothing, such classes still
+ * need the full comparison.
+ *
+ * The comparator trusts equal hashes and skips its own comparison, so whatever it learns
+ * to compare must be hashed here as well, otherwise such a change is dropped from the patch.
+ */
+public final class DexClassHashIndex {
+    private static final int DBG_FIRST_SPECIAL = 0x0A;  // the smallest special opcode
+    private static final int DBG_LINE_BASE   = -4;      // the smallest line number increment
+    private static final int DBG_LINE_RANGE  = 15;      // the number of line increments represented
+
+    private static final int CLASS_HASH_BATCH_SIZE = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Value is null if a class is defined more than once in the group or cannot be hashed.
+    private final Map<String, byte[]> classDescToHashMap;
+
+    private DexClassHashIndex(Map<String, byte[]> classDescToHashMap) {
+        this.classDescToHashMap = classDescToHashMap;
+    }
+
+    public static DexClassHashIndex build(DexGroup dexGroup) {
+        return build(dexGroup, null);
+    }
+
+    /**
+     * @param classDescsToHash descriptors of classes to hash, or null to hash every class.
+     */
+    public static DexClassHashIndex build(DexGroup dexGroup, Collection<String> classDescsToHash) {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return build(pool, dexGroup, classDescsToHash);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param classDescsToHash descriptors of classes to hash, or null to hash every class.
+     */
+    public static DexClassHashIndex build(
+            ForkJoinPool pool, DexGroup dexGroup, Collection<String> classDescsToHash
+    ) {
+        final Set<String> descFilter = (classDescsToHash != null ? new HashSet<>(classDescsToHash) : null);
+        final Map<String, byte[]> classDescToHashMap = new HashMap<>();
+        final Set<String> duplicatedClassDescs = new HashSet<>();
+
+        final List<String> classDescs = new ArrayList<>();
+        final List<ClassDef> classDefs = new ArrayList<>();
+        final List<Dex> owners = new ArrayList<>();
+        final Map<Dex, ForkJoinTask<SymbolPrints>> dexToSymbolTaskMap = new IdentityHashMap<>();
+
+        for (final Dex dex : dexGroup.dexes) {
+            final List<String> typeNames = dex.typeNames();
+            for (ClassDef classDef : dex.classDefs()) {
+                final String desc = typeNames.get(classDef.typeIndex);
+                if (descFilter != null && !descFilter.contains(desc)) {
+                    continue;
+                }
+                if (classDescToHashMap.containsKey(desc)) {
+                    duplicatedClassDescs.add(desc);
+                    continue;
+                }
+                classDescToHashMap.put(desc, null);
+                classDescs.add(desc);
+                classDefs.add(classDef);
+                owners.add(dex);
+                if (!dexToSymbolTaskMap.containsKey(dex)) {
+                    dexToSymbolTaskMap.put(dex, pool.submit(new Callable<SymbolPrints>() {
+                        @Override
+                        public SymbolPrints call() {
+                            return new SymbolPrints(dex, new Hasher());
+                        }
+                    }));
+                }
+            }
+        }
+
+        final Map<Dex, SymbolPrints> dexToSymbolsMap = new IdentityHashMap<>();
+        for (Map.Entry<Dex, ForkJoinTask<SymbolPrints>> entry : dexToSymbolTaskMap.entrySet()) {
+            dexToSymbolsMap.put(entry.getKey(), entry.getValue().join());
+        }
+
+        final SymbolPrints[] symbols = new SymbolPrints[owners.size()];
+        for (int i = 0; i < symbols.length; ++i) {
+            symbols[i] = dexToSymbolsMap.get(owners.get(i));
+        }
+        final ClassDef[] classDefArr = classDefs.toArray(new ClassDef[classDefs.size()]);
+        final byte[][] hashes = new byte[classDefArr.length][];
+        pool.invoke(new ClassHashTask(symbols, classDefArr, hashes, 0, hashes.length));
+
+        for (int i = 0; i < hashes.length; ++i) {
+            final String desc = classDescs.get(i);
+            if (!duplicatedClassDescs.contains(desc)) {
+                classDescToHashMap.put(desc, hashes[i]);
+            }
+        }
+        return new DexClassHashIndex(classDescToHashMap);
+    }
+
+    public Set<String> getClassDescs() {
+        return Collections.unmodifiableSet(classDescToHashMap.keySet());
+    }
+
+    /**
+     * @return hash of the class, or null if it is not in this index, is defined more than once,
+     * or cannot be hashed.
+     */
+    public byte[] getClassHash(String classDesc) {
+        final byte[] hash = classDescToHashMap.get(classDesc);
+        return (hash != null ? hash.clone() : null);
+    }
+
+    /**
+     * @return true if the class has the same content in this index and in {@code other}. False
+     * means the class may or may not be changed.
+     */
+    public boolean isSameClass(String classDesc, DexClassHashIndex other) {
+        final byte[] hash = classDescToHashMap.get(classDesc);
+        if (hash == null) {
+            return false;
+        }
+        final byte[] otherHash = other.classDescToHashMap.get(classDesc);
+        return otherHash != null && Arrays.equals(hash, otherHash);
+    }
+
+    private static final class ClassHashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SymbolPrints[] symbols;
+        private final ClassDef[] classDefs;
+        private final byte[][] hashes;
+        private final int from;
+        private final int to;
+
+        ClassHashTask(SymbolPrints[] symbols, ClassDef[] classDefs, byte[][] hashes, int from, int to) {
+            this.symbols = symbols;
+            this.classDefs = classDefs;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CLASS_HASH_BATCH_SIZE) {
+                final Hasher hasher = new Hasher();
+                for (int i = from; i < to; ++i) {
+                    hasher.reset();
+                    try {
+                        new ClassHasher(symbols[i], hasher).putClass(classDefs[i]);
+                        hashes[i] = hasher.finish();
+                    } catch (RuntimeException e) {
+                        // Malformed items are left to the full comparison, which reports them.
+                        hashes[i] = null;
+                    }
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(
+                    new ClassHashTask(symbols, classDefs, hashes, from, mid),
+                    new ClassHashTask(symbols, classDefs, hashes, mid, to)
+            );
+        }
+    }
+
+    /**
+     * Feeds ints, longs and byte arrays to a MD5 digest through a small buffer.
+     */
+    private static final class Hasher {
+        private final MessageDigest digest;
+        private final byte[] buffer = new byte[256];
+        private int position = 0;
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void reset() {
+            position = 0;
+            digest.reset();
+        }
+
+        void putInt(int value) {
+            if (position + 4 > buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        void putBytes(byte[] bytes) {
+            putInt(bytes.length);
+            flush();
+            digest.update(bytes);
+        }
+
+        void putPrint(long[] prints, int index) {
+            putLong(prints[index << 1]);
+            putLong(prints[(index << 1) + 1]);
+        }
+
+        void putOptionalPrint(long[] prints, int index) {
+            // Both TableOfContents.Section.UNDEF_INDEX and ClassDef.NO_INDEX are -1.
+            if (index == ClassDef.NO_INDEX) {
+                putInt(0);
+            } else {
+                putInt(1);
+                putPrint(prints, index);
+            }
+        }
+
+        byte[] finish() {
+            flush();
+            return digest.digest();
+        }
+
+        void finishTo(long[] prints, int index) {
+            final byte[] hash = finish();
+            prints[index << 1] = ByteBuffer.wrap(hash, 0, 8).getLong();
+            prints[(index << 1) + 1] = ByteBuffer.wrap(hash, 8, 8).getLong();
+        }
+
+        private void flush() {
+            if (position > 0) {
+                digest.update(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * 128-bit prints of every string, type, proto, field and method of a dex, computed from
+     * what they name so that equal symbols of different dexes have equal prints.
+     */
+    private static final class SymbolPrints {
+        final Dex dex;
+        final long[] strings;
+        final long[] types;
+        final long[] protos;
+        final long[] fields;
+        final long[] methods;
+
+        SymbolPrints(Dex dex, Hasher hasher) {
+            this.dex = dex;
+
+            final List<String> dexStrings = dex.strings();
+            strings = new long[dexStrings.size() << 1];
+            for (int i = 0; i < dexStrings.size(); ++i) {
+                hasher.putBytes(dexStrings.get(i).getBytes(UTF_8));
+                hasher.finishTo(strings, i);
+            }
+
+            final List<Integer> dexTypeIds = dex.typeIds();
+            types = new long[dexTypeIds.size() << 1];
+            for (int i = 0; i < dexTypeIds.size(); ++i) {
+                final int descriptorIndex = dexTypeIds.get(i);
+                types[i << 1] = strings[descriptorIndex << 1];
+                types[(i << 1) + 1] = strings[(descriptorIndex << 1) + 1];
+            }
+
+            final List<ProtoId> dexProtoIds = dex.protoIds();
+            protos = new long[dexProtoIds.size() << 1];
+            for (int i = 0; i < dexProtoIds.size(); ++i) {
+                final ProtoId protoId = dexProtoIds.get(i);
+                hasher.putPrint(strings, protoId.shortyIndex);
+                hasher.putPrint(types, protoId.returnTypeIndex);
+                // Same as DexClassesComparator, a proto without parameter list differs
+                // from any proto with one, even an empty one.
+                if (protoId.parametersOffset == 0) {
+                    hasher.putInt(-1);
+                } else {
+                    final short[] parameterTypes = dex.openSection(protoId.parametersOffset).readTypeList().types;
+                    hasher.putInt(parameterTypes.length);
+                    for (short parameterType : parameterTypes) {
+                        hasher.putPrint(types, parameterType & 0xFFFF);
+                    }
+                }
+                hasher.finishTo(protos, i);
+            }
+
+            final List<FieldId> dexFieldIds = dex.fieldIds();
+            fields = new long[dexFieldIds.size() << 1];
+            for (int i = 0; i < dexFieldIds.size(); ++i) {
+                final FieldId fieldId = dexFieldIds.get(i);
+                hasher.putPrint(types, fieldId.declaringClassIndex);
+                hasher.putPrint(types, fieldId.typeIndex);
+                hasher.putPrint(strings, fieldId.nameIndex);
+                hasher.finishTo(fields, i);
+            }
+
+            final List<MethodId> dexMethodIds = dex.methodIds();
+            methods = new long[dexMethodIds.size() << 1];
+            for (int i = 0; i < dexMethodIds.size(); ++i) {
+                final MethodId methodId = dexMethodIds.get(i);
+                hasher.putPrint(types, methodId.declaringClassIndex);
+                hasher.putPrint(protos, methodId.protoIndex);
+                hasher.putPrint(strings, methodId.nameIndex);
+                hasher.finishTo(methods, i);
+            }
+        }
+    }
+
+    /**
+     * Walks a class the same way DexClassesComparator.isSameClass does and feeds what it
+     * compares to the hasher.
+     */
+    private static final class ClassHasher {
+        private final SymbolPrints symbols;
+        private final Dex dex;
+        private final Hasher hasher;
+
+        ClassHasher(SymbolPrints symbols, Hasher hasher) {
+            this.symbols = symbols;
+            this.dex = symbols.dex;
+            this.hasher = hasher;
+        }
+
+        void putClass(ClassDef classDef) {
+            hasher.putInt(classDef.accessFlags);
+            hasher.putOptionalPrint(symbols.types, classDef.supertypeIndex);
+
+            final short[] interfaceIndices = dex.interfaceTypeIndicesFromClassDef(classDef);
+            hasher.putInt(interfaceIndices.length);
+            for (short interfaceIndex : interfaceIndices) {
+                hasher.putPrint(symbols.types, interfaceIndex & 0xFFFF);
+            }
+
+            hasher.putOptionalPrint(symbols.strings, classDef.sourceFileIndex);
+
+            putAnnotationsDirectory(classDef.annotationsOffset);
+            putClassData(classDef.classDataOffset);
+
+            if (classDef.staticValuesOffset == 0) {
+                hasher.putInt(0);
+            } else {
+                hasher.putInt(1);
+                putEncodedValue(new EncodedValueReader(
+                        dex.openSection(classDef.staticValuesOffset).readEncodedArray(),
+                        EncodedValueReader.ENCODED_ARRAY
+                ));
+            }
+        }
+
+        private void putAnnotationsDirectory(int offset) {
+            if (offset == 0) {
+                hasher.putInt(0);
+                return;
+            }
+            hasher.putInt(1);
+            final AnnotationsDirectory directory = dex.openSection(offset).readAnnotationsDirectory();
+
+            putAnnotationSet(directory.classAnnotationsOffset);
+
+            hasher.putInt(directory.fieldAnnotations.length);
+            for (int[] fieldAnnotation : directory.fieldAnnotations) {
+                hasher.putPrint(symbols.fields, fieldAnnotation[0]);
+                putAnnotationSet(fieldAnnotation[1]);
+            }
+
+            hasher.putInt(directory.methodAnnotations.length);
+            for (int[] methodAnnotation : directory.methodAnnotations) {
+                hasher.putPrint(symbols.methods, methodAnnotation[0]);
+                putAnnotationSet(methodAnnotation[1]);
+            }
+
+            hasher.putInt(directory.parameterAnnotations.length);
+            for (int[] parameterAnnotation : directory.parameterAnnotations) {
+                hasher.putPrint(symbols.methods, parameterAnnotation[0]);
+                putAnnotationSetRefList(parameterAnnotation[1]);
+            }
+        }
+
+        private void putAnnotationSetRefList(int offset) {
+            if (offset == 0) {
+                hasher.putInt(-1);
+                return;
+            }
+            final AnnotationSetRefList refList = dex.openSection(offset).readAnnotationSetRefList();
+            hasher.putInt(refList.annotationSetRefItems.length);
+            for (int annotationSetOffset : refList.annotationSetRefItems) {
+                putAnnotationSet(annotationSetOffset);
+            }
+        }
+
+        private void putAnnotationSet(int offset) {
+            if (offset == 0) {
+                hasher.putInt(-1);
+                return;
+            }
+            final AnnotationSet annotationSet = dex.openSection(offset).readAnnotationSet();
+            hasher.putInt(annotationSet.annotationOffsets.length);
+            for (int annotationOffset : annotationSet.annotationOffsets) {
+                final Annotation annotation = dex.openSection(annotationOffset).readAnnotation();
+                hasher.putInt(annotation.visibility);
+                putAnnotationByReader(annotation.getReader());
+            }
+        }
+
+        private void putAnnotationByReader(EncodedValueReader reader) {
+            final int fieldCount = reader.readAnnotation();
+            hasher.putInt(fieldCount);
+            hasher.putPrint(symbols.types, reader.getAnnotationType());
+            for (int i = 0; i < fieldCount; ++i) {
+                hasher.putOptionalPrint(symbols.strings, reader.readAnnotationName());
+                putEncodedValue(reader);
+            }
+        }
+
+        private void putEncodedValue(EncodedValueReader reader) {
+            final int type = reader.peek();
+            hasher.putInt(type);
+            switch (type) {
+                case EncodedValueReader.ENCODED_BYTE: {
+                    hasher.putInt(reader.readByte());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_SHORT: {
+                    hasher.putInt(reader.readShort());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_INT: {
+                    hasher.putInt(reader.readInt());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_LONG: {
+                    hasher.putLong(reader.readLong());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_CHAR: {
+                    hasher.putInt(reader.readChar());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_FLOAT: {
+                    hasher.putInt(Float.floatToIntBits(reader.readFloat()));
+                    break;
+                }
+                case EncodedValueReader.ENCODED_DOUBLE: {
+                    hasher.putLong(Double.doubleToLongBits(reader.readDouble()));
+                    break;
+                }
+                case EncodedValueReader.ENCODED_STRING: {
+                    hasher.putOptionalPrint(symbols.strings, reader.readString());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_TYPE: {
+                    hasher.putPrint(symbols.types, reader.readType());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_FIELD: {
+                    hasher.putPrint(symbols.fields, reader.readField());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_ENUM: {
+                    hasher.putPrint(symbols.fields, reader.readEnum());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_METHOD: {
+                    hasher.putPrint(symbols.methods, reader.readMethod());
+                    break;
+                }
+                case EncodedValueReader.ENCODED_ARRAY: {
+                    final int size = reader.readArray();
+                    hasher.putInt(size);
+                    for (int i = 0; i < size; ++i) {
+                        putEncodedValue(reader);
+                    }
+                    break;
+                }
+                case EncodedValueReader.ENCODED_ANNOTATION: {
+                    putAnnotationByReader(reader);
+                    break;
+                }
+                case EncodedValueReader.ENCODED_NULL: {
+                    reader.readNull();
+                    break;
+                }
+                case EncodedValueReader.ENCODED_BOOLEAN: {
+                    hasher.putInt(reader.readBoolean() ? 1 : 0);
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException(
+                            "Unexpected annotation value type: " + Integer.toHexString(type)
+                    );
+                }
+            }
+        }
+
+        private void putClassData(int offset) {
+            if (offset == 0) {
+                hasher.putInt(0);
+                return;
+            }
+            hasher.putInt(1);
+            final ClassData classData = dex.openSection(offset).readClassData();
+            putFields(classData.instanceFields);
+            putFields(classData.staticFields);
+            putMethods(classData.directMethods);
+            putMethods(classData.virtualMethods);
+        }
+
+        private void putFields(ClassData.Field[] fields) {
+            hasher.putInt(fields.length);
+            for (ClassData.Field field : fields) {
+                hasher.putInt(field.accessFlags);
+                hasher.putPrint(symbols.fields, field.fieldIndex);
+            }
+        }
+
+        private void putMethods(ClassData.Method[] methods) {
+            hasher.putInt(methods.length);
+            for (ClassData.Method method : methods) {
+                hasher.putInt(method.accessFlags);
+                hasher.putPrint(symbols.methods, method.methodIndex);
+                if (method.codeOffset == 0) {
+                    hasher.putInt(0);
+                } else {
+                    hasher.putInt(1);
+                    putCode(dex.openSection(method.codeOffset).readCode());
+                }
+            }
+        }
+
+        private void putCode(Code code) {
+            hasher.putInt(code.registersSize);
+            hasher.putInt(code.insSize);
+
+            final CodeHasher codeHasher = new CodeHasher(code.instructions);
+            codeHasher.putInstructions();
+
+            putDebugInfo(code.debugInfoOffset, codeHasher);
+
+            hasher.putInt(code.tries.length);
+            for (Code.Try tryItem : code.tries) {
+                // Like the comparator, instruction count of a try is left out since it counts
+                // 16-bit code units which depend on the string index layout.
+                final Code.CatchHandler catchHandler = code.catchHandlers[tryItem.catchHandlerIndex];
+                hasher.putInt(catchHandler.typeIndexes.length);
+                if (catchHandler.catchAllAddress == -1) {
+                    hasher.putInt(0);
+                } else {
+                    hasher.putInt(1);
+                    hasher.putInt(codeHasher.ordinalAt(catchHandler.catchAllAddress));
+                }
+                for (int i = 0; i < catchHandler.typeIndexes.length; ++i) {
+                    hasher.putPrint(symbols.types, catchHandler.typeIndexes[i]);
+                    hasher.putInt(codeHasher.ordinalAt(catchHandler.addresses[i]));
+                }
+                hasher.putInt(codeHasher.ordinalAt(tryItem.startAddress));
+            }
+        }
+
+        private void putDebugInfo(int offset, CodeHasher codeHasher) {
+            if (offset == 0) {
+                hasher.putInt(0);
+                return;
+            }
+            hasher.putInt(1);
+            final DebugInfoItem debugInfoItem = dex.openSection(offset).readDebugInfoItem();
+
+            hasher.putInt(debugInfoItem.lineStart);
+            hasher.putInt(debugInfoItem.parameterNames.length);
+            for (int parameterName : debugInfoItem.parameterNames) {
+                hasher.putOptionalPrint(symbols.strings, parameterName);
+            }
+
+            final DexDataBuffer buffer = new DexDataBuffer(ByteBuffer.wrap(debugInfoItem.infoSTM));
+            int line = debugInfoItem.lineStart;
+            int address = 0;
+            while (buffer.available() > 0) {
+                final int opcode = buffer.readUnsignedByte();
+                switch (opcode) {
+                    case DebugInfoItem.DBG_END_SEQUENCE:
+                    case DebugInfoItem.DBG_SET_PROLOGUE_END:
+                    case DebugInfoItem.DBG_SET_EPILOGUE_BEGIN: {
+                        hasher.putInt(opcode);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_ADVANCE_PC: {
+                        address += buffer.readUleb128();
+                        hasher.putInt(opcode);
+                        hasher.putInt(codeHasher.ordinalAt(address));
+                        break;
+                    }
+                    case DebugInfoItem.DBG_ADVANCE_LINE: {
+                        line += buffer.readSleb128();
+                        hasher.putInt(opcode);
+                        hasher.putInt(line);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_START_LOCAL:
+                    case DebugInfoItem.DBG_START_LOCAL_EXTENDED: {
+                        hasher.putInt(opcode);
+                        hasher.putInt(buffer.readUleb128());
+                        hasher.putOptionalPrint(symbols.strings, buffer.readUleb128p1());
+                        hasher.putOptionalPrint(symbols.types, buffer.readUleb128p1());
+                        if (opcode == DebugInfoItem.DBG_START_LOCAL_EXTENDED) {
+                            hasher.putOptionalPrint(symbols.strings, buffer.readUleb128p1());
+                        }
+                        break;
+                    }
+                    case DebugInfoItem.DBG_END_LOCAL:
+                    case DebugInfoItem.DBG_RESTART_LOCAL: {
+                        hasher.putInt(opcode);
+                        hasher.putInt(buffer.readUleb128());
+                        break;
+                    }
+                    case DebugInfoItem.DBG_SET_FILE: {
+                        hasher.putInt(opcode);
+                        hasher.putOptionalPrint(symbols.strings, buffer.readUleb128p1());
+                        break;
+                    }
+                    default: {
+                        // Special opcodes are compared by the line and instruction they
+                        // advance to, not by their values.
+                        final int adjustedOpcode = opcode - DBG_FIRST_SPECIAL;
+                        line += DBG_LINE_BASE + (adjustedOpcode % DBG_LINE_RANGE);
+                        address += (adjustedOpcode / DBG_LINE_RANGE);
+                        hasher.putInt(DBG_FIRST_SPECIAL);
+                        hasher.putInt(line);
+                        hasher.putInt(codeHasher.ordinalAt(address));
+                        break;
+                    }
+                }
+            }
+            hasher.putInt(-1);
+        }
+
+        /**
+         * Hashes instructions with opcodes promoted the way InstructionComparator does and
+         * branch targets as ordinals of the instructions they point to.
+         */
+        private final class CodeHasher extends InstructionVisitor {
+            private final short[] instructions;
+            private final int[] ordinals;
+            private boolean isCountingPass = true;
+            private int instructionCount = 0;
+
+            CodeHasher(short[] instructions) {
+                super(null);
+                this.instructions = instructions;
+                this.ordinals = new int[instructions.length];
+                Arrays.fill(ordinals, -1);
+            }
+
+            void putInstructions() {
+                accept();
+                hasher.putInt(instructionCount);
+                isCountingPass = false;
+                accept();
+            }
+
+            /**
+             * @return ordinal of the instruction starting at {@code address}, or -1 if there's
+             * no instruction starting there.
+             */
+            int ordinalAt(int address) {
+                return ordinals[address];
+            }
+
+            private void accept() {
+                final InstructionReader reader = new InstructionReader(new ShortArrayCodeInput(instructions));
+                try {
+                    reader.accept(this);
+                } catch (EOFException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            private boolean visitHead(int currentAddress, int opcode) {
+                if (isCountingPass) {
+                    ordinals[currentAddress] = instructionCount++;
+                    return false;
+                }
+                hasher.putInt(getPromotedOpcode(opcode));
+                return true;
+            }
+
+            private void visitInsn(int currentAddress, int opcode, int index, int target, long literal,
+                                   int registerCount, int a, int b, int c, int d, int e) {
+                if (!visitHead(currentAddress, opcode)) {
+                    return;
+                }
+                hasher.putInt(registerCount);
+                hasher.putInt(a);
+                hasher.putInt(b);
+                hasher.putInt(c);
+                hasher.putInt(d);
+                hasher.putInt(e);
+                switch (InstructionCodec.getInstructionFormat(opcode)) {
+                    case InstructionCodec.INSN_FORMAT_10T:
+                    case InstructionCodec.INSN_FORMAT_20T:
+                    case InstructionCodec.INSN_FORMAT_21T:
+                    case InstructionCodec.INSN_FORMAT_22T:
+                    case InstructionCodec.INSN_FORMAT_30T:
+                    case InstructionCodec.INSN_FORMAT_31T: {
+                        hasher.putInt(ordinalAt(target));
+                        break;
+                    }
+                    case InstructionCodec.INSN_FORMAT_21C:
+                    case InstructionCodec.INSN_FORMAT_22C:
+                    case InstructionCodec.INSN_FORMAT_31C:
+                    case InstructionCodec.INSN_FORMAT_35C:
+                    case InstructionCodec.INSN_FORMAT_3RC: {
+                        putIndex(opcode, index);
+                        break;
+                    }
+                    default: {
+                        hasher.putLong(literal);
+                        hasher.putInt(index);
+                        break;
+                    }
+                }
+            }
+
+            private void putIndex(int opcode, int index) {
+                switch (InstructionCodec.getInstructionIndexType(opcode)) {
+                    case InstructionCodec.INDEX_TYPE_STRING_REF: {
+                        hasher.putOptionalPrint(symbols.strings, index);
+                        break;
+                    }
+                    case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                        hasher.putPrint(symbols.types, index);
+                        break;
+                    }
+                    case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                        hasher.putPrint(symbols.fields, index);
+                        break;
+                    }
+                    case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                        hasher.putPrint(symbols.methods, index);
+                        break;
+                    }
+                    default: {
+                        hasher.putInt(index);
+                        break;
+                    }
+                }
+            }
+
+            private int getPromotedOpcode(int opcode) {
+                if (opcode == Opcodes.CONST_STRING || opcode == Opcodes.CONST_STRING_JUMBO) {
+                    return Opcodes.CONST_STRING_JUMBO;
+                } else if (opcode == Opcodes.GOTO || opcode == Opcodes.GOTO_16 || opcode == Opcodes.GOTO_32) {
+                    return Opcodes.GOTO_32;
+                }
+                return opcode;
+            }
+
+            @Override
+            public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+                // Alignment nops are not instructions to InstructionComparator either.
+                if (opcode != Opcodes.NOP) {
+                    visitInsn(currentAddress, opcode, index, target, literal, 0, 0, 0, 0, 0, 0);
+                }
+            }
+
+            @Override
+            public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+                visitInsn(currentAddress, opcode, index, target, literal, 1, a, 0, 0, 0, 0);
+            }
+
+            @Override
+            public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+                visitInsn(currentAddress, opcode, index, target, literal, 2, a, b, 0, 0, 0);
+            }
+
+            @Override
+            public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+                visitInsn(currentAddress, opcode, index, target, literal, 3, a, b, c, 0, 0);
+            }
+
+            @Override
+            public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+                visitInsn(currentAddress, opcode, index, target, literal, 4, a, b, c, d, 0);
+            }
+
+            @Override
+            public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+                visitInsn(currentAddress, opcode, index, target, literal, 5, a, b, c, d, e);
+            }
+
+            @Override
+            public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+                visitInsn(currentAddress, opcode, index, target, literal, registerCount, a, 0, 0, 0, 0);
+            }
+
+            @Override
+            public void visitSparseSwitchPayloadInsn(int currentAddress, int opcode, int[] keys, int[] targets) {
+                if (!visitHead(currentAddress, opcode)) {
+                    return;
+                }
+                hasher.putInt(keys.length);
+                for (int key : keys) {
+                    hasher.putInt(key);
+                }
+                putTargets(targets);
+            }
+
+            @Override
+            public void visitPackedSwitchPayloadInsn(int currentAddress, int opcode, int firstKey, int[] targets) {
+                if (!visitHead(currentAddress, opcode)) {
+                    return;
+                }
+                hasher.putInt(firstKey);
+                putTargets(targets);
+            }
+
+            @Override
+            public void visitFillArrayDataPayloadInsn(int currentAddress, int opcode, Object data, int size, int elementWidth) {
+                if (!visitHead(currentAddress, opcode)) {
+                    return;
+                }
+                hasher.putInt(elementWidth);
+                hasher.putInt(size);
+                switch (elementWidth) {
+                    case 1: {
+                        for (byte value : (byte[]) data) {
+                            hasher.putInt(value);
+                        }
+                        break;
+                    }
+                    case 2: {
+                        for (short value : (short[]) data) {
+                            hasher.putInt(value);
+                        }
+                        break;
+                    }
+                    case 4: {
+                        for (int value : (int[]) data) {
+                            hasher.putInt(value);
+                        }
+                        break;
+                    }
+                    case 8: {
+                        for (long value : (long[]) data) {
+                            hasher.putLong(value);
+                        }
+                        break;
+                    }
+                    default: {
+                        throw new IllegalStateException("bogus element_width: " + elementWidth);
+                    }
+                }
+            }
+
+            private void putTargets(int[] targets) {
+                hasher.putInt(targets.length);
+                for (int target : targets) {
+                    hasher.putInt(ordinalAt(target));
+                }
+            }
+        }
+    }
+}
@@ -33,7 +33,6 @@ import com.tencent.tinker.android.dex.FieldId;
 import com.tencent.tinker.android.dex.MethodId;
 import com.tencent.tinker.android.dex.ProtoId;
 import com.tencent.tinker.android.dex.TableOfContents;
-import com.tencent.tinker.android.dex.TypeList;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.android.dx.instruction.InstructionComparator;
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
@@ -44,13 +43,21 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -66,6 +73,9 @@ public final class DexClassesComparator {
     private static final int DBG_LINE_BASE   = -4;      // the smallest line number increment
     private static final int DBG_LINE_RANGE  = 15;      // the number of line increments represented
 
+    // Classes compared by one fork/join task before it stops splitting.
+    private static final int CLASS_COMPARE_BATCH_SIZE = 32;
+
     private int compareMode = COMPARE_MODE_NORMAL;
     private final List<DexClassInfo> addedClassInfoList = new ArrayList<>();
     private final List<DexClassInfo> deletedClassInfoList = new ArrayList<>();
@@ -80,7 +90,15 @@ public final class DexClassesComparator {
 
     // Record class descriptors whose references key (index or offset) of methods and fields
     // are changed.
-    private final Set<String> refAffectedClassDescs = new HashSet<>();
+    private final Set<String> refAffectedClassDescs =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Canonical ids of the items in every dex being checked, valid during startCheck only.
+    private final Map<Dex, DexSymbols> dexSymbols = new IdentityHashMap<>();
+    // Content hashes of classes in old and new dexes, only built in normal mode.
+    private boolean isClassHashIndexEnabled = true;
+    private DexClassHashIndex oldClassHashIndex = null;
+    private DexClassHashIndex newClassHashIndex = null;
     private final DexPatcherLogger logger = new DexPatcherLogger();
 
     public DexClassesComparator(String patternStringOfClassDescToCheck) {
@@ -141,6 +159,14 @@ public final class DexClassesComparator {
         }
     }
 
+    /**
+     * Compare every class with {@link #isSameClass} even if its content hash is unchanged,
+     * so that the hash can be checked against the full comparison.
+     */
+    void setClassHashIndexEnabled(boolean enabled) {
+        this.isClassHashIndexEnabled = enabled;
+    }
+
     public void setLogger(IDexPatcherLogger logger) {
         this.logger.setLoggerImpl(logger);
     }
@@ -166,6 +192,19 @@ public final class DexClassesComparator {
     }
 
     public void startCheck(DexGroup oldDexGroup, DexGroup newDexGroup) {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            buildDexSymbols(pool, oldDexGroup, newDexGroup);
+            startCheck(pool, oldDexGroup, newDexGroup);
+        } finally {
+            pool.shutdownNow();
+            dexSymbols.clear();
+            oldClassHashIndex = null;
+            newClassHashIndex = null;
+        }
+    }
+
+    private void startCheck(ForkJoinPool pool, DexGroup oldDexGroup, DexGroup newDexGroup) {
         // Init assist structures.
         addedClassInfoList.clear();
         deletedClassInfoList.clear();
@@ -181,7 +220,7 @@ public final class DexClassesComparator {
         for (Dex oldDex : oldDexGroup.dexes) {
             int classDefIndex = 0;
             for (ClassDef oldClassDef : oldDex.classDefs()) {
-                String desc = oldDex.typeNames().get(oldClassDef.typeIndex);
+                String desc = symbolsOf(oldDex).typeName(oldClassDef.typeIndex);
                 if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
                     if (!oldDescriptorOfClassesToCheck.add(desc)) {
                         throw new IllegalStateException(
@@ -203,7 +242,7 @@ public final class DexClassesComparator {
         for (Dex newDex : newDexGroup.dexes) {
             int classDefIndex = 0;
             for (ClassDef newClassDef : newDex.classDefs()) {
-                String desc = newDex.typeNames().get(newClassDef.typeIndex);
+                String desc = symbolsOf(newDex).typeName(newClassDef.typeIndex);
                 if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
                     if (!newDescriptorOfClassesToCheck.add(desc)) {
                         throw new IllegalStateException(
@@ -249,17 +288,27 @@ public final class DexClassesComparator {
         Set<String> mayBeChangedClassDescs = new HashSet<>(oldDescriptorOfClassesToCheck);
         mayBeChangedClassDescs.retainAll(newDescriptorOfClassesToCheck);
 
-        for (String desc : mayBeChangedClassDescs) {
+        if (compareMode == COMPARE_MODE_NORMAL && isClassHashIndexEnabled) {
+            oldClassHashIndex = DexClassHashIndex.build(pool, oldDexGroup, mayBeChangedClassDescs);
+            newClassHashIndex = DexClassHashIndex.build(pool, newDexGroup, mayBeChangedClassDescs);
+        }
+
+        // Compare classes on the pool, then record results in the same order as before
+        // so that logs and the result map are not affected by scheduling.
+        final String[] mayBeChangedClassDescArr =
+                mayBeChangedClassDescs.toArray(new String[mayBeChangedClassDescs.size()]);
+        final boolean[] isChangedArr = new boolean[mayBeChangedClassDescArr.length];
+        pool.invoke(new ClassCompareTask(
+                mayBeChangedClassDescArr, isChangedArr, 0, mayBeChangedClassDescArr.length
+        ));
+
+        for (int i = 0; i < mayBeChangedClassDescArr.length; ++i) {
+            String desc = mayBeChangedClassDescArr[i];
             DexClassInfo oldClassInfo = oldClassDescriptorToClassInfoMap.get(desc);
             DexClassInfo newClassInfo = newClassDescriptorToClassInfoMap.get(desc);
             switch (compareMode) {
                 case COMPARE_MODE_NORMAL: {
-                    if (!isSameClass(
-                            oldClassInfo.owner,
-                            newClassInfo.owner,
-                            oldClassInfo.classDef,
-                            newClassInfo.classDef
-                    )) {
+                    if (isChangedArr[i]) {
                         if (Utils.isStringMatchesPatterns(desc, patternsOfIgnoredRemovedClassDesc)) {
                             logger.i(TAG, "Ignored changed class: %s", desc);
                         } else {
@@ -272,12 +321,7 @@ public final class DexClassesComparator {
                     break;
                 }
                 case COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY: {
-                    if (isClassChangeAffectedToReferrer(
-                            oldClassInfo.owner,
-                            newClassInfo.owner,
-                            oldClassInfo.classDef,
-                            newClassInfo.classDef
-                    )) {
+                    if (isChangedArr[i]) {
                         if (Utils.isStringMatchesPatterns(desc, patternsOfIgnoredRemovedClassDesc)) {
                             logger.i(TAG, "Ignored referrer-affected changed class: %s", desc);
                         } else {
@@ -296,6 +340,100 @@ public final class DexClassesComparator {
         }
     }
 
+    private boolean isClassChanged(String desc) {
+        DexClassInfo oldClassInfo = oldClassDescriptorToClassInfoMap.get(desc);
+        DexClassInfo newClassInfo = newClassDescriptorToClassInfoMap.get(desc);
+        switch (compareMode) {
+            case COMPARE_MODE_NORMAL: {
+                // Classes with equal content hashes are the same, only the rest need
+                // the full comparison.
+                if (oldClassHashIndex != null && oldClassHashIndex.isSameClass(desc, newClassHashIndex)) {
+                    return false;
+                }
+                return !isSameClass(
+                        oldClassInfo.owner,
+                        newClassInfo.owner,
+                        oldClassInfo.classDef,
+                        newClassInfo.classDef
+                );
+            }
+            case COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY: {
+                return isClassChangeAffectedToReferrer(
+                        oldClassInfo.owner,
+                        newClassInfo.owner,
+                        oldClassInfo.classDef,
+                        newClassInfo.classDef
+                );
+            }
+            default: {
+                return false;
+            }
+        }
+    }
+
+    private final class ClassCompareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] classDescs;
+        private final boolean[] isChangedResults;
+        private final int from;
+        private final int to;
+
+        ClassCompareTask(String[] classDescs, boolean[] isChangedResults, int from, int to) {
+            this.classDescs = classDescs;
+            this.isChangedResults = isChangedResults;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CLASS_COMPARE_BATCH_SIZE) {
+                for (int i = from; i < to; ++i) {
+                    isChangedResults[i] = isClassChanged(classDescs[i]);
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(
+                    new ClassCompareTask(classDescs, isChangedResults, from, mid),
+                    new ClassCompareTask(classDescs, isChangedResults, mid, to)
+            );
+        }
+    }
+
+    private void buildDexSymbols(ForkJoinPool pool, DexGroup oldDexGroup, DexGroup newDexGroup) {
+        final CanonicalIds canonicalIds = new CanonicalIds();
+        final List<Dex> allDexes = new ArrayList<>();
+        allDexes.addAll(Arrays.asList(oldDexGroup.dexes));
+        allDexes.addAll(Arrays.asList(newDexGroup.dexes));
+        final List<ForkJoinTask<DexSymbols>> tasks = new ArrayList<>();
+        for (final Dex dex : allDexes) {
+            if (dexSymbols.containsKey(dex)) {
+                continue;
+            }
+            dexSymbols.put(dex, null);
+            tasks.add(pool.submit(new Callable<DexSymbols>() {
+                @Override
+                public DexSymbols call() {
+                    return new DexSymbols(dex, canonicalIds);
+                }
+            }));
+        }
+        for (ForkJoinTask<DexSymbols> task : tasks) {
+            final DexSymbols symbols = task.join();
+            dexSymbols.put(symbols.dex, symbols);
+        }
+    }
+
+    private DexSymbols symbolsOf(Dex dex) {
+        final DexSymbols symbols = dexSymbols.get(dex);
+        if (symbols == null) {
+            throw new IllegalStateException("dex is not part of the groups being checked.");
+        }
+        return symbols;
+    }
+
     private boolean isClassChangeAffectedToReferrer(
             Dex oldDex,
             Dex newDex,
@@ -304,7 +442,7 @@ public final class DexClassesComparator {
     ) {
         boolean result = false;
 
-        String classDesc = oldDex.typeNames().get(oldClassDef.typeIndex);
+        String classDesc = symbolsOf(oldDex).typeName(oldClassDef.typeIndex);
 
         do {
             if (refAffectedClassDescs.contains(classDesc)) {
@@ -356,9 +494,9 @@ public final class DexClassesComparator {
             Dex oldDex, Dex newDex, int oldTypeId, int newTypeId
     ) {
         if (oldTypeId != ClassDef.NO_INDEX && newTypeId != ClassDef.NO_INDEX) {
-            String oldClassDesc = oldDex.typeNames().get(oldTypeId);
-            String newClassDesc = newDex.typeNames().get(newTypeId);
-            if (!oldClassDesc.equals(newClassDesc)) {
+            String oldClassDesc = symbolsOf(oldDex).typeName(oldTypeId);
+            String newClassDesc = symbolsOf(newDex).typeName(newTypeId);
+            if (!isSameClassDesc(oldDex, newDex, oldTypeId, newTypeId)) {
                 return true;
             }
 
@@ -398,13 +536,11 @@ public final class DexClassesComparator {
         int typeIdCount = oldTypeIds.length;
         for (int i = 0; i < typeIdCount; ++i) {
             if (compareNameOnly) {
-                String oldTypeName = oldDex.typeNames().get(oldTypeIds[i]);
-                String newTypeName = newDex.typeNames().get(newTypeIds[i]);
-                if (!oldTypeName.equals(newTypeName)) {
+                if (!isSameClassDesc(oldDex, newDex, oldTypeIds[i] & 0xFFFF, newTypeIds[i] & 0xFFFF)) {
                     return true;
                 }
             } else {
-                if (isTypeChangeAffectedToReferrer(oldDex, newDex, oldTypeIds[i], newTypeIds[i])) {
+                if (isTypeChangeAffectedToReferrer(oldDex, newDex, oldTypeIds[i] & 0xFFFF, newTypeIds[i] & 0xFFFF)) {
                     return true;
                 }
             }
@@ -473,15 +609,11 @@ public final class DexClassesComparator {
             FieldId oldFieldId = oldDex.fieldIds().get(oldField.fieldIndex);
             FieldId newFieldId = newDex.fieldIds().get(newField.fieldIndex);
 
-            String oldFieldName = oldDex.strings().get(oldFieldId.nameIndex);
-            String newFieldName = newDex.strings().get(newFieldId.nameIndex);
-            if (!oldFieldName.equals(newFieldName)) {
+            if (!isSameString(oldDex, newDex, oldFieldId.nameIndex, newFieldId.nameIndex)) {
                 return true;
             }
 
-            String oldFieldTypeName = oldDex.typeNames().get(oldFieldId.typeIndex);
-            String newFieldTypeName = newDex.typeNames().get(newFieldId.typeIndex);
-            if (!oldFieldTypeName.equals(newFieldTypeName)) {
+            if (!isSameClassDesc(oldDex, newDex, oldFieldId.typeIndex, newFieldId.typeIndex)) {
                 return true;
             }
         }
@@ -511,24 +643,18 @@ public final class DexClassesComparator {
             MethodId oldMethodId = oldDex.methodIds().get(oldMethod.methodIndex);
             MethodId newMethodId = newDex.methodIds().get(newMethod.methodIndex);
 
-            String oldMethodName = oldDex.strings().get(oldMethodId.nameIndex);
-            String newMethodName = newDex.strings().get(newMethodId.nameIndex);
-            if (!oldMethodName.equals(newMethodName)) {
+            if (!isSameString(oldDex, newDex, oldMethodId.nameIndex, newMethodId.nameIndex)) {
                 return true;
             }
 
             ProtoId oldProtoId = oldDex.protoIds().get(oldMethodId.protoIndex);
             ProtoId newProtoId = newDex.protoIds().get(newMethodId.protoIndex);
 
-            String oldMethodShorty = oldDex.strings().get(oldProtoId.shortyIndex);
-            String newMethodShorty = newDex.strings().get(newProtoId.shortyIndex);
-            if (!oldMethodShorty.equals(newMethodShorty)) {
+            if (!isSameString(oldDex, newDex, oldProtoId.shortyIndex, newProtoId.shortyIndex)) {
                 return true;
             }
 
-            String oldMethodReturnTypeName = oldDex.typeNames().get(oldProtoId.returnTypeIndex);
-            String newMethodReturnTypeName = newDex.typeNames().get(newProtoId.returnTypeIndex);
-            if (!oldMethodReturnTypeName.equals(newMethodReturnTypeName)) {
+            if (!isSameClassDesc(oldDex, newDex, oldProtoId.returnTypeIndex, newProtoId.returnTypeIndex)) {
                 return true;
             }
 
@@ -543,6 +669,11 @@ public final class DexClassesComparator {
         return false;
     }
 
+    /**
+     * Classes whose {@link DexClassHashIndex} hashes are equal never get here, so the hash
+     * must stay at least as strict as this method. Anything compared here but not hashed
+     * there makes such a change invisible and drops the changed class from the patch.
+     */
     private boolean isSameClass(
             Dex oldDex,
             Dex newDex,
@@ -565,7 +696,9 @@ public final class DexClassesComparator {
             return false;
         } else {
             for (int i = 0; i < oldInterfaceIndices.length; ++i) {
-                if (!isSameClassDesc(oldDex, newDex, oldInterfaceIndices[i], newInterfaceIndices[i])) {
+                if (!isSameClassDesc(
+                        oldDex, newDex, oldInterfaceIndices[i] & 0xFFFF, newInterfaceIndices[i] & 0xFFFF
+                )) {
                     return false;
                 }
             }
@@ -628,9 +761,11 @@ public final class DexClassesComparator {
     }
 
     private boolean isSameClassDesc(Dex oldDex, Dex newDex, int oldTypeId, int newTypeId) {
-        String oldClassDesc = oldDex.typeNames().get(oldTypeId);
-        String newClassDesc = newDex.typeNames().get(newTypeId);
-        return oldClassDesc.equals(newClassDesc);
+        return symbolsOf(oldDex).typeIds[oldTypeId] == symbolsOf(newDex).typeIds[newTypeId];
+    }
+
+    private boolean isSameString(Dex oldDex, Dex newDex, int oldStringId, int newStringId) {
+        return symbolsOf(oldDex).stringIds[oldStringId] == symbolsOf(newDex).stringIds[newStringId];
     }
 
     private boolean isSameName(Dex oldDex, Dex newDex, int oldStringId, int newStringId) {
@@ -643,7 +778,7 @@ public final class DexClassesComparator {
             return false;
         }
 
-        return oldDex.strings().get(oldStringId).equals(newDex.strings().get(newStringId));
+        return isSameString(oldDex, newDex, oldStringId, newStringId);
     }
 
     private boolean isSameAnnotationDirectory(
@@ -732,94 +867,11 @@ public final class DexClassesComparator {
     }
 
     private boolean isSameFieldId(Dex oldDex, Dex newDex, int oldFieldIdIdx, int newFieldIdIdx) {
-        FieldId oldFieldId = oldDex.fieldIds().get(oldFieldIdIdx);
-        FieldId newFieldId = newDex.fieldIds().get(newFieldIdIdx);
-
-        if (!isSameClassDesc(
-                oldDex, newDex, oldFieldId.declaringClassIndex, newFieldId.declaringClassIndex
-        )) {
-            return false;
-        }
-
-        if (!isSameClassDesc(
-                oldDex, newDex, oldFieldId.typeIndex, newFieldId.typeIndex
-        )) {
-            return false;
-        }
-
-        String oldName = oldDex.strings().get(oldFieldId.nameIndex);
-        String newName = newDex.strings().get(newFieldId.nameIndex);
-        return oldName.equals(newName);
+        return symbolsOf(oldDex).fieldIds[oldFieldIdIdx] == symbolsOf(newDex).fieldIds[newFieldIdIdx];
     }
 
     private boolean isSameMethodId(Dex oldDex, Dex newDex, int oldMethodIdIdx, int newMethodIdIdx) {
-        MethodId oldMethodId = oldDex.methodIds().get(oldMethodIdIdx);
-        MethodId newMethodId = newDex.methodIds().get(newMethodIdIdx);
-
-        if (!isSameClassDesc(
-                oldDex, newDex, oldMethodId.declaringClassIndex, newMethodId.declaringClassIndex
-        )) {
-            return false;
-        }
-
-        if (!isSameProtoId(oldDex, newDex, oldMethodId.protoIndex, newMethodId.protoIndex)) {
-            return false;
-        }
-
-        String oldName = oldDex.strings().get(oldMethodId.nameIndex);
-        String newName = newDex.strings().get(newMethodId.nameIndex);
-        return oldName.equals(newName);
-    }
-
-    private boolean isSameProtoId(Dex oldDex, Dex newDex, int oldProtoIdIdx, int newProtoIdIdx) {
-        ProtoId oldProtoId = oldDex.protoIds().get(oldProtoIdIdx);
-        ProtoId newProtoId = newDex.protoIds().get(newProtoIdIdx);
-
-        String oldShorty = oldDex.strings().get(oldProtoId.shortyIndex);
-        String newShorty = newDex.strings().get(newProtoId.shortyIndex);
-
-        if (!oldShorty.equals(newShorty)) {
-            return false;
-        }
-
-        if (!isSameClassDesc(
-                oldDex, newDex, oldProtoId.returnTypeIndex, newProtoId.returnTypeIndex
-        )) {
-            return false;
-        }
-
-        return isSameParameters(
-                oldDex, newDex, oldProtoId.parametersOffset, newProtoId.parametersOffset
-        );
-    }
-
-    private boolean isSameParameters(
-            Dex oldDex, Dex newDex, int oldParametersOffset, int newParametersOffset
-    ) {
-        if (oldParametersOffset == 0 && newParametersOffset == 0) {
-            return true;
-        }
-
-        if (oldParametersOffset == 0 || newParametersOffset == 0) {
-            return false;
-        }
-
-        TypeList oldParameters = oldDex.openSection(oldParametersOffset).readTypeList();
-        TypeList newParameters = newDex.openSection(newParametersOffset).readTypeList();
-
-        if (oldParameters.types.length != newParameters.types.length) {
-            return false;
-        }
-
-        for (int i = 0; i < oldParameters.types.length; ++i) {
-            if (!isSameClassDesc(
-                    oldDex, newDex, oldParameters.types[i], newParameters.types[i]
-            )) {
-                return false;
-            }
-        }
-
-        return true;
+        return symbolsOf(oldDex).methodIds[oldMethodIdIdx] == symbolsOf(newDex).methodIds[newMethodIdIdx];
     }
 
     private boolean isSameAnnotationSetRefList(
@@ -1439,6 +1491,142 @@ public final class DexClassesComparator {
         return true;
     }
 
+    /**
+     * Assigns the same id to equal strings, and to protos, fields and methods which are
+     * equal by descriptor, no matter which dex they come from.
+     */
+    private static final class CanonicalIds {
+        private final ConcurrentHashMap<String, Integer> stringIds = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<IntTuple, Integer> protoIds = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<IntTuple, Integer> fieldIds = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<IntTuple, Integer> methodIds = new ConcurrentHashMap<>();
+        private final AtomicInteger idSeq = new AtomicInteger();
+
+        int stringId(String str) {
+            return idOf(stringIds, str);
+        }
+
+        int protoId(int... parts) {
+            return idOf(protoIds, new IntTuple(parts));
+        }
+
+        int fieldId(int declaringClassId, int typeId, int nameId) {
+            return idOf(fieldIds, new IntTuple(declaringClassId, typeId, nameId));
+        }
+
+        int methodId(int declaringClassId, int protoId, int nameId) {
+            return idOf(methodIds, new IntTuple(declaringClassId, protoId, nameId));
+        }
+
+        private <K> int idOf(ConcurrentHashMap<K, Integer> ids, K key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                final Integer newId = idSeq.getAndIncrement();
+                id = ids.putIfAbsent(key, newId);
+                if (id == null) {
+                    id = newId;
+                }
+            }
+            return id;
+        }
+    }
+
+    private static final class IntTuple {
+        private final int[] values;
+        private final int hash;
+
+        IntTuple(int... values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IntTuple && Arrays.equals(values, ((IntTuple) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Every string, type, proto, field and method of a dex decoded once and mapped to its
+     * canonical id, so comparing items of two dexes is comparing two ints.
+     */
+    private static final class DexSymbols {
+        final Dex dex;
+        final String[] strings;
+        final int[] stringIds;
+        final int[] typeDescriptorIndices;
+        final int[] typeIds;
+        final int[] protoIds;
+        final int[] fieldIds;
+        final int[] methodIds;
+
+        DexSymbols(Dex dex, CanonicalIds canonicalIds) {
+            this.dex = dex;
+
+            final List<String> dexStrings = dex.strings();
+            strings = new String[dexStrings.size()];
+            stringIds = new int[strings.length];
+            for (int i = 0; i < strings.length; ++i) {
+                strings[i] = dexStrings.get(i);
+                stringIds[i] = canonicalIds.stringId(strings[i]);
+            }
+
+            final List<Integer> dexTypeIds = dex.typeIds();
+            typeDescriptorIndices = new int[dexTypeIds.size()];
+            typeIds = new int[typeDescriptorIndices.length];
+            for (int i = 0; i < typeIds.length; ++i) {
+                typeDescriptorIndices[i] = dexTypeIds.get(i);
+                typeIds[i] = stringIds[typeDescriptorIndices[i]];
+            }
+
+            final List<ProtoId> dexProtoIds = dex.protoIds();
+            protoIds = new int[dexProtoIds.size()];
+            for (int i = 0; i < protoIds.length; ++i) {
+                final ProtoId protoId = dexProtoIds.get(i);
+                // A proto without parameter list differs from any proto with one,
+                // even an empty one, same as the item by item comparison did.
+                final short[] parameterTypes = (protoId.parametersOffset != 0
+                        ? dex.openSection(protoId.parametersOffset).readTypeList().types : null);
+                final int parameterCount = (parameterTypes != null ? parameterTypes.length : 0);
+                final int[] parts = new int[3 + parameterCount];
+                parts[0] = stringIds[protoId.shortyIndex];
+                parts[1] = typeIds[protoId.returnTypeIndex];
+                parts[2] = (parameterTypes != null ? parameterCount : -1);
+                for (int j = 0; j < parameterCount; ++j) {
+                    parts[3 + j] = typeIds[parameterTypes[j] & 0xFFFF];
+                }
+                protoIds[i] = canonicalIds.protoId(parts);
+            }
+
+            final List<FieldId> dexFieldIds = dex.fieldIds();
+            fieldIds = new int[dexFieldIds.size()];
+            for (int i = 0; i < fieldIds.length; ++i) {
+                final FieldId fieldId = dexFieldIds.get(i);
+                fieldIds[i] = canonicalIds.fieldId(
+                        typeIds[fieldId.declaringClassIndex], typeIds[fieldId.typeIndex], stringIds[fieldId.nameIndex]
+                );
+            }
+
+            final List<MethodId> dexMethodIds = dex.methodIds();
+            methodIds = new int[dexMethodIds.size()];
+            for (int i = 0; i < methodIds.length; ++i) {
+                final MethodId methodId = dexMethodIds.get(i);
+                methodIds[i] = canonicalIds.methodId(
+                        typeIds[methodId.declaringClassIndex], protoIds[methodId.protoIndex], stringIds[methodId.nameIndex]
+                );
+            }
+        }
+
+        String typeName(int typeIndex) {
+            return strings[typeDescriptorIndices[typeIndex]];
+        }
+    }
+
     public static final class DexClassInfo {
         public String classDesc = null;
         public int classDefIndex = ClassDef.NO_INDEX;
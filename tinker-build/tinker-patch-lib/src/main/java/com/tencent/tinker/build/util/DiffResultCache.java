@@ -0,0 +1,369 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Content addressed store of diff results shared by the decoders and by later builds.
+ *
+ * An entry is keyed by the SHA-1 of both inputs, the diff algorithm and its format version
+ * plus any option that changes the output, so a hit can be used without diffing again.
+ * Each entry is a {@code <key>.diff} artifact and a {@code <key>.meta} properties file with
+ * the size and SHA-1 of the artifact and the metadata the decoder stored along with it.
+ * The meta file is written last and checked on every fetch, a torn or corrupted entry is
+ * dropped and treated as a miss. Entries are evicted least recently used first once the
+ * directory grows over the configured size.
+ */
+public final class DiffResultCache {
+    public static final String ALGORITHM_BSDIFF  = "bsdiff";
+    public static final String ALGORITHM_ARSC    = "arsc";
+    public static final String ALGORITHM_DEXDIFF = "dexdiff";
+
+    /**
+     * BSDiff writes no version into its output, bump this when its format changes.
+     */
+    public static final int BSDIFF_FORMAT_VERSION = 1;
+
+    private static final int CACHE_FORMAT_VERSION = 1;
+
+    private static final String ARTIFACT_SUFFIX = ".diff";
+    private static final String META_SUFFIX     = ".meta";
+    private static final String TEMP_SUFFIX     = ".tmp";
+
+    private static final String META_ARTIFACT_SIZE = "artifactSize";
+    private static final String META_ARTIFACT_SHA1 = "artifactSha1";
+    private static final String META_USER_PREFIX   = "user.";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    /**
+     * decoders of the same build open their own instances, so the directory is guarded by a static lock.
+     */
+    private static final Object DIRECTORY_LOCK = new Object();
+
+    private final File cacheDir;
+    private final long maxSizeBytes;
+
+    private DiffResultCache(File cacheDir, long maxSizeBytes) {
+        this.cacheDir = cacheDir;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return the cache configured by config, or null if no cache dir is set or it can not be created.
+     */
+    public static DiffResultCache open(Configuration config) {
+        if (config.mDiffCacheDir == null) {
+            return null;
+        }
+        final File cacheDir = config.mDiffCacheDir;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Logger.e("Warning: can not create diff cache dir %s, diff cache is disabled.", cacheDir.getAbsolutePath());
+            return null;
+        }
+        return new DiffResultCache(cacheDir, (long) config.mDiffCacheMaxSize * TypedValue.K_BYTES * TypedValue.K_BYTES);
+    }
+
+    /**
+     * @param options anything besides the two inputs that affects the artifact, may be null.
+     */
+    public static String keyOf(String algorithm, int version, File oldFile, File newFile, String options) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(CACHE_FORMAT_VERSION).append('\n')
+            .append(algorithm).append('\n')
+            .append(version).append('\n')
+            .append(FileDigests.get(oldFile).sha1).append('\n')
+            .append(FileDigests.get(newFile).sha1).append('\n')
+            .append(options == null ? "" : options);
+        return toHex(newSha1().digest(sb.toString().getBytes(UTF_8)));
+    }
+
+    /**
+     * Copy the artifact stored with key to dest.
+     *
+     * @return the metadata stored with the artifact, or null if there is no intact entry of key.
+     */
+    public Map<String, String> fetch(String key, File dest) throws IOException {
+        final File metaFile = new File(cacheDir, key + META_SUFFIX);
+        final File artifactFile = new File(cacheDir, key + ARTIFACT_SUFFIX);
+        final Properties props;
+        synchronized (DIRECTORY_LOCK) {
+            if (!metaFile.isFile() || !artifactFile.isFile()) {
+                return null;
+            }
+            props = readProperties(metaFile);
+            if (props == null) {
+                Logger.e("Warning: diff cache entry %s has a broken meta file, drop it.", key);
+                deleteEntry(key);
+                return null;
+            }
+            metaFile.setLastModified(System.currentTimeMillis());
+        }
+
+        final String expectedSha1 = props.getProperty(META_ARTIFACT_SHA1);
+        final long expectedSize = parseLong(props.getProperty(META_ARTIFACT_SIZE), -1);
+        final MessageDigest sha1 = newSha1();
+        long size = 0;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(artifactFile));
+            os = new BufferedOutputStream(new FileOutputStream(dest));
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                sha1.update(buffer, 0, length);
+                os.write(buffer, 0, length);
+                size += length;
+            }
+        } catch (IOException e) {
+            // the entry may be evicted by another build while we are reading it
+            IOHelper.closeQuietly(os);
+            os = null;
+            dest.delete();
+            Logger.e("Warning: read diff cache entry %s failed, reason: %s", key, e.getMessage());
+            return null;
+        } finally {
+            IOHelper.closeQuietly(is);
+            IOHelper.closeQuietly(os);
+        }
+
+        if (size != expectedSize || !toHex(sha1.digest()).equals(expectedSha1)) {
+            Logger.e("Warning: diff cache entry %s is corrupted, drop it.", key);
+            dest.delete();
+            synchronized (DIRECTORY_LOCK) {
+                deleteEntry(key);
+            }
+            return null;
+        }
+
+        final Map<String, String> meta = new HashMap<>();
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(META_USER_PREFIX)) {
+                meta.put(name.substring(META_USER_PREFIX.length()), props.getProperty(name));
+            }
+        }
+        return meta;
+    }
+
+    /**
+     * Store artifact and meta with key, then evict old entries if the cache is over size.
+     * A failure only costs the next build a miss, so it is logged instead of thrown.
+     */
+    public void store(String key, File artifact, Map<String, String> meta) {
+        File artifactTemp = null;
+        File metaTemp = null;
+        try {
+            artifactTemp = File.createTempFile(key, TEMP_SUFFIX, cacheDir);
+            final MessageDigest sha1 = newSha1();
+            long size = 0;
+            InputStream is = null;
+            OutputStream os = null;
+            try {
+                is = new BufferedInputStream(new FileInputStream(artifact));
+                os = new BufferedOutputStream(new FileOutputStream(artifactTemp));
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                    sha1.update(buffer, 0, length);
+                    os.write(buffer, 0, length);
+                    size += length;
+                }
+            } finally {
+                IOHelper.closeQuietly(is);
+                IOHelper.closeQuietly(os);
+            }
+
+            final Properties props = new Properties();
+            props.setProperty(META_ARTIFACT_SIZE, String.valueOf(size));
+            props.setProperty(META_ARTIFACT_SHA1, toHex(sha1.digest()));
+            if (meta != null) {
+                for (Map.Entry<String, String> entry : meta.entrySet()) {
+                    props.setProperty(META_USER_PREFIX + entry.getKey(), entry.getValue());
+                }
+            }
+            metaTemp = File.createTempFile(key, TEMP_SUFFIX, cacheDir);
+            OutputStream metaOs = null;
+            try {
+                metaOs = new BufferedOutputStream(new FileOutputStream(metaTemp));
+                props.store(metaOs, null);
+            } finally {
+                IOHelper.closeQuietly(metaOs);
+            }
+
+            synchronized (DIRECTORY_LOCK) {
+                // readers only trust an artifact that the meta file vouches for, so it goes last
+                moveReplacing(artifactTemp, new File(cacheDir, key + ARTIFACT_SUFFIX));
+                moveReplacing(metaTemp, new File(cacheDir, key + META_SUFFIX));
+                evictIfNeeded();
+            }
+        } catch (IOException e) {
+            Logger.e("Warning: store diff cache entry %s failed, reason: %s", key, e.getMessage());
+        } finally {
+            if (artifactTemp != null) {
+                artifactTemp.delete();
+            }
+            if (metaTemp != null) {
+                metaTemp.delete();
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (maxSizeBytes <= 0) {
+            return;
+        }
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Map<String, CacheEntryStat> stats = new HashMap<>();
+        long totalSize = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            final boolean isMeta = name.endsWith(META_SUFFIX);
+            if (!isMeta && !name.endsWith(ARTIFACT_SUFFIX)) {
+                continue;
+            }
+            final String key = name.substring(0, name.length() - (isMeta ? META_SUFFIX.length() : ARTIFACT_SUFFIX.length()));
+            CacheEntryStat stat = stats.get(key);
+            if (stat == null) {
+                stat = new CacheEntryStat(key);
+                stats.put(key, stat);
+            }
+            final long length = file.length();
+            stat.size += length;
+            totalSize += length;
+            if (isMeta) {
+                stat.lastUsed = file.lastModified();
+            }
+        }
+        if (totalSize <= maxSizeBytes) {
+            return;
+        }
+        // an artifact without meta is a torn entry, its lastUsed stays 0 and it goes first
+        final List<CacheEntryStat> entries = new ArrayList<>(stats.values());
+        Collections.sort(entries, new Comparator<CacheEntryStat>() {
+            @Override
+            public int compare(CacheEntryStat lhs, CacheEntryStat rhs) {
+                return lhs.lastUsed < rhs.lastUsed ? -1 : (lhs.lastUsed == rhs.lastUsed ? 0 : 1);
+            }
+        });
+        for (CacheEntryStat entry : entries) {
+            if (totalSize <= maxSizeBytes) {
+                break;
+            }
+            deleteEntry(entry.key);
+            totalSize -= entry.size;
+        }
+    }
+
+    private void deleteEntry(String key) {
+        new File(cacheDir, key + META_SUFFIX).delete();
+        new File(cacheDir, key + ARTIFACT_SUFFIX).delete();
+    }
+
+    private static Properties readProperties(File file) {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            final Properties props = new Properties();
+            props.load(is);
+            if (props.getProperty(META_ARTIFACT_SHA1) == null || props.getProperty(META_ARTIFACT_SIZE) == null) {
+                return null;
+            }
+            return props;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    private static void moveReplacing(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] str = new char[bytes.length * 2];
+        int k = 0;
+        for (byte b : bytes) {
+            str[k++] = HEX_DIGITS[b >>> 4 & 0xf];
+            str[k++] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(str);
+    }
+
+    private static final class CacheEntryStat {
+        final String key;
+        long size;
+        long lastUsed;
+
+        CacheEntryStat(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * MD5, SHA-1 and CRC-32 of a file computed together in one memory mapped pass.
+ *
+ * Results are memoised by path and validated against size, modified time,
+ * change time and file key, so asking for the md5 and then the crc of the same
+ * file, or the md5 of the same apk from several decoders, only reads it once.
+ * Call {@link #clear()} when a build starts and ends, the cache lives in a
+ * static field and would otherwise survive in a gradle daemon.
+ *
+ * A file whose modified time is within {@link #RACY_WINDOW_MILLIS} of the
+ * moment it was hashed is never memoised: on file systems with coarse
+ * timestamps it could still be rewritten with the same size and the same
+ * stamp, and a stale digest here becomes a wrong cache hit or a wrong patch.
+ */
+public final class FileDigests {
+    private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE    = 64 * 1024;
+
+    /**
+     * Coarsest timestamp granularity we expect, FAT and some network file systems use two seconds.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private static final ConcurrentHashMap<String, CacheEntry> CACHE = new ConcurrentHashMap<>();
+
+    private FileDigests() {
+    }
+
+    public static final class Digests {
+        public final long   size;
+        public final String md5;
+        public final String sha1;
+        public final long   crc32;
+
+        Digests(long size, String md5, String sha1, long crc32) {
+            this.size = size;
+            this.md5 = md5;
+            this.sha1 = sha1;
+            this.crc32 = crc32;
+        }
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * @return digests of the file content, computed at most once while the file is unchanged.
+     */
+    public static Digests get(File file) throws IOException {
+        final String key = file.getAbsolutePath();
+        final FileStamp stamp = FileStamp.of(file);
+        final CacheEntry cached = CACHE.get(key);
+        if (cached != null && cached.stamp.equals(stamp)) {
+            return cached.digests;
+        }
+        final Digests digests = compute(file);
+        putIfSettled(key, stamp, digests);
+        return digests;
+    }
+
+    /**
+     * @return digests of the inflated content of entryName in zipFile, or null if there is no such entry.
+     */
+    public static Digests getZipEntry(File zipFile, String entryName) throws IOException {
+        final String key = zipFile.getAbsolutePath() + "!/" + entryName;
+        final FileStamp stamp = FileStamp.of(zipFile);
+        final CacheEntry cached = CACHE.get(key);
+        if (cached != null && cached.stamp.equals(stamp)) {
+            return cached.digests;
+        }
+        ZipFile zip = null;
+        InputStream is = null;
+        try {
+            zip = new ZipFile(zipFile);
+            final ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            is = zip.getInputStream(entry);
+            final Hasher hasher = new Hasher();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                hasher.update(buffer, length);
+            }
+            final Digests digests = hasher.finish();
+            putIfSettled(key, stamp, digests);
+            return digests;
+        } finally {
+            IOHelper.closeQuietly(is);
+            IOHelper.closeQuietly(zip);
+        }
+    }
+
+    public static String getMD5(File file) throws IOException {
+        return get(file).md5;
+    }
+
+    public static long getCrc32(File file) throws IOException {
+        return get(file).crc32;
+    }
+
+    public static String getSHA1(File file) throws IOException {
+        return get(file).sha1;
+    }
+
+    private static void putIfSettled(String key, FileStamp stamp, Digests digests) {
+        if (stamp.isRacy(System.currentTimeMillis())) {
+            CACHE.remove(key);
+            return;
+        }
+        CACHE.put(key, new CacheEntry(stamp, digests));
+    }
+
+    private static Digests compute(File file) throws IOException {
+        final Hasher hasher = new Hasher();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_CHUNK_SIZE, size - position));
+                while (mapped.hasRemaining()) {
+                    final int length = Math.min(buffer.length, mapped.remaining());
+                    mapped.get(buffer, 0, length);
+                    hasher.update(buffer, length);
+                }
+            }
+        } finally {
+            IOHelper.closeQuietly(raf);
+        }
+        return hasher.finish();
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] str = new char[bytes.length * 2];
+        int k = 0;
+        for (byte b : bytes) {
+            str[k++] = HEX_DIGITS[b >>> 4 & 0xf];
+            str[k++] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(str);
+    }
+
+    private static final class Hasher {
+        private final MessageDigest md5;
+        private final MessageDigest sha1;
+        private final CRC32         crc32 = new CRC32();
+        private       long          size  = 0;
+
+        Hasher() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(byte[] buffer, int length) {
+            md5.update(buffer, 0, length);
+            sha1.update(buffer, 0, length);
+            crc32.update(buffer, 0, length);
+            size += length;
+        }
+
+        Digests finish() {
+            return new Digests(size, toHex(md5.digest()), toHex(sha1.digest()), crc32.getValue());
+        }
+    }
+
+    /**
+     * Size, nanosecond modified time, change time and file key of a file, which together
+     * tell whether it may have been rewritten since the stamp was taken.
+     */
+    public static final class FileStamp {
+        final long   size;
+        final long   lastModified;
+        final long   changeTime;
+        final Object fileKey;
+
+        private FileStamp(long size, long lastModified, long changeTime, Object fileKey) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.changeTime = changeTime;
+            this.fileKey = fileKey;
+        }
+
+        public static FileStamp of(File file) throws IOException {
+            final Path path = file.toPath();
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            // nanosecond precision where the file system supports it, File.lastModified is only milliseconds.
+            final long lastModified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            return new FileStamp(attrs.size(), lastModified, readChangeTime(path), attrs.fileKey());
+        }
+
+        /**
+         * ctime also moves when a tool restores the old mtime after rewriting a file.
+         * Only unix file systems expose it, elsewhere it is left out of the stamp.
+         */
+        private static long readChangeTime(Path path) {
+            try {
+                final Object ctime = Files.getAttribute(path, "unix:ctime");
+                if (ctime instanceof FileTime) {
+                    return ((FileTime) ctime).to(TimeUnit.NANOSECONDS);
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException | IOException ignored) {
+                // no unix view on this platform
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the file was modified within {@link #RACY_WINDOW_MILLIS} of {@code nowMillis},
+         * it could then be rewritten again without changing this stamp.
+         */
+        public boolean isRacy(long nowMillis) {
+            final long newest = Math.max(lastModified, changeTime);
+            return nowMillis - TimeUnit.NANOSECONDS.toMillis(newest) < RACY_WINDOW_MILLIS;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileStamp)) {
+                return false;
+            }
+            final FileStamp other = (FileStamp) obj;
+            return size == other.size && lastModified == other.lastModified && changeTime == other.changeTime
+                && (fileKey == null ? other.fileKey == null : fileKey.equals(other.fileKey));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ lastModified);
+        }
+
+        /**
+         * Stable across runs, so it can be persisted and compared with a later stamp of the same file.
+         */
+        @Override
+        public String toString() {
+            return size + ":" + lastModified + ":" + changeTime + ":" + fileKey;
+        }
+    }
+
+    private static final class CacheEntry {
+        final FileStamp stamp;
+        final Digests   digests;
+
+        CacheEntry(FileStamp stamp, Digests digests) {
+            this.stamp = stamp;
+            this.digests = digests;
+        }
+    }
+}
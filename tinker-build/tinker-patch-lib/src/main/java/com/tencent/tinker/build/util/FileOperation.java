@@ -16,8 +16,12 @@
 
 package com.tencent.tinker.build.util;
 
+import com.tencent.tinker.build.apksigner.ApkV1Signer;
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.HighRatioDeflater;
+import com.tencent.tinker.ziputils.ziputil.ParallelZipWriter;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipRecompressor;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -30,13 +34,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 public class FileOperation {
     public static final boolean deleteFile(String filePath) {
@@ -237,24 +241,41 @@ public class FileOperation {
      * @throws IOException
      */
     public static void zipFiles(Collection<File> resFileList, File zipFile, String comment) throws IOException {
-        ZipOutputStream zipout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), TypedValue.BUFFER_SIZE));
-        for (File resFile : resFileList) {
-            if (resFile.exists()) {
-                zipFile(resFile, zipout, "");
+        zipFiles(resFileList, zipFile, comment, null);
+    }
+
+    /**
+     * zip list of file
+     *
+     * @param resFileList file(dir) list
+     * @param zipFile     output zip file
+     * @param signer      if not null, receive the digest of every entry for v1 signing
+     * @throws IOException
+     */
+    public static void zipFiles(Collection<File> resFileList, File zipFile, String comment, ApkV1Signer signer) throws IOException {
+        ParallelZipWriter zipout = new ParallelZipWriter(zipFile, Deflater.DEFAULT_COMPRESSION, ParallelZipWriter.getDefaultThreadCount());
+        try {
+            for (File resFile : resFileList) {
+                if (resFile.exists()) {
+                    zipFile(resFile, zipout, "", signer);
+                }
             }
+            if (comment != null) {
+                zipout.setComment(comment);
+            }
+        } finally {
+            zipout.close();
         }
-        if (comment != null) {
-            zipout.setComment(comment);
-        }
-        zipout.close();
     }
 
-    private static void zipFile(File resFile, ZipOutputStream zipout, String rootpath) throws IOException {
+    private static void zipFile(File resFile, ParallelZipWriter zipout, String rootpath, ApkV1Signer signer) throws IOException {
         rootpath = rootpath + (rootpath.trim().length() == 0 ? "" : File.separator) + resFile.getName();
         if (resFile.isDirectory()) {
             File[] fileList = resFile.listFiles();
+            // listFiles order depends on the file system, sort it to keep the archive reproducible
+            Arrays.sort(fileList);
             for (File file : fileList) {
-                zipFile(file, zipout, rootpath);
+                zipFile(file, zipout, rootpath, signer);
             }
         } else {
             final byte[] fileContents = readContents(resFile);
@@ -262,20 +283,10 @@ public class FileOperation {
             if (rootpath.contains("\\")) {
                 rootpath = rootpath.replace("\\", "/");
             }
-            ZipEntry entry = new ZipEntry(rootpath);
-            // if (compressMethod == ZipEntry.DEFLATED) {
-            entry.setMethod(ZipEntry.DEFLATED);
-            // } else {
-            //     entry.setMethod(ZipEntry.STORED);
-            //     entry.setSize(fileContents.length);
-            //     final CRC32 checksumCalculator = new CRC32();
-            //     checksumCalculator.update(fileContents);
-            //     entry.setCrc(checksumCalculator.getValue());
-            // }
-            zipout.putNextEntry(entry);
-            zipout.write(fileContents);
-            zipout.flush();
-            zipout.closeEntry();
+            if (signer != null) {
+                signer.addEntryDigest(rootpath, fileContents);
+            }
+            zipout.putEntry(rootpath, fileContents);
         }
     }
 
@@ -301,20 +312,12 @@ public class FileOperation {
     }
 
     public static long getFileCrc32(File file) throws IOException {
-        InputStream inputStream = null;
-        try {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
-            CRC32 crc = new CRC32();
-            int cnt;
-            while ((cnt = inputStream.read()) != -1) {
-                crc.update(cnt);
-            }
-            return crc.getValue();
-        } finally {
-            IOHelper.closeQuietly(inputStream);
-        }
+        return FileDigests.getCrc32(file);
     }
 
+    /**
+     * Reads the crc stored in the central directory, the entry itself is not inflated or hashed.
+     */
     public static String getZipEntryCrc(File file, String entryName) {
         ZipFile zipFile = null;
         try {
@@ -339,36 +342,47 @@ public class FileOperation {
     }
 
     public static String getZipEntryMd5(File file, String entryName) {
-        ZipFile zipFile = null;
         try {
-            zipFile = new ZipFile(file);
-            ZipEntry entry = zipFile.getEntry(entryName);
-            if (entry == null) {
+            FileDigests.Digests digests = FileDigests.getZipEntry(file, entryName);
+            if (digests == null) {
                 return null;
             }
-            return MD5.getMD5(zipFile.getInputStream(entry), 1024 * 100);
+            return digests.md5;
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (zipFile != null) {
-                try {
-                    zipFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
         return null;
     }
 
     public static void zipInputDir(File inputDir, File outputFile, String comment) throws IOException {
+        zipInputDir(inputDir, outputFile, comment, null);
+    }
+
+    public static void zipInputDir(File inputDir, File outputFile, String comment, ApkV1Signer signer) throws IOException {
         File[] unzipFiles = inputDir.listFiles();
+        Arrays.sort(unzipFiles);
         List<File> collectFiles = new ArrayList<>();
         for (File f : unzipFiles) {
             collectFiles.add(f);
         }
 
-        FileOperation.zipFiles(collectFiles, outputFile, comment);
+        FileOperation.zipFiles(collectFiles, outputFile, comment, signer);
+    }
+
+    /**
+     * Recompress all entries of inputFile in process with a high ratio deflater,
+     * entries are handled concurrently and written in their original order.
+     */
+    public static void highRatioZipFile(File inputFile, File outputFile, int effort) throws IOException {
+        final int clampedEffort = HighRatioDeflater.clampEffort(effort);
+        final int threadCount = TinkerZipRecompressor.getDefaultThreadCount();
+        Logger.d("High ratio compress %s, effort:%d, threads:%d", inputFile.getName(), clampedEffort, threadCount);
+        try {
+            TinkerZipRecompressor.recompress(inputFile, outputFile, clampedEffort, threadCount);
+        } catch (IOException e) {
+            FileOperation.deleteFile(outputFile);
+            throw e;
+        }
     }
 
     public static boolean sevenZipInputDir(File inputDir, File outputFile, Configuration config) {
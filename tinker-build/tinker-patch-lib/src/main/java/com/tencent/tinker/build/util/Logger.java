@@ -53,7 +53,12 @@ public class Logger {
         System.out.printf(log + "\n");
         System.out.flush();
 
-        logWriter.writeLineToInfoFile(log);
+        // not initialized when called from the gradle plugin tasks, e.g. the aapt resource collector
+        if (logWriter != null) {
+            if (logWriter != null) {
+            logWriter.writeLineToInfoFile(log);
+        }
+        }
     }
 
     public static void e(final String msg) {
@@ -175,7 +175,7 @@ public final class MD5 {
     }
 
     /**
-     * Get the md5 for the file, using less memory.
+     * Get the md5 for the file, memoised by {@link FileDigests}.
      */
     public static String getMD5(final String file) {
         if (file == null) {
@@ -184,16 +184,23 @@ public final class MD5 {
 
         File f = new File(file);
         if (f.exists()) {
-            return getMD5(f, 1024 * 100);
+            return getMD5(f);
         }
         return null;
     }
 
     /**
-     * Get the md5 for the file, using less memory.
+     * Get the md5 for the file, memoised by {@link FileDigests}.
      */
     public static String getMD5(final File file) {
-        return getMD5(file, 1024 * 100);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return FileDigests.getMD5(file);
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     /**
@@ -34,9 +34,13 @@ public class TypedValue {
     public static final String DEX_LOG_FILE       = "dex_log.txt";
     public static final String DEX_META_FILE      = "dex_meta.txt";
     public static final String DEX_TEMP_PATCH_DIR = "tempPatchedDexes";
+    public static final String DEX_DIFF_SPILL_DIR = "tempDexDiffSpill";
+    public static final String DEX_MOVE_AWARE_DIR = "tempMoveAwareDexes";
     public static final String RES_LOG_FILE       = "res_log.txt";
     public static final String RES_META_TXT       = "res_meta.txt";
     public static final String ARKHOT_META_TXT = "arkHot_meta.txt";
+    public static final String FILE_TRACE_JSON    = "tinker_trace.json";
+    public static final String FILE_TRACE_SUMMARY = "tinker_trace_summary.txt";
 
     public static final String FILE_ASSETS = "assets";
 
@@ -0,0 +1,371 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.TableOfContents;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Variants of the test.dex shipped in resources, for checks which need an old and a new dex.
+ */
+public final class TestDexes {
+    public static final String TEST_DEX_NAME = "test.dex";
+
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int OP_CONST_CLASS = 0x1c;
+    private static final int OP_RETURN_VOID = 0x0e;
+    private static final int NO_INDEX = -1;
+    private static final int HEADER_SIZE = 0x70;
+    private static final int ENDIAN_TAG = 0x12345678;
+
+    private TestDexes() {
+    }
+
+    public static byte[] readTestDex() throws IOException {
+        InputStream is = null;
+        try {
+            is = TestDexes.class.getResourceAsStream("/" + TEST_DEX_NAME);
+            if (is == null) {
+                throw new IOException("can not find " + TEST_DEX_NAME + " in resources.");
+            }
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                bos.write(buffer, 0, length);
+            }
+            return bos.toByteArray();
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns {@code dexBytes} with one bit of the first character of string {@code stringIndex}
+     * flipped, or null if that string is empty or too long to be changed in place.
+     */
+    public static byte[] mutateString(byte[] dexBytes, int stringIndex) throws IOException {
+        final Dex dex = new Dex(dexBytes);
+        final TableOfContents.Section stringIds = dex.getTableOfContents().stringIds;
+        final int dataOffset = dex.openSection(stringIds.off + stringIndex * 4).readInt();
+        // a single byte uleb128 length, followed by the first character.
+        if (dexBytes[dataOffset] <= 0) {
+            return null;
+        }
+        final byte[] result = dexBytes.clone();
+        result[dataOffset + 1] ^= 1;
+        return result;
+    }
+
+    /**
+     * Returns {@code dexBytes} with the final flag of class {@code classDefIndex} flipped.
+     */
+    public static byte[] mutateClassAccessFlags(byte[] dexBytes, int classDefIndex) throws IOException {
+        final Dex dex = new Dex(dexBytes);
+        final TableOfContents.Section classDefs = dex.getTableOfContents().classDefs;
+        final byte[] result = dexBytes.clone();
+        // access_flags follows class_idx in class_def_item.
+        result[classDefs.off + classDefIndex * 32 + 4] ^= ACC_FINAL;
+        return result;
+    }
+
+    /**
+     * Returns {@code dexBytes} with one byte of the header signature flipped, which changes
+     * no class.
+     */
+    public static byte[] mutateSignature(byte[] dexBytes) {
+        final byte[] result = dexBytes.clone();
+        result[12] ^= 1;
+        return result;
+    }
+
+    /**
+     * Returns the test dex itself, a copy with a changed signature, and one copy for each
+     * string and each class def with a single change.
+     */
+    public static List<byte[]> createTestDexVariants() throws IOException {
+        final byte[] testDex = readTestDex();
+        final Dex dex = new Dex(testDex);
+        final List<byte[]> result = new ArrayList<>();
+        result.add(testDex);
+        result.add(mutateSignature(testDex));
+        for (int i = 0; i < dex.getTableOfContents().stringIds.size; ++i) {
+            final byte[] mutated = mutateString(testDex, i);
+            if (mutated != null) {
+                result.add(mutated);
+            }
+        }
+        for (int i = 0; i < dex.getTableOfContents().classDefs.size; ++i) {
+            result.add(mutateClassAccessFlags(testDex, i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns {old dex, new dex} pairs between the test dex and each of its variants in both
+     * directions, and between neighbouring variants.
+     */
+    public static List<byte[][]> createTestDexPairs() throws IOException {
+        final List<byte[]> variants = createTestDexVariants();
+        final byte[] testDex = variants.get(0);
+        final List<byte[][]> result = new ArrayList<>();
+        for (int i = 0; i < variants.size(); ++i) {
+            result.add(new byte[][] {testDex, variants.get(i)});
+            result.add(new byte[][] {variants.get(i), testDex});
+            if (i > 0) {
+                result.add(new byte[][] {variants.get(i - 1), variants.get(i)});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a dex with {@code classTypeCount} class types {@code LT00000;}, {@code LT00001;}...,
+     * one proto {@code void (last class type)} and one class {@code LT00000;} implementing the class
+     * type {@code interfaceTypeIndex}. Each type list holds a single type index, which is negative
+     * when read as a short once {@code classTypeCount} is more than 32768.
+     */
+    public static byte[] createManyTypesDex(int classTypeCount, int interfaceTypeIndex) throws IOException {
+        final List<String> strings = new ArrayList<>();
+        for (int i = 0; i < classTypeCount; ++i) {
+            strings.add(String.format("LT%05d;", i));
+        }
+        // 'V' sorts after 'L', so strings and types stay sorted.
+        strings.add("V");
+        strings.add("VL");
+        final int voidTypeIndex = classTypeCount;
+        final int typeCount = classTypeCount + 1;
+
+        final int stringIdsOff = HEADER_SIZE;
+        final int typeIdsOff = stringIdsOff + strings.size() * 4;
+        final int protoIdsOff = typeIdsOff + typeCount * 4;
+        final int classDefsOff = protoIdsOff + 12;
+        final int dataOff = classDefsOff + 32;
+        final int typeListsOff = dataOff;
+        final int stringDatasOff = typeListsOff + 8 * 2;
+        int stringDatasSize = 0;
+        for (String string : strings) {
+            // uleb128 length of one byte, ASCII characters and a terminating zero.
+            stringDatasSize += 1 + string.length() + 1;
+        }
+        final int mapListOff = (stringDatasOff + stringDatasSize + 3) & ~3;
+        final int mapItemCount = 8;
+        final int fileSize = mapListOff + 4 + mapItemCount * 12;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("dex\n035\0".getBytes("US-ASCII"));
+        buffer.putInt(0);
+        buffer.put(new byte[20]);
+        buffer.putInt(fileSize);
+        buffer.putInt(HEADER_SIZE);
+        buffer.putInt(ENDIAN_TAG);
+        buffer.putInt(0).putInt(0);
+        buffer.putInt(mapListOff);
+        buffer.putInt(strings.size()).putInt(stringIdsOff);
+        buffer.putInt(typeCount).putInt(typeIdsOff);
+        buffer.putInt(1).putInt(protoIdsOff);
+        buffer.putInt(0).putInt(0);
+        buffer.putInt(0).putInt(0);
+        buffer.putInt(1).putInt(classDefsOff);
+        buffer.putInt(fileSize - dataOff).putInt(dataOff);
+
+        int stringDataOff = stringDatasOff;
+        for (String string : strings) {
+            buffer.putInt(stringDataOff);
+            stringDataOff += 1 + string.length() + 1;
+        }
+        for (int i = 0; i < typeCount; ++i) {
+            buffer.putInt(i);
+        }
+        // proto_id_item: shorty "VL", return type void, one parameter.
+        buffer.putInt(strings.size() - 1).putInt(voidTypeIndex).putInt(typeListsOff);
+        // class_def_item of LT00000; extending LT00001;, without source file, annotations or data.
+        buffer.putInt(0).putInt(ACC_PUBLIC).putInt(1).putInt(typeListsOff + 8)
+                .putInt(NO_INDEX).putInt(0).putInt(0).putInt(0);
+
+        buffer.putInt(1).putShort((short) (classTypeCount - 1)).putShort((short) 0);
+        buffer.putInt(1).putShort((short) interfaceTypeIndex).putShort((short) 0);
+        for (String string : strings) {
+            buffer.put((byte) string.length());
+            buffer.put(string.getBytes("US-ASCII"));
+            buffer.put((byte) 0);
+        }
+
+        buffer.position(mapListOff);
+        buffer.putInt(mapItemCount);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_HEADER, 1, 0);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_STRINGIDS, strings.size(), stringIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_TYPEIDS, typeCount, typeIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_PROTOIDS, 1, protoIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_CLASSDEFS, 1, classDefsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_TYPELISTS, 2, typeListsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_STRINGDATAS, strings.size(), stringDatasOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_MAPLIST, 1, mapListOff);
+
+        final Dex dex = new Dex(buffer.array());
+        dex.writeHashes();
+        return dex.getBytes();
+    }
+
+    /**
+     * Returns a dex with classes {@code LC0;}, {@code LC1;}... Class {@code i} has one static method
+     * {@code run()} with access flags {@code ACC_STATIC | extraMethodAccessFlags[i]}, whose code
+     * refers to class {@code referredClassIndices[i]} by {@code const-class}.
+     */
+    public static byte[] createReferringClassesDex(int[] referredClassIndices, int[] extraMethodAccessFlags)
+            throws IOException {
+        final int classCount = referredClassIndices.length;
+        if (classCount > 10) {
+            throw new IllegalArgumentException("too many classes: " + classCount);
+        }
+        final List<String> strings = new ArrayList<>();
+        for (int i = 0; i < classCount; ++i) {
+            strings.add("LC" + i + ";");
+        }
+        strings.add("Ljava/lang/Object;");
+        strings.add("V");
+        strings.add("run");
+        final int objectTypeIndex = classCount;
+        final int voidTypeIndex = classCount + 1;
+        final int typeCount = classCount + 2;
+        final int voidStringIndex = classCount + 1;
+        final int runStringIndex = classCount + 2;
+
+        final int stringIdsOff = HEADER_SIZE;
+        final int typeIdsOff = stringIdsOff + strings.size() * 4;
+        final int protoIdsOff = typeIdsOff + typeCount * 4;
+        final int methodIdsOff = protoIdsOff + 12;
+        final int classDefsOff = methodIdsOff + classCount * 8;
+        final int dataOff = classDefsOff + classCount * 32;
+        // code_item: 16 bytes of header, 3 code units, 2 bytes of padding.
+        final int codeItemSize = 24;
+        final int codesOff = dataOff;
+        final int classDatasOff = codesOff + classCount * codeItemSize;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(classDatasOff + 4096).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(typeIdsOff);
+        for (int i = 0; i < typeCount; ++i) {
+            buffer.putInt(i);
+        }
+        // proto_id_item: shorty "V", return type void, no parameters.
+        buffer.putInt(voidStringIndex).putInt(voidTypeIndex).putInt(0);
+        for (int i = 0; i < classCount; ++i) {
+            buffer.putShort((short) i).putShort((short) 0).putInt(runStringIndex);
+        }
+
+        buffer.position(codesOff);
+        for (int i = 0; i < classCount; ++i) {
+            buffer.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+            buffer.putInt(0).putInt(3);
+            buffer.putShort((short) OP_CONST_CLASS).putShort((short) referredClassIndices[i]);
+            buffer.putShort((short) OP_RETURN_VOID).putShort((short) 0);
+        }
+
+        final int[] classDataOffs = new int[classCount];
+        for (int i = 0; i < classCount; ++i) {
+            classDataOffs[i] = buffer.position();
+            putUleb128(buffer, 0);
+            putUleb128(buffer, 0);
+            putUleb128(buffer, 1);
+            putUleb128(buffer, 0);
+            // Method index is class index, so the first diff is the index itself.
+            putUleb128(buffer, i);
+            putUleb128(buffer, ACC_STATIC | extraMethodAccessFlags[i]);
+            putUleb128(buffer, codesOff + i * codeItemSize);
+        }
+
+        final int stringDatasOff = buffer.position();
+        final int[] stringDataOffs = new int[strings.size()];
+        for (int i = 0; i < strings.size(); ++i) {
+            stringDataOffs[i] = buffer.position();
+            buffer.put((byte) strings.get(i).length());
+            buffer.put(strings.get(i).getBytes("US-ASCII"));
+            buffer.put((byte) 0);
+        }
+
+        final int mapListOff = (buffer.position() + 3) & ~3;
+        final int mapItemCount = 10;
+        final int fileSize = mapListOff + 4 + mapItemCount * 12;
+        buffer.position(mapListOff);
+        buffer.putInt(mapItemCount);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_HEADER, 1, 0);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_STRINGIDS, strings.size(), stringIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_TYPEIDS, typeCount, typeIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_PROTOIDS, 1, protoIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_METHODIDS, classCount, methodIdsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_CLASSDEFS, classCount, classDefsOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_CODES, classCount, codesOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_CLASSDATA, classCount, classDatasOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_STRINGDATAS, strings.size(), stringDatasOff);
+        putMapItem(buffer, TableOfContents.SECTION_TYPE_MAPLIST, 1, mapListOff);
+
+        buffer.position(stringIdsOff);
+        for (int stringDataOff : stringDataOffs) {
+            buffer.putInt(stringDataOff);
+        }
+        buffer.position(classDefsOff);
+        for (int i = 0; i < classCount; ++i) {
+            buffer.putInt(i).putInt(ACC_PUBLIC).putInt(objectTypeIndex).putInt(0)
+                    .putInt(NO_INDEX).putInt(0).putInt(classDataOffs[i]).putInt(0);
+        }
+
+        buffer.position(0);
+        buffer.put("dex\n035\0".getBytes("US-ASCII"));
+        buffer.putInt(0);
+        buffer.put(new byte[20]);
+        buffer.putInt(fileSize);
+        buffer.putInt(HEADER_SIZE);
+        buffer.putInt(ENDIAN_TAG);
+        buffer.putInt(0).putInt(0);
+        buffer.putInt(mapListOff);
+        buffer.putInt(strings.size()).putInt(stringIdsOff);
+        buffer.putInt(typeCount).putInt(typeIdsOff);
+        buffer.putInt(1).putInt(protoIdsOff);
+        buffer.putInt(0).putInt(0);
+        buffer.putInt(classCount).putInt(methodIdsOff);
+        buffer.putInt(classCount).putInt(classDefsOff);
+        buffer.putInt(fileSize - dataOff).putInt(dataOff);
+
+        final byte[] dexBytes = new byte[fileSize];
+        System.arraycopy(buffer.array(), 0, dexBytes, 0, fileSize);
+        final Dex dex = new Dex(dexBytes);
+        dex.writeHashes();
+        return dex.getBytes();
+    }
+
+    private static void putUleb128(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void putMapItem(ByteBuffer buffer, short type, int size, int offset) {
+        buffer.putShort(type).putShort((short) 0).putInt(size).putInt(offset);
+    }
+}
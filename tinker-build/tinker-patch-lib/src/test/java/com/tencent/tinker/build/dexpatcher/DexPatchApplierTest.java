@@ -0,0 +1,100 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.TestDexes;
+import com.tencent.tinker.build.util.DexClassesComparator;
+import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DexPatchApplierTest {
+    private static final int[] SECTION_PATCH_THREAD_COUNTS = {1, 4};
+
+    /**
+     * Patches generated from each test dex pair must give back the new dex, and the result must
+     * not depend on how many sections are patched at once, whether kept old items take the fast
+     * path, or whether the patched dex is saved to a stream or to a file.
+     */
+    @Test
+    public void patchedDexIsSameForAllApplyModes() throws Exception {
+        final File patchedFile = File.createTempFile("patched", ".dex");
+        try {
+            int pairIndex = 0;
+            for (byte[][] pair : TestDexes.createTestDexPairs()) {
+                final String message = "pair " + pairIndex;
+                final byte[] patch = generatePatch(pair[0], pair[1]);
+
+                final byte[] expected = applyPatch(pair[0], patch, 1, false, null);
+                final Dex expectedDex = new Dex(expected);
+                final Dex newDex = new Dex(pair[1]);
+                assertEquals(message, newDex.strings(), expectedDex.strings());
+
+                final DexClassesComparator comparator = new DexClassesComparator("*");
+                comparator.startCheck(newDex, expectedDex);
+                assertTrue(message, comparator.getAddedClassInfos().isEmpty());
+                assertTrue(message, comparator.getDeletedClassInfos().isEmpty());
+                assertTrue(message, comparator.getChangedClassDescToInfosMap().isEmpty());
+
+                for (int threadCount : SECTION_PATCH_THREAD_COUNTS) {
+                    for (boolean isFastPath : new boolean[] {true, false}) {
+                        final String mode = message + ", " + threadCount + " thread(s), fast path " + isFastPath;
+                        assertArrayEquals(mode, expected, applyPatch(pair[0], patch, threadCount, isFastPath, null));
+                        assertArrayEquals(mode + ", file", expected,
+                                applyPatch(pair[0], patch, threadCount, isFastPath, patchedFile));
+                    }
+                }
+                ++pairIndex;
+            }
+        } finally {
+            patchedFile.delete();
+        }
+    }
+
+    private static byte[] generatePatch(byte[] oldDexBytes, byte[] newDexBytes) throws IOException {
+        final DexPatchGenerator generator = new DexPatchGenerator(new Dex(oldDexBytes), new Dex(newDexBytes));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.executeAndSaveTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] applyPatch(byte[] oldDexBytes, byte[] patchBytes, int threadCount, boolean isFastPath,
+                                     File patchedFile) throws IOException {
+        final DexPatchApplier applier = new DexPatchApplier(
+                new ByteArrayInputStream(oldDexBytes), new ByteArrayInputStream(patchBytes))
+                .setSectionPatchThreadCount(threadCount)
+                .setOldItemFastPathEnabled(isFastPath);
+        if (patchedFile != null) {
+            applier.executeAndSaveTo(patchedFile);
+            return Files.readAllBytes(patchedFile.toPath());
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        applier.executeAndSaveTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.TestDexes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DexPatchGeneratorTest {
+    private static final int[] SPILL_RUN_ITEM_COUNTS = {1, 2, 3};
+
+    /**
+     * Spilled items are sorted in runs and merged back, the patch must be the same as the one
+     * diffed in memory. Tiny runs make every section go through the merge.
+     */
+    @Test
+    public void spilledDiffIsSameAsInMemoryDiff() throws Exception {
+        final File spillDir = Files.createTempDirectory("dex_diff_spill").toFile();
+        try {
+            int pairIndex = 0;
+            for (byte[][] pair : TestDexes.createTestDexPairs()) {
+                final byte[] expected = generatePatch(pair[0], pair[1], null, 0);
+                for (int spillRunItemCount : SPILL_RUN_ITEM_COUNTS) {
+                    final byte[] actual = generatePatch(pair[0], pair[1], spillDir, spillRunItemCount);
+                    assertArrayEquals("pair " + pairIndex + ", run size " + spillRunItemCount, expected, actual);
+                    assertEquals("spill files left", 0, listFileCount(spillDir));
+                }
+                ++pairIndex;
+            }
+        } finally {
+            File[] files = spillDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            spillDir.delete();
+        }
+    }
+
+    private static byte[] generatePatch(byte[] oldDexBytes, byte[] newDexBytes, File spillDir, int spillRunItemCount)
+            throws IOException {
+        final DexPatchGenerator generator = new DexPatchGenerator(new Dex(oldDexBytes), new Dex(newDexBytes));
+        if (spillDir != null) {
+            generator.setSpillDirectory(spillDir, spillRunItemCount);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.executeAndSaveTo(out);
+        return out.toByteArray();
+    }
+
+    private static int listFileCount(File dir) {
+        final String[] names = dir.list();
+        return (names != null ? names.length : 0);
+    }
+}
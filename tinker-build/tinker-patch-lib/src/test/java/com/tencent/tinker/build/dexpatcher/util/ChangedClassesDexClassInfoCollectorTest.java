@@ -0,0 +1,79 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher.util;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.TestDexes;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
+import static com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+import static org.junit.Assert.assertEquals;
+
+public class ChangedClassesDexClassInfoCollectorTest {
+    // Code of class i refers to class REFERRED_CLASS_INDICES[i].
+    private static final int[] REFERRED_CLASS_INDICES = {1, 2, 0, 0, 5, 3};
+
+    private static final int ACC_PUBLIC = 0x0001;
+
+    /**
+     * Changing the access flags of a method is a referrer affected change, so referrers of the
+     * changed class are collected too, and the index must find the same ones as a full scan.
+     */
+    @Test
+    public void referrerIndexCollectsSameClassesAsFullScan() throws Exception {
+        final int classCount = REFERRED_CLASS_INDICES.length;
+        final DexGroup oldDexGroup = DexGroup.wrap(new Dex(
+                TestDexes.createReferringClassesDex(REFERRED_CLASS_INDICES, new int[classCount])));
+        for (int changedClassIndex = 0; changedClassIndex < classCount; ++changedClassIndex) {
+            final int[] extraMethodAccessFlags = new int[classCount];
+            extraMethodAccessFlags[changedClassIndex] = ACC_PUBLIC;
+            final DexGroup newDexGroup = DexGroup.wrap(new Dex(
+                    TestDexes.createReferringClassesDex(REFERRED_CLASS_INDICES, extraMethodAccessFlags)));
+
+            final Set<String> expected = new HashSet<>();
+            expected.add("LC" + changedClassIndex + ";");
+            for (int i = 0; i < classCount; ++i) {
+                if (REFERRED_CLASS_INDICES[i] == changedClassIndex) {
+                    expected.add("LC" + i + ";");
+                }
+            }
+
+            final String message = "changed class " + changedClassIndex;
+            assertEquals(message, expected, collect(oldDexGroup, newDexGroup, false));
+            assertEquals(message, expected, collect(oldDexGroup, newDexGroup, true));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("LC0;", "LC2;", "LC3;")),
+                DexClassReferrerIndex.of(oldDexGroup).getReferrerClassDescs(Arrays.asList("LC0;", "LC1;")));
+    }
+
+    private static Set<String> collect(DexGroup oldDexGroup, DexGroup newDexGroup, boolean isReferrerIndexEnabled) {
+        final ChangedClassesDexClassInfoCollector collector = new ChangedClassesDexClassInfoCollector()
+                .setIncludeRefererToRefererAffectedClasses(true)
+                .setReferrerIndexEnabled(isReferrerIndexEnabled);
+        final Set<String> result = new HashSet<>();
+        for (DexClassInfo classInfo : collector.doCollect(oldDexGroup, newDexGroup)) {
+            result.add(classInfo.classDesc);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.TestDexes;
+import com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DexClassHashIndexTest {
+
+    /**
+     * DexClassesComparator skips classes with equal hashes, so equal hashes must imply that
+     * the full comparison finds no change.
+     */
+    @Test
+    public void hashEqualClassesAreSameToComparator() throws Exception {
+        final byte[] oldDexBytes = TestDexes.readTestDex();
+        int hashEqualCount = 0;
+        int changedCount = 0;
+        for (byte[] newDexBytes : TestDexes.createTestDexVariants()) {
+            final Dex oldDex = new Dex(oldDexBytes);
+            final Dex newDex = new Dex(newDexBytes);
+            final DexClassHashIndex oldHashIndex = DexClassHashIndex.build(DexGroup.wrap(oldDex));
+            final DexClassHashIndex newHashIndex = DexClassHashIndex.build(DexGroup.wrap(newDex));
+
+            final Set<String> fullyChangedClassDescs = getChangedClassDescs(oldDex, newDex, false);
+            for (String desc : oldHashIndex.getClassDescs()) {
+                if (!newHashIndex.getClassDescs().contains(desc)) {
+                    continue;
+                }
+                if (oldHashIndex.isSameClass(desc, newHashIndex)) {
+                    assertFalse("hash is equal but class is changed: " + desc, fullyChangedClassDescs.contains(desc));
+                    ++hashEqualCount;
+                } else if (fullyChangedClassDescs.contains(desc)) {
+                    ++changedCount;
+                }
+            }
+
+            assertEquals(fullyChangedClassDescs, getChangedClassDescs(oldDex, newDex, true));
+        }
+        assertTrue("no class has an equal hash", hashEqualCount > 0);
+        assertTrue("no class is changed", changedCount > 0);
+    }
+
+    private static Set<String> getChangedClassDescs(Dex oldDex, Dex newDex, boolean isClassHashIndexEnabled) {
+        final DexClassesComparator comparator = new DexClassesComparator("*");
+        comparator.setClassHashIndexEnabled(isClassHashIndexEnabled);
+        comparator.startCheck(oldDex, newDex);
+        return new HashSet<>(comparator.getChangedClassDescToInfosMap().keySet());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.TestDexes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DexClassesComparatorTest {
+    // Type ids from 32768 on are negative when read as a short.
+    private static final int CLASS_TYPE_COUNT = 32800;
+
+    @Test
+    public void typeIdsAboveShortRangeAreCompared() throws Exception {
+        final byte[] oldDexBytes = TestDexes.createManyTypesDex(CLASS_TYPE_COUNT, CLASS_TYPE_COUNT - 1);
+        final byte[] sameDexBytes = TestDexes.mutateSignature(oldDexBytes);
+        final byte[] newDexBytes = TestDexes.createManyTypesDex(CLASS_TYPE_COUNT, CLASS_TYPE_COUNT - 2);
+
+        for (int mode : new int[] {
+                DexClassesComparator.COMPARE_MODE_NORMAL,
+                DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY}) {
+            assertEquals("mode " + mode, 0, getChangedClassCount(oldDexBytes, sameDexBytes, mode));
+        }
+        assertEquals(1, getChangedClassCount(oldDexBytes, newDexBytes, DexClassesComparator.COMPARE_MODE_NORMAL));
+        assertTrue(getChangedClassCount(oldDexBytes, newDexBytes,
+                DexClassesComparator.COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY) > 0);
+    }
+
+    private static int getChangedClassCount(byte[] oldDexBytes, byte[] newDexBytes, int mode) throws Exception {
+        final DexClassesComparator comparator = new DexClassesComparator("*");
+        comparator.setCompareMode(mode);
+        comparator.startCheck(new Dex(oldDexBytes), new Dex(newDexBytes));
+        assertTrue(comparator.getAddedClassInfos().isEmpty());
+        assertTrue(comparator.getDeletedClassInfos().isEmpty());
+        return comparator.getChangedClassDescToInfosMap().size();
+    }
+}
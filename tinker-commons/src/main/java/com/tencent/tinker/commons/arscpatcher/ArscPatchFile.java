@@ -0,0 +1,76 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.commons.arscpatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Layout of a chunk level resources.arsc patch, all numbers are big endian.
+ *
+ * <pre>
+ * magic        8 bytes "ARSCDIFF"
+ * version      short
+ * newSize      int, size of the patched resources.arsc
+ * opCount      int
+ * ops          opCount times:
+ *   OP_COPY    byte type, int oldOffset, int length
+ *   OP_ADD     byte type, int length, length bytes
+ *   OP_PATCH   byte type, int oldOffset, int oldLength, int diffLength, diffLength bytes of bsdiff
+ * </pre>
+ *
+ * Ops are in the order of the new file. Unchanged chunks are copied from the old
+ * table, so only the changed package, type spec, type and string pool chunks have
+ * to be rebuilt on device.
+ */
+public final class ArscPatchFile {
+    public static final byte[] MAGIC           = {0x41, 0x52, 0x53, 0x43, 0x44, 0x49, 0x46, 0x46}; // ARSCDIFF
+    public static final short  CURRENT_VERSION = 0x0001;
+
+    public static final byte OP_COPY  = 1;
+    public static final byte OP_ADD   = 2;
+    public static final byte OP_PATCH = 3;
+
+    private ArscPatchFile() {
+    }
+
+    /**
+     * Check whether the stream starts with {@link #MAGIC}. The stream must support mark,
+     * it is reset to where it was afterwards.
+     */
+    public static boolean isArscPatch(InputStream is) throws IOException {
+        if (!is.markSupported()) {
+            throw new IllegalArgumentException("input stream must support mark");
+        }
+        is.mark(MAGIC.length);
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            int offset = 0;
+            while (offset < magic.length) {
+                final int len = is.read(magic, offset, magic.length - offset);
+                if (len == -1) {
+                    return false;
+                }
+                offset += len;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            is.reset();
+        }
+    }
+}
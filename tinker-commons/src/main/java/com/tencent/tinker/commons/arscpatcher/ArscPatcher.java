@@ -0,0 +1,138 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.commons.arscpatcher;
+
+import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Rebuild resources.arsc from the old table and a patch described by {@link ArscPatchFile}.
+ *
+ * Unchanged chunks are streamed from the old file, only a changed chunk is held in memory
+ * while it is patched, so the peak memory is about the largest changed chunk instead of
+ * the whole table.
+ */
+public final class ArscPatcher {
+    private static final int BUFFER_SIZE = 16384;
+
+    private ArscPatcher() {
+    }
+
+    public static void patch(File oldArsc, InputStream patchIn, File newArsc) throws IOException {
+        RandomAccessFile oldRaf = null;
+        OutputStream out = null;
+        try {
+            oldRaf = new RandomAccessFile(oldArsc, "r");
+            out = new BufferedOutputStream(new FileOutputStream(newArsc), BUFFER_SIZE);
+            patch(oldRaf, patchIn, out);
+            out.flush();
+        } finally {
+            IOHelper.closeQuietly(out);
+            IOHelper.closeQuietly(oldRaf);
+        }
+    }
+
+    public static void patch(RandomAccessFile oldArsc, InputStream patchIn, OutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            patchIn instanceof BufferedInputStream ? patchIn : new BufferedInputStream(patchIn, BUFFER_SIZE)
+        );
+        final byte[] magic = new byte[ArscPatchFile.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, ArscPatchFile.MAGIC)) {
+            throw new IOException("bad arsc patch file magic: " + Arrays.toString(magic));
+        }
+        final short version = in.readShort();
+        if (version != ArscPatchFile.CURRENT_VERSION) {
+            throw new IOException("bad arsc patch file version: " + version + ", expected: " + ArscPatchFile.CURRENT_VERSION);
+        }
+        final int newSize = in.readInt();
+        final int opCount = in.readInt();
+        final long oldSize = oldArsc.length();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        long written = 0;
+        for (int i = 0; i < opCount; ++i) {
+            final byte op = in.readByte();
+            switch (op) {
+                case ArscPatchFile.OP_COPY: {
+                    final int oldOffset = in.readInt();
+                    final int length = in.readInt();
+                    checkOldRange(oldOffset, length, oldSize);
+                    oldArsc.seek(oldOffset);
+                    int remain = length;
+                    while (remain > 0) {
+                        final int len = Math.min(remain, buffer.length);
+                        oldArsc.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        remain -= len;
+                    }
+                    written += length;
+                    break;
+                }
+                case ArscPatchFile.OP_ADD: {
+                    final int length = in.readInt();
+                    int remain = length;
+                    while (remain > 0) {
+                        final int len = Math.min(remain, buffer.length);
+                        in.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        remain -= len;
+                    }
+                    written += length;
+                    break;
+                }
+                case ArscPatchFile.OP_PATCH: {
+                    final int oldOffset = in.readInt();
+                    final int oldLength = in.readInt();
+                    final int diffLength = in.readInt();
+                    checkOldRange(oldOffset, oldLength, oldSize);
+                    final byte[] oldChunk = new byte[oldLength];
+                    oldArsc.seek(oldOffset);
+                    oldArsc.readFully(oldChunk);
+                    final byte[] diff = new byte[diffLength];
+                    in.readFully(diff);
+                    final byte[] newChunk = BSPatch.patchFast(oldChunk, oldLength, diff, diffLength, 0);
+                    out.write(newChunk);
+                    written += newChunk.length;
+                    break;
+                }
+                default:
+                    throw new IOException("unknown arsc patch op: " + op);
+            }
+        }
+        if (written != newSize) {
+            throw new IOException("arsc patch size mismatch, expected: " + newSize + ", got: " + written);
+        }
+    }
+
+    private static void checkOldRange(int offset, int length, long oldSize) throws IOException {
+        if (offset < 0 || length < 0 || offset + (long) length > oldSize) {
+            throw new IOException("arsc patch op out of old file range, offset: " + offset + ", length: " + length);
+        }
+    }
+}
@@ -16,22 +16,8 @@
 
 package com.tencent.tinker.commons.dexpatcher;
 
-import com.tencent.tinker.android.dex.Annotation;
-import com.tencent.tinker.android.dex.AnnotationSet;
-import com.tencent.tinker.android.dex.AnnotationSetRefList;
-import com.tencent.tinker.android.dex.AnnotationsDirectory;
-import com.tencent.tinker.android.dex.ClassData;
-import com.tencent.tinker.android.dex.ClassDef;
-import com.tencent.tinker.android.dex.Code;
-import com.tencent.tinker.android.dex.DebugInfoItem;
 import com.tencent.tinker.android.dex.Dex;
-import com.tencent.tinker.android.dex.EncodedValue;
-import com.tencent.tinker.android.dex.FieldId;
-import com.tencent.tinker.android.dex.MethodId;
-import com.tencent.tinker.android.dex.ProtoId;
-import com.tencent.tinker.android.dex.StringData;
 import com.tencent.tinker.android.dex.TableOfContents;
-import com.tencent.tinker.android.dex.TypeList;
 import com.tencent.tinker.android.dex.util.CompareUtils;
 import com.tencent.tinker.commons.dexpatcher.algorithms.patch.AnnotationSectionPatchAlgorithm;
 import com.tencent.tinker.commons.dexpatcher.algorithms.patch.AnnotationSetRefListSectionPatchAlgorithm;
@@ -53,40 +39,80 @@ import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
 import com.tencent.tinker.commons.util.IOHelper;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by tangyinsheng on 2016/6/30.
  */
 public class DexPatchApplier {
+    private static final int MAX_SECTION_PATCH_THREAD_COUNT = 4;
+
+    // Sections in the order they are patched one after another.
+    private static final int SECTION_STRING_DATA = 0;
+    private static final int SECTION_TYPE_ID = 1;
+    private static final int SECTION_TYPE_LIST = 2;
+    private static final int SECTION_PROTO_ID = 3;
+    private static final int SECTION_FIELD_ID = 4;
+    private static final int SECTION_METHOD_ID = 5;
+    private static final int SECTION_ANNOTATION = 6;
+    private static final int SECTION_ANNOTATION_SET = 7;
+    private static final int SECTION_ANNOTATION_SET_REF_LIST = 8;
+    private static final int SECTION_ANNOTATIONS_DIRECTORY = 9;
+    private static final int SECTION_DEBUG_INFO = 10;
+    private static final int SECTION_CODE = 11;
+    private static final int SECTION_CLASS_DATA = 12;
+    private static final int SECTION_STATIC_VALUE = 13;
+    private static final int SECTION_CLASS_DEF = 14;
+    private static final int SECTION_COUNT = 15;
+
+    /**
+     * Sections whose index or offset mappings are used to adjust items of each section,
+     * see adjust methods in {@link com.tencent.tinker.commons.dexpatcher.util.AbstractIndexMap}.
+     */
+    private static final int[][] SECTION_DEPENDENCIES = {
+            /* SECTION_STRING_DATA */ {},
+            /* SECTION_TYPE_ID */ {SECTION_STRING_DATA},
+            /* SECTION_TYPE_LIST */ {SECTION_TYPE_ID},
+            /* SECTION_PROTO_ID */ {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_TYPE_LIST},
+            /* SECTION_FIELD_ID */ {SECTION_STRING_DATA, SECTION_TYPE_ID},
+            /* SECTION_METHOD_ID */ {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_PROTO_ID},
+            /* SECTION_ANNOTATION */ {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_FIELD_ID, SECTION_METHOD_ID},
+            /* SECTION_ANNOTATION_SET */ {SECTION_ANNOTATION},
+            /* SECTION_ANNOTATION_SET_REF_LIST */ {SECTION_ANNOTATION_SET},
+            /* SECTION_ANNOTATIONS_DIRECTORY */
+            {SECTION_FIELD_ID, SECTION_METHOD_ID, SECTION_ANNOTATION_SET, SECTION_ANNOTATION_SET_REF_LIST},
+            /* SECTION_DEBUG_INFO */ {SECTION_STRING_DATA, SECTION_TYPE_ID},
+            /* SECTION_CODE */
+            {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_FIELD_ID, SECTION_METHOD_ID, SECTION_DEBUG_INFO},
+            /* SECTION_CLASS_DATA */ {SECTION_FIELD_ID, SECTION_METHOD_ID, SECTION_CODE},
+            /* SECTION_STATIC_VALUE */ {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_FIELD_ID, SECTION_METHOD_ID},
+            /* SECTION_CLASS_DEF */
+            {SECTION_STRING_DATA, SECTION_TYPE_ID, SECTION_TYPE_LIST, SECTION_ANNOTATIONS_DIRECTORY,
+                    SECTION_CLASS_DATA, SECTION_STATIC_VALUE}
+    };
+
     private final Dex oldDex;
-    private final Dex patchedDex;
 
     private final DexPatchFile patchFile;
 
     private final SparseIndexMap oldToPatchedIndexMap;
 
-    private DexSectionPatchAlgorithm<StringData> stringDataSectionPatchAlg;
-    private DexSectionPatchAlgorithm<Integer> typeIdSectionPatchAlg;
-    private DexSectionPatchAlgorithm<ProtoId> protoIdSectionPatchAlg;
-    private DexSectionPatchAlgorithm<FieldId> fieldIdSectionPatchAlg;
-    private DexSectionPatchAlgorithm<MethodId> methodIdSectionPatchAlg;
-    private DexSectionPatchAlgorithm<ClassDef> classDefSectionPatchAlg;
-    private DexSectionPatchAlgorithm<TypeList> typeListSectionPatchAlg;
-    private DexSectionPatchAlgorithm<AnnotationSetRefList> annotationSetRefListSectionPatchAlg;
-    private DexSectionPatchAlgorithm<AnnotationSet> annotationSetSectionPatchAlg;
-    private DexSectionPatchAlgorithm<ClassData> classDataSectionPatchAlg;
-    private DexSectionPatchAlgorithm<Code> codeSectionPatchAlg;
-    private DexSectionPatchAlgorithm<DebugInfoItem> debugInfoSectionPatchAlg;
-    private DexSectionPatchAlgorithm<Annotation> annotationSectionPatchAlg;
-    private DexSectionPatchAlgorithm<EncodedValue> encodedArraySectionPatchAlg;
-    private DexSectionPatchAlgorithm<AnnotationsDirectory> annotationsDirectorySectionPatchAlg;
+    private int sectionPatchThreadCount
+            = Math.max(1, Math.min(MAX_SECTION_PATCH_THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+
+    private boolean isOldItemFastPathEnabled = true;
 
     public DexPatchApplier(File oldDexIn, File patchFileIn) throws IOException {
         this(new Dex(oldDexIn), new DexPatchFile(patchFileIn));
@@ -102,11 +128,76 @@ public class DexPatchApplier {
     ) {
         this.oldDex = oldDexIn;
         this.patchFile = patchFileIn;
-        this.patchedDex = new Dex(patchFileIn.getPatchedDexSize());
         this.oldToPatchedIndexMap = new SparseIndexMap();
     }
 
+    /**
+     * Set how many sections can be patched at the same time, 1 means patching them one
+     * after another. By default it is the number of processors, but no more than
+     * {@value #MAX_SECTION_PATCH_THREAD_COUNT}.
+     */
+    public DexPatchApplier setSectionPatchThreadCount(int sectionPatchThreadCount) {
+        this.sectionPatchThreadCount = Math.max(1, sectionPatchThreadCount);
+        return this;
+    }
+
+    /**
+     * Set whether kept old items may be copied or rewritten without being decoded first.
+     * The patched dex is the same either way, turning it off is only useful to verify that.
+     */
+    public DexPatchApplier setOldItemFastPathEnabled(boolean enabled) {
+        this.isOldItemFastPathEnabled = enabled;
+        return this;
+    }
+
     public void executeAndSaveTo(OutputStream out) throws IOException {
+        checkOldDexSignature();
+
+        Dex patchedDex = new Dex(this.patchFile.getPatchedDexSize());
+        TableOfContents patchedToc = layoutPatchedDex(patchedDex);
+
+        executeSectionPatchAlgorithms(patchedDex, null);
+
+        // Thirdly, write header, mapList. Calculate and write patched dex's sign and checksum.
+        patchedToc.writeHeader(patchedDex.openSection(patchedToc.header));
+        patchedToc.writeMap(patchedDex.openSection(patchedToc.mapList));
+
+        patchedDex.writeHashes();
+
+        // Finally, write patched dex to file.
+        patchedDex.writeTo(out);
+    }
+
+    /**
+     * Unlike {@link #executeAndSaveTo(OutputStream)}, the patched dex is never held in
+     * memory as a whole here. Each section is written to {@code file} at its offset once
+     * it is patched, then hashes are calculated by reading the file back.
+     */
+    public void executeAndSaveTo(File file) throws IOException {
+        checkOldDexSignature();
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            out.setLength(this.patchFile.getPatchedDexSize());
+
+            Dex patchedDex = Dex.createSectionBuffered(this.patchFile.getPatchedDexSize());
+            TableOfContents patchedToc = layoutPatchedDex(patchedDex);
+
+            executeSectionPatchAlgorithms(patchedDex, out);
+
+            patchedToc.writeHeader(patchedDex.openSection(patchedToc.header));
+            patchedToc.writeMap(patchedDex.openSection(patchedToc.mapList));
+            patchedDex.flushSectionsTo(out);
+
+            Dex.writeHashes(out);
+        } finally {
+            IOHelper.closeQuietly(out);
+        }
+    }
+
+    private void checkOldDexSignature() throws IOException {
         // Before executing, we should check if this patch can be applied to
         // old dex we passed in.
         byte[] oldDexSign = this.oldDex.computeSignature(false);
@@ -126,10 +217,12 @@ public class DexPatchApplier {
                     )
             );
         }
+    }
 
+    private TableOfContents layoutPatchedDex(Dex patchedDex) {
         // Firstly, set sections' offset after patched, sort according to their offset so that
         // the dex lib of aosp can calculate section size.
-        TableOfContents patchedToc = this.patchedDex.getTableOfContents();
+        TableOfContents patchedToc = patchedDex.getTableOfContents();
 
         patchedToc.header.off = 0;
         patchedToc.header.size = 1;
@@ -176,89 +269,125 @@ public class DexPatchApplier {
 
         patchedToc.computeSizesFromOffsets();
 
-        // Secondly, run patch algorithms according to sections' dependencies.
-        this.stringDataSectionPatchAlg = new StringDataSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.typeIdSectionPatchAlg = new TypeIdSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.protoIdSectionPatchAlg = new ProtoIdSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.fieldIdSectionPatchAlg = new FieldIdSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.methodIdSectionPatchAlg = new MethodIdSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.classDefSectionPatchAlg = new ClassDefSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.typeListSectionPatchAlg = new TypeListSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.annotationSetRefListSectionPatchAlg = new AnnotationSetRefListSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.annotationSetSectionPatchAlg = new AnnotationSetSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.classDataSectionPatchAlg = new ClassDataSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.codeSectionPatchAlg = new CodeSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.debugInfoSectionPatchAlg = new DebugInfoItemSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.annotationSectionPatchAlg = new AnnotationSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.encodedArraySectionPatchAlg = new StaticValueSectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-        this.annotationsDirectorySectionPatchAlg = new AnnotationsDirectorySectionPatchAlgorithm(
-                patchFile, oldDex, patchedDex, oldToPatchedIndexMap
-        );
-
-        this.stringDataSectionPatchAlg.execute();
-        this.typeIdSectionPatchAlg.execute();
-        this.typeListSectionPatchAlg.execute();
-        this.protoIdSectionPatchAlg.execute();
-        this.fieldIdSectionPatchAlg.execute();
-        this.methodIdSectionPatchAlg.execute();
-        this.annotationSectionPatchAlg.execute();
-        this.annotationSetSectionPatchAlg.execute();
-        this.annotationSetRefListSectionPatchAlg.execute();
-        this.annotationsDirectorySectionPatchAlg.execute();
-        this.debugInfoSectionPatchAlg.execute();
-        this.codeSectionPatchAlg.execute();
-        this.classDataSectionPatchAlg.execute();
-        this.encodedArraySectionPatchAlg.execute();
-        this.classDefSectionPatchAlg.execute();
-
-        // Thirdly, write header, mapList. Calculate and write patched dex's sign and checksum.
-        Dex.Section headerOut = this.patchedDex.openSection(patchedToc.header.off);
-        patchedToc.writeHeader(headerOut);
+        return patchedToc;
+    }
 
-        Dex.Section mapListOut = this.patchedDex.openSection(patchedToc.mapList.off);
-        patchedToc.writeMap(mapListOut);
+    /**
+     * Secondly, run patch algorithms according to sections' dependencies. Each algorithm is
+     * created just before it runs, and if {@code sectionOut} is not null, sections it patched
+     * are written out right after it, so that only those sections are buffered at a time.
+     *
+     * Since offsets of all patched sections are known from patch file, sections whose
+     * dependencies are patched can run at the same time. This is only possible when each
+     * section's patch data can be read on its own, which is not the case before version 3.
+     */
+    private void executeSectionPatchAlgorithms(Dex patchedDex, RandomAccessFile sectionOut) throws IOException {
+        if (this.sectionPatchThreadCount <= 1 || this.patchFile.getVersion() != DexPatchFile.VERSION_COLUMNAR) {
+            for (int section = 0; section < SECTION_COUNT; ++section) {
+                execute(section, patchedDex, sectionOut);
+            }
+            return;
+        }
 
-        this.patchedDex.writeHashes();
+        final ExecutorService executor = Executors.newFixedThreadPool(this.sectionPatchThreadCount);
+        try {
+            final CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+            final int[] unpatchedDependencyCounts = new int[SECTION_COUNT];
+            for (int section = 0; section < SECTION_COUNT; ++section) {
+                unpatchedDependencyCounts[section] = SECTION_DEPENDENCIES[section].length;
+                if (unpatchedDependencyCounts[section] == 0) {
+                    submit(completionService, section, patchedDex, sectionOut);
+                }
+            }
+            for (int patchedCount = 0; patchedCount < SECTION_COUNT; ++patchedCount) {
+                final int patchedSection = getResult(completionService.take());
+                for (int section = 0; section < SECTION_COUNT; ++section) {
+                    for (int dependency : SECTION_DEPENDENCIES[section]) {
+                        if (dependency == patchedSection && --unpatchedDependencyCounts[section] == 0) {
+                            submit(completionService, section, patchedDex, sectionOut);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while patching dex sections", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        // Finally, write patched dex to file.
-        this.patchedDex.writeTo(out);
+    private void submit(CompletionService<Integer> completionService, final int section,
+                        final Dex patchedDex, final RandomAccessFile sectionOut) {
+        completionService.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                execute(section, patchedDex, sectionOut);
+                return section;
+            }
+        });
     }
 
-    public void executeAndSaveTo(File file) throws IOException {
-        OutputStream os = null;
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
         try {
-            os = new BufferedOutputStream(new FileOutputStream(file));
-            executeAndSaveTo(os);
-        } finally {
-            IOHelper.closeQuietly(os);
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("failed to patch dex section", cause);
+        }
+    }
+
+    private void execute(int section, Dex patchedDex, RandomAccessFile sectionOut) throws IOException {
+        DexSectionPatchAlgorithm<?> algorithm = createSectionPatchAlgorithm(section, patchedDex);
+        algorithm.setOldItemFastPathEnabled(this.isOldItemFastPathEnabled);
+        algorithm.execute();
+        if (sectionOut != null) {
+            patchedDex.flushSectionsTo(sectionOut);
+        }
+    }
+
+    private DexSectionPatchAlgorithm<?> createSectionPatchAlgorithm(int section, Dex patchedDex) {
+        switch (section) {
+            case SECTION_STRING_DATA:
+                return new StringDataSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_TYPE_ID:
+                return new TypeIdSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_TYPE_LIST:
+                return new TypeListSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_PROTO_ID:
+                return new ProtoIdSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_FIELD_ID:
+                return new FieldIdSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_METHOD_ID:
+                return new MethodIdSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_ANNOTATION:
+                return new AnnotationSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_ANNOTATION_SET:
+                return new AnnotationSetSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_ANNOTATION_SET_REF_LIST:
+                return new AnnotationSetRefListSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_ANNOTATIONS_DIRECTORY:
+                return new AnnotationsDirectorySectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_DEBUG_INFO:
+                return new DebugInfoItemSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_CODE:
+                return new CodeSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_CLASS_DATA:
+                return new ClassDataSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_STATIC_VALUE:
+                return new StaticValueSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            case SECTION_CLASS_DEF:
+                return new ClassDefSectionPatchAlgorithm(patchFile, oldDex, patchedDex, oldToPatchedIndexMap);
+            default:
+                throw new IllegalArgumentException("unknown section: " + section);
         }
     }
 }
@@ -67,6 +67,23 @@ public class AnnotationSetRefListSectionPatchAlgorithm extends DexSectionPatchAl
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isAnnotationSetOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedAnnotationSetRefListTocSec, this.patchedAnnotationSetRefListSec);
+        ++this.patchedAnnotationSetRefListTocSec.size;
+        return indexMap.adjustAndWriteAnnotationSetRefList(oldSection, this.patchedAnnotationSetRefListSec);
+    }
+
     @Override
     protected int writePatchedItem(AnnotationSetRefList patchedItem) {
         ++this.patchedAnnotationSetRefListTocSec.size;
@@ -64,6 +64,23 @@ public class AnnotationSetSectionPatchAlgorithm extends DexSectionPatchAlgorithm
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isAnnotationOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedAnnotationSetTocSec, this.patchedAnnotationSetSec);
+        ++this.patchedAnnotationSetTocSec.size;
+        return indexMap.adjustAndWriteAnnotationSet(oldSection, this.patchedAnnotationSetSec);
+    }
+
     @Override
     protected int writePatchedItem(AnnotationSet patchedItem) {
         ++this.patchedAnnotationSetTocSec.size;
@@ -65,6 +65,26 @@ public class AnnotationsDirectorySectionPatchAlgorithm extends DexSectionPatchAl
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isFieldIdsIdentity()
+                && sparseIndexMap.isMethodIdsIdentity()
+                && sparseIndexMap.isAnnotationSetOffsetsIdentity()
+                && sparseIndexMap.isAnnotationSetRefListOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedAnnotationsDirectoryTocSec, this.patchedAnnotationsDirectorySec);
+        ++this.patchedAnnotationsDirectoryTocSec.size;
+        return indexMap.adjustAndWriteAnnotationsDirectory(oldSection, this.patchedAnnotationsDirectorySec);
+    }
+
     @Override
     protected int writePatchedItem(AnnotationsDirectory patchedItem) {
         ++this.patchedAnnotationsDirectoryTocSec.size;
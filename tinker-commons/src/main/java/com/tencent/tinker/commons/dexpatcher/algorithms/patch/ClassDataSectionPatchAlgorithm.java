@@ -65,6 +65,25 @@ public class ClassDataSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Cla
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isFieldIdsIdentity()
+                && sparseIndexMap.isMethodIdsIdentity()
+                && sparseIndexMap.isCodeOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedClassDataTocSec, this.patchedClassDataSec);
+        ++this.patchedClassDataTocSec.size;
+        return indexMap.adjustAndWriteClassData(oldSection, this.patchedClassDataSec);
+    }
+
     @Override
     protected int writePatchedItem(ClassData patchedItem) {
         ++this.patchedClassDataTocSec.size;
@@ -18,6 +18,7 @@ package com.tencent.tinker.commons.dexpatcher.algorithms.patch;
 
 import com.tencent.tinker.android.dex.ClassDef;
 import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
@@ -66,6 +67,69 @@ public class ClassDefSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Clas
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isStringIdsIdentity()
+                && sparseIndexMap.isTypeIdsIdentity()
+                && sparseIndexMap.isTypeListOffsetsIdentity()
+                && sparseIndexMap.isAnnotationsDirectoryOffsetsIdentity()
+                && sparseIndexMap.isClassDataOffsetsIdentity()
+                && sparseIndexMap.isStaticValuesOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedClassDefTocSec, this.patchedClassDefSec);
+        ++this.patchedClassDefTocSec.size;
+        return indexMap.adjustAndWriteClassDef(oldSection, this.patchedClassDefSec);
+    }
+
+    @Override
+    protected int getFixedItemSize() {
+        return SizeOf.CLASS_DEF_ITEM;
+    }
+
+    @Override
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        int startPosition = oldSection.position();
+        int count = 0;
+        while (count < maxItemCount) {
+            int typeIndex = oldSection.readInt();
+            oldSection.readInt(); // access flags
+            int supertypeIndex = oldSection.readInt();
+            int interfacesOffset = oldSection.readInt();
+            int sourceFileIndex = oldSection.readInt();
+            int annotationsOffset = oldSection.readInt();
+            int classDataOffset = oldSection.readInt();
+            int staticValuesOffset = oldSection.readInt();
+            if (!sparseIndexMap.isTypeIdUnchanged(typeIndex)
+                    || !sparseIndexMap.isTypeIdUnchanged(supertypeIndex)
+                    || !sparseIndexMap.isTypeListOffsetUnchanged(interfacesOffset)
+                    || !sparseIndexMap.isStringIdUnchanged(sourceFileIndex)
+                    || !sparseIndexMap.isAnnotationsDirectoryOffsetUnchanged(annotationsOffset)
+                    || !sparseIndexMap.isClassDataOffsetUnchanged(classDataOffset)
+                    || !sparseIndexMap.isStaticValuesOffsetUnchanged(staticValuesOffset)) {
+                break;
+            }
+            ++count;
+        }
+        oldSection.position(startPosition);
+        return count;
+    }
+
+    @Override
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        int off = this.patchedClassDefSec.position();
+        this.patchedClassDefSec.write(oldSection, itemCount * SizeOf.CLASS_DEF_ITEM);
+        this.patchedClassDefTocSec.size += itemCount;
+        return off;
+    }
+
     @Override
     protected int writePatchedItem(ClassDef patchedItem) {
         ++this.patchedClassDefTocSec.size;
@@ -38,12 +38,23 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
      */
     private final SparseIndexMap oldToPatchedIndexMap;
 
+    private boolean isOldItemFastPathEnabled = true;
+
     public DexSectionPatchAlgorithm(DexPatchFile patchFile, Dex oldDex, SparseIndexMap oldToPatchedIndexMap) {
         this.patchFile = patchFile;
         this.oldDex = oldDex;
         this.oldToPatchedIndexMap = oldToPatchedIndexMap;
     }
 
+    /**
+     * Whether kept old items may be copied, or adjusted and written without being decoded, instead
+     * of being decoded, adjusted and written one by one. The patched section is the same either way,
+     * turning it off is only useful to check that.
+     */
+    public void setOldItemFastPathEnabled(boolean enabled) {
+        this.isOldItemFastPathEnabled = enabled;
+    }
+
     /**
      * Get {@link TableOfContents.Section} from {@code dex}.
      */
@@ -66,6 +77,78 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
         return item;
     }
 
+    /**
+     * Returns true if {@link #adjustItem} returns any old item as it is with {@code sparseIndexMap},
+     * i.e. mappings of all indices and offsets referred by items in this section are identity.
+     * Old items are not adjusted at all then.
+     */
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return false;
+    }
+
+    /**
+     * Returns size of each item if all items in this section are in the same size and written
+     * as they are read, so that old items which need no adjustment can be copied to patched
+     * section byte for byte by {@link #copyOldItems}. Otherwise returns 0.
+     */
+    protected int getFixedItemSize() {
+        return 0;
+    }
+
+    /**
+     * Returns how many old items from current position of {@code oldSection}, at most
+     * {@code maxItemCount}, are known to be returned as they are by {@link #adjustItem} with
+     * {@code sparseIndexMap}, so that they can be copied by {@link #copyOldItems}. Only called
+     * if {@link #getFixedItemSize()} is not 0, the position of {@code oldSection} must be kept.
+     * <p/>
+     * Sections should check the indices and offsets of each item, e.g. by
+     * {@link SparseIndexMap#isStringIdUnchanged}, since a single added or deleted string makes
+     * the whole string mapping non-identity while items referring smaller strings are kept.
+     */
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        return (isAdjustItemIdentity(sparseIndexMap) ? maxItemCount : 0);
+    }
+
+    /**
+     * Copy {@code itemCount} old items from {@code oldSection} to patched section as they are.
+     * Only called if {@link #getFixedItemSize()} is not 0.
+     * <p/>
+     * Returns the offset where the first item is written.
+     */
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        throw new UnsupportedOperationException("section items can not be copied as they are.");
+    }
+
+    /**
+     * Returns true if old items in this section can be adjusted and written to patched section
+     * by {@link #adjustAndWriteOldItem} without being decoded into item objects.
+     */
+    protected boolean isAdjustAndWriteSupported() {
+        return false;
+    }
+
+    /**
+     * Adjust the old item at current position of {@code oldSection} using {@code indexMap} and
+     * write it to patched section directly. The bytes written must be the same as
+     * {@link #writePatchedItem} writes for the item decoded by {@link #nextItem} and adjusted
+     * by {@link #adjustItem}. Only called if {@link #isAdjustAndWriteSupported()} returns true.
+     * <p/>
+     * Returns the offset where the item is written.
+     */
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        throw new UnsupportedOperationException("section items can not be adjusted and written directly.");
+    }
+
+    /**
+     * Fill zeros before next item in {@code patchedSection} if items in {@code patchedTocSec} are
+     * four bytes aligned, as {@link Dex.Section} does before writing an item object.
+     */
+    protected static void alignPatchedItem(TableOfContents.Section patchedTocSec, DexDataBuffer patchedSection) {
+        if (patchedTocSec.isElementFourByteAligned) {
+            patchedSection.alignToFourBytesWithZeroFill();
+        }
+    }
+
     /**
      * Update index or offset mapping in {@code sparseIndexMap}.
      */
@@ -98,11 +181,11 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
      */
     protected abstract int writePatchedItem(T patchedItem);
 
-    private int[] readDeltaIndiciesOrOffsets(int count) {
+    private int[] readDeltaIndiciesOrOffsets(DexDataBuffer indexColumn, int count) {
         int[] result = new int[count];
         int lastVal = 0;
         for (int i = 0; i < count; ++i) {
-            int delta = patchFile.getBuffer().readSleb128();
+            int delta = indexColumn.readSleb128();
             lastVal = lastVal + delta;
             result[i] = lastVal;
         }
@@ -124,16 +207,18 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
     }
 
     public void execute() {
-        final int deletedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] deletedIndices = readDeltaIndiciesOrOffsets(deletedItemCount);
+        final TableOfContents.Section tocSec = getTocSection(this.oldDex);
 
-        final int addedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] addedIndices = readDeltaIndiciesOrOffsets(addedItemCount);
+        final DexDataBuffer indexColumn = patchFile.openIndexColumn(tocSec.type);
+        final int deletedItemCount = indexColumn.readUleb128();
+        final int[] deletedIndices = readDeltaIndiciesOrOffsets(indexColumn, deletedItemCount);
 
-        final int replacedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] replacedIndices = readDeltaIndiciesOrOffsets(replacedItemCount);
+        final int addedItemCount = indexColumn.readUleb128();
+        final int[] addedIndices = readDeltaIndiciesOrOffsets(indexColumn, addedItemCount);
+
+        final int replacedItemCount = indexColumn.readUleb128();
+        final int[] replacedIndices = readDeltaIndiciesOrOffsets(indexColumn, replacedItemCount);
 
-        final TableOfContents.Section tocSec = getTocSection(this.oldDex);
         Dex.Section oldSection = null;
 
         int oldItemCount = 0;
@@ -143,18 +228,55 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
         }
 
         // Now rest data are added and replaced items arranged in the order of
-        // added indices and replaced indices.
+        // added indices and replaced indices, in one column for each before version 3.
         doFullPatch(
-                oldSection, oldItemCount, deletedIndices, addedIndices, replacedIndices
+                tocSec, oldSection, oldItemCount, deletedIndices, addedIndices, replacedIndices,
+                patchFile.openAddedItemColumn(tocSec.type), patchFile.openReplacedItemColumn(tocSec.type)
+        );
+    }
+
+    /**
+     * Returns the first old index which is not less than {@code oldIndex} and is deleted or replaced.
+     */
+    private static int getNextOperatedIndex(int[] deletedIndices, int[] replacedIndices, int oldIndex, int oldItemCount) {
+        return Math.min(
+                Math.min(getFirstNotLessThan(deletedIndices, oldIndex), getFirstNotLessThan(replacedIndices, oldIndex)),
+                oldItemCount
         );
     }
 
+    /**
+     * Returns the next patched index which an item is added or replaced to.
+     */
+    private static int getNextPatchedIndex(int[] addedIndices, int addActionCursor,
+                                           int[] replacedIndices, int replaceActionCursor, int newItemCount) {
+        int result = newItemCount;
+        if (addActionCursor < addedIndices.length) {
+            result = Math.min(result, addedIndices[addActionCursor]);
+        }
+        if (replaceActionCursor < replacedIndices.length) {
+            result = Math.min(result, replacedIndices[replaceActionCursor]);
+        }
+        return result;
+    }
+
+    private static int getFirstNotLessThan(int[] sortedValues, int value) {
+        int pos = Arrays.binarySearch(sortedValues, value);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return (pos < sortedValues.length ? sortedValues[pos] : Integer.MAX_VALUE);
+    }
+
     private void doFullPatch(
+            TableOfContents.Section tocSec,
             Dex.Section oldSection,
             int oldItemCount,
             int[] deletedIndices,
             int[] addedIndices,
-            int[] replacedIndices
+            int[] replacedIndices,
+            DexDataBuffer addedItemColumn,
+            DexDataBuffer replacedItemColumn
     ) {
         int deletedItemCount = deletedIndices.length;
         int addedItemCount = addedIndices.length;
@@ -165,17 +287,24 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
         int addActionCursor = 0;
         int replaceActionCursor = 0;
 
+        final boolean isFastPath = this.isOldItemFastPathEnabled;
+        final boolean isAdjustIdentity = isFastPath && isAdjustItemIdentity(this.oldToPatchedIndexMap);
+        final int fixedItemSize = (isFastPath ? getFixedItemSize() : 0);
+        final boolean isAdjustAndWrite = isFastPath && isAdjustAndWriteSupported();
+        // Nothing to remap when all mappings are identity, items are still written field by field.
+        final AbstractIndexMap adjustAndWriteIndexMap = (isAdjustIdentity ? IdentityIndexMap.INSTANCE : this.oldToPatchedIndexMap);
+
         int oldIndex = 0;
         int patchedIndex = 0;
         while (oldIndex < oldItemCount || patchedIndex < newItemCount) {
             if (addActionCursor < addedItemCount && addedIndices[addActionCursor] == patchedIndex) {
-                T addedItem = nextItem(patchFile.getBuffer());
+                T addedItem = nextItem(addedItemColumn);
                 int patchedOffset = writePatchedItem(addedItem);
                 ++addActionCursor;
                 ++patchedIndex;
             } else
             if (replaceActionCursor < replacedItemCount && replacedIndices[replaceActionCursor] == patchedIndex) {
-                T replacedItem = nextItem(patchFile.getBuffer());
+                T replacedItem = nextItem(replacedItemColumn);
                 int patchedOffset = writePatchedItem(replacedItem);
                 ++replaceActionCursor;
                 ++patchedIndex;
@@ -200,20 +329,73 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
                 ++oldIndex;
             } else
             if (oldIndex < oldItemCount) {
-                T oldItem = adjustItem(this.oldToPatchedIndexMap, nextItem(oldSection));
+                int unchangedItemCount = 0;
+                if (fixedItemSize > 0) {
+                    // Old items before next patch operation are kept, those which need no
+                    // adjustment are copied as a whole.
+                    int keptItemCount = Math.max(1, Math.min(
+                            getNextOperatedIndex(deletedIndices, replacedIndices, oldIndex, oldItemCount) - oldIndex,
+                            getNextPatchedIndex(addedIndices, addActionCursor, replacedIndices, replaceActionCursor, newItemCount) - patchedIndex
+                    ));
+                    unchangedItemCount = getUnchangedOldItemCount(this.oldToPatchedIndexMap, oldSection, keptItemCount);
+                }
 
-                int patchedOffset = writePatchedItem(oldItem);
+                if (unchangedItemCount > 0) {
+                    int oldOffset = oldSection.position();
+                    int patchedOffset = copyOldItems(oldSection, unchangedItemCount);
 
-                updateIndexOrOffset(
-                        this.oldToPatchedIndexMap,
-                        oldIndex,
-                        getItemOffsetOrIndex(oldIndex, oldItem),
-                        patchedIndex,
-                        patchedOffset
-                );
+                    if (oldIndex != patchedIndex || oldOffset != patchedOffset) {
+                        for (int i = 0; i < unchangedItemCount; ++i) {
+                            updateIndexOrOffset(
+                                    this.oldToPatchedIndexMap,
+                                    oldIndex + i,
+                                    oldOffset + i * fixedItemSize,
+                                    patchedIndex + i,
+                                    patchedOffset + i * fixedItemSize
+                            );
+                        }
+                    }
 
-                ++oldIndex;
-                ++patchedIndex;
+                    oldIndex += unchangedItemCount;
+                    patchedIndex += unchangedItemCount;
+                } else
+                if (isAdjustAndWrite) {
+                    // Skip padding before old item as Dex.Section does when reading it.
+                    if (tocSec.isElementFourByteAligned) {
+                        oldSection.alignToFourBytes();
+                    }
+                    int oldOffset = oldSection.position();
+                    int patchedOffset = adjustAndWriteOldItem(adjustAndWriteIndexMap, oldSection);
+
+                    updateIndexOrOffset(
+                            this.oldToPatchedIndexMap,
+                            oldIndex,
+                            oldOffset,
+                            patchedIndex,
+                            patchedOffset
+                    );
+
+                    ++oldIndex;
+                    ++patchedIndex;
+                } else {
+                    T oldItem = nextItem(oldSection);
+                    if (!isAdjustIdentity) {
+                        oldItem = adjustItem(this.oldToPatchedIndexMap, oldItem);
+                    }
+
+                    int patchedOffset = writePatchedItem(oldItem);
+
+                    updateIndexOrOffset(
+                            this.oldToPatchedIndexMap,
+                            oldIndex,
+                            getItemOffsetOrIndex(oldIndex, oldItem),
+                            patchedIndex,
+                            patchedOffset
+                    );
+
+                    ++oldIndex;
+                    ++patchedIndex;
+                }
             }
         }
 
@@ -235,4 +417,81 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
             );
         }
     }
+
+    /**
+     * Index map which adjusts every index and offset to itself.
+     */
+    private static final class IdentityIndexMap extends AbstractIndexMap {
+        static final IdentityIndexMap INSTANCE = new IdentityIndexMap();
+
+        @Override
+        public int adjustStringIndex(int stringIndex) {
+            return stringIndex;
+        }
+
+        @Override
+        public int adjustTypeIdIndex(int typeIdIndex) {
+            return typeIdIndex;
+        }
+
+        @Override
+        public int adjustProtoIdIndex(int protoIndex) {
+            return protoIndex;
+        }
+
+        @Override
+        public int adjustFieldIdIndex(int fieldIndex) {
+            return fieldIndex;
+        }
+
+        @Override
+        public int adjustMethodIdIndex(int methodIndex) {
+            return methodIndex;
+        }
+
+        @Override
+        public int adjustTypeListOffset(int typeListOffset) {
+            return typeListOffset;
+        }
+
+        @Override
+        public int adjustAnnotationOffset(int annotationOffset) {
+            return annotationOffset;
+        }
+
+        @Override
+        public int adjustAnnotationSetOffset(int annotationSetOffset) {
+            return annotationSetOffset;
+        }
+
+        @Override
+        public int adjustAnnotationSetRefListOffset(int annotationSetRefListOffset) {
+            return annotationSetRefListOffset;
+        }
+
+        @Override
+        public int adjustAnnotationsDirectoryOffset(int annotationsDirectoryOffset) {
+            return annotationsDirectoryOffset;
+        }
+
+        @Override
+        public int adjustStaticValuesOffset(int staticValuesOffset) {
+            return staticValuesOffset;
+        }
+
+        @Override
+        public int adjustClassDataOffset(int classDataOffset) {
+            return classDataOffset;
+        }
+
+        @Override
+        public int adjustDebugInfoItemOffset(int debugInfoItemOffset) {
+            return debugInfoItemOffset;
+        }
+
+        @Override
+        public int adjustCodeOffset(int codeOffset) {
+            return codeOffset;
+        }
+    }
 }
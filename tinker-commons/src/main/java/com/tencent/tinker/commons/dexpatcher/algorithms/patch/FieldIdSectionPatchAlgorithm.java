@@ -18,6 +18,7 @@ package com.tencent.tinker.commons.dexpatcher.algorithms.patch;
 
 import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.FieldId;
+import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
@@ -65,6 +66,55 @@ public class FieldIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Field
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isStringIdsIdentity() && sparseIndexMap.isTypeIdsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedFieldIdTocSec, this.patchedFieldIdSec);
+        ++this.patchedFieldIdTocSec.size;
+        return indexMap.adjustAndWriteFieldId(oldSection, this.patchedFieldIdSec);
+    }
+
+    @Override
+    protected int getFixedItemSize() {
+        return SizeOf.MEMBER_ID_ITEM;
+    }
+
+    @Override
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        int startPosition = oldSection.position();
+        int count = 0;
+        while (count < maxItemCount) {
+            int declaringClassIndex = oldSection.readUnsignedShort();
+            int typeIndex = oldSection.readUnsignedShort();
+            int nameIndex = oldSection.readInt();
+            if (!sparseIndexMap.isTypeIdUnchanged(declaringClassIndex)
+                    || !sparseIndexMap.isTypeIdUnchanged(typeIndex)
+                    || !sparseIndexMap.isStringIdUnchanged(nameIndex)) {
+                break;
+            }
+            ++count;
+        }
+        oldSection.position(startPosition);
+        return count;
+    }
+
+    @Override
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        int off = this.patchedFieldIdSec.position();
+        this.patchedFieldIdSec.write(oldSection, itemCount * SizeOf.MEMBER_ID_ITEM);
+        this.patchedFieldIdTocSec.size += itemCount;
+        return off;
+    }
+
     @Override
     protected int writePatchedItem(FieldId patchedItem) {
         ++this.patchedFieldIdTocSec.size;
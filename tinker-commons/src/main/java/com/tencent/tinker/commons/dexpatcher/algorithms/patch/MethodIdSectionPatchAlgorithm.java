@@ -18,6 +18,7 @@ package com.tencent.tinker.commons.dexpatcher.algorithms.patch;
 
 import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.MethodId;
+import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
@@ -65,6 +66,57 @@ public class MethodIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Meth
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isStringIdsIdentity()
+                && sparseIndexMap.isTypeIdsIdentity()
+                && sparseIndexMap.isProtoIdsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedMethodIdTocSec, this.patchedMethodIdSec);
+        ++this.patchedMethodIdTocSec.size;
+        return indexMap.adjustAndWriteMethodId(oldSection, this.patchedMethodIdSec);
+    }
+
+    @Override
+    protected int getFixedItemSize() {
+        return SizeOf.MEMBER_ID_ITEM;
+    }
+
+    @Override
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        int startPosition = oldSection.position();
+        int count = 0;
+        while (count < maxItemCount) {
+            int declaringClassIndex = oldSection.readUnsignedShort();
+            int protoIndex = oldSection.readUnsignedShort();
+            int nameIndex = oldSection.readInt();
+            if (!sparseIndexMap.isTypeIdUnchanged(declaringClassIndex)
+                    || !sparseIndexMap.isProtoIdUnchanged(protoIndex)
+                    || !sparseIndexMap.isStringIdUnchanged(nameIndex)) {
+                break;
+            }
+            ++count;
+        }
+        oldSection.position(startPosition);
+        return count;
+    }
+
+    @Override
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        int off = this.patchedMethodIdSec.position();
+        this.patchedMethodIdSec.write(oldSection, itemCount * SizeOf.MEMBER_ID_ITEM);
+        this.patchedMethodIdTocSec.size += itemCount;
+        return off;
+    }
+
     @Override
     protected int writePatchedItem(MethodId patchedItem) {
         ++this.patchedMethodIdTocSec.size;
@@ -18,6 +18,7 @@ package com.tencent.tinker.commons.dexpatcher.algorithms.patch;
 
 import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.ProtoId;
+import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
@@ -65,6 +66,57 @@ public class ProtoIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Proto
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isStringIdsIdentity()
+                && sparseIndexMap.isTypeIdsIdentity()
+                && sparseIndexMap.isTypeListOffsetsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedProtoIdTocSec, this.patchedProtoIdSec);
+        ++this.patchedProtoIdTocSec.size;
+        return indexMap.adjustAndWriteProtoId(oldSection, this.patchedProtoIdSec);
+    }
+
+    @Override
+    protected int getFixedItemSize() {
+        return SizeOf.PROTO_ID_ITEM;
+    }
+
+    @Override
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        int startPosition = oldSection.position();
+        int count = 0;
+        while (count < maxItemCount) {
+            int shortyIndex = oldSection.readInt();
+            int returnTypeIndex = oldSection.readInt();
+            int parametersOffset = oldSection.readInt();
+            if (!sparseIndexMap.isStringIdUnchanged(shortyIndex)
+                    || !sparseIndexMap.isTypeIdUnchanged(returnTypeIndex)
+                    || !sparseIndexMap.isTypeListOffsetUnchanged(parametersOffset)) {
+                break;
+            }
+            ++count;
+        }
+        oldSection.position(startPosition);
+        return count;
+    }
+
+    @Override
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        int off = this.patchedProtoIdSec.position();
+        this.patchedProtoIdSec.write(oldSection, itemCount * SizeOf.PROTO_ID_ITEM);
+        this.patchedProtoIdTocSec.size += itemCount;
+        return off;
+    }
+
     @Override
     protected int writePatchedItem(ProtoId patchedItem) {
         ++this.patchedProtoIdTocSec.size;
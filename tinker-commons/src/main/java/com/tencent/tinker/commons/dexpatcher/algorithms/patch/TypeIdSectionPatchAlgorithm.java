@@ -65,6 +65,47 @@ public class TypeIdSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Intege
         return indexMap.adjustStringIndex(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isStringIdsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedTypeIdTocSec, this.patchedTypeIdSec);
+        ++this.patchedTypeIdTocSec.size;
+        return indexMap.adjustAndWriteTypeId(oldSection, this.patchedTypeIdSec);
+    }
+
+    @Override
+    protected int getFixedItemSize() {
+        return SizeOf.TYPE_ID_ITEM;
+    }
+
+    @Override
+    protected int getUnchangedOldItemCount(SparseIndexMap sparseIndexMap, DexDataBuffer oldSection, int maxItemCount) {
+        int startPosition = oldSection.position();
+        int count = 0;
+        while (count < maxItemCount && sparseIndexMap.isStringIdUnchanged(oldSection.readInt())) {
+            ++count;
+        }
+        oldSection.position(startPosition);
+        return count;
+    }
+
+    @Override
+    protected int copyOldItems(DexDataBuffer oldSection, int itemCount) {
+        int off = this.patchedTypeIdSec.position();
+        this.patchedTypeIdSec.write(oldSection, itemCount * SizeOf.TYPE_ID_ITEM);
+        this.patchedTypeIdTocSec.size += itemCount;
+        return off;
+    }
+
     @Override
     protected int writePatchedItem(Integer patchedItem) {
         int off = this.patchedTypeIdSec.position();
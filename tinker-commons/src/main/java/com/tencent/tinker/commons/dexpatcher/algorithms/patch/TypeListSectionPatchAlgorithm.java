@@ -65,6 +65,23 @@ public class TypeListSectionPatchAlgorithm extends DexSectionPatchAlgorithm<Type
         return indexMap.adjust(item);
     }
 
+    @Override
+    protected boolean isAdjustItemIdentity(SparseIndexMap sparseIndexMap) {
+        return sparseIndexMap.isTypeIdsIdentity();
+    }
+
+    @Override
+    protected boolean isAdjustAndWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected int adjustAndWriteOldItem(AbstractIndexMap indexMap, DexDataBuffer oldSection) {
+        alignPatchedItem(this.patchedTypeListTocSec, this.patchedTypeListSec);
+        ++this.patchedTypeListTocSec.size;
+        return indexMap.adjustAndWriteTypeList(oldSection, this.patchedTypeListSec);
+    }
+
     @Override
     protected int writePatchedItem(TypeList patchedItem) {
         ++this.patchedTypeListTocSec.size;
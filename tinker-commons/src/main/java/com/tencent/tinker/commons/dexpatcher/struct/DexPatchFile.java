@@ -29,10 +29,27 @@ import java.util.Arrays;
 
 /**
  * Created by tangyinsheng on 2016/7/1.
+ *
+ * Since version 3, patch operations are stored in columns instead of section by section.
+ * A section table at firstChunkOffset gives sizes of the columns of each section:
+ * <pre>
+ *   uleb128 sectionCount
+ *   sectionCount * { ushort sectionType, uleb128 indicesSize, uleb128 addedItemsSize, uleb128 replacedItemsSize }
+ * </pre>
+ * followed by indices of all sections, then added and replaced items of each section, all in
+ * the order of the table. Offsets of the columns are worked out from the table when parsing.
+ * Sections without any patch operation are left out of the table.
  */
 public final class DexPatchFile {
     public static final byte[] MAGIC = {0x44, 0x58, 0x44, 0x49, 0x46, 0x46}; // DXDIFF
-    public static final short CURRENT_VERSION = 0x0002;
+    public static final short VERSION_SEQUENTIAL = 0x0002;
+    public static final short VERSION_COLUMNAR = 0x0003;
+    public static final short CURRENT_VERSION = VERSION_COLUMNAR;
+    /**
+     * Indices of a section without any deleted, added or replaced item.
+     */
+    private static final byte[] EMPTY_SECTION_INDICES = {0, 0, 0};
+    private final byte[] data;
     private final DexDataBuffer buffer;
     private short version;
     private int patchedDexSize;
@@ -55,14 +72,22 @@ public final class DexPatchFile {
     private int patchedEncodedArraySectionOffset;
     private int patchedAnnotationsDirectorySectionOffset;
     private byte[] oldDexSignature;
+    private short[] sectionTypes;
+    private int[] sectionIndicesOffsets;
+    private int[] sectionAddedItemsOffsets;
+    private int[] sectionReplacedItemsOffsets;
 
     public DexPatchFile(File file) throws IOException {
-        this.buffer = new DexDataBuffer(ByteBuffer.wrap(FileUtils.readFile(file)));
-        init();
+        this(FileUtils.readFile(file));
     }
 
     public DexPatchFile(InputStream is) throws IOException {
-        this.buffer = new DexDataBuffer(ByteBuffer.wrap(FileUtils.readStream(is)));
+        this(FileUtils.readStream(is));
+    }
+
+    private DexPatchFile(byte[] data) {
+        this.data = data;
+        this.buffer = new DexDataBuffer(ByteBuffer.wrap(data));
         init();
     }
 
@@ -73,8 +98,10 @@ public final class DexPatchFile {
         }
 
         this.version = this.buffer.readShort();
-        if (CompareUtils.uCompare(this.version, CURRENT_VERSION) != 0) {
-            throw new IllegalStateException("bad dex patch file version: " + this.version + ", expected: " + CURRENT_VERSION);
+        if (CompareUtils.uCompare(this.version, VERSION_SEQUENTIAL) != 0
+                && CompareUtils.uCompare(this.version, VERSION_COLUMNAR) != 0) {
+            throw new IllegalStateException("bad dex patch file version: " + this.version + ", expected: "
+                    + VERSION_SEQUENTIAL + " or " + VERSION_COLUMNAR);
         }
 
         this.patchedDexSize = this.buffer.readInt();
@@ -99,6 +126,84 @@ public final class DexPatchFile {
         this.oldDexSignature = this.buffer.readByteArray(SizeOf.SIGNATURE);
 
         this.buffer.position(firstChunkOffset);
+
+        if (this.version == VERSION_COLUMNAR) {
+            int sectionCount = this.buffer.readUleb128();
+            this.sectionTypes = new short[sectionCount];
+            this.sectionIndicesOffsets = new int[sectionCount];
+            this.sectionAddedItemsOffsets = new int[sectionCount];
+            this.sectionReplacedItemsOffsets = new int[sectionCount];
+            int[] indicesSizes = new int[sectionCount];
+            int[] addedItemsSizes = new int[sectionCount];
+            int[] replacedItemsSizes = new int[sectionCount];
+            for (int i = 0; i < sectionCount; ++i) {
+                this.sectionTypes[i] = this.buffer.readShort();
+                indicesSizes[i] = this.buffer.readUleb128();
+                addedItemsSizes[i] = this.buffer.readUleb128();
+                replacedItemsSizes[i] = this.buffer.readUleb128();
+            }
+            int columnOffset = this.buffer.position();
+            for (int i = 0; i < sectionCount; ++i) {
+                this.sectionIndicesOffsets[i] = columnOffset;
+                columnOffset += indicesSizes[i];
+            }
+            for (int i = 0; i < sectionCount; ++i) {
+                this.sectionAddedItemsOffsets[i] = columnOffset;
+                columnOffset += addedItemsSizes[i];
+                this.sectionReplacedItemsOffsets[i] = columnOffset;
+                columnOffset += replacedItemsSizes[i];
+            }
+            if (columnOffset > this.data.length) {
+                throw new IllegalStateException("bad dex patch file, columns end at " + columnOffset
+                        + " beyond file size " + this.data.length);
+            }
+        }
+    }
+
+    private int getSectionTableEntry(int sectionType) {
+        for (int i = 0; i < this.sectionTypes.length; ++i) {
+            if (this.sectionTypes[i] == sectionType) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private DexDataBuffer openColumn(int offset) {
+        DexDataBuffer column = new DexDataBuffer(ByteBuffer.wrap(this.data));
+        column.position(offset);
+        return column;
+    }
+
+    /**
+     * Open indices of deleted, added and replaced items of section in {@code sectionType}.
+     * Before version 3 all of them are read from {@link #getBuffer()} one section after another.
+     */
+    public DexDataBuffer openIndexColumn(int sectionType) {
+        if (this.version == VERSION_SEQUENTIAL) {
+            return this.buffer;
+        }
+        int entry = getSectionTableEntry(sectionType);
+        if (entry < 0) {
+            return new DexDataBuffer(ByteBuffer.wrap(EMPTY_SECTION_INDICES));
+        }
+        return openColumn(this.sectionIndicesOffsets[entry]);
+    }
+
+    public DexDataBuffer openAddedItemColumn(int sectionType) {
+        if (this.version == VERSION_SEQUENTIAL) {
+            return this.buffer;
+        }
+        int entry = getSectionTableEntry(sectionType);
+        return openColumn(entry >= 0 ? this.sectionAddedItemsOffsets[entry] : this.data.length);
+    }
+
+    public DexDataBuffer openReplacedItemColumn(int sectionType) {
+        if (this.version == VERSION_SEQUENTIAL) {
+            return this.buffer;
+        }
+        int entry = getSectionTableEntry(sectionType);
+        return openColumn(entry >= 0 ? this.sectionReplacedItemsOffsets[entry] : this.data.length);
     }
 
     public short getVersion() {
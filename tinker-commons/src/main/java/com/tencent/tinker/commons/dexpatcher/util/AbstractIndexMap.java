@@ -33,6 +33,7 @@ import com.tencent.tinker.android.dex.Leb128;
 import com.tencent.tinker.android.dex.MethodId;
 import com.tencent.tinker.android.dex.ProtoId;
 import com.tencent.tinker.android.dex.TypeList;
+import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.android.dex.util.ByteInput;
 import com.tencent.tinker.android.dex.util.ByteOutput;
 
@@ -384,6 +385,158 @@ public abstract class AbstractIndexMap {
         );
     }
 
+    /*
+     * Methods below adjust an item at current position of {@code in} and write it to current
+     * position of {@code out} without decoding it into an item object. The bytes written are
+     * the same as writing the item adjusted by its adjust method above. Alignment before the
+     * item is left to callers. Each of them returns the offset where the item is written.
+     */
+
+    public int adjustAndWriteTypeId(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeInt(adjustStringIndex(in.readInt()));
+        return off;
+    }
+
+    public int adjustAndWriteTypeList(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        int size = in.readInt();
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            out.writeShort((short) adjustTypeIdIndex(in.readShort()));
+        }
+        return off;
+    }
+
+    public int adjustAndWriteMethodId(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeUnsignedShort(adjustTypeIdIndex(in.readUnsignedShort()));
+        out.writeUnsignedShort(adjustProtoIdIndex(in.readUnsignedShort()));
+        out.writeInt(adjustStringIndex(in.readInt()));
+        return off;
+    }
+
+    public int adjustAndWriteFieldId(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeUnsignedShort(adjustTypeIdIndex(in.readUnsignedShort()));
+        out.writeUnsignedShort(adjustTypeIdIndex(in.readUnsignedShort()));
+        out.writeInt(adjustStringIndex(in.readInt()));
+        return off;
+    }
+
+    public int adjustAndWriteProtoId(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeInt(adjustStringIndex(in.readInt()));
+        out.writeInt(adjustTypeIdIndex(in.readInt()));
+        out.writeInt(adjustTypeListOffset(in.readInt()));
+        return off;
+    }
+
+    public int adjustAndWriteClassDef(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeInt(adjustTypeIdIndex(in.readInt()));
+        // access flags
+        out.writeInt(in.readInt());
+        out.writeInt(adjustTypeIdIndex(in.readInt()));
+        out.writeInt(adjustTypeListOffset(in.readInt()));
+        out.writeInt(adjustStringIndex(in.readInt()));
+        out.writeInt(adjustAnnotationsDirectoryOffset(in.readInt()));
+        out.writeInt(adjustClassDataOffset(in.readInt()));
+        out.writeInt(adjustStaticValuesOffset(in.readInt()));
+        return off;
+    }
+
+    public int adjustAndWriteClassData(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        int staticFieldsSize = in.readUleb128();
+        int instanceFieldsSize = in.readUleb128();
+        int directMethodsSize = in.readUleb128();
+        int virtualMethodsSize = in.readUleb128();
+        out.writeUleb128(staticFieldsSize);
+        out.writeUleb128(instanceFieldsSize);
+        out.writeUleb128(directMethodsSize);
+        out.writeUleb128(virtualMethodsSize);
+        adjustAndWriteFields(in, out, staticFieldsSize);
+        adjustAndWriteFields(in, out, instanceFieldsSize);
+        adjustAndWriteMethods(in, out, directMethodsSize);
+        adjustAndWriteMethods(in, out, virtualMethodsSize);
+        return off;
+    }
+
+    private void adjustAndWriteFields(DexDataBuffer in, DexDataBuffer out, int count) {
+        int fieldIndex = 0;
+        int lastOutFieldIndex = 0;
+        for (int i = 0; i < count; ++i) {
+            fieldIndex += in.readUleb128();
+            int adjustedFieldIndex = adjustFieldIdIndex(fieldIndex);
+            out.writeUleb128(adjustedFieldIndex - lastOutFieldIndex);
+            lastOutFieldIndex = adjustedFieldIndex;
+            // access flags
+            out.writeUleb128(in.readUleb128());
+        }
+    }
+
+    private void adjustAndWriteMethods(DexDataBuffer in, DexDataBuffer out, int count) {
+        int methodIndex = 0;
+        int lastOutMethodIndex = 0;
+        for (int i = 0; i < count; ++i) {
+            methodIndex += in.readUleb128();
+            int adjustedMethodIndex = adjustMethodIdIndex(methodIndex);
+            out.writeUleb128(adjustedMethodIndex - lastOutMethodIndex);
+            lastOutMethodIndex = adjustedMethodIndex;
+            // access flags
+            out.writeUleb128(in.readUleb128());
+            out.writeUleb128(adjustCodeOffset(in.readUleb128()));
+        }
+    }
+
+    public int adjustAndWriteAnnotationSet(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        int size = in.readInt();
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            out.writeInt(adjustAnnotationOffset(in.readInt()));
+        }
+        return off;
+    }
+
+    public int adjustAndWriteAnnotationSetRefList(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        int size = in.readInt();
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            out.writeInt(adjustAnnotationSetOffset(in.readInt()));
+        }
+        return off;
+    }
+
+    public int adjustAndWriteAnnotationsDirectory(DexDataBuffer in, DexDataBuffer out) {
+        int off = out.position();
+        out.writeInt(adjustAnnotationSetOffset(in.readInt()));
+        int fieldsSize = in.readInt();
+        int methodsSize = in.readInt();
+        int parameterListSize = in.readInt();
+        out.writeInt(fieldsSize);
+        out.writeInt(methodsSize);
+        out.writeInt(parameterListSize);
+
+        for (int i = 0; i < fieldsSize; ++i) {
+            out.writeInt(adjustFieldIdIndex(in.readInt()));
+            out.writeInt(adjustAnnotationSetOffset(in.readInt()));
+        }
+
+        for (int i = 0; i < methodsSize; ++i) {
+            out.writeInt(adjustMethodIdIndex(in.readInt()));
+            out.writeInt(adjustAnnotationSetOffset(in.readInt()));
+        }
+
+        for (int i = 0; i < parameterListSize; ++i) {
+            out.writeInt(adjustMethodIdIndex(in.readInt()));
+            out.writeInt(adjustAnnotationSetRefListOffset(in.readInt()));
+        }
+        return off;
+    }
+
     /**
      * Adjust an encoded value or array.
      */
@@ -56,31 +56,61 @@ public class SparseIndexMap extends AbstractIndexMap {
     private final SparseBoolArray deletedDebugInfoItemOffsets = new SparseBoolArray();
     private final SparseBoolArray deletedCodeOffsets = new SparseBoolArray();
 
+    /*
+     * Smallest old index or offset of a kind which is changed or deleted, any smaller one is
+     * adjusted to itself. Only kept for kinds referred by items of fixed size sections.
+     */
+    private int firstChangedStringId = Integer.MAX_VALUE;
+    private int firstChangedTypeId = Integer.MAX_VALUE;
+    private int firstChangedProtoId = Integer.MAX_VALUE;
+    private int firstChangedTypeListOffset = Integer.MAX_VALUE;
+    private int firstChangedAnnotationsDirectoryOffset = Integer.MAX_VALUE;
+    private int firstChangedStaticValuesOffset = Integer.MAX_VALUE;
+    private int firstChangedClassDataOffset = Integer.MAX_VALUE;
+
     public void mapStringIds(int oldIndex, int newIndex) {
         stringIdsMap.put(oldIndex, newIndex);
+        if (oldIndex != newIndex && oldIndex < firstChangedStringId) {
+            firstChangedStringId = oldIndex;
+        }
     }
 
     public void markStringIdDeleted(int index) {
         if (index < 0) return;
         deletedStringIds.put(index, true);
+        if (index < firstChangedStringId) {
+            firstChangedStringId = index;
+        }
     }
 
     public void mapTypeIds(int oldIndex, int newIndex) {
         typeIdsMap.put(oldIndex, newIndex);
+        if (oldIndex != newIndex && oldIndex < firstChangedTypeId) {
+            firstChangedTypeId = oldIndex;
+        }
     }
 
     public void markTypeIdDeleted(int index) {
         if (index < 0) return;
         deletedTypeIds.put(index, true);
+        if (index < firstChangedTypeId) {
+            firstChangedTypeId = index;
+        }
     }
 
     public void mapProtoIds(int oldIndex, int newIndex) {
         protoIdsMap.put(oldIndex, newIndex);
+        if (oldIndex != newIndex && oldIndex < firstChangedProtoId) {
+            firstChangedProtoId = oldIndex;
+        }
     }
 
     public void markProtoIdDeleted(int index) {
         if (index < 0) return;
         deletedProtoIds.put(index, true);
+        if (index < firstChangedProtoId) {
+            firstChangedProtoId = index;
+        }
     }
 
     public void mapFieldIds(int oldIndex, int newIndex) {
@@ -103,11 +133,17 @@ public class SparseIndexMap extends AbstractIndexMap {
 
     public void mapTypeListOffset(int oldOffset, int newOffset) {
         typeListOffsetsMap.put(oldOffset, newOffset);
+        if (oldOffset != newOffset && oldOffset < firstChangedTypeListOffset) {
+            firstChangedTypeListOffset = oldOffset;
+        }
     }
 
     public void markTypeListDeleted(int offset) {
         if (offset < 0) return;
         deletedTypeListOffsets.put(offset, true);
+        if (offset < firstChangedTypeListOffset) {
+            firstChangedTypeListOffset = offset;
+        }
     }
 
     public void mapAnnotationOffset(int oldOffset, int newOffset) {
@@ -139,29 +175,47 @@ public class SparseIndexMap extends AbstractIndexMap {
 
     public void mapAnnotationsDirectoryOffset(int oldOffset, int newOffset) {
         annotationsDirectoryOffsetsMap.put(oldOffset, newOffset);
+        if (oldOffset != newOffset && oldOffset < firstChangedAnnotationsDirectoryOffset) {
+            firstChangedAnnotationsDirectoryOffset = oldOffset;
+        }
     }
 
     public void markAnnotationsDirectoryDeleted(int offset) {
         if (offset < 0) return;
         deletedAnnotationsDirectoryOffsets.put(offset, true);
+        if (offset < firstChangedAnnotationsDirectoryOffset) {
+            firstChangedAnnotationsDirectoryOffset = offset;
+        }
     }
 
     public void mapStaticValuesOffset(int oldOffset, int newOffset) {
         staticValuesOffsetsMap.put(oldOffset, newOffset);
+        if (oldOffset != newOffset && oldOffset < firstChangedStaticValuesOffset) {
+            firstChangedStaticValuesOffset = oldOffset;
+        }
     }
 
     public void markStaticValuesDeleted(int offset) {
         if (offset < 0) return;
         deletedStaticValuesOffsets.put(offset, true);
+        if (offset < firstChangedStaticValuesOffset) {
+            firstChangedStaticValuesOffset = offset;
+        }
     }
 
     public void mapClassDataOffset(int oldOffset, int newOffset) {
         classDataOffsetsMap.put(oldOffset, newOffset);
+        if (oldOffset != newOffset && oldOffset < firstChangedClassDataOffset) {
+            firstChangedClassDataOffset = oldOffset;
+        }
     }
 
     public void markClassDataDeleted(int offset) {
         if (offset < 0) return;
         deletedClassDataOffsets.put(offset, true);
+        if (offset < firstChangedClassDataOffset) {
+            firstChangedClassDataOffset = offset;
+        }
     }
 
     public void mapDebugInfoItemOffset(int oldOffset, int newOffset) {
@@ -182,6 +236,100 @@ public class SparseIndexMap extends AbstractIndexMap {
         deletedCodeOffsets.put(offset, true);
     }
 
+    /*
+     * Mapping of a kind is identity when none of its indices or offsets is changed or deleted,
+     * in which case adjusting them returns what is passed in.
+     */
+
+    public boolean isStringIdsIdentity() {
+        return stringIdsMap.size() == 0 && deletedStringIds.size() == 0;
+    }
+
+    public boolean isTypeIdsIdentity() {
+        return typeIdsMap.size() == 0 && deletedTypeIds.size() == 0;
+    }
+
+    public boolean isProtoIdsIdentity() {
+        return protoIdsMap.size() == 0 && deletedProtoIds.size() == 0;
+    }
+
+    public boolean isFieldIdsIdentity() {
+        return fieldIdsMap.size() == 0 && deletedFieldIds.size() == 0;
+    }
+
+    public boolean isMethodIdsIdentity() {
+        return methodIdsMap.size() == 0 && deletedMethodIds.size() == 0;
+    }
+
+    public boolean isTypeListOffsetsIdentity() {
+        return typeListOffsetsMap.size() == 0 && deletedTypeListOffsets.size() == 0;
+    }
+
+    public boolean isAnnotationOffsetsIdentity() {
+        return annotationOffsetsMap.size() == 0 && deletedAnnotationOffsets.size() == 0;
+    }
+
+    public boolean isAnnotationSetOffsetsIdentity() {
+        return annotationSetOffsetsMap.size() == 0 && deletedAnnotationSetOffsets.size() == 0;
+    }
+
+    public boolean isAnnotationSetRefListOffsetsIdentity() {
+        return annotationSetRefListOffsetsMap.size() == 0 && deletedAnnotationSetRefListOffsets.size() == 0;
+    }
+
+    public boolean isAnnotationsDirectoryOffsetsIdentity() {
+        return annotationsDirectoryOffsetsMap.size() == 0 && deletedAnnotationsDirectoryOffsets.size() == 0;
+    }
+
+    public boolean isStaticValuesOffsetsIdentity() {
+        return staticValuesOffsetsMap.size() == 0 && deletedStaticValuesOffsets.size() == 0;
+    }
+
+    public boolean isClassDataOffsetsIdentity() {
+        return classDataOffsetsMap.size() == 0 && deletedClassDataOffsets.size() == 0;
+    }
+
+    public boolean isDebugInfoItemOffsetsIdentity() {
+        return debugInfoItemOffsetsMap.size() == 0 && deletedDebugInfoItemOffsets.size() == 0;
+    }
+
+    public boolean isCodeOffsetsIdentity() {
+        return codeOffsetsMap.size() == 0 && deletedCodeOffsets.size() == 0;
+    }
+
+    /*
+     * An index or offset below the smallest changed one of its kind is adjusted to itself, which
+     * is known without a lookup. False means it may or may not be changed.
+     */
+
+    public boolean isStringIdUnchanged(int stringIndex) {
+        return stringIndex < firstChangedStringId;
+    }
+
+    public boolean isTypeIdUnchanged(int typeIdIndex) {
+        return typeIdIndex < firstChangedTypeId;
+    }
+
+    public boolean isProtoIdUnchanged(int protoIndex) {
+        return protoIndex < firstChangedProtoId;
+    }
+
+    public boolean isTypeListOffsetUnchanged(int typeListOffset) {
+        return typeListOffset < firstChangedTypeListOffset;
+    }
+
+    public boolean isAnnotationsDirectoryOffsetUnchanged(int annotationsDirectoryOffset) {
+        return annotationsDirectoryOffset < firstChangedAnnotationsDirectoryOffset;
+    }
+
+    public boolean isStaticValuesOffsetUnchanged(int staticValuesOffset) {
+        return staticValuesOffset < firstChangedStaticValuesOffset;
+    }
+
+    public boolean isClassDataOffsetUnchanged(int classDataOffset) {
+        return classDataOffset < firstChangedClassDataOffset;
+    }
+
     @Override
     public int adjustStringIndex(int stringIndex) {
         int index = stringIdsMap.indexOfKey(stringIndex);